@@ -0,0 +1,115 @@
+package net.buddat.wanalyse.gui;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the raster renderer with drawing the same block through Graphics
+ * fillRect and drawLine calls, as the renderer used to.
+ *
+ * Run with:
+ * <pre>
+ * mvn -Pjmh test-compile dependency:build-classpath -Dmdep.outputFile=target/cp.txt
+ * java -cp target/classes:target/test-classes:$(cat target/cp.txt) org.openjdk.jmh.Main TileRendererBenchmark
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TileRendererBenchmark {
+
+	@Param({ "4", "8", "32" })
+	public int tileSize;
+	
+	private MapLayer layer;
+	private BufferedImage image;
+	private int[] pixels;
+	private int blockTiles;
+	
+	private static final Color[] TERRAIN_COLORS = new Color[256];
+	
+	static {
+		int[] table = TerrainType.createColorTable();
+		for (int i = 0; i < table.length; i++)
+			TERRAIN_COLORS[i] = new Color(table[i], true);
+	}
+	
+	@Setup
+	public void setup() {
+		layer = new MapLayer(false, MapChunk.SIZE, MapChunk.SIZE);
+		Random r = new Random(1);
+		TerrainType[] types = TerrainType.values();
+		for (int y = 0; y < MapChunk.SIZE; y++) {
+			for (int x = 0; x < MapChunk.SIZE; x++) {
+				if (r.nextInt(10) == 0)
+					continue;
+				layer.addTile(x, y);
+				layer.setTerrainType(x, y, types[1 + r.nextInt(types.length - 1)].getId());
+				if (r.nextInt(8) == 0)
+					layer.setOverlayColor(x, y, 0x80FF0000);
+			}
+		}
+		
+		blockTiles = ChunkImageCache.getBlockTiles(tileSize);
+		image = new BufferedImage(blockTiles * tileSize, blockTiles * tileSize, BufferedImage.TYPE_INT_ARGB);
+		pixels = new int[image.getWidth() * image.getHeight()];
+	}
+	
+	@Benchmark
+	public int raster() {
+		TileRenderer.render(pixels, image.getWidth(), layer, 0, 0, blockTiles, blockTiles, tileSize);
+		image.getRaster().setDataElements(0, 0, image.getWidth(), image.getHeight(), pixels);
+		return pixels[pixels.length - 1];
+	}
+	
+	@Benchmark
+	public int graphics() {
+		Graphics2D g = image.createGraphics();
+		g.setBackground(new Color(0, true));
+		g.clearRect(0, 0, image.getWidth(), image.getHeight());
+		
+		for (int y = 0; y < blockTiles; y++) {
+			for (int x = 0; x < blockTiles; x++) {
+				if (!layer.hasTile(x, y))
+					continue;
+				
+				g.setColor(TERRAIN_COLORS[layer.getTerrainType(x, y) & 0xFF]);
+				g.fillRect(x * tileSize, y * tileSize, tileSize, tileSize);
+				
+				int overlay = layer.getOverlayColor(x, y);
+				if (overlay != Tile.NULL_COLOUR) {
+					g.setColor(new Color(overlay, true));
+					g.fillRect(x * tileSize, y * tileSize, tileSize, tileSize);
+				}
+			}
+		}
+		
+		int size = blockTiles * tileSize;
+		g.setColor(Color.BLACK);
+		for (int i = 0; i < blockTiles; i++) {
+			g.drawLine(i * tileSize, 0, i * tileSize, size - 1);
+			g.drawLine(0, i * tileSize, size - 1, i * tileSize);
+		}
+		g.dispose();
+		
+		return image.getRGB(size - 1, size - 1);
+	}
+}
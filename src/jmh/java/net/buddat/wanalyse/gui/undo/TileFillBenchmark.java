@@ -0,0 +1,53 @@
+package net.buddat.wanalyse.gui.undo;
+
+import java.util.concurrent.TimeUnit;
+
+import net.buddat.wanalyse.gui.Map;
+import net.buddat.wanalyse.gui.TerrainType;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Times a bucket fill of a million tiles, undoing it after each one so every
+ * fill starts from the same map.
+ *
+ * Run with:
+ * <pre>
+ * mvn -Pjmh test-compile dependency:build-classpath -Dmdep.outputFile=target/cp.txt
+ * java -cp target/classes:target/test-classes:$(cat target/cp.txt) org.openjdk.jmh.Main TileFillBenchmark
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TileFillBenchmark {
+
+	private Map map;
+	
+	@Setup
+	public void setup() {
+		map = new Map("bench", 1000, 1000);
+		map.fillTerrainType(0, 0, 1000, 1000, false, TerrainType.ROCK.getId());
+		/* A wall with a gap at the end, so the fill has to go round it. */
+		map.fillTerrainType(0, 500, 999, 1, false, TerrainType.CAVE.getId());
+	}
+	
+	@Benchmark
+	public int fillMillionTiles() {
+		TileFill fill = new TileFill(map, 0, 0, TileChangeSet.Plane.TERRAIN, TerrainType.GOLD.getId(), false);
+		fill.undo();
+		return fill.getTilesFilled();
+	}
+}
@@ -1,5 +1,8 @@
 package net.buddat.wanalyse;
 
+import java.util.Arrays;
+
+import net.buddat.wanalyse.batch.BatchMode;
 import net.buddat.wanalyse.gui.MainWindow;
 
 public class WAnalyse {
@@ -9,22 +12,25 @@ public class WAnalyse {
 	public WAnalyse(String[] args) {
 		loadSettings();
 		
-		setMainWindow(new MainWindow());
+		main = new MainWindow();
 	}
 
 	private void loadSettings() {
 		
 	}
 
-	public MainWindow getMainWindow() {
-		return main;
-	}
-
-	public void setMainWindow(MainWindow main) {
-		this.main = main;
-	}
-
+	/**
+	 * Starts the GUI, or with {@value BatchMode#FLAG} runs batch jobs
+	 * headless. No method of this class mentions a GUI class in its
+	 * signature, since the launcher resolves them all before calling main;
+	 * that way batch mode never loads Swing.
+	 */
 	public static void main(String[] args) {
+		if (args.length > 0 && args[0].equals(BatchMode.FLAG)) {
+			System.exit(BatchMode.run(Arrays.copyOfRange(args, 1, args.length)));
+			return;
+		}
+		
 		new WAnalyse(args);
 	}
 
@@ -0,0 +1,81 @@
+package net.buddat.wanalyse.analyse;
+
+import net.buddat.wanalyse.gui.TerrainType;
+
+/**
+ * One result of the Analyse skill: standing on a tile, a vein of some ore
+ * and quality was sensed in a direction and at a rough distance.
+ *
+ * Positions are in map storage coordinates, the same ones {@link
+ * net.buddat.wanalyse.gui.MapLayer} uses, so readings stay put when the map
+ * is resized. Add the map's origin to a logical tile to get them.
+ */
+public class AnalyseReading {
+
+	private final int x, y;
+	private final Direction direction;
+	private final DistanceBand distance;
+	private final Vein vein;
+	
+	public AnalyseReading(int x, int y, Direction direction, DistanceBand distance, TerrainType ore, OreQuality quality) {
+		this.x = x;
+		this.y = y;
+		this.direction = direction;
+		this.distance = distance;
+		this.vein = new Vein(ore, quality);
+	}
+	
+	public int getX() {
+		return x;
+	}
+	
+	public int getY() {
+		return y;
+	}
+	
+	public Direction getDirection() {
+		return direction;
+	}
+	
+	public DistanceBand getDistance() {
+		return distance;
+	}
+	
+	public Vein getVein() {
+		return vein;
+	}
+	
+	/**
+	 * Whether the vein could be at the given tile as far as this reading
+	 * alone is concerned.
+	 */
+	public boolean covers(int tileX, int tileY) {
+		int dx = tileX - x, dy = tileY - y;
+		return distance.contains(dx, dy) && direction.contains(dx, dy);
+	}
+	
+	/*
+	 * Bounds of the tiles the reading can cover, inclusive.
+	 */
+	
+	public int getMinX() {
+		return x - distance.getMaxDistance();
+	}
+	
+	public int getMinY() {
+		return y - distance.getMaxDistance();
+	}
+	
+	public int getMaxX() {
+		return x + distance.getMaxDistance();
+	}
+	
+	public int getMaxY() {
+		return y + distance.getMaxDistance();
+	}
+	
+	@Override
+	public String toString() {
+		return vein + " " + distance.getDisplayName() + " to the " + direction.getDisplayName() + " of " + x + "," + y;
+	}
+}
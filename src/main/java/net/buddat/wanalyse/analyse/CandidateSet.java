@@ -0,0 +1,150 @@
+package net.buddat.wanalyse.analyse;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import net.buddat.wanalyse.gui.MapChunk;
+
+/**
+ * Tiles that can still hold a vein, as one bit per tile in chunks laid out
+ * like {@link MapChunk}: one long per row, bit x for column x. Only chunks
+ * with at least one candidate are kept.
+ *
+ * The first reading fills in its whole region. Every reading after that can
+ * only take tiles away, so it is applied by dropping the chunks outside its
+ * bounds outright and testing just the bits still set in the rest. The cost
+ * of a reading shrinks with the candidate set rather than growing with the
+ * number of readings.
+ */
+public class CandidateSet {
+
+	private final HashMap<Long, long[]> chunks = new HashMap<Long, long[]>();
+	private boolean constrained;
+	private int count;
+	
+	/**
+	 * Whether any reading has been applied yet. An unconstrained set has no
+	 * candidates, rather than every tile.
+	 */
+	public boolean isConstrained() {
+		return constrained;
+	}
+	
+	/**
+	 * Narrows the set down to the tiles the reading covers.
+	 */
+	public void apply(AnalyseReading r) {
+		if (!constrained) {
+			constrained = true;
+			fill(r);
+			return;
+		}
+		
+		int minCX = r.getMinX() >> MapChunk.SHIFT, maxCX = r.getMaxX() >> MapChunk.SHIFT;
+		int minCY = r.getMinY() >> MapChunk.SHIFT, maxCY = r.getMaxY() >> MapChunk.SHIFT;
+		
+		Iterator<Map.Entry<Long, long[]>> it = chunks.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Long, long[]> e = it.next();
+			long[] bits = e.getValue();
+			int cx = MapChunk.keyX(e.getKey()), cy = MapChunk.keyY(e.getKey());
+			
+			if (cx < minCX || cx > maxCX || cy < minCY || cy > maxCY) {
+				count -= bitCount(bits);
+				it.remove();
+				continue;
+			}
+			
+			if (intersect(bits, cx, cy, r) == 0)
+				it.remove();
+		}
+	}
+	
+	private void fill(AnalyseReading r) {
+		for (int cy = r.getMinY() >> MapChunk.SHIFT; cy <= r.getMaxY() >> MapChunk.SHIFT; cy++) {
+			for (int cx = r.getMinX() >> MapChunk.SHIFT; cx <= r.getMaxX() >> MapChunk.SHIFT; cx++) {
+				long[] bits = new long[MapChunk.SIZE];
+				int baseX = cx << MapChunk.SHIFT, baseY = cy << MapChunk.SHIFT;
+				int chunkCount = 0;
+				
+				for (int y = 0; y < MapChunk.SIZE; y++) {
+					long row = 0;
+					for (int x = 0; x < MapChunk.SIZE; x++)
+						if (r.covers(baseX + x, baseY + y))
+							row |= 1L << x;
+					bits[y] = row;
+					chunkCount += Long.bitCount(row);
+				}
+				
+				if (chunkCount > 0) {
+					chunks.put(MapChunk.key(cx, cy), bits);
+					count += chunkCount;
+				}
+			}
+		}
+	}
+	
+	/*
+	 * Clears the bits the reading doesn't cover and returns how many are
+	 * left. Only bits still set are tested.
+	 */
+	private int intersect(long[] bits, int chunkX, int chunkY, AnalyseReading r) {
+		int baseX = chunkX << MapChunk.SHIFT, baseY = chunkY << MapChunk.SHIFT;
+		int left = 0;
+		
+		for (int y = 0; y < MapChunk.SIZE; y++) {
+			long row = bits[y];
+			for (long rest = row; rest != 0; rest &= rest - 1) {
+				int x = Long.numberOfTrailingZeros(rest);
+				if (!r.covers(baseX + x, baseY + y)) {
+					row &= ~(1L << x);
+					count--;
+				}
+			}
+			bits[y] = row;
+			left += Long.bitCount(row);
+		}
+		
+		return left;
+	}
+	
+	private static int bitCount(long[] bits) {
+		int n = 0;
+		for (long b : bits)
+			n += Long.bitCount(b);
+		
+		return n;
+	}
+	
+	public boolean contains(int x, int y) {
+		long[] bits = chunks.get(MapChunk.key(x >> MapChunk.SHIFT, y >> MapChunk.SHIFT));
+		return bits != null && (bits[y & MapChunk.MASK] & (1L << (x & MapChunk.MASK))) != 0;
+	}
+	
+	/**
+	 * Candidate bits of one chunk, or null if it has none. Not to be
+	 * modified.
+	 */
+	public long[] getChunkBits(int chunkX, int chunkY) {
+		return chunks.get(MapChunk.key(chunkX, chunkY));
+	}
+	
+	/**
+	 * Keys of the chunks holding candidates, see {@link MapChunk#key(int, int)}.
+	 */
+	public Collection<Long> getChunkKeys() {
+		return chunks.keySet();
+	}
+	
+	public int getCount() {
+		return count;
+	}
+	
+	public void clear() {
+		chunks.clear();
+		constrained = false;
+		count = 0;
+	}
+}
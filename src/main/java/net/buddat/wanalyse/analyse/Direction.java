@@ -0,0 +1,64 @@
+package net.buddat.wanalyse.analyse;
+
+/**
+ * Compass direction given by an analyse reading. Each covers a 45 degree
+ * sector centred on its heading; tiles exactly on the line between two
+ * sectors count as being in both, so no tile a reading could mean is ever
+ * ruled out.
+ */
+public enum Direction {
+	
+	NORTH("north", 0, -1),
+	NORTHEAST("northeast", 1, -1),
+	EAST("east", 1, 0),
+	SOUTHEAST("southeast", 1, 1),
+	SOUTH("south", 0, 1),
+	SOUTHWEST("southwest", -1, 1),
+	WEST("west", -1, 0),
+	NORTHWEST("northwest", -1, -1);
+	
+	/* tan(22.5 degrees), the half width of a sector. */
+	private static final double HALF_SECTOR = Math.sqrt(2) - 1;
+	
+	private final String displayName;
+	private final int stepX, stepY;
+	
+	private Direction(String displayName, int stepX, int stepY) {
+		this.displayName = displayName;
+		this.stepX = stepX;
+		this.stepY = stepY;
+	}
+	
+	public String getDisplayName() {
+		return displayName;
+	}
+	
+	/**
+	 * Whether a tile dx, dy away (y increasing southwards) lies in this
+	 * direction.
+	 */
+	public boolean contains(int dx, int dy) {
+		if (dx == 0 && dy == 0)
+			return false;
+		
+		if (stepX == 0 || stepY == 0) {
+			/* Along an axis: rotate so the heading points along +x. */
+			int along = stepX * dx + stepY * dy;
+			int across = stepX * dy - stepY * dx;
+			return along > 0 && Math.abs(across) <= along * HALF_SECTOR;
+		}
+		
+		/* Diagonal: both steps point the right way, neither too steeply. */
+		int ax = stepX * dx, ay = stepY * dy;
+		return ax > 0 && ay > 0 && ay >= ax * HALF_SECTOR && ax >= ay * HALF_SECTOR;
+	}
+	
+	public static Direction fromName(String name) {
+		String key = name.trim().replace(" ", "").replace("-", "");
+		for (Direction d : values())
+			if (d.displayName.equalsIgnoreCase(key))
+				return d;
+		
+		return null;
+	}
+}
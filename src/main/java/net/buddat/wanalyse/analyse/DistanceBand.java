@@ -0,0 +1,48 @@
+package net.buddat.wanalyse.analyse;
+
+/**
+ * How far away an analyse reading says the vein is, as a range of tile
+ * distances. Distance is counted the way movement is in game, as the larger
+ * of the east-west and north-south steps.
+ */
+public enum DistanceBand {
+	
+	VERY_CLOSE("very close", 1, 3),
+	CLOSE("close", 4, 9),
+	FAR("far", 10, 19),
+	VERY_FAR("very far", 20, 49);
+	
+	private final String displayName;
+	private final int minDistance, maxDistance;
+	
+	private DistanceBand(String displayName, int minDistance, int maxDistance) {
+		this.displayName = displayName;
+		this.minDistance = minDistance;
+		this.maxDistance = maxDistance;
+	}
+	
+	public String getDisplayName() {
+		return displayName;
+	}
+	
+	public int getMinDistance() {
+		return minDistance;
+	}
+	
+	public int getMaxDistance() {
+		return maxDistance;
+	}
+	
+	public boolean contains(int dx, int dy) {
+		int d = Math.max(Math.abs(dx), Math.abs(dy));
+		return d >= minDistance && d <= maxDistance;
+	}
+	
+	public static DistanceBand fromName(String name) {
+		for (DistanceBand b : values())
+			if (b.displayName.equalsIgnoreCase(name.trim()))
+				return b;
+		
+		return null;
+	}
+}
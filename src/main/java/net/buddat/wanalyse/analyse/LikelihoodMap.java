@@ -0,0 +1,307 @@
+package net.buddat.wanalyse.analyse;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.buddat.wanalyse.gui.MapChunk;
+
+/**
+ * How likely each tile is to hold one vein, given the readings taken so far.
+ *
+ * Each reading is taken to be right with probability RELIABILITY, in which
+ * case the vein is anywhere in its region with equal chance, and otherwise to
+ * say nothing about where the vein is. In log odds against a background of
+ * BACKGROUND_TILES, that makes a tile's score the sum of a weight for every
+ * reading covering it. Narrow readings weigh more than wide ones, and tiles no
+ * reading covers score 0.
+ *
+ * Scores are kept per chunk, in storage coordinates like the map layers. A
+ * new or removed reading only marks the chunks under it; {@link #update()}
+ * then recomputes just those, one fork-join task per few chunks.
+ */
+public class LikelihoodMap {
+
+	public static final double RELIABILITY = 0.9;
+	public static final int BACKGROUND_TILES = 201 * 201;
+	
+	/* Chunks computed by one task before it stops splitting. */
+	private static final int CHUNKS_PER_TASK = 2;
+	
+	private static final AtomicLong VERSIONS = new AtomicLong();
+	
+	/*
+	 * Overlay colour by score below the top score, in steps of 1 /
+	 * DELTA_SCALE, so colouring a tile is a lookup with no maths. Tiles
+	 * further below than the table reaches are less than 1/255 as likely as
+	 * the top tile and get the faintest colour.
+	 */
+	private static final int DELTA_SCALE = 128;
+	private static final int[] DELTA_COLORS = createDeltaColors();
+	
+	/* Weight of a reading by distance band and direction. */
+	private static final double[][] WEIGHTS = createWeights();
+	
+	public static class Chunk {
+		private final float[] scores = new float[MapChunk.AREA];
+		private float max;
+		private final long version = VERSIONS.incrementAndGet();
+		
+		public float getScore(int localX, int localY) {
+			return scores[MapChunk.index(localX, localY)];
+		}
+		
+		public float getMax() {
+			return max;
+		}
+		
+		public long getVersion() {
+			return version;
+		}
+	}
+	
+	private final Vein vein;
+	private final List<AnalyseReading> readings = new ArrayList<AnalyseReading>();
+	private final HashMap<Long, Chunk> chunks = new HashMap<Long, Chunk>();
+	private final HashSet<Long> dirty = new HashSet<Long>();
+	private float maxScore;
+	
+	private final ForkJoinPool pool;
+	
+	public LikelihoodMap(Vein vein) {
+		this(vein, ForkJoinPool.commonPool());
+	}
+	
+	public LikelihoodMap(Vein vein, ForkJoinPool pool) {
+		this.vein = vein;
+		this.pool = pool;
+	}
+	
+	public Vein getVein() {
+		return vein;
+	}
+	
+	private static double[][] createWeights() {
+		DistanceBand[] bands = DistanceBand.values();
+		Direction[] directions = Direction.values();
+		double[][] weights = new double[bands.length][directions.length];
+		
+		for (DistanceBand band : bands) {
+			int max = band.getMaxDistance();
+			for (Direction d : directions) {
+				int tiles = 0;
+				for (int dy = -max; dy <= max; dy++)
+					for (int dx = -max; dx <= max; dx++)
+						if (band.contains(dx, dy) && d.contains(dx, dy))
+							tiles++;
+				
+				weights[band.ordinal()][d.ordinal()] = Math.log((RELIABILITY / tiles)
+						/ ((1 - RELIABILITY) / BACKGROUND_TILES));
+			}
+		}
+		
+		return weights;
+	}
+	
+	public static double getWeight(AnalyseReading r) {
+		return WEIGHTS[r.getDistance().ordinal()][r.getDirection().ordinal()];
+	}
+	
+	/**
+	 * Adds a reading, if it is about this map's vein. Nothing is recomputed
+	 * until the next update.
+	 */
+	public void addReading(AnalyseReading r) {
+		if (!vein.equals(r.getVein()))
+			return;
+		
+		readings.add(r);
+		markDirty(r);
+	}
+	
+	public void removeReading(AnalyseReading r) {
+		if (readings.remove(r))
+			markDirty(r);
+	}
+	
+	private void markDirty(AnalyseReading r) {
+		for (int cy = r.getMinY() >> MapChunk.SHIFT; cy <= r.getMaxY() >> MapChunk.SHIFT; cy++)
+			for (int cx = r.getMinX() >> MapChunk.SHIFT; cx <= r.getMaxX() >> MapChunk.SHIFT; cx++)
+				dirty.add(MapChunk.key(cx, cy));
+	}
+	
+	public boolean needsUpdate() {
+		return !dirty.isEmpty();
+	}
+	
+	/**
+	 * Recomputes every chunk touched by readings added or removed since the
+	 * last update, in parallel, and returns their keys.
+	 */
+	public Collection<Long> update() {
+		if (dirty.isEmpty())
+			return Collections.emptyList();
+		
+		long[] keys = new long[dirty.size()];
+		int n = 0;
+		for (Long key : dirty)
+			keys[n++] = key;
+		
+		AnalyseReading[] snapshot = readings.toArray(new AnalyseReading[readings.size()]);
+		Chunk[] results = new Chunk[keys.length];
+		pool.invoke(new ComputeTask(snapshot, keys, results, 0, keys.length));
+		
+		for (int i = 0; i < keys.length; i++) {
+			if (results[i] == null)
+				chunks.remove(keys[i]);
+			else
+				chunks.put(keys[i], results[i]);
+		}
+		
+		maxScore = 0;
+		for (Chunk c : chunks.values())
+			maxScore = Math.max(maxScore, c.max);
+		
+		List<Long> changed = new ArrayList<Long>(dirty);
+		dirty.clear();
+		
+		return changed;
+	}
+	
+	private static class ComputeTask extends RecursiveAction {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private final AnalyseReading[] readings;
+		private final long[] keys;
+		private final Chunk[] results;
+		private final int from, to;
+		
+		private ComputeTask(AnalyseReading[] readings, long[] keys, Chunk[] results, int from, int to) {
+			this.readings = readings;
+			this.keys = keys;
+			this.results = results;
+			this.from = from;
+			this.to = to;
+		}
+		
+		@Override
+		protected void compute() {
+			if (to - from <= CHUNKS_PER_TASK) {
+				for (int i = from; i < to; i++)
+					results[i] = computeChunk(readings, MapChunk.keyX(keys[i]), MapChunk.keyY(keys[i]));
+				return;
+			}
+			
+			int mid = (from + to) >>> 1;
+			invokeAll(new ComputeTask(readings, keys, results, from, mid),
+					new ComputeTask(readings, keys, results, mid, to));
+		}
+	}
+	
+	/*
+	 * Scores one chunk from scratch, or returns null if no reading covers
+	 * any of it.
+	 */
+	static Chunk computeChunk(AnalyseReading[] readings, int chunkX, int chunkY) {
+		int x0 = chunkX << MapChunk.SHIFT, y0 = chunkY << MapChunk.SHIFT;
+		int x1 = x0 + MapChunk.MASK, y1 = y0 + MapChunk.MASK;
+		Chunk c = null;
+		
+		for (AnalyseReading r : readings) {
+			int minX = Math.max(x0, r.getMinX()), maxX = Math.min(x1, r.getMaxX());
+			int minY = Math.max(y0, r.getMinY()), maxY = Math.min(y1, r.getMaxY());
+			if (minX > maxX || minY > maxY)
+				continue;
+			
+			float weight = (float) getWeight(r);
+			for (int y = minY; y <= maxY; y++) {
+				for (int x = minX; x <= maxX; x++) {
+					if (!r.covers(x, y))
+						continue;
+					
+					if (c == null)
+						c = new Chunk();
+					c.scores[MapChunk.index(x - x0, y - y0)] += weight;
+				}
+			}
+		}
+		
+		if (c != null)
+			for (float s : c.scores)
+				c.max = Math.max(c.max, s);
+		
+		return c;
+	}
+	
+	/**
+	 * Scores of one chunk as of the last update, or null if nothing covers
+	 * it.
+	 */
+	public Chunk getChunk(int chunkX, int chunkY) {
+		return chunks.get(MapChunk.key(chunkX, chunkY));
+	}
+	
+	public float getScore(int x, int y) {
+		Chunk c = getChunk(x >> MapChunk.SHIFT, y >> MapChunk.SHIFT);
+		return c == null ? 0 : c.getScore(x & MapChunk.MASK, y & MapChunk.MASK);
+	}
+	
+	public float getMaxScore() {
+		return maxScore;
+	}
+	
+	/**
+	 * Likelihood of a tile relative to the most likely tile, from 0 to 1.
+	 */
+	public double getLikelihood(int x, int y) {
+		float score = getScore(x, y);
+		return score == 0 ? 0 : Math.exp(score - maxScore);
+	}
+	
+	public List<AnalyseReading> getReadings() {
+		return Collections.unmodifiableList(readings);
+	}
+	
+	private static int[] createDeltaColors() {
+		int[] colors = createColorTable();
+		int[] table = new int[(int) Math.ceil(Math.log(255) * DELTA_SCALE) + 1];
+		for (int i = 0; i < table.length; i++)
+			table[i] = colors[Math.max(1, (int) (Math.exp(-(double) i / DELTA_SCALE) * 255))];
+		
+		return table;
+	}
+	
+	/**
+	 * ARGB overlay colour for a tile score, relative to the top score as of
+	 * the last update. A score of 0 is clear.
+	 */
+	public int getColor(float score) {
+		if (score == 0)
+			return 0;
+		
+		int delta = (int) ((maxScore - score) * DELTA_SCALE);
+		return DELTA_COLORS[Math.max(0, Math.min(delta, DELTA_COLORS.length - 1))];
+	}
+	
+	/**
+	 * Returns a table of ARGB overlay colours indexed by likelihood scaled to
+	 * 0-255: clear for nothing, through faint yellow to solid red.
+	 */
+	public static int[] createColorTable() {
+		int[] table = new int[256];
+		for (int i = 1; i < 256; i++) {
+			int alpha = 40 + i * 160 / 255;
+			int green = 255 - i;
+			table[i] = (alpha << 24) | (0xFF << 16) | (green << 8);
+		}
+		
+		return table;
+	}
+}
@@ -0,0 +1,33 @@
+package net.buddat.wanalyse.analyse;
+
+/**
+ * Quality hint given by an analyse reading, best first.
+ */
+public enum OreQuality {
+	
+	UTMOST("utmost"),
+	VERY_GOOD("very good"),
+	GOOD("good"),
+	ACCEPTABLE("acceptable"),
+	NORMAL("normal"),
+	POOR("poor"),
+	VERY_POOR("very poor");
+	
+	private final String displayName;
+	
+	private OreQuality(String displayName) {
+		this.displayName = displayName;
+	}
+	
+	public String getDisplayName() {
+		return displayName;
+	}
+	
+	public static OreQuality fromName(String name) {
+		for (OreQuality q : values())
+			if (q.displayName.equalsIgnoreCase(name.trim()))
+				return q;
+		
+		return null;
+	}
+}
@@ -0,0 +1,144 @@
+package net.buddat.wanalyse.analyse;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.buddat.wanalyse.gui.TerrainType;
+
+/**
+ * The analyse readings taken on a map, kept in a text file next to the map
+ * file so they outlive the session that read them from the logs. One line per
+ * reading:
+ * <pre>
+ * x y direction distance ore quality
+ * </pre>
+ * with storage coordinates, enum constant names, and "-" for no quality.
+ *
+ * Readings are only ever appended, and each append is forced to disk before
+ * it returns, so the event log checkpoints can safely move past them. A line
+ * cut short by a crash is ignored when reading and cut off before the next
+ * append.
+ */
+public class ReadingFile {
+
+	public static final String EXT = ".readings";
+	
+	private static final Charset CHARSET = Charset.forName("US-ASCII");
+	
+	/* Far longer than any line. */
+	private static final int TAIL = 256;
+	
+	private final File file;
+	
+	public ReadingFile(File file) {
+		this.file = file;
+	}
+	
+	/**
+	 * The reading file kept alongside a map file.
+	 */
+	public static ReadingFile forMap(File mapFile) {
+		return new ReadingFile(new File(mapFile.getPath() + EXT));
+	}
+	
+	public File getFile() {
+		return file;
+	}
+	
+	/**
+	 * Reads every reading in the file, oldest first. A missing file has none.
+	 */
+	public List<AnalyseReading> read() throws IOException {
+		List<AnalyseReading> readings = new ArrayList<AnalyseReading>();
+		if (!file.exists())
+			return readings;
+		
+		String[] lines = new String(Files.readAllBytes(file.toPath()), CHARSET).split("\n", -1);
+		/* The last piece is empty unless a write was cut short. */
+		for (int i = 0; i < lines.length - 1; i++) {
+			if (lines[i].trim().isEmpty())
+				continue;
+			
+			try {
+				readings.add(parse(lines[i].trim()));
+			} catch (RuntimeException e) {
+				throw new IOException(file + ": bad reading on line " + (i + 1) + ": " + lines[i]);
+			}
+		}
+		
+		return readings;
+	}
+	
+	/**
+	 * Adds readings to the end of the file and waits until they are on disk.
+	 */
+	public void append(List<AnalyseReading> readings) throws IOException {
+		if (readings.isEmpty())
+			return;
+		
+		StringBuilder sb = new StringBuilder();
+		for (AnalyseReading r : readings)
+			format(sb, r).append('\n');
+		
+		File dir = file.getAbsoluteFile().getParentFile();
+		if (dir != null)
+			dir.mkdirs();
+		
+		FileChannel out = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		try {
+			long end = lastLineEnd(out);
+			out.truncate(end);
+			
+			ByteBuffer buf = ByteBuffer.wrap(sb.toString().getBytes(CHARSET));
+			while (buf.hasRemaining())
+				end += out.write(buf, end);
+			out.force(false);
+		} finally {
+			out.close();
+		}
+	}
+	
+	/*
+	 * Where the last whole line ends, so anything after it is a cut short
+	 * write.
+	 */
+	private static long lastLineEnd(FileChannel channel) throws IOException {
+		long size = channel.size();
+		ByteBuffer tail = ByteBuffer.allocate((int) Math.min(size, TAIL));
+		long start = size - tail.capacity();
+		while (tail.hasRemaining())
+			if (channel.read(tail, start + tail.position()) < 0)
+				break;
+		
+		for (int i = tail.position() - 1; i >= 0; i--)
+			if (tail.get(i) == '\n')
+				return start + i + 1;
+		
+		return start == 0 ? 0 : size;
+	}
+	
+	private static StringBuilder format(StringBuilder sb, AnalyseReading r) {
+		OreQuality quality = r.getVein().getQuality();
+		return sb.append(r.getX()).append(' ').append(r.getY()).append(' ')
+				.append(r.getDirection().name()).append(' ').append(r.getDistance().name()).append(' ')
+				.append(r.getVein().getOre().name()).append(' ').append(quality == null ? "-" : quality.name());
+	}
+	
+	private static AnalyseReading parse(String line) {
+		String[] parts = line.split(" ");
+		if (parts.length != 6)
+			throw new IllegalArgumentException(line);
+		
+		return new AnalyseReading(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]),
+				Direction.valueOf(parts[2]), DistanceBand.valueOf(parts[3]), TerrainType.valueOf(parts[4]),
+				parts[5].equals("-") ? null : OreQuality.valueOf(parts[5]));
+	}
+}
@@ -0,0 +1,45 @@
+package net.buddat.wanalyse.analyse;
+
+import net.buddat.wanalyse.gui.TerrainType;
+
+/**
+ * What a reading points at: an ore of a given quality. Readings for the same
+ * vein narrow down the same set of candidate tiles.
+ */
+public class Vein {
+
+	private final TerrainType ore;
+	private final OreQuality quality;
+	
+	public Vein(TerrainType ore, OreQuality quality) {
+		this.ore = ore;
+		this.quality = quality;
+	}
+	
+	public TerrainType getOre() {
+		return ore;
+	}
+	
+	public OreQuality getQuality() {
+		return quality;
+	}
+	
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof Vein))
+			return false;
+		
+		Vein v = (Vein) o;
+		return ore == v.ore && quality == v.quality;
+	}
+	
+	@Override
+	public int hashCode() {
+		return ore.hashCode() * 31 + (quality == null ? 0 : quality.hashCode());
+	}
+	
+	@Override
+	public String toString() {
+		return (quality == null ? "" : quality.getDisplayName() + " ") + ore.getDisplayName();
+	}
+}
@@ -0,0 +1,79 @@
+package net.buddat.wanalyse.analyse;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Keeps the analyse readings taken on a map and, for every vein they point
+ * at, the tiles where that vein can still be.
+ *
+ * Each reading is folded into its vein's {@link CandidateSet} as it arrives.
+ * Only removing a reading makes the solver start that vein over, from the
+ * readings left.
+ */
+public class VeinSolver {
+
+	private final List<AnalyseReading> readings = new ArrayList<AnalyseReading>();
+	private final HashMap<Vein, CandidateSet> candidates = new HashMap<Vein, CandidateSet>();
+	
+	public void addReading(AnalyseReading r) {
+		readings.add(r);
+		getOrCreate(r.getVein()).apply(r);
+	}
+	
+	public void removeReading(AnalyseReading r) {
+		if (!readings.remove(r))
+			return;
+		
+		CandidateSet set = candidates.get(r.getVein());
+		set.clear();
+		for (AnalyseReading other : readings)
+			if (other.getVein().equals(r.getVein()))
+				set.apply(other);
+		
+		if (!set.isConstrained())
+			candidates.remove(r.getVein());
+	}
+	
+	private CandidateSet getOrCreate(Vein vein) {
+		CandidateSet set = candidates.get(vein);
+		if (set == null) {
+			set = new CandidateSet();
+			candidates.put(vein, set);
+		}
+		
+		return set;
+	}
+	
+	public List<AnalyseReading> getReadings() {
+		return Collections.unmodifiableList(readings);
+	}
+	
+	public Set<Vein> getVeins() {
+		return Collections.unmodifiableSet(candidates.keySet());
+	}
+	
+	/**
+	 * Candidate tiles for a vein, or null if no reading has pointed at it.
+	 */
+	public CandidateSet getCandidates(Vein vein) {
+		return candidates.get(vein);
+	}
+	
+	/**
+	 * Whether the vein can be at the given tile, in storage coordinates.
+	 * Readings that disagree leave no candidates at all.
+	 */
+	public boolean isCandidate(Vein vein, int x, int y) {
+		CandidateSet set = candidates.get(vein);
+		return set != null && set.contains(x, y);
+	}
+	
+	public void clear() {
+		readings.clear();
+		candidates.clear();
+	}
+}
@@ -0,0 +1,218 @@
+package net.buddat.wanalyse.batch;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+import java.util.concurrent.Executor;
+
+import net.buddat.wanalyse.analyse.AnalyseReading;
+import net.buddat.wanalyse.analyse.CandidateSet;
+import net.buddat.wanalyse.analyse.LikelihoodMap;
+import net.buddat.wanalyse.analyse.OreQuality;
+import net.buddat.wanalyse.analyse.ReadingFile;
+import net.buddat.wanalyse.analyse.Vein;
+import net.buddat.wanalyse.analyse.VeinSolver;
+import net.buddat.wanalyse.gui.Map;
+import net.buddat.wanalyse.gui.MapExporter;
+import net.buddat.wanalyse.gui.MapFile;
+import net.buddat.wanalyse.gui.TerrainType;
+import net.buddat.wanalyse.ingest.AnalyseIngester;
+import net.buddat.wanalyse.ingest.EventLogTailer;
+
+/**
+ * One map's worth of batch work, read from a properties file:
+ * <pre>
+ * map=north.wam           map file, created if missing
+ * name=North mine         name of a new map, defaults to the file name
+ * size=200x150            size of a new map
+ * logs=.../logs           Wurm client log directory to read analyse results from
+ * checkpoints=north.pos   read positions, defaults to the map file + ".logpos"
+ * readings=north.rd       readings taken so far, defaults to the map file + ".readings"
+ * position=40,60          tile the logged results were taken from
+ * vein=iron,very good     vein to solve for; quality as logged, if it was
+ * png=north.png           image to export
+ * tileSize=4              export tile size
+ * cave=true               export the cave layer
+ * save=north-copy.wam     where to save, defaults to the map file if changed
+ * </pre>
+ * Readings read from the logs are added to the readings file, and every
+ * reading in it is solved for, so a job run again later still sees the
+ * readings the checkpoints have moved past.
+ * Relative paths are resolved against the job file's directory. Only the map
+ * model, solver and exporter are used, none of which need AWT's toolkit.
+ */
+public class BatchJob {
+
+	private static final Executor DIRECT = new Executor() {
+		@Override
+		public void execute(Runnable r) {
+			r.run();
+		}
+	};
+	
+	private static final String DEFAULT_TILE_SIZE = "4";
+	
+	private final String name;
+	private final File dir;
+	private final Properties props;
+	
+	public BatchJob(String name, File dir, Properties props) {
+		this.name = name;
+		this.dir = dir;
+		this.props = props;
+	}
+	
+	/**
+	 * Reads a job file, checking the settings that can be checked without
+	 * running it.
+	 */
+	public static BatchJob load(File file) throws IOException {
+		Properties props = new Properties();
+		InputStream in = new FileInputStream(file);
+		try {
+			props.load(in);
+		} finally {
+			in.close();
+		}
+		
+		parseTileSize(props.getProperty("tileSize", DEFAULT_TILE_SIZE));
+		return new BatchJob(file.getName(), file.getAbsoluteFile().getParentFile(), props);
+	}
+	
+	static int parseTileSize(String s) throws IOException {
+		try {
+			int tileSize = Integer.parseInt(s.trim());
+			if (tileSize >= 1)
+				return tileSize;
+		} catch (NumberFormatException e) {
+			/* Reported below. */
+		}
+		
+		throw new IOException("Bad tileSize: " + s);
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	/**
+	 * Runs the job and returns a one line report of what it did.
+	 */
+	public String run() throws IOException {
+		File mapFile = file("map");
+		if (mapFile == null)
+			throw new IOException(name + ": no map given");
+		
+		Map map = openMap(mapFile);
+		StringBuilder report = new StringBuilder(name).append(": ").append(map.getMapName());
+		try {
+			VeinSolver solver = new VeinSolver();
+			Vein vein = parseVein(props.getProperty("vein"));
+			LikelihoodMap heatmap = vein == null ? null : new LikelihoodMap(vein);
+			
+			File readingsFile = file("readings");
+			ReadingFile readings = readingsFile == null ? ReadingFile.forMap(mapFile) : new ReadingFile(readingsFile);
+			for (AnalyseReading r : readings.read()) {
+				solver.addReading(r);
+				if (heatmap != null)
+					heatmap.addReading(r);
+			}
+			
+			File logDir = file("logs");
+			if (logDir != null) {
+				AnalyseIngester ingester = new AnalyseIngester(map, solver);
+				int[] position = parseInts(props.getProperty("position", "0,0"), ",");
+				ingester.setPosition(position[0], position[1]);
+				ingester.setReadingFile(readings);
+				if (heatmap != null)
+					ingester.addHeatmap(heatmap);
+				
+				File checkpoints = file("checkpoints");
+				if (checkpoints == null)
+					checkpoints = new File(mapFile.getPath() + ".logpos");
+				
+				new EventLogTailer(logDir, checkpoints, ingester, DIRECT).poll();
+				report.append(", ").append(solver.getReadings().size()).append(" readings (")
+						.append(ingester.getReadingCount()).append(" new), ")
+						.append(ingester.getProspectCount()).append(" prospects");
+			} else if (!solver.getReadings().isEmpty()) {
+				report.append(", ").append(solver.getReadings().size()).append(" readings");
+			}
+			
+			if (vein != null) {
+				heatmap.update();
+				CandidateSet candidates = solver.getCandidates(vein);
+				report.append(", ").append(vein).append(": ")
+						.append(candidates == null ? 0 : candidates.getCount()).append(" candidate tiles");
+			}
+			
+			File png = file("png");
+			if (png != null) {
+				MapExporter exporter = new MapExporter(map, Boolean.parseBoolean(props.getProperty("cave")),
+						parseTileSize(props.getProperty("tileSize", DEFAULT_TILE_SIZE)));
+				exporter.setHeatmap(heatmap);
+				exporter.exportPng(png, null);
+				report.append(", exported ").append(png.getName());
+			}
+			
+			File save = file("save");
+			if (save != null || map.hasChanges() || map.getSource() == null) {
+				map.saveMap(save != null ? save : mapFile);
+				report.append(", saved");
+			}
+		} finally {
+			map.close();
+		}
+		
+		return report.toString();
+	}
+	
+	private Map openMap(File mapFile) throws IOException {
+		if (mapFile.exists())
+			return Map.loadMap(mapFile);
+		
+		String fileName = mapFile.getName();
+		if (fileName.endsWith(MapFile.MAP_FILE_EXT))
+			fileName = fileName.substring(0, fileName.length() - MapFile.MAP_FILE_EXT.length());
+		
+		int[] size = parseInts(props.getProperty("size", "64x64"), "x");
+		return new Map(props.getProperty("name", fileName), size[0], size[1]);
+	}
+	
+	private File file(String key) {
+		String path = props.getProperty(key);
+		if (path == null || path.trim().isEmpty())
+			return null;
+		
+		File f = new File(path.trim());
+		return f.isAbsolute() ? f : new File(dir, path.trim());
+	}
+	
+	private static int[] parseInts(String s, String separator) throws IOException {
+		String[] parts = s.split(separator);
+		try {
+			return new int[] { Integer.parseInt(parts[0].trim()), Integer.parseInt(parts[1].trim()) };
+		} catch (RuntimeException e) {
+			throw new IOException("Expected two numbers: " + s);
+		}
+	}
+	
+	static Vein parseVein(String s) throws IOException {
+		if (s == null || s.trim().isEmpty())
+			return null;
+		
+		String[] parts = s.split(",", 2);
+		TerrainType ore = null;
+		for (TerrainType t : TerrainType.values())
+			if (t.getDisplayName().equalsIgnoreCase(parts[0].trim()))
+				ore = t;
+		
+		OreQuality quality = parts.length > 1 ? OreQuality.fromName(parts[1]) : null;
+		if (ore == null || (parts.length > 1 && quality == null))
+			throw new IOException("Unknown vein: " + s);
+		
+		return new Vein(ore, quality);
+	}
+}
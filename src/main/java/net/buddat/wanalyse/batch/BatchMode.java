@@ -0,0 +1,96 @@
+package net.buddat.wanalyse.batch;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs batch jobs without a GUI, for cron jobs and servers:
+ * <pre>
+ * WAnalyse --batch [--threads n] job.properties...
+ * </pre>
+ * Jobs run side by side, one per core unless told otherwise, and each prints
+ * a report line. The exit status is the number of jobs that failed.
+ */
+public class BatchMode {
+
+	public static final String FLAG = "--batch";
+	
+	private static final String USAGE = "Usage: WAnalyse " + FLAG + " [--threads n] job.properties...";
+	
+	public static int run(String[] args) {
+		System.setProperty("java.awt.headless", "true");
+		
+		int threads = Runtime.getRuntime().availableProcessors();
+		List<BatchJob> jobs = new ArrayList<BatchJob>();
+		int failed = 0;
+		
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--threads")) {
+				try {
+					if (++i == args.length)
+						throw new NumberFormatException("no thread count");
+					threads = Math.max(1, Integer.parseInt(args[i]));
+				} catch (NumberFormatException e) {
+					System.err.println(USAGE);
+					return 1;
+				}
+				continue;
+			}
+			
+			try {
+				jobs.add(BatchJob.load(new File(args[i])));
+			} catch (IOException e) {
+				System.err.println(args[i] + ": " + e.getMessage());
+				failed++;
+			}
+		}
+		
+		if (jobs.isEmpty() && failed == 0) {
+			System.err.println(USAGE);
+			return 1;
+		}
+		
+		return failed + runJobs(jobs, Math.min(threads, Math.max(jobs.size(), 1)));
+	}
+	
+	/**
+	 * Runs jobs on the given number of threads, printing their reports in
+	 * order, and returns how many failed.
+	 */
+	public static int runJobs(List<BatchJob> jobs, int threads) {
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List<Future<String>> results = new ArrayList<Future<String>>();
+		
+		for (final BatchJob job : jobs) {
+			results.add(executor.submit(new Callable<String>() {
+				@Override
+				public String call() throws IOException {
+					return job.run();
+				}
+			}));
+		}
+		executor.shutdown();
+		
+		int failed = 0;
+		for (int i = 0; i < jobs.size(); i++) {
+			try {
+				System.out.println(results.get(i).get());
+			} catch (ExecutionException e) {
+				System.err.println(jobs.get(i).getName() + ": " + e.getCause());
+				failed++;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return failed + jobs.size() - i;
+			}
+		}
+		
+		return failed;
+	}
+}
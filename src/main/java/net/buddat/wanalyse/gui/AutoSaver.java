@@ -0,0 +1,228 @@
+package net.buddat.wanalyse.gui;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.swing.SwingUtilities;
+
+/**
+ * Periodically saves a map without blocking the EDT. A copy-on-write
+ * snapshot is taken on the EDT, which only copies chunk tables, and the
+ * snapshot is then written out on a background thread while editing carries
+ * on. Chunks edited during the save are copied once by the map, the rest are
+ * never copied at all.
+ */
+public class AutoSaver {
+
+	public static final long DEFAULT_INTERVAL = 60 * 1000;
+	
+	private final Map map;
+	private final File defaultFile;
+	
+	private final ScheduledExecutorService executor;
+	private ScheduledFuture<?> task;
+	private long interval = DEFAULT_INTERVAL;
+	
+	private volatile long lastSnapshotNanos, lastWriteNanos, lastSaveTime;
+	private volatile IOException lastError;
+	
+	/*
+	 * Held from taking a snapshot on the EDT until the write has finished, so
+	 * close() can wait for a write without waiting on a save that still needs
+	 * the EDT.
+	 */
+	private final Semaphore writing = new Semaphore(1);
+	private volatile boolean closed;
+	
+	/* What to do on the EDT once a write has finished, if not done yet. */
+	private volatile Runnable pending;
+	
+	/**
+	 * @param map the map to save
+	 * @param defaultFile where to save the map if it has not been loaded from
+	 * or saved to a file yet
+	 */
+	public AutoSaver(Map map, File defaultFile) {
+		this.map = map;
+		this.defaultFile = defaultFile;
+		this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "WAnalyse autosave");
+				t.setDaemon(true);
+				t.setPriority(Thread.MIN_PRIORITY);
+				return t;
+			}
+		});
+	}
+	
+	public synchronized void start() {
+		if (task != null)
+			task.cancel(false);
+		
+		task = executor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				save();
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+	
+	public synchronized void stop() {
+		if (task != null)
+			task.cancel(false);
+		task = null;
+	}
+	
+	public void shutdown() {
+		stop();
+		executor.shutdown();
+	}
+	
+	/**
+	 * Shuts down and waits for a save already being written to finish, then
+	 * hands its result to the map. Only call this on the EDT. Once it returns
+	 * nothing more is written, so the map can be saved or closed elsewhere.
+	 */
+	public void close() {
+		closed = true;
+		shutdown();
+		writing.acquireUninterruptibly();
+		writing.release();
+		runPending();
+	}
+	
+	public boolean isClosed() {
+		return closed;
+	}
+	
+	public synchronized long getInterval() {
+		return interval;
+	}
+	
+	public synchronized void setInterval(long millis) {
+		this.interval = millis;
+		if (task != null)
+			start();
+	}
+	
+	/**
+	 * Queues a save now, on the autosave thread.
+	 */
+	public void saveNow() {
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				save();
+			}
+		});
+	}
+	
+	private void save() {
+		final Map[] snapshot = new Map[1];
+		final File[] target = new File[1];
+		
+		try {
+			SwingUtilities.invokeAndWait(new Runnable() {
+				@Override
+				public void run() {
+					if (closed || !map.hasChanges())
+						return;
+					
+					long start = System.nanoTime();
+					target[0] = map.getSource() != null ? map.getSource().getFile() : defaultFile;
+					snapshot[0] = map.snapshot();
+					lastSnapshotNanos = System.nanoTime() - start;
+					writing.acquireUninterruptibly();
+				}
+			});
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		} catch (InvocationTargetException e) {
+			e.printStackTrace();
+			return;
+		}
+		
+		if (snapshot[0] == null)
+			return;
+		
+		long start = System.nanoTime();
+		try {
+			File parent = target[0].getAbsoluteFile().getParentFile();
+			if (parent != null && !parent.exists())
+				parent.mkdirs();
+			
+			final MapFile saved = snapshot[0].writeTo(target[0]);
+			lastWriteNanos = System.nanoTime() - start;
+			lastSaveTime = System.currentTimeMillis();
+			lastError = null;
+			
+			pending = new Runnable() {
+				@Override
+				public void run() {
+					map.adoptSource(saved);
+				}
+			};
+		} catch (IOException e) {
+			lastError = e;
+			e.printStackTrace();
+			
+			pending = new Runnable() {
+				@Override
+				public void run() {
+					map.restoreChanges(snapshot[0]);
+				}
+			};
+		} finally {
+			writing.release();
+		}
+		
+		SwingUtilities.invokeLater(new Runnable() {
+			@Override
+			public void run() {
+				runPending();
+			}
+		});
+	}
+	
+	private void runPending() {
+		Runnable r = pending;
+		pending = null;
+		if (r != null)
+			r.run();
+	}
+	
+	/**
+	 * Time the last snapshot held the EDT for.
+	 */
+	public long getLastSnapshotNanos() {
+		return lastSnapshotNanos;
+	}
+	
+	/**
+	 * Time the last save spent writing on the autosave thread.
+	 */
+	public long getLastWriteNanos() {
+		return lastWriteNanos;
+	}
+	
+	/**
+	 * Wall clock time of the last successful save, or 0 if there has not
+	 * been one.
+	 */
+	public long getLastSaveTime() {
+		return lastSaveTime;
+	}
+	
+	public IOException getLastError() {
+		return lastError;
+	}
+}
@@ -0,0 +1,154 @@
+package net.buddat.wanalyse.gui;
+
+import java.awt.image.BufferedImage;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Keeps pre-rendered images of map chunks so a repaint only has to blit a
+ * handful of images instead of drawing every visible tile.
+ *
+ * At large tile sizes a whole chunk would make an unreasonably large image, so
+ * chunks are split into square blocks of {@link #getBlockTiles(int)} tiles.
+ * Images are cached per layer and tile size, and are least recently used first
+ * once the memory budget is used up. An image is reused for as long as its
+ * chunk's version is unchanged, so edits only invalidate the chunks they touch.
+ *
+ * Blocks are rendered into a scratch array and copied into their images, so
+ * the images never have their data arrays taken and Java2D can keep
+ * accelerated copies of them.
+ */
+public class ChunkImageCache {
+
+	public static final long DEFAULT_BUDGET = 64L * 1024 * 1024;
+	
+	/* Blocks are kept at or under this many pixels across. */
+	private static final int MAX_BLOCK_PIXELS = 512;
+	
+	private static class Entry {
+		private final BufferedImage image;
+		private final long version;
+		
+		private Entry(BufferedImage image, long version) {
+			this.image = image;
+			this.version = version;
+		}
+	}
+	
+	private final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<Long, Entry>(256, 0.75f, true);
+	private long budget, used;
+	
+	/* Empty blocks all look the same, so they share one image. */
+	private BufferedImage emptyBlock;
+	private int emptyBlockTileSize;
+	
+	private int[] scratch = new int[0];
+	
+	public ChunkImageCache() {
+		this(DEFAULT_BUDGET);
+	}
+	
+	public ChunkImageCache(long budget) {
+		this.budget = budget;
+	}
+	
+	/**
+	 * Number of tiles across a cached block at the given tile size. Always a
+	 * power of two no larger than a chunk, so a block never straddles chunks.
+	 */
+	public static int getBlockTiles(int tileSize) {
+		int tiles = Integer.highestOneBit(Math.max(1, MAX_BLOCK_PIXELS / tileSize));
+		return Math.min(tiles, MapChunk.SIZE);
+	}
+	
+	/**
+	 * Returns the image for one block of a layer, rendering it first if
+	 * nothing current is cached.
+	 */
+	public BufferedImage getBlock(MapLayer layer, int blockX, int blockY, int tileSize) {
+		int blockTiles = getBlockTiles(tileSize);
+		int tileX = blockX * blockTiles, tileY = blockY * blockTiles;
+		
+		MapChunk chunk = layer.getChunk(tileX >> MapChunk.SHIFT, tileY >> MapChunk.SHIFT);
+		if (chunk == null)
+			return getEmptyBlock(tileSize);
+		
+		Long key = key(layer.isCave(), tileSize, blockX, blockY);
+		Entry e = entries.get(key);
+		if (e != null && e.version == chunk.getVersion())
+			return e.image;
+		
+		BufferedImage image = e != null ? e.image : createImage(blockTiles * tileSize);
+		renderBlock(image, layer, tileX, tileY, blockTiles, tileSize);
+		
+		if (e == null)
+			used += imageBytes(image);
+		entries.put(key, new Entry(image, chunk.getVersion()));
+		evict();
+		
+		return image;
+	}
+	
+	private BufferedImage getEmptyBlock(int tileSize) {
+		if (emptyBlock == null || emptyBlockTileSize != tileSize) {
+			int blockTiles = getBlockTiles(tileSize);
+			emptyBlock = createImage(blockTiles * tileSize);
+			emptyBlockTileSize = tileSize;
+			renderBlock(emptyBlock, new MapLayer(false, 0, 0), 0, 0, blockTiles, tileSize);
+		}
+		
+		return emptyBlock;
+	}
+	
+	private static BufferedImage createImage(int size) {
+		return new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+	}
+	
+	private static long imageBytes(BufferedImage image) {
+		return (long) image.getWidth() * image.getHeight() * 4;
+	}
+	
+	private static Long key(boolean cave, int tileSize, int blockX, int blockY) {
+		return Long.valueOf(((long) tileSize << 50) | (cave ? 1L << 49 : 0)
+				| ((long) (blockY & 0xFFFFFF) << 24) | (blockX & 0xFFFFFF));
+	}
+	
+	private void evict() {
+		Iterator<Entry> it = entries.values().iterator();
+		while (used > budget && it.hasNext()) {
+			used -= imageBytes(it.next().image);
+			it.remove();
+		}
+	}
+	
+	private void renderBlock(BufferedImage image, MapLayer layer, int tileX, int tileY, int blockTiles, int tileSize) {
+		int size = image.getWidth();
+		if (scratch.length < size * size)
+			scratch = new int[size * size];
+		
+		TileRenderer.render(scratch, size, layer, tileX, tileY, blockTiles, blockTiles, tileSize);
+		image.getRaster().setDataElements(0, 0, size, size, scratch);
+	}
+	
+	public void clear() {
+		entries.clear();
+		used = 0;
+	}
+	
+	public long getBudget() {
+		return budget;
+	}
+	
+	public void setBudget(long budget) {
+		this.budget = budget;
+		evict();
+	}
+	
+	public long getUsedBytes() {
+		return used;
+	}
+	
+	public int size() {
+		return entries.size();
+	}
+}
@@ -0,0 +1,162 @@
+package net.buddat.wanalyse.gui;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Fences along one direction of tile edges, one byte of fence type per edge,
+ * 0 for none.
+ *
+ * Edges are addressed like the tiles they border, in storage coordinates:
+ * in the horizontal plane edge x,y is the north edge of tile x,y, and in the
+ * vertical plane it is the west edge. The south and east edges of the last
+ * row and column are the next row and column of edges. Edges are kept in
+ * 64x64 chunks laid out like {@link MapChunk}'s planes, and a chunk is only
+ * allocated once a fence is put in it, so fencing never creates tiles.
+ */
+public class EdgePlane {
+
+	private static class Chunk {
+		byte[] types = new byte[MapChunk.AREA];
+		int count;
+	}
+	
+	public interface Visitor {
+		void visit(int chunkX, int chunkY, byte[] types);
+	}
+	
+	private final boolean vertical;
+	private final HashMap<Long, Chunk> chunks = new HashMap<Long, Chunk>();
+	
+	public EdgePlane(boolean vertical) {
+		this.vertical = vertical;
+	}
+	
+	public EdgePlane(EdgePlane plane) {
+		this.vertical = plane.vertical;
+		for (java.util.Map.Entry<Long, Chunk> e : plane.chunks.entrySet()) {
+			Chunk c = new Chunk();
+			c.types = e.getValue().types.clone();
+			c.count = e.getValue().count;
+			chunks.put(e.getKey(), c);
+		}
+	}
+	
+	public boolean isVertical() {
+		return vertical;
+	}
+	
+	public byte get(int x, int y) {
+		Chunk c = chunks.get(MapChunk.key(x >> MapChunk.SHIFT, y >> MapChunk.SHIFT));
+		return c == null ? 0 : c.types[MapChunk.index(x & MapChunk.MASK, y & MapChunk.MASK)];
+	}
+	
+	public void set(int x, int y, byte type) {
+		fill(x, y, 1, type);
+	}
+	
+	/**
+	 * Sets length edges in a row from x,y along the plane's direction: east
+	 * for horizontal edges, south for vertical ones.
+	 */
+	public void fill(int x, int y, int length, byte type) {
+		while (length > 0) {
+			int lx = x & MapChunk.MASK, ly = y & MapChunk.MASK;
+			int run = Math.min(length, MapChunk.SIZE - (vertical ? ly : lx));
+			long key = MapChunk.key(x >> MapChunk.SHIFT, y >> MapChunk.SHIFT);
+			Chunk c = chunks.get(key);
+			if (c == null && type != 0) {
+				c = new Chunk();
+				chunks.put(key, c);
+			}
+			
+			if (c != null) {
+				int i = MapChunk.index(lx, ly);
+				if (vertical) {
+					for (int k = 0; k < run; k++, i += MapChunk.SIZE)
+						c.count += set(c.types, i, type);
+				} else if (type == 0) {
+					for (int k = 0; k < run; k++, i++)
+						c.count += set(c.types, i, type);
+				} else {
+					/* A plain fill, then count what was empty. */
+					for (int k = i; k < i + run; k++)
+						if (c.types[k] == 0)
+							c.count++;
+					Arrays.fill(c.types, i, i + run, type);
+				}
+				
+				if (c.count == 0)
+					chunks.remove(key);
+			}
+			
+			if (vertical)
+				y += run;
+			else
+				x += run;
+			length -= run;
+		}
+	}
+	
+	private static int set(byte[] types, int i, byte type) {
+		int change = (types[i] == 0 ? 0 : -1) + (type == 0 ? 0 : 1);
+		types[i] = type;
+		return change;
+	}
+	
+	/**
+	 * Copies length edges in a row from x,y into the array, as fill() lays
+	 * them out.
+	 */
+	public void get(int x, int y, int length, byte[] out, int offset) {
+		for (int k = 0; k < length; k++)
+			out[offset + k] = vertical ? get(x, y + k) : get(x + k, y);
+	}
+	
+	/**
+	 * Raw fence types of one chunk of edges for the renderer, indexed like
+	 * {@link MapChunk#index(int, int)}, or null if it has no fences.
+	 */
+	byte[] getChunk(int chunkX, int chunkY) {
+		Chunk c = chunks.get(MapChunk.key(chunkX, chunkY));
+		return c == null ? null : c.types;
+	}
+	
+	/**
+	 * Visits every chunk holding fences, with its raw fence types.
+	 */
+	public void visitChunks(Visitor visitor) {
+		for (java.util.Map.Entry<Long, Chunk> e : chunks.entrySet())
+			visitor.visit(MapChunk.keyX(e.getKey()), MapChunk.keyY(e.getKey()), e.getValue().types);
+	}
+	
+	/**
+	 * Sets a whole chunk of edges at once, laid out as
+	 * {@link #getChunk(int, int)} returns them.
+	 */
+	public void setChunk(int chunkX, int chunkY, byte[] types) {
+		Chunk c = new Chunk();
+		System.arraycopy(types, 0, c.types, 0, MapChunk.AREA);
+		for (byte t : c.types)
+			if (t != 0)
+				c.count++;
+		
+		long key = MapChunk.key(chunkX, chunkY);
+		if (c.count == 0)
+			chunks.remove(key);
+		else
+			chunks.put(key, c);
+	}
+	
+	public int getChunkCount() {
+		return chunks.size();
+	}
+	
+	public int getFenceCount() {
+		int count = 0;
+		for (Chunk c : chunks.values())
+			count += c.count;
+		
+		return count;
+	}
+}
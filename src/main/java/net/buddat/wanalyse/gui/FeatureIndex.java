@@ -0,0 +1,276 @@
+package net.buddat.wanalyse.gui;
+
+import java.awt.Point;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Sparse features of a layer, such as labels and objects, indexed by where
+ * they are.
+ *
+ * Features are bucketed by chunk, and only chunks holding at least one are
+ * kept. Each bucket has one occupancy bit per cell, laid out like
+ * {@link MapChunk}'s presence bits, and a packed array of values in row order.
+ * A value's slot is the number of bits set before its cell, so finding it is
+ * a few bit counts and a bucket costs a few bytes per feature rather than a
+ * slot per cell.
+ *
+ * Rectangle queries only visit the buckets overlapping the rectangle and only
+ * the set bits inside them, so drawing the features in view costs nothing for
+ * the empty parts of it. Nearest queries search outwards one ring of chunks at
+ * a time and stop as soon as no nearer chunk is left.
+ *
+ * Coordinates are whatever grid the owner uses, and may be negative.
+ */
+public class FeatureIndex<T> {
+
+	public interface Visitor<T> {
+		void visit(int x, int y, T value);
+	}
+	
+	private static class Bucket {
+		long[] present = new long[MapChunk.SIZE];
+		Object[] values = new Object[4];
+		int count;
+		
+		Bucket copy() {
+			Bucket b = new Bucket();
+			b.present = present.clone();
+			b.values = values.clone();
+			b.count = count;
+			return b;
+		}
+		
+		/* Slot of a cell's value: the number of features before it in row order. */
+		int rank(int localX, int localY) {
+			int r = 0;
+			for (int y = 0; y < localY; y++)
+				r += Long.bitCount(present[y]);
+			
+			return r + Long.bitCount(present[localY] & ((1L << localX) - 1));
+		}
+	}
+	
+	private final HashMap<Long, Bucket> buckets = new HashMap<Long, Bucket>();
+	private int size;
+	
+	/* Chunk bounds ever used, to stop nearest searches running on forever. */
+	private int minCX = Integer.MAX_VALUE, minCY = Integer.MAX_VALUE, maxCX = Integer.MIN_VALUE, maxCY = Integer.MIN_VALUE;
+	
+	public FeatureIndex() {
+	}
+	
+	/**
+	 * Copies another index. The values themselves are shared, so they should
+	 * not be changed once put in.
+	 */
+	public FeatureIndex(FeatureIndex<T> index) {
+		for (java.util.Map.Entry<Long, Bucket> e : index.buckets.entrySet())
+			buckets.put(e.getKey(), e.getValue().copy());
+		size = index.size;
+		minCX = index.minCX;
+		minCY = index.minCY;
+		maxCX = index.maxCX;
+		maxCY = index.maxCY;
+	}
+	
+	@SuppressWarnings("unchecked")
+	public T get(int x, int y) {
+		Bucket b = buckets.get(MapChunk.key(x >> MapChunk.SHIFT, y >> MapChunk.SHIFT));
+		int lx = x & MapChunk.MASK, ly = y & MapChunk.MASK;
+		if (b == null || (b.present[ly] & (1L << lx)) == 0)
+			return null;
+		
+		return (T) b.values[b.rank(lx, ly)];
+	}
+	
+	public boolean contains(int x, int y) {
+		return get(x, y) != null;
+	}
+	
+	/**
+	 * Sets the feature at a cell, or removes it if the value is null, and
+	 * returns the one it replaced.
+	 */
+	@SuppressWarnings("unchecked")
+	public T put(int x, int y, T value) {
+		if (value == null)
+			return remove(x, y);
+		
+		int cx = x >> MapChunk.SHIFT, cy = y >> MapChunk.SHIFT;
+		long key = MapChunk.key(cx, cy);
+		Bucket b = buckets.get(key);
+		if (b == null) {
+			b = new Bucket();
+			buckets.put(key, b);
+			minCX = Math.min(minCX, cx);
+			minCY = Math.min(minCY, cy);
+			maxCX = Math.max(maxCX, cx);
+			maxCY = Math.max(maxCY, cy);
+		}
+		
+		int lx = x & MapChunk.MASK, ly = y & MapChunk.MASK;
+		int slot = b.rank(lx, ly);
+		if ((b.present[ly] & (1L << lx)) != 0) {
+			T old = (T) b.values[slot];
+			b.values[slot] = value;
+			return old;
+		}
+		
+		if (b.count == b.values.length)
+			b.values = Arrays.copyOf(b.values, b.count * 2);
+		System.arraycopy(b.values, slot, b.values, slot + 1, b.count - slot);
+		b.values[slot] = value;
+		b.count++;
+		b.present[ly] |= 1L << lx;
+		size++;
+		
+		return null;
+	}
+	
+	@SuppressWarnings("unchecked")
+	public T remove(int x, int y) {
+		long key = MapChunk.key(x >> MapChunk.SHIFT, y >> MapChunk.SHIFT);
+		Bucket b = buckets.get(key);
+		int lx = x & MapChunk.MASK, ly = y & MapChunk.MASK;
+		if (b == null || (b.present[ly] & (1L << lx)) == 0)
+			return null;
+		
+		int slot = b.rank(lx, ly);
+		T old = (T) b.values[slot];
+		System.arraycopy(b.values, slot + 1, b.values, slot, b.count - slot - 1);
+		b.values[--b.count] = null;
+		b.present[ly] &= ~(1L << lx);
+		size--;
+		
+		if (b.count == 0)
+			buckets.remove(key);
+		
+		return old;
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	public boolean isEmpty() {
+		return size == 0;
+	}
+	
+	public void clear() {
+		buckets.clear();
+		size = 0;
+		minCX = minCY = Integer.MAX_VALUE;
+		maxCX = maxCY = Integer.MIN_VALUE;
+	}
+	
+	/**
+	 * Visits every feature from x0,y0 inclusive to x1,y1 exclusive.
+	 */
+	public void query(int x0, int y0, int x1, int y1, Visitor<T> visitor) {
+		if (size == 0 || x1 <= x0 || y1 <= y0)
+			return;
+		
+		int cx0 = x0 >> MapChunk.SHIFT, cy0 = y0 >> MapChunk.SHIFT;
+		int cx1 = (x1 - 1) >> MapChunk.SHIFT, cy1 = (y1 - 1) >> MapChunk.SHIFT;
+		
+		/* Whichever is fewer: the chunks in the rectangle, or the buckets. */
+		if ((long) (cx1 - cx0 + 1) * (cy1 - cy0 + 1) <= buckets.size()) {
+			for (int cy = cy0; cy <= cy1; cy++) {
+				for (int cx = cx0; cx <= cx1; cx++) {
+					Bucket b = buckets.get(MapChunk.key(cx, cy));
+					if (b != null)
+						visit(b, cx, cy, x0, y0, x1, y1, visitor);
+				}
+			}
+		} else {
+			for (java.util.Map.Entry<Long, Bucket> e : buckets.entrySet()) {
+				int cx = MapChunk.keyX(e.getKey()), cy = MapChunk.keyY(e.getKey());
+				if (cx >= cx0 && cx <= cx1 && cy >= cy0 && cy <= cy1)
+					visit(e.getValue(), cx, cy, x0, y0, x1, y1, visitor);
+			}
+		}
+	}
+	
+	/**
+	 * Visits every feature, in no particular order.
+	 */
+	public void visitAll(Visitor<T> visitor) {
+		for (java.util.Map.Entry<Long, Bucket> e : buckets.entrySet()) {
+			int cx = MapChunk.keyX(e.getKey()), cy = MapChunk.keyY(e.getKey());
+			visit(e.getValue(), cx, cy, cx << MapChunk.SHIFT, cy << MapChunk.SHIFT, (cx + 1) << MapChunk.SHIFT,
+					(cy + 1) << MapChunk.SHIFT, visitor);
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	private void visit(Bucket b, int cx, int cy, int x0, int y0, int x1, int y1, Visitor<T> visitor) {
+		int baseX = cx << MapChunk.SHIFT, baseY = cy << MapChunk.SHIFT;
+		int lx0 = Math.max(x0 - baseX, 0), lx1 = Math.min(x1 - baseX, MapChunk.SIZE);
+		int ly0 = Math.max(y0 - baseY, 0), ly1 = Math.min(y1 - baseY, MapChunk.SIZE);
+		long mask = (lx1 - lx0 == MapChunk.SIZE ? -1L : ((1L << (lx1 - lx0)) - 1)) << lx0;
+		
+		int rowRank = b.rank(0, ly0);
+		for (int ly = ly0; ly < ly1; ly++) {
+			long row = b.present[ly];
+			long bits = row & mask;
+			while (bits != 0) {
+				int lx = Long.numberOfTrailingZeros(bits);
+				bits &= bits - 1;
+				int slot = rowRank + Long.bitCount(row & ((1L << lx) - 1));
+				visitor.visit(baseX + lx, baseY + ly, (T) b.values[slot]);
+			}
+			rowRank += Long.bitCount(row);
+		}
+	}
+	
+	/**
+	 * Finds the feature nearest a cell by straight line distance, ignoring
+	 * any further away than maxDistance. Returns null if there is none.
+	 */
+	public Point nearest(int x, int y, int maxDistance) {
+		if (size == 0)
+			return null;
+		
+		int cx0 = x >> MapChunk.SHIFT, cy0 = y >> MapChunk.SHIFT;
+		int maxRing = Math.max(Math.max(cx0 - minCX, maxCX - cx0), Math.max(cy0 - minCY, maxCY - cy0));
+		maxRing = Math.min(maxRing, (maxDistance >> MapChunk.SHIFT) + 1);
+		
+		long best = (long) maxDistance * maxDistance + 1;
+		Point found = null;
+		
+		for (int ring = 0; ring <= maxRing; ring++) {
+			/* Every cell in this ring is at least this far away. */
+			long near = (long) Math.max(ring - 1, 0) * MapChunk.SIZE + 1;
+			if (ring > 0 && near * near >= best)
+				break;
+			
+			for (int cy = cy0 - ring; cy <= cy0 + ring; cy++) {
+				boolean edgeRow = cy == cy0 - ring || cy == cy0 + ring;
+				for (int cx = cx0 - ring; cx <= cx0 + ring; cx += edgeRow || ring == 0 ? 1 : 2 * ring) {
+					Bucket b = buckets.get(MapChunk.key(cx, cy));
+					if (b == null)
+						continue;
+					
+					int baseX = cx << MapChunk.SHIFT, baseY = cy << MapChunk.SHIFT;
+					for (int ly = 0; ly < MapChunk.SIZE; ly++) {
+						long dy = baseY + ly - y;
+						long bits = b.present[ly];
+						while (bits != 0) {
+							int lx = Long.numberOfTrailingZeros(bits);
+							bits &= bits - 1;
+							long dx = baseX + lx - x;
+							long d = dx * dx + dy * dy;
+							if (d < best) {
+								best = d;
+								found = new Point(baseX + lx, baseY + ly);
+							}
+						}
+					}
+				}
+			}
+		}
+		
+		return found;
+	}
+}
@@ -0,0 +1,175 @@
+package net.buddat.wanalyse.gui;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * The labels, objects and fences of a map as stored in a map file, in one
+ * record after the chunk records:
+ * <pre>
+ * length      int, bytes in the blocks that follow
+ * blocks      int tag, int layer, int length, then the block's data
+ * </pre>
+ * Blocks of a tag not known here are skipped, so a file can hold more kinds
+ * of feature than an older reader understands. Coordinates are storage
+ * coordinates.
+ */
+class FeatureRecord {
+
+	/* int count, then per label int x, int y, int argb, short length, UTF-8 text. */
+	private static final int TAG_LABELS = 1;
+	/* int count, then per object int x, int y, byte type. */
+	private static final int TAG_OBJECTS = 2;
+	/* int count, then per chunk int chunkX, int chunkY, MapChunk.AREA types. */
+	private static final int TAG_HORIZONTAL_FENCES = 3;
+	private static final int TAG_VERTICAL_FENCES = 4;
+	
+	private static final Charset TEXT_CHARSET = Charset.forName("UTF-8");
+	
+	/**
+	 * Encodes the features of a map's layers, or returns null if they have
+	 * none.
+	 */
+	static ByteBuffer write(MapLayer[] layers) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeInt(0);
+			for (int layer = 0; layer < layers.length; layer++) {
+				if (!layers[layer].getLabels().isEmpty())
+					writeBlock(out, TAG_LABELS, layer, labels(layers[layer].getLabels()));
+				if (!layers[layer].getObjects().isEmpty())
+					writeBlock(out, TAG_OBJECTS, layer, objects(layers[layer].getObjects()));
+				if (layers[layer].getFences(false).getChunkCount() > 0)
+					writeBlock(out, TAG_HORIZONTAL_FENCES, layer, fences(layers[layer].getFences(false)));
+				if (layers[layer].getFences(true).getChunkCount() > 0)
+					writeBlock(out, TAG_VERTICAL_FENCES, layer, fences(layers[layer].getFences(true)));
+			}
+			out.close();
+		} catch (IOException e) {
+			/* Not from a byte array. */
+			throw new IllegalStateException(e);
+		}
+		
+		if (bytes.size() == 4)
+			return null;
+		
+		ByteBuffer record = ByteBuffer.wrap(bytes.toByteArray());
+		record.putInt(0, record.capacity() - 4);
+		return record;
+	}
+	
+	private static void writeBlock(DataOutputStream out, int tag, int layer, byte[] data) throws IOException {
+		out.writeInt(tag);
+		out.writeInt(layer);
+		out.writeInt(data.length);
+		out.write(data);
+	}
+	
+	private static byte[] labels(FeatureIndex<MapLabel> labels) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(labels.size());
+		labels.visitAll(new FeatureIndex.Visitor<MapLabel>() {
+			@Override
+			public void visit(int x, int y, MapLabel label) {
+				byte[] text = label.getText().getBytes(TEXT_CHARSET);
+				try {
+					out.writeInt(x);
+					out.writeInt(y);
+					out.writeInt(label.getColor());
+					out.writeShort(Math.min(text.length, Short.MAX_VALUE));
+					out.write(text, 0, Math.min(text.length, Short.MAX_VALUE));
+				} catch (IOException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		});
+		out.close();
+		
+		return bytes.toByteArray();
+	}
+	
+	private static byte[] objects(FeatureIndex<Byte> objects) {
+		final ByteBuffer out = ByteBuffer.allocate(4 + objects.size() * 9);
+		out.putInt(objects.size());
+		objects.visitAll(new FeatureIndex.Visitor<Byte>() {
+			@Override
+			public void visit(int x, int y, Byte type) {
+				out.putInt(x).putInt(y).put(type);
+			}
+		});
+		
+		return out.array();
+	}
+	
+	private static byte[] fences(EdgePlane fences) {
+		final ByteBuffer out = ByteBuffer.allocate(4 + fences.getChunkCount() * (8 + MapChunk.AREA));
+		out.putInt(fences.getChunkCount());
+		fences.visitChunks(new EdgePlane.Visitor() {
+			@Override
+			public void visit(int chunkX, int chunkY, byte[] types) {
+				out.putInt(chunkX).putInt(chunkY).put(types);
+			}
+		});
+		
+		return out.array();
+	}
+	
+	/**
+	 * Reads a record written by {@link #write(MapLayer[])} from the buffer's
+	 * position into the layers.
+	 */
+	static void read(ByteBuffer buf, MapLayer[] layers) {
+		int end = buf.position() + 4 + buf.getInt();
+		while (buf.position() < end) {
+			int tag = buf.getInt(), layer = buf.getInt(), length = buf.getInt();
+			int next = buf.position() + length;
+			if (layer >= 0 && layer < layers.length) {
+				switch (tag) {
+					case TAG_LABELS:
+						readLabels(buf, layers[layer].getLabels());
+						break;
+					case TAG_OBJECTS:
+						readObjects(buf, layers[layer].getObjects());
+						break;
+					case TAG_HORIZONTAL_FENCES:
+						readFences(buf, layers[layer].getFences(false));
+						break;
+					case TAG_VERTICAL_FENCES:
+						readFences(buf, layers[layer].getFences(true));
+						break;
+				}
+			}
+			buf.position(next);
+		}
+	}
+	
+	private static void readLabels(ByteBuffer buf, FeatureIndex<MapLabel> labels) {
+		for (int count = buf.getInt(); count > 0; count--) {
+			int x = buf.getInt(), y = buf.getInt(), argb = buf.getInt();
+			byte[] text = new byte[buf.getShort()];
+			buf.get(text);
+			labels.put(x, y, new MapLabel(new String(text, TEXT_CHARSET), argb));
+		}
+	}
+	
+	private static void readObjects(ByteBuffer buf, FeatureIndex<Byte> objects) {
+		for (int count = buf.getInt(); count > 0; count--) {
+			int x = buf.getInt(), y = buf.getInt();
+			objects.put(x, y, buf.get());
+		}
+	}
+	
+	private static void readFences(ByteBuffer buf, EdgePlane fences) {
+		byte[] types = new byte[MapChunk.AREA];
+		for (int count = buf.getInt(); count > 0; count--) {
+			int chunkX = buf.getInt(), chunkY = buf.getInt();
+			buf.get(types);
+			fences.setChunk(chunkX, chunkY, types);
+		}
+	}
+}
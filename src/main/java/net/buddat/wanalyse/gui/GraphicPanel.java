@@ -7,13 +7,25 @@ import java.awt.Dimension;
 import java.awt.FontMetrics;
 import java.awt.Graphics;
 import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.awt.event.MouseEvent;
 import java.awt.image.BufferedImage;
+import java.io.File;
 
 import javax.swing.JPanel;
 import javax.swing.JViewport;
+import javax.swing.Timer;
 import javax.swing.event.MouseInputAdapter;
 
+import net.buddat.wanalyse.analyse.LikelihoodMap;
+import net.buddat.wanalyse.gui.undo.BrushStroke;
+import net.buddat.wanalyse.gui.undo.FenceLine;
+import net.buddat.wanalyse.gui.undo.MapResize;
+import net.buddat.wanalyse.gui.undo.TileChangeSet;
+import net.buddat.wanalyse.gui.undo.TileFill;
+
 public class GraphicPanel extends JPanel {
 
 	private static final long serialVersionUID = 5938186762187399440L;
@@ -23,29 +35,64 @@ public class GraphicPanel extends JPanel {
 		OBJECT_PENCIL, OBJECT_ERASER, OBJECT_PICKER,
 		FENCE_PENCIL, FENCE_LINE, FENCE_ERASER, FENCE_PICKER,
 		OVERLAY_PENCIL, OVERLAY_BRUSH, OVERLAY_ERASER, OVERLAY_FILL, OVERLAY_PICKER, 
-		LABEL
+		LABEL, SELECT
 	}
 	
 	private final MainWindow mainWindow;
-	private final Map map;
+	private Map map;
 	
 	private int mouseX, mouseY;
 	private final Color highlightColor = new Color(Color.YELLOW.getRed(), Color.YELLOW.getGreen(), Color.YELLOW.getBlue(), 100);
 	
 	public static final int TILE_MAX_SIZE = 128, TILE_MIN_SIZE = 4, TILE_SIZE_STEP = 4;
+	public static final int PYRAMID_TILE_SIZE = 4, MAX_ZOOM_SHIFT = MapPyramid.LEVELS - 1;
 	private int tileSize = 32;
+	private int zoomShift = 0;
 	
 	private EditState currentState = EditState.TERRAIN_PENCIL;
 	
 	private boolean caveLayer;
+	private MapLayer layer;
+	
+	private final ChunkImageCache imageCache = new ChunkImageCache();
+	private final MapPyramid pyramid = new MapPyramid();
+	
+	private LikelihoodMap heatmap;
+	private final HeatmapOverlay heatmapOverlay = new HeatmapOverlay();
 	
-	private boolean saveToImage = false;
+	/*
+	 * The brush stroke being drawn, and the tiles it has changed that are
+	 * still waiting for the next frame's repaint.
+	 */
+	public static final int FRAME_MILLIS = 16;
+	private BrushStroke stroke;
+	private FenceLine fenceLine;
+	private Rectangle pendingRepaint;
+	
+	/* Block of tiles selected, and the tile the selection was started from. */
+	private Rectangle selection;
+	private int selectionX, selectionY;
+	private RegionStats regionStats;
+	
+	/* Most terrain types listed in the selection readout. */
+	private static final int READOUT_TYPES = 4;
+	private final Timer repaintTimer;
 
 	public GraphicPanel(MainWindow main, Map m) {
 		super();
 		
 		this.map = m;
 		this.mainWindow = main;
+		this.layer = m.getLayer(caveLayer);
+		this.regionStats = new RegionStats(m, caveLayer);
+		
+		repaintTimer = new Timer(FRAME_MILLIS, new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				flushRepaint();
+			}
+		});
+		repaintTimer.setRepeats(false);
 		
 		setupMouseDrag();
 		revalidateScroll();
@@ -55,65 +102,289 @@ public class GraphicPanel extends JPanel {
 	public void paintComponent(Graphics g) {
 		super.paintComponent(g);
 		
-		JViewport jv = (JViewport) this.getParent();
-		Point jvp = jv.getViewPosition();
+		/*
+		 * Only the tiles inside the clip need drawing, which for cursor moves
+		 * and single tile edits is just a few tiles.
+		 */
+		Rectangle clip = g.getClipBounds();
+		if (clip == null)
+			clip = new Rectangle(0, 0, toPixel(map.getMapWidth()), toPixel(map.getMapHeight()));
 		
-		int xStart = (int) jvp.getX();
-		xStart /= tileSize;
-		if (xStart - 1 >= 0)
-			xStart -= 1;
+		int xStart = Math.max(toTile(clip.x), 0);
+		int yStart = Math.max(toTile(clip.y), 0);
+		int xEnd = Math.min(toTile(clip.x + clip.width - 1) + 1, map.getMapWidth());
+		int yEnd = Math.min(toTile(clip.y + clip.height - 1) + 1, map.getMapHeight());
 		
-		int yStart = (int) jvp.getY();
-		yStart /= tileSize;
-		if (yStart - 1 >= 0)
-			yStart -= 1;
+		final int halfTileSize = tileSize / 2;
+		final FontMetrics fm = g.getFontMetrics();
 		
-		int xEnd = (int) (jvp.getX() + jv.getWidth());
-		xEnd /= tileSize;
-		if (xEnd + 1 < map.getMapWidth())
-			xEnd += 1;
-		else
-			xEnd = map.getMapWidth();
+		int mapPixelWidth = toPixel(map.getMapWidth());
+		int mapPixelHeight = toPixel(map.getMapHeight());
 		
-		int yEnd = (int) (jvp.getY() + jv.getHeight());
-		yEnd /= tileSize;
-		if (yEnd + 1 < map.getMapHeight())
-			yEnd += 1;
-		else
-			yEnd = map.getMapHeight();
-		
-		if (saveToImage) {
-			xStart = 0;
-			yStart = 0;
-			xEnd = map.getMapWidth();
-			yEnd = map.getMapHeight();
+		/*
+		 * Chunks and blocks are in storage coordinates, which are offset from
+		 * the tiles on screen by the map's origin.
+		 */
+		final int originX = map.getOriginX(), originY = map.getOriginY();
+		
+		Graphics mapG = g.create();
+		mapG.clipRect(0, 0, mapPixelWidth, mapPixelHeight);
+		if (isPyramidZoom()) {
+			/*
+			 * Zoomed out, whole chunks straight from the pyramid.
+			 */
+			int chunkPixels = toPixel(MapChunk.SIZE);
+			for (int cy = (yStart + originY) >> MapChunk.SHIFT; (cy << MapChunk.SHIFT) - originY < yEnd; cy++)
+				for (int cx = (xStart + originX) >> MapChunk.SHIFT; (cx << MapChunk.SHIFT) - originX < xEnd; cx++)
+					pyramid.draw(mapG, layer, cx, cy, toPixel((cx << MapChunk.SHIFT) - originX),
+							toPixel((cy << MapChunk.SHIFT) - originY), chunkPixels);
+		} else {
+			/*
+			 * Terrain and grid, blitted from the chunk image cache.
+			 */
+			int blockTiles = ChunkImageCache.getBlockTiles(tileSize);
+			
+			for (int by = Math.floorDiv(yStart + originY, blockTiles); by * blockTiles - originY < yEnd; by++) {
+				for (int bx = Math.floorDiv(xStart + originX, blockTiles); bx * blockTiles - originX < xEnd; bx++) {
+					BufferedImage img = imageCache.getBlock(layer, bx, by, tileSize);
+					mapG.drawImage(img, toPixel(bx * blockTiles - originX), toPixel(by * blockTiles - originY), null);
+				}
+			}
 		}
 		
-		int halfTileSize = tileSize / 2;
-		FontMetrics fm = g.getFontMetrics();
+		if (heatmap != null) {
+			int chunkPixels = toPixel(MapChunk.SIZE);
+			for (int cy = (yStart + originY) >> MapChunk.SHIFT; (cy << MapChunk.SHIFT) - originY < yEnd; cy++)
+				for (int cx = (xStart + originX) >> MapChunk.SHIFT; (cx << MapChunk.SHIFT) - originX < xEnd; cx++)
+					heatmapOverlay.draw(mapG, heatmap, cx, cy, toPixel((cx << MapChunk.SHIFT) - originX),
+							toPixel((cy << MapChunk.SHIFT) - originY), chunkPixels);
+		}
 		
 		/*
-		 * Terrain and grid.
+		 * Objects and labels, looked up by the tiles in view rather than
+		 * by walking every tile. Too small to make out when zoomed out.
 		 */
+		if (!isPyramidZoom()) {
+			drawFences(mapG, layer.getFences(false), xStart + originX, yStart + originY, xEnd + originX, yEnd + originY + 1);
+			drawFences(mapG, layer.getFences(true), xStart + originX, yStart + originY, xEnd + originX + 1, yEnd + originY);
+			
+			final Graphics featureG = mapG;
+			final int spotSize = Math.max(tileSize / Map.OBJECTS_PER_SIDE, 1);
+			int n = Map.OBJECTS_PER_SIDE;
+			layer.getObjects().query((xStart + originX) * n, (yStart + originY) * n, (xEnd + originX) * n, (yEnd + originY) * n,
+					new FeatureIndex.Visitor<Byte>() {
+						@Override
+						public void visit(int x, int y, Byte type) {
+							featureG.setColor(Color.getHSBColor(type * 0.13f, 0.8f, 0.8f));
+							featureG.fillOval(toPixel(x - originX * Map.OBJECTS_PER_SIDE) / Map.OBJECTS_PER_SIDE,
+									toPixel(y - originY * Map.OBJECTS_PER_SIDE) / Map.OBJECTS_PER_SIDE, spotSize, spotSize);
+						}
+					});
+			layer.getLabels().query(xStart + originX, yStart + originY, xEnd + originX, yEnd + originY,
+					new FeatureIndex.Visitor<MapLabel>() {
+						@Override
+						public void visit(int x, int y, MapLabel label) {
+							featureG.setColor(new Color(label.getColor(), true));
+							featureG.drawString(label.getText(), toPixel(x - originX) + halfTileSize - fm.stringWidth(label.getText()) / 2,
+									toPixel(y - originY) + halfTileSize + fm.getAscent() / 2);
+						}
+					});
+		}
+		mapG.dispose();
+		
 		g.setColor(Color.BLACK);
-		for (int i = xStart; i < xEnd; i++) {
-			for (int j = yStart; j < yEnd; j++) {
-				Tile t = map.getTile(i, j, false);
+		g.drawLine(mapPixelWidth, 0, mapPixelWidth, mapPixelHeight);
+		g.drawLine(0, mapPixelHeight, mapPixelWidth, mapPixelHeight);
+		
+		/*
+		 * Cursor highlight.
+		 */
+		int hx = toTile(mouseX), hy = toTile(mouseY);
+		if (map.inBounds(hx, hy)) {
+			int size = Math.max(toPixel(hx + 1) - toPixel(hx), 1);
+			g.setColor(highlightColor);
+			g.fillRect(toPixel(hx), toPixel(hy), size, size);
+		}
+		
+		if (selection != null)
+			drawSelection(g);
+	}
+	
+	/*
+	 * Outline of the selection, with its size and the commonest terrain in
+	 * it written underneath.
+	 */
+	private void drawSelection(Graphics g) {
+		int px = toPixel(selection.x), py = toPixel(selection.y);
+		int pw = toPixel(selection.x + selection.width) - px, ph = toPixel(selection.y + selection.height) - py;
+		g.setColor(Color.WHITE);
+		g.drawRect(px, py, pw, ph);
+		
+		String readout = getSelectionReadout();
+		FontMetrics fm = g.getFontMetrics();
+		int textY = py + ph + 2;
+		g.setColor(new Color(0, 0, 0, 160));
+		g.fillRect(px, textY, fm.stringWidth(readout) + 6, fm.getHeight() + 2);
+		g.setColor(Color.WHITE);
+		g.drawString(readout, px + 3, textY + 1 + fm.getAscent());
+	}
+	
+	/**
+	 * Size of the selection and its commonest terrain types with their
+	 * counts, most first, e.g. "12x8: Rock 80, Iron 14".
+	 */
+	public String getSelectionReadout() {
+		if (selection == null)
+			return "";
+		
+		int[] counts = regionStats.getCounts(selection.x, selection.y, selection.width, selection.height);
+		StringBuilder sb = new StringBuilder();
+		sb.append(selection.width).append('x').append(selection.height).append(':');
+		
+		for (int n = 0; n < READOUT_TYPES; n++) {
+			int best = 0;
+			for (int i = 1; i < counts.length; i++)
+				if (counts[i] > counts[best])
+					best = i;
+			if (best == 0 || counts[best] == 0)
+				break;
+			
+			sb.append(n == 0 ? " " : ", ").append(TerrainType.fromId((byte) best).getDisplayName()).append(' ').append(counts[best]);
+			counts[best] = 0;
+		}
+		
+		return sb.toString();
+	}
+	
+	public Rectangle getSelection() {
+		return selection == null ? null : new Rectangle(selection);
+	}
+	
+	/**
+	 * Selects a block of tiles, or nothing if null.
+	 */
+	public void setSelection(Rectangle selection) {
+		this.selection = selection == null ? null : selection.intersection(new Rectangle(0, 0, map.getMapWidth(), map.getMapHeight()));
+		if (this.selection != null && this.selection.isEmpty())
+			this.selection = null;
+		repaint();
+	}
+	
+	/**
+	 * Terrain counts for the layer shown, for the selection or any other
+	 * block of tiles.
+	 */
+	public RegionStats getRegionStats() {
+		return regionStats;
+	}
+
+	/*
+	 * Fences on the edges from x0,y0 to x1,y1 in storage coordinates, a
+	 * chunk of edges at a time, skipping chunks with no fences.
+	 */
+	private void drawFences(Graphics g, EdgePlane plane, int x0, int y0, int x1, int y1) {
+		int originX = map.getOriginX(), originY = map.getOriginY();
+		int thickness = Math.max(tileSize / 8, 2);
+		
+		for (int cy = y0 >> MapChunk.SHIFT; cy <= (y1 - 1) >> MapChunk.SHIFT; cy++) {
+			for (int cx = x0 >> MapChunk.SHIFT; cx <= (x1 - 1) >> MapChunk.SHIFT; cx++) {
+				byte[] types = plane.getChunk(cx, cy);
+				if (types == null)
+					continue;
 				
-				g.drawRect(i * tileSize, j * tileSize, tileSize, tileSize);
+				int baseX = cx << MapChunk.SHIFT, baseY = cy << MapChunk.SHIFT;
+				int lx0 = Math.max(x0 - baseX, 0), lx1 = Math.min(x1 - baseX, MapChunk.SIZE);
+				int ly0 = Math.max(y0 - baseY, 0), ly1 = Math.min(y1 - baseY, MapChunk.SIZE);
+				for (int ly = ly0; ly < ly1; ly++) {
+					for (int lx = lx0; lx < lx1; lx++) {
+						byte type = types[MapChunk.index(lx, ly)];
+						if (type == 0)
+							continue;
+						
+						int px = toPixel(baseX + lx - originX), py = toPixel(baseY + ly - originY);
+						g.setColor(Color.getHSBColor(0.08f + type * 0.11f, 0.7f, 0.45f));
+						if (plane.isVertical())
+							g.fillRect(px - thickness / 2, py, thickness, toPixel(baseY + ly + 1 - originY) - py);
+						else
+							g.fillRect(px, py - thickness / 2, toPixel(baseX + lx + 1 - originX) - px, thickness);
+					}
+				}
 			}
 		}
 	}
-
+	
+	public Map getMap() {
+		return map;
+	}
+	
+	/**
+	 * Switches the panel over to another map. Any stroke in progress is
+	 * dropped, as are the cached images and the heatmap, which belong to the
+	 * old map.
+	 */
+	public void setMap(Map map) {
+		this.map = map;
+		this.layer = map.getLayer(caveLayer);
+		this.regionStats = new RegionStats(map, caveLayer);
+		stroke = null;
+		fenceLine = null;
+		selection = null;
+		pendingRepaint = null;
+		repaintTimer.stop();
+		imageCache.clear();
+		pyramid.clear();
+		heatmap = null;
+		heatmapOverlay.clear();
+		
+		revalidateScroll();
+		repaint();
+	}
+	
 	public boolean isCaveLayer() {
 		return caveLayer;
 	}
 
 	public void setCaveLayer(boolean caveLayer) {
 		this.caveLayer = caveLayer;
+		this.layer = map.getLayer(caveLayer);
+		this.regionStats = new RegionStats(map, caveLayer);
 		repaint();
 	}
 	
+	public LikelihoodMap getHeatmap() {
+		return heatmap;
+	}
+	
+	/**
+	 * Shows a vein likelihood heatmap over the map, or none if null.
+	 */
+	public void setHeatmap(LikelihoodMap heatmap) {
+		this.heatmap = heatmap;
+		heatmapOverlay.clear();
+		updateHeatmap();
+		repaint();
+	}
+	
+	/**
+	 * Recomputes the heatmap chunks changed by new readings and repaints
+	 * them.
+	 */
+	public void updateHeatmap() {
+		if (heatmap == null || !heatmap.needsUpdate())
+			return;
+		
+		float oldMax = heatmap.getMaxScore();
+		for (Long key : heatmap.update()) {
+			int x = (MapChunk.keyX(key) << MapChunk.SHIFT) - map.getOriginX();
+			int y = (MapChunk.keyY(key) << MapChunk.SHIFT) - map.getOriginY();
+			repaintTiles(x, y, MapChunk.SIZE, MapChunk.SIZE);
+		}
+		
+		/* Every colour is relative to the top score. */
+		if (heatmap.getMaxScore() != oldMax)
+			repaint();
+	}
+	
 	public EditState getEditState() {
 		return currentState;
 	}
@@ -122,55 +393,79 @@ public class GraphicPanel extends JPanel {
 		currentState = e;
 	}
 	
+	/*
+	 * Zoom runs from TILE_MAX_SIZE down to TILE_MIN_SIZE in TILE_SIZE_STEPs,
+	 * then halves down to a pixel per tile, after which zoomShift takes over
+	 * and each pixel covers 2^zoomShift tiles.
+	 */
 	public void zoomIn() {
-		if (tileSize + TILE_SIZE_STEP > TILE_MAX_SIZE)
+		Point oldTile = getViewTile();
+		
+		if (zoomShift > 0)
+			zoomShift--;
+		else if (tileSize < TILE_MIN_SIZE)
+			tileSize *= 2;
+		else if (tileSize + TILE_SIZE_STEP <= TILE_MAX_SIZE)
+			tileSize += TILE_SIZE_STEP;
+		else
 			return;
 		
-		int oldSize = tileSize;
-		Container c = GraphicPanel.this.getParent();
-		int newX, newY;
-		
-		tileSize += TILE_SIZE_STEP;
-		
-		revalidateScroll();
-		
-		if (c instanceof JViewport) {
-			JViewport jv = (JViewport) c;
-			Point pos = jv.getViewPosition();
-			
-			newX = pos.x + ((pos.x / oldSize) * (TILE_SIZE_STEP + 1));
-			newY = pos.y + ((pos.y / oldSize) * (TILE_SIZE_STEP + 1));
-			
-			jv.setViewPosition(new Point(newX, newY));
-		}
-		
-		repaint();
+		applyZoom(oldTile.x, oldTile.y);
 	}
 	
 	public void zoomOut() {
-		if (tileSize - TILE_SIZE_STEP < TILE_MIN_SIZE)
+		Point oldTile = getViewTile();
+		
+		if (tileSize > TILE_MIN_SIZE)
+			tileSize -= TILE_SIZE_STEP;
+		else if (tileSize > 1)
+			tileSize /= 2;
+		else if (zoomShift < MAX_ZOOM_SHIFT)
+			zoomShift++;
+		else
 			return;
 		
-		int oldSize = tileSize;
-		Container c = GraphicPanel.this.getParent();
-		int newX, newY;
-		
-		tileSize -= TILE_SIZE_STEP;
+		applyZoom(oldTile.x, oldTile.y);
+	}
+	
+	private Point getViewTile() {
+		Container c = getParent();
+		if (!(c instanceof JViewport))
+			return new Point(0, 0);
 		
+		Point pos = ((JViewport) c).getViewPosition();
+		return new Point(toTile(pos.x), toTile(pos.y));
+	}
+	
+	/*
+	 * Keeps the tile that was in the top left corner of the view there after
+	 * the zoom changes.
+	 */
+	private void applyZoom(int tileX, int tileY) {
 		revalidateScroll();
 		
-		if (c instanceof JViewport) {
-			JViewport jv = (JViewport) c;
-			Point pos = jv.getViewPosition();
-			
-			newX = pos.x - ((pos.x / oldSize) * (TILE_SIZE_STEP + 1));
-			newY = pos.y - ((pos.y / oldSize) * (TILE_SIZE_STEP + 1));
-			
-			jv.setViewPosition(new Point(newX, newY));
-		}
+		Container c = getParent();
+		if (c instanceof JViewport)
+			((JViewport) c).setViewPosition(new Point(toPixel(tileX), toPixel(tileY)));
 		
 		repaint();
 	}
+	
+	/**
+	 * Whether the current zoom is drawn from the mipmap pyramid rather than
+	 * the per tile chunk images.
+	 */
+	public boolean isPyramidZoom() {
+		return zoomShift > 0 || tileSize <= PYRAMID_TILE_SIZE;
+	}
+	
+	public int toPixel(int tile) {
+		return (tile * tileSize) >> zoomShift;
+	}
+	
+	public int toTile(int pixel) {
+		return (pixel << zoomShift) / tileSize;
+	}
 
 	public void resizeMap(int[] newSize) {
 		if (newSize == null)
@@ -184,24 +479,33 @@ public class GraphicPanel extends JPanel {
 		int newWidth = map.getMapWidth() + eastAdj + westAdj;
 		int newHeight = map.getMapHeight() + northAdj + southAdj;
 		
-		map.resizeMap(newWidth, newHeight, westAdj, northAdj);
+		if (newWidth <= 0 || newHeight <= 0)
+			return;
+		
+		mainWindow.getUndoManager().addAction(new MapResize(map, newWidth, newHeight, westAdj, northAdj));
 		
 		revalidateScroll();
 		repaint();
 	}
 
-	public BufferedImage getMapImage() {
-		BufferedImage mapImg = new BufferedImage(map.getMapWidth() * tileSize, map.getMapHeight() * tileSize, BufferedImage.TYPE_INT_ARGB);
-		Graphics g = mapImg.getGraphics();
-		saveToImage = true;
-		
-		paint(g);
-		
-		return mapImg;
+	/**
+	 * Exports the current layer at the current zoom to a PNG on a background
+	 * thread, from a snapshot so editing can carry on meanwhile. The returned
+	 * exporter can be used to cancel the export.
+	 */
+	public MapExporter exportMapImage(File file, MapExporter.ExportListener listener) {
+		MapExporter exporter = new MapExporter(map.readSnapshot(), caveLayer, tileSize);
+		exporter.start(file, listener);
+		
+		return exporter;
+	}
+	
+	public ChunkImageCache getImageCache() {
+		return imageCache;
 	}
 	
 	public void revalidateScroll() {
-		this.setPreferredSize(new Dimension(map.getMapWidth() * this.tileSize, map.getMapHeight() * this.tileSize));
+		this.setPreferredSize(new Dimension(toPixel(map.getMapWidth()), toPixel(map.getMapHeight())));
 		this.revalidate();
 	}
 	
@@ -243,9 +547,14 @@ public class GraphicPanel extends JPanel {
 			
 			@Override
 			public void mouseMoved(MouseEvent e) {
+				int oldX = toTile(mouseX), oldY = toTile(mouseY);
 				mouseX = e.getX();
 				mouseY = e.getY();
-				repaint();
+				
+				int newX = toTile(mouseX), newY = toTile(mouseY);
+				if (newX != oldX || newY != oldY)
+					repaintTiles(Math.min(oldX, newX), Math.min(oldY, newY),
+							Math.abs(newX - oldX) + 1, Math.abs(newY - oldY) + 1);
 			}
 
 			@Override
@@ -257,6 +566,7 @@ public class GraphicPanel extends JPanel {
 					m2or3_dragging = true;
 				} else if (e.getButton() == MouseEvent.BUTTON1) {
 					m1_dragging = true;
+					pressedMouse(e.getPoint());
 				}
 			}
 	
@@ -267,6 +577,7 @@ public class GraphicPanel extends JPanel {
 					m2or3_dragging = false;
 				} else if (e.getButton() == MouseEvent.BUTTON1) {
 					m1_dragging = false;
+					releasedMouse();
 				}
 			}   
 			
@@ -274,8 +585,6 @@ public class GraphicPanel extends JPanel {
 			public void mouseClicked(MouseEvent e) { 
 				if (e.getButton() == MouseEvent.BUTTON1)
 					clickedMouse(e.getPoint());
-				else if (e.getButton() == MouseEvent.BUTTON3)
-					clickedRightMouse(e.getPoint());
 			}
 		};
 		
@@ -283,363 +592,214 @@ public class GraphicPanel extends JPanel {
 		addMouseListener(mia);
 	}
 	
-	public void draggedMouse(Point p) {
-		int x = (int) (p.getX() / tileSize);
-		int y = (int) (p.getY() / tileSize);
-		
-		int objLocX = (int) ((p.getX() - (x * tileSize)) / (tileSize / 3));
-		int objLocY = (int) ((p.getY() - (y * tileSize)) / (tileSize / 3));
-		int objLoc = (objLocY * 3) + objLocX;
-		
-		int fenceLocX = (int) ((p.getX() - (x * tileSize)) / (tileSize / 4));
-		int fenceLocY = (int) ((p.getY() - (y * tileSize)) / (tileSize / 4));
-		Tile rightTile = map.getTile(x + 1, y, false);
-		Tile downTile = map.getTile(x, y + 1, false);
-		
-		if (downTile == null)
-			if (y + 1 < map.getMapHeight()) {
-				downTile = new Tile(x, y + 1);
-				map.addTile(x, y + 1, downTile);
-			}
-		if (rightTile == null) 
-			if (x + 1 < map.getMapWidth()) {
-				rightTile = new Tile(x + 1, y);
-				map.addTile(x + 1, y, rightTile);
-			}
-		
-		/*int relevantType;
-		Color c = mainWindow.getOverlayColor();
+	/**
+	 * Repaints just the given block of tiles, including the grid lines on
+	 * its far edges.
+	 */
+	public void repaintTiles(int x, int y, int width, int height) {
+		repaint(toPixel(x), toPixel(y), toPixel(x + width) - toPixel(x) + 1, toPixel(y + height) - toPixel(y) + 1);
+	}
+	
+	/*
+	 * Brush strokes run from press to release and go to the undo manager as
+	 * one action. Repaints are gathered up and done once a frame.
+	 */
+	public void pressedMouse(Point p) {
+		switch (currentState) {
+			case TERRAIN_BRUSH:
+				stroke = new BrushStroke(map, mainWindow.getBrushSize(), TileChangeSet.Plane.TERRAIN,
+						mainWindow.getSelectedTerrain().getId(), caveLayer);
+				break;
+			case OVERLAY_BRUSH:
+				stroke = new BrushStroke(map, mainWindow.getBrushSize(), TileChangeSet.Plane.OVERLAY,
+						mainWindow.getOverlayColor(), caveLayer);
+				break;
+			case FENCE_PENCIL:
+				setFence(p, mainWindow.getSelectedFence());
+				return;
+			case FENCE_ERASER:
+				setFence(p, (byte) 0);
+				return;
+			case SELECT:
+				selectionX = toTile(p.x);
+				selectionY = toTile(p.y);
+				setSelection(new Rectangle(selectionX, selectionY, 1, 1));
+				return;
+			case FENCE_LINE:
+				int[] edge = edgeAt(p);
+				if (edge != null)
+					fenceLine = new FenceLine(map, edge[0], edge[1], edge[2] == 1, mainWindow.getSelectedFence(), caveLayer);
+				repaintFenceLine(null);
+				return;
+			default:
+				return;
+		}
 		
-		Tile t = map.getTile(x, y, true);
-		if (t == null) {
-			map.addTile(x, y, new Tile(x, y));
-			t = map.getTile(x, y, true);
+		strokeTo(p);
+	}
+	
+	public void releasedMouse() {
+		if (fenceLine != null) {
+			if (!fenceLine.isEmpty())
+				mainWindow.getUndoManager().addAction(fenceLine);
+			fenceLine = null;
 		}
 		
-		if (x < map.getMapWidth() && x >= 0 && y >= 0 && y < map.getMapHeight()) {
-			switch (currentState) {
-				case TERRAIN_PENCIL:
-					relevantType = mainWindow.getSelectedTerrain();
-					if (t.getTerrainType(caveLayer) != relevantType)
-						currentDragAction.addAction(new TileChange(t, (byte) relevantType, caveLayer, mainWindow.isCaveEntrance(relevantType)));
-					break;
-				case TERRAIN_BRUSH:
-					relevantType = mainWindow.getSelectedTerrain();
-					currentDragAction.addAction(new BrushTileChange(map, x, y, mainWindow.getBrushSize(), (byte) relevantType, caveLayer));
-					break;
-				case TERRAIN_FILL:
-					relevantType = mainWindow.getSelectedTerrain();
-					if (currentDragAction.isEmpty())
-						if (t.getTerrainType(caveLayer) != relevantType)
-							currentDragAction.addAction(new TileFill(map, x, y, (byte) relevantType, caveLayer));
-					break;
-				case TERRAIN_ERASER:
-					relevantType = 0;
-					currentDragAction.addAction(new TileChange(t, (byte) relevantType, caveLayer, false));
-					break;
-				case TERRAIN_PICKER:
-					if (mainWindow.getSelectedTerrain() != t.getTerrainType(caveLayer))
-						mainWindow.forceSelection(ImageType.TERRAIN, t.getTerrainType(caveLayer));
-					break;
-				case OBJECT_PENCIL:
-					relevantType = mainWindow.getSelectedObject();
-					if (t.getObjectType(caveLayer, objLoc) != relevantType)
-						currentDragAction.addAction(new ObjectChange(t, (byte) relevantType, objLoc, caveLayer));
-					break;
-				case OBJECT_ERASER:
-					relevantType = 0;
-					currentDragAction.addAction(new ObjectChange(t, (byte) relevantType, objLoc, caveLayer));
-					break;
-				case OBJECT_PICKER:
-					if (mainWindow.getSelectedObject() != t.getObjectType(caveLayer, objLoc))
-						mainWindow.forceSelection(ImageType.OBJECT, t.getObjectType(caveLayer, objLoc));
-					break;
-				case FENCE_PENCIL:
-				case FENCE_ERASER:
-					relevantType = (currentState == EditState.FENCE_ERASER ? 0 : mainWindow.getSelectedFence());
-
-					switch (fenceLocX) {
-						case 0:
-							if (fenceLocY == 1 || fenceLocY == 2)
-								if (t.getFenceType(caveLayer, Tile.LEFT_FENCE) != relevantType + 1)
-									currentDragAction.addAction(new FenceChange(t, (byte) (relevantType + 1), Tile.LEFT_FENCE, caveLayer));
-							break;
-						case 1:
-						case 2:
-							if (fenceLocY == 0) {
-								if (t.getFenceType(caveLayer, Tile.TOP_FENCE) != relevantType)
-									currentDragAction.addAction(new FenceChange(t, (byte) relevantType, Tile.TOP_FENCE, caveLayer));
-							} else if (fenceLocY == 3) {
-								if (downTile != null)
-									if (downTile.getFenceType(caveLayer, Tile.TOP_FENCE) != relevantType)
-										currentDragAction.addAction(new FenceChange(downTile, (byte) relevantType, Tile.TOP_FENCE, caveLayer));
-							}
-							break;
-						case 3:
-							if (fenceLocY == 1 || fenceLocY == 2) {								
-								if (rightTile != null)
-									if (rightTile.getFenceType(caveLayer, Tile.LEFT_FENCE) != relevantType + 1)
-										currentDragAction.addAction(new FenceChange(rightTile, (byte) (relevantType + 1), Tile.LEFT_FENCE, caveLayer));
-							}
-							break;
-					}
-					break;
-				case FENCE_LINE:
-					relevantType = mainWindow.getSelectedFence();
-					
-					if (fenceLineChange == null) {
-						switch (fenceLocX) {
-							case 0:
-								if (fenceLocY == 1 || fenceLocY == 2)
-									fenceLineChange = new FenceLine(map, x, y, (byte) relevantType, Tile.LEFT_FENCE, caveLayer);
-								break;
-							case 1:
-							case 2:
-								if (fenceLocY == 0) {
-									fenceLineChange = new FenceLine(map, x, y, (byte) relevantType, Tile.TOP_FENCE, caveLayer);
-								} else if (fenceLocY == 3) {
-									fenceLineChange = new FenceLine(map, x, y + 1, (byte) relevantType, Tile.TOP_FENCE, caveLayer);
-								}
-								break;
-							case 3:
-								if (fenceLocY == 1 || fenceLocY == 2) {								
-									fenceLineChange = new FenceLine(map, x + 1, y, (byte) relevantType, Tile.LEFT_FENCE, caveLayer);
-								}
-								break;
-						}
-					}
-					
-					if (fenceLineChange != null)
-						fenceLineChange.update(x, y);
-					break;
-				case FENCE_PICKER:
-					relevantType = mainWindow.getSelectedFence();
-					
-					switch (fenceLocX) {
-						case 0:
-							if (fenceLocY == 1 || fenceLocY == 2)
-								relevantType = t.getFenceType(caveLayer, Tile.LEFT_FENCE) - 1;
-							break;
-						case 1:
-						case 2:
-							if (fenceLocY == 0) {
-								relevantType = t.getFenceType(caveLayer, Tile.TOP_FENCE);
-							} else if (fenceLocY == 3) {
-								relevantType = downTile.getFenceType(caveLayer, Tile.TOP_FENCE);
-							}
-							break;
-						case 3:
-							if (fenceLocY == 1 || fenceLocY == 2) {								
-								relevantType = rightTile.getFenceType(caveLayer, Tile.LEFT_FENCE) - 1;
-							}
-							break;
-					}
-					
-					if (relevantType < 0)
-						relevantType = 0;
-					
-					if (mainWindow.getSelectedFence() != relevantType)
-						mainWindow.forceSelection(ImageType.FENCE, relevantType);
-					break;
-				case OVERLAY_PENCIL:
-					if (t.getOverlayColor(caveLayer) != c)
-						currentDragAction.addAction(new OverlayChange(t, c, caveLayer));
-					break;
-				case OVERLAY_BRUSH:
-					currentDragAction.addAction(new BrushOverlayChange(map, x, y, mainWindow.getBrushSize(), c, caveLayer));
-					break;
-				case OVERLAY_ERASER:
-					c = null;
-					if (t.getOverlayColor(caveLayer) != c)
-						currentDragAction.addAction(new OverlayChange(t, c, caveLayer));
-					break;
-				case OVERLAY_PICKER:
-					mainWindow.setOverlayColor(t.getOverlayColor(caveLayer));
-					break;
-				default:
-					break;
-			}
-		}*/
+		if (stroke == null)
+			return;
 		
-		repaint();
+		stroke.finish();
+		if (!stroke.isEmpty())
+			mainWindow.getUndoManager().addAction(stroke);
+		stroke = null;
+		flushRepaint();
 	}
-
-	public void clickedMouse(Point p) {		
-		int x = (int) (p.getX() / tileSize);
-		int y = (int) (p.getY() / tileSize);
-		
-		int objLocX = (int) ((p.getX() - (x * tileSize)) / (tileSize / 3));
-		int objLocY = (int) ((p.getY() - (y * tileSize)) / (tileSize / 3));
-		int objLoc = (objLocY * 3) + objLocX;
-		
-		int fenceLocX = (int) ((p.getX() - (x * tileSize)) / (tileSize / 4));
-		int fenceLocY = (int) ((p.getY() - (y * tileSize)) / (tileSize / 4));
-		Tile rightTile = map.getTile(x + 1, y, false);
-		Tile downTile = map.getTile(x, y + 1, false);
-		
-		if (downTile == null)
-			if (y + 1 < map.getMapHeight()) {
-				downTile = new Tile(x, y + 1);
-				map.addTile(x, y + 1, downTile);
-			}
-		if (rightTile == null) 
-			if (x + 1 < map.getMapWidth()) {
-				rightTile = new Tile(x + 1, y);
-				map.addTile(x + 1, y, rightTile);
-			}
+	
+	private void strokeTo(Point p) {
+		stroke.moveTo(toTile(p.x), toTile(p.y));
 		
-		/*int relevantType;
-		Color c = mainWindow.getOverlayColor();
+		Rectangle changed = stroke.takeDirtyRegion();
+		if (changed == null)
+			return;
 		
-		Tile t = map.getTile(x, y, true);
-		if (t == null) {
-			map.addTile(x, y, new Tile(x, y));
-			t = map.getTile(x, y, true);
-		}
+		pendingRepaint = pendingRepaint == null ? changed : pendingRepaint.union(changed);
+		if (!repaintTimer.isRunning())
+			repaintTimer.start();
+	}
+	
+	/*
+	 * The edge a point is nearest, from which quarter of its tile the point
+	 * is in each way, as x, y and 1 if vertical. The corners and middle of a
+	 * tile pick no edge. Returns null for no edge or one off the map.
+	 */
+	private int[] edgeAt(Point p) {
+		int x = toTile(p.x);
+		int y = toTile(p.y);
+		int cell = Math.max(toPixel(x + 1) - toPixel(x), 1);
+		
+		int fenceLocX = (p.x - toPixel(x)) * 4 / cell;
+		int fenceLocY = (p.y - toPixel(y)) * 4 / cell;
+		boolean midX = fenceLocX == 1 || fenceLocX == 2, midY = fenceLocY == 1 || fenceLocY == 2;
+		
+		int[] edge;
+		if (midY && fenceLocX == 0)
+			edge = new int[] { x, y, 1 };
+		else if (midY && fenceLocX == 3)
+			edge = new int[] { x + 1, y, 1 };
+		else if (midX && fenceLocY == 0)
+			edge = new int[] { x, y, 0 };
+		else if (midX && fenceLocY == 3)
+			edge = new int[] { x, y + 1, 0 };
+		else
+			return null;
 		
-		if (x < map.getMapWidth() && x >= 0 && y >= 0 && y < map.getMapHeight()) {
-			switch (currentState) {
-				case TERRAIN_PENCIL:
-					relevantType = mainWindow.getSelectedTerrain();
-					if (t.getTerrainType(caveLayer) != relevantType)
-						undoManager.addAction(new TileChange(t, (byte) relevantType, caveLayer, mainWindow.isCaveEntrance(relevantType)));
-					break;
-				case TERRAIN_BRUSH:
-					relevantType = mainWindow.getSelectedTerrain();
-					
-					undoManager.addAction(new BrushTileChange(map, x, y, mainWindow.getBrushSize(), (byte) relevantType, caveLayer));
-					break;
-				case TERRAIN_FILL:
-					relevantType = mainWindow.getSelectedTerrain();
-					if (t.getTerrainType(caveLayer) != relevantType)
-						undoManager.addAction(new TileFill(map, x, y, (byte) relevantType, caveLayer));
-					break;
-				case TERRAIN_ERASER:
-					relevantType = 0;
-					if (t.getTerrainType(caveLayer) != relevantType)
-						undoManager.addAction(new TileChange(t, (byte) relevantType, caveLayer, false));
-					break;
-				case TERRAIN_PICKER:
-					if (mainWindow.getSelectedTerrain() != t.getTerrainType(caveLayer));
-						mainWindow.forceSelection(ImageType.TERRAIN, t.getTerrainType(caveLayer));
-					break;
-				case OBJECT_PENCIL:
-					relevantType = mainWindow.getSelectedObject();
-					if (t.getObjectType(caveLayer, objLoc) != relevantType)
-						undoManager.addAction(new ObjectChange(t, (byte) relevantType, objLoc, caveLayer));
-					break;
-				case OBJECT_ERASER:
-					relevantType = 0;
-					undoManager.addAction(new ObjectChange(t, (byte) relevantType, objLoc, caveLayer));
-					break;
-				case OBJECT_PICKER:
-					if (mainWindow.getSelectedObject() != t.getObjectType(caveLayer, objLoc))
-						mainWindow.forceSelection(ImageType.OBJECT, t.getObjectType(caveLayer, objLoc));
-					break;
-				case FENCE_PENCIL:
-				case FENCE_LINE:
-				case FENCE_ERASER:
-					relevantType = (currentState == EditState.FENCE_ERASER ? 0 : mainWindow.getSelectedFence());
-
-					switch (fenceLocX) {
-						case 0:
-							if (fenceLocY == 1 || fenceLocY == 2)
-								if (t.getFenceType(caveLayer, Tile.LEFT_FENCE) != relevantType + 1)
-									undoManager.addAction(new FenceChange(t, (byte) (relevantType + 1), Tile.LEFT_FENCE, caveLayer));
-							break;
-						case 1:
-						case 2:
-							if (fenceLocY == 0) {
-								if (t.getFenceType(caveLayer, Tile.TOP_FENCE) != relevantType)
-									undoManager.addAction(new FenceChange(t, (byte) relevantType, Tile.TOP_FENCE, caveLayer));
-							} else if (fenceLocY == 3) {
-								if (downTile != null)
-									if (downTile.getFenceType(caveLayer, Tile.TOP_FENCE) != relevantType)
-										undoManager.addAction(new FenceChange(downTile, (byte) relevantType, Tile.TOP_FENCE, caveLayer));
-							}
-							break;
-						case 3:
-							if (fenceLocY == 1 || fenceLocY == 2) {								
-								if (rightTile != null)
-									if (rightTile.getFenceType(caveLayer, Tile.LEFT_FENCE) != relevantType + 1)
-										undoManager.addAction(new FenceChange(rightTile, (byte) (relevantType + 1), Tile.LEFT_FENCE, caveLayer));
-							}
-							break;
-					}
-					break;
-				case FENCE_PICKER:	
-					relevantType = mainWindow.getSelectedFence();
-					
-					switch (fenceLocX) {
-						case 0:
-							if (fenceLocY == 1 || fenceLocY == 2)
-								relevantType = t.getFenceType(caveLayer, Tile.LEFT_FENCE) - 1;
-							break;
-						case 1:
-						case 2:
-							if (fenceLocY == 0) {
-								relevantType = t.getFenceType(caveLayer, Tile.TOP_FENCE);
-							} else if (fenceLocY == 3) {
-								relevantType = downTile.getFenceType(caveLayer, Tile.TOP_FENCE);
-							}
-							break;
-						case 3:
-							if (fenceLocY == 1 || fenceLocY == 2) {								
-								relevantType = rightTile.getFenceType(caveLayer, Tile.LEFT_FENCE) - 1;
-							}
-							break;
-					}
-					
-					if (mainWindow.getSelectedFence() != relevantType)
-						mainWindow.forceSelection(ImageType.FENCE, relevantType);
-					break;
-				case OVERLAY_PENCIL:
-					if (t.getOverlayColor(caveLayer) != c)
-						undoManager.addAction(new OverlayChange(t, c, caveLayer));
-					break;
-				case OVERLAY_BRUSH:
-					undoManager.addAction(new BrushOverlayChange(map, x, y, mainWindow.getBrushSize(), c, caveLayer));
-					break;
-				case OVERLAY_ERASER:
-					c = null;
-					if (t.getOverlayColor(caveLayer) != c)
-						undoManager.addAction(new OverlayChange(t, c, caveLayer));
-					break;
-				case OVERLAY_PICKER:
-					mainWindow.setOverlayColor(t.getOverlayColor(caveLayer));
-					break;
-				case LABEL:
-					LabelDialog d = new LabelDialog();
-					undoManager.addAction(new LabelChange(t, d.getLabel(), mainWindow.getLabelColor(), caveLayer));
-					d.dispose();
-					break;
-				default:
-					Logger.log("Unhandled State: " + currentState);
-					break;
-			}
-		}*/
+		return map.edgeInBounds(edge[0], edge[1], edge[2] == 1) ? edge : null;
+	}
+	
+	private void setFence(Point p, byte type) {
+		int[] edge = edgeAt(p);
+		if (edge == null || map.getFence(edge[0], edge[1], caveLayer, edge[2] == 1) == type)
+			return;
 		
-		repaint();
+		FenceLine f = new FenceLine(map, edge[0], edge[1], edge[2] == 1, type, caveLayer);
+		mainWindow.getUndoManager().addAction(f);
+		Rectangle r = f.getBounds();
+		repaintTiles(r.x, r.y, r.width, r.height);
+	}
+	
+	private void repaintFenceLine(Rectangle before) {
+		if (fenceLine == null)
+			return;
+		
+		Rectangle r = fenceLine.getBounds();
+		if (before != null)
+			r = r.union(before);
+		repaintTiles(r.x, r.y, r.width, r.height);
+	}
+	
+	private void flushRepaint() {
+		repaintTimer.stop();
+		if (pendingRepaint == null)
+			return;
+		
+		repaintTiles(pendingRepaint.x, pendingRepaint.y, pendingRepaint.width, pendingRepaint.height);
+		pendingRepaint = null;
 	}
 	
-	public void clickedRightMouse(Point p) {
-		int x = (int) (p.getX() / tileSize);
-		int y = (int) (p.getY() / tileSize);
-		int locX = (int) ((p.getX() - (x * tileSize)) / (tileSize / 3));
-		int locY = (int) ((p.getY() - (y * tileSize)) / (tileSize / 3));
+	public void draggedMouse(Point p) {
+		if (stroke != null) {
+			strokeTo(p);
+			return;
+		}
 		
-		switch(currentState) {
-			case OBJECT_ERASER:
-			case OBJECT_PENCIL:
-				if (x < map.getMapWidth() && x >= 0 && y >= 0 && y < map.getMapHeight()) {
-					Tile t = map.getTile(x, y, true);
-					int loc = (locY * 3) + locX;
+		int x = toTile(p.x);
+		int y = toTile(p.y);
+		
+		switch (currentState) {
+			case FENCE_PENCIL:
+				setFence(p, mainWindow.getSelectedFence());
+				return;
+			case FENCE_ERASER:
+				setFence(p, (byte) 0);
+				return;
+			case SELECT:
+				setSelection(new Rectangle(Math.min(x, selectionX), Math.min(y, selectionY),
+						Math.abs(x - selectionX) + 1, Math.abs(y - selectionY) + 1));
+				return;
+			case FENCE_LINE:
+				if (fenceLine != null) {
+					Rectangle before = fenceLine.getBounds();
+					fenceLine.update(x, y);
+					repaintFenceLine(before);
 				}
+				return;
+			default:
 				break;
+		}
+		
+		repaintTiles(x, y, 2, 2);
+	}
+
+	public void clickedMouse(Point p) {		
+		int x = toTile(p.x);
+		int y = toTile(p.y);
+		
+		switch (currentState) {
+			case TERRAIN_FILL:
+				fill(x, y, TileChangeSet.Plane.TERRAIN, mainWindow.getSelectedTerrain().getId());
+				return;
+			case OVERLAY_FILL:
+				fill(x, y, TileChangeSet.Plane.OVERLAY, mainWindow.getOverlayColor());
+				return;
+			case TERRAIN_BRUSH:
+			case OVERLAY_BRUSH:
+			case FENCE_PENCIL:
+			case FENCE_ERASER:
+			case FENCE_LINE:
+			case SELECT:
+				/* Done on press. */
+				return;
+			case FENCE_PICKER:
+				int[] edge = edgeAt(p);
+				if (edge != null) {
+					byte type = map.getFence(edge[0], edge[1], caveLayer, edge[2] == 1);
+					if (type != 0)
+						mainWindow.setSelectedFence(type);
+				}
+				return;
 			default:
 				break;
 		}
 		
-		repaint();
-	}	
+		repaintTiles(x, y, 2, 2);
+	}
+	
+	private void fill(int x, int y, TileChangeSet.Plane plane, int value) {
+		TileFill fill = new TileFill(map, x, y, plane, value, caveLayer);
+		if (!fill.isEmpty()) {
+			mainWindow.getUndoManager().addAction(fill);
+			Rectangle r = fill.getBounds();
+			repaintTiles(r.x, r.y, r.width, r.height);
+		}
+	}
 }
@@ -0,0 +1,107 @@
+package net.buddat.wanalyse.gui;
+
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import net.buddat.wanalyse.analyse.LikelihoodMap;
+
+/**
+ * Draws a {@link LikelihoodMap} over the map, one chunk image at a time.
+ * Each chunk is rendered at one pixel per tile, with colours looked up by
+ * {@link LikelihoodMap#getColor(float)}, and scaled up when drawn. An image
+ * is kept until its chunk is recomputed or the map's top score, which every
+ * colour is relative to, changes.
+ *
+ * Images are dropped least recently used first once the memory budget is
+ * used up, as in {@link ChunkImageCache}.
+ */
+public class HeatmapOverlay {
+
+	public static final long DEFAULT_BUDGET = 16L * 1024 * 1024;
+	
+	private static final long ENTRY_BYTES = MapChunk.AREA * 4L;
+	
+	private static class Entry {
+		private final BufferedImage image = new BufferedImage(MapChunk.SIZE, MapChunk.SIZE, BufferedImage.TYPE_INT_ARGB);
+		private long version = -1;
+		private float maxScore;
+	}
+	
+	private final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<Long, Entry>(256, 0.75f, true);
+	private long budget;
+	
+	/* Chunks are rendered here and copied in, leaving the images managed. */
+	private final int[] scratch = new int[MapChunk.AREA];
+	
+	public HeatmapOverlay() {
+		this(DEFAULT_BUDGET);
+	}
+	
+	public HeatmapOverlay(long budget) {
+		this.budget = budget;
+	}
+	
+	/**
+	 * Draws one chunk of the heatmap scaled to the given size. Chunks no
+	 * reading covers draw nothing.
+	 */
+	public void draw(Graphics g, LikelihoodMap heatmap, int chunkX, int chunkY, int x, int y, int size) {
+		LikelihoodMap.Chunk chunk = heatmap.getChunk(chunkX, chunkY);
+		if (chunk == null)
+			return;
+		
+		Long key = Long.valueOf(MapChunk.key(chunkX, chunkY));
+		Entry e = entries.get(key);
+		if (e == null) {
+			e = new Entry();
+			entries.put(key, e);
+			evict();
+		}
+		
+		if (e.version != chunk.getVersion() || e.maxScore != heatmap.getMaxScore()) {
+			render(scratch, chunk, heatmap);
+			e.image.getRaster().setDataElements(0, 0, MapChunk.SIZE, MapChunk.SIZE, scratch);
+			e.version = chunk.getVersion();
+			e.maxScore = heatmap.getMaxScore();
+		}
+		
+		g.drawImage(e.image, x, y, size, size, null);
+	}
+	
+	private static void render(int[] pixels, LikelihoodMap.Chunk chunk, LikelihoodMap heatmap) {
+		for (int y = 0; y < MapChunk.SIZE; y++)
+			for (int x = 0; x < MapChunk.SIZE; x++)
+				pixels[MapChunk.index(x, y)] = heatmap.getColor(chunk.getScore(x, y));
+	}
+	
+	private void evict() {
+		Iterator<Entry> it = entries.values().iterator();
+		while (getUsedBytes() > budget && it.hasNext()) {
+			it.next();
+			it.remove();
+		}
+	}
+	
+	public void clear() {
+		entries.clear();
+	}
+	
+	public long getBudget() {
+		return budget;
+	}
+	
+	public void setBudget(long budget) {
+		this.budget = budget;
+		evict();
+	}
+	
+	public long getUsedBytes() {
+		return entries.size() * ENTRY_BYTES;
+	}
+	
+	public int size() {
+		return entries.size();
+	}
+}
@@ -1,9 +1,38 @@
 package net.buddat.wanalyse.gui;
 
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import javax.swing.JFileChooser;
 import javax.swing.JFrame;
+import javax.swing.JMenu;
+import javax.swing.JMenuBar;
+import javax.swing.JMenuItem;
+import javax.swing.JOptionPane;
+import javax.swing.JRadioButtonMenuItem;
 import javax.swing.JScrollPane;
+import javax.swing.ProgressMonitor;
+import javax.swing.SwingUtilities;
+import javax.swing.event.MenuEvent;
+import javax.swing.event.MenuListener;
 
+import net.buddat.wanalyse.analyse.AnalyseReading;
+import net.buddat.wanalyse.analyse.LikelihoodMap;
+import net.buddat.wanalyse.analyse.ReadingFile;
+import net.buddat.wanalyse.analyse.Vein;
+import net.buddat.wanalyse.analyse.VeinSolver;
 import net.buddat.wanalyse.gui.undo.UndoManager;
+import net.buddat.wanalyse.ingest.AnalyseIngester;
+import net.buddat.wanalyse.ingest.EventLogTailer;
 
 public class MainWindow extends JFrame {
 
@@ -13,12 +42,38 @@ public class MainWindow extends JFrame {
 	private static final double VERSION = 0.1;
 
 	private static final int WIDTH = 800, HEIGHT = 600;
+	
+	private static final File AUTOSAVE_DIR = new File(System.getProperty("user.home"), ".wanalyse");
+	private static final File LOG_CHECKPOINTS = new File(AUTOSAVE_DIR, "eventlogs.properties");
+	private static final File WORKSPACE_DIR = new File(AUTOSAVE_DIR, "maps");
+
+	private static final String DEFAULT_MAP = "default";
+	private static final int DEFAULT_WIDTH = 24, DEFAULT_HEIGHT = 17;
+
+	private static final Executor EDT = new Executor() {
+		@Override
+		public void execute(Runnable r) {
+			SwingUtilities.invokeLater(r);
+		}
+	};
 
 	private UndoManager undoManager;
+	private AutoSaver autoSaver;
 
-	private final Map map;
+	private TerrainType selectedTerrain = TerrainType.ROCK;
+	private int overlayColor = 0x80FF0000;
+	private int brushSize = 3;
+	private byte selectedFence = 1;
+
+	private final Workspace workspace = new Workspace(WORKSPACE_DIR);
+	private Map map;
 	private final GraphicPanel graphicPanel;
 
+	private final VeinSolver veinSolver = new VeinSolver();
+	private AnalyseIngester ingester;
+	private EventLogTailer logTailer;
+	private File logDir;
+
 	public MainWindow() {
 		super(WINDOW_TITLE + VERSION);
 
@@ -29,7 +84,11 @@ public class MainWindow extends JFrame {
 
 		setUndoManager(new UndoManager());
 
-		map = new Map("default", 24, 17);
+		map = openInitialMap();
+		loadReadings();
+		startAutoSaver();
+		setTitle(WINDOW_TITLE + VERSION + " - " + map.getMapName());
+		
 		graphicPanel = new GraphicPanel(this, map);
 		JScrollPane graphicScroll = new JScrollPane(graphicPanel,
 				JScrollPane.VERTICAL_SCROLLBAR_ALWAYS,
@@ -37,10 +96,375 @@ public class MainWindow extends JFrame {
 		graphicScroll.getVerticalScrollBar().setUnitIncrement(10);
 
 		this.add(graphicScroll);
+		this.setJMenuBar(createMenuBar());
+		this.addWindowListener(new WindowAdapter() {
+			@Override
+			public void windowClosing(WindowEvent e) {
+				if (logTailer != null)
+					logTailer.shutdown();
+				autoSaver.close();
+				try {
+					workspace.close();
+				} catch (IOException ex) {
+					ex.printStackTrace();
+				}
+			}
+		});
 
 		this.setVisible(true);
 	}
 
+	/*
+	 * The most recently saved map in the workspace, or a new default map if
+	 * there are none yet.
+	 */
+	private Map openInitialMap() {
+		try {
+			MapInfo latest = null;
+			for (MapInfo info : workspace.listMaps())
+				if (latest == null || info.getLastModified() > latest.getLastModified())
+					latest = info;
+
+			if (latest != null)
+				return workspace.open(latest.getFile());
+			return workspace.create(DEFAULT_MAP, DEFAULT_WIDTH, DEFAULT_HEIGHT);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return new Map(DEFAULT_MAP, DEFAULT_WIDTH, DEFAULT_HEIGHT);
+		}
+	}
+
+	private void startAutoSaver() {
+		autoSaver = new AutoSaver(map, new File(AUTOSAVE_DIR, map.getMapName() + MapFile.MAP_FILE_EXT));
+		autoSaver.start();
+	}
+
+	private JMenuBar createMenuBar() {
+		final JMenu mapsMenu = new JMenu("Maps");
+		mapsMenu.addMenuListener(new MenuListener() {
+			@Override
+			public void menuSelected(MenuEvent e) {
+				fillMapsMenu(mapsMenu);
+			}
+
+			@Override
+			public void menuDeselected(MenuEvent e) {
+			}
+
+			@Override
+			public void menuCanceled(MenuEvent e) {
+			}
+		});
+
+		JMenuBar menuBar = new JMenuBar();
+		menuBar.add(mapsMenu);
+		menuBar.add(createAnalyseMenu());
+		return menuBar;
+	}
+
+	private JMenu createAnalyseMenu() {
+		JMenu menu = new JMenu("Analyse");
+
+		JMenuItem follow = new JMenuItem("Follow event logs...");
+		follow.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				JFileChooser chooser = new JFileChooser(logDir);
+				chooser.setDialogTitle("Wurm client log directory");
+				chooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+				if (chooser.showOpenDialog(MainWindow.this) != JFileChooser.APPROVE_OPTION)
+					return;
+
+				try {
+					followEventLogs(chooser.getSelectedFile());
+				} catch (IOException ex) {
+					ex.printStackTrace();
+					JOptionPane.showMessageDialog(MainWindow.this, ex.getMessage(), "Analyse", JOptionPane.ERROR_MESSAGE);
+				}
+			}
+		});
+		menu.add(follow);
+
+		JMenuItem position = new JMenuItem("Set position...");
+		position.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				if (ingester == null) {
+					JOptionPane.showMessageDialog(MainWindow.this, "No event logs are being followed.", "Analyse",
+							JOptionPane.INFORMATION_MESSAGE);
+					return;
+				}
+
+				String text = JOptionPane.showInputDialog(MainWindow.this, "Tile the messages come from (x,y):",
+						ingester.getX() + "," + ingester.getY());
+				if (text == null)
+					return;
+
+				String[] parts = text.split(",");
+				try {
+					if (parts.length != 2)
+						throw new NumberFormatException(text);
+					ingester.setPosition(Integer.parseInt(parts[0].trim()), Integer.parseInt(parts[1].trim()));
+				} catch (NumberFormatException ex) {
+					JOptionPane.showMessageDialog(MainWindow.this, "Not a position: " + text, "Analyse",
+							JOptionPane.ERROR_MESSAGE);
+				}
+			}
+		});
+		menu.add(position);
+
+		menu.addSeparator();
+		final JMenu heatmapMenu = new JMenu("Heatmap");
+		heatmapMenu.addMenuListener(new MenuListener() {
+			@Override
+			public void menuSelected(MenuEvent e) {
+				fillHeatmapMenu(heatmapMenu);
+			}
+
+			@Override
+			public void menuDeselected(MenuEvent e) {
+			}
+
+			@Override
+			public void menuCanceled(MenuEvent e) {
+			}
+		});
+		menu.add(heatmapMenu);
+
+		return menu;
+	}
+
+	/*
+	 * Lists the veins the readings point at as they are when the menu opens.
+	 */
+	private void fillHeatmapMenu(JMenu menu) {
+		menu.removeAll();
+
+		LikelihoodMap shown = graphicPanel.getHeatmap();
+		JRadioButtonMenuItem none = new JRadioButtonMenuItem("None", shown == null);
+		none.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				showHeatmap(null);
+			}
+		});
+		menu.add(none);
+
+		List<Vein> veins = new ArrayList<Vein>(veinSolver.getVeins());
+		Collections.sort(veins, new Comparator<Vein>() {
+			@Override
+			public int compare(Vein a, Vein b) {
+				return a.toString().compareToIgnoreCase(b.toString());
+			}
+		});
+		for (final Vein vein : veins) {
+			JRadioButtonMenuItem item = new JRadioButtonMenuItem(vein.toString(),
+					shown != null && shown.getVein().equals(vein));
+			item.addActionListener(new ActionListener() {
+				@Override
+				public void actionPerformed(ActionEvent e) {
+					showHeatmap(vein);
+				}
+			});
+			menu.add(item);
+		}
+	}
+
+	/**
+	 * Shows the likelihood heatmap of a vein, built from the readings taken
+	 * so far and kept up to date as more are read, or hides it if null.
+	 */
+	public void showHeatmap(Vein vein) {
+		LikelihoodMap old = graphicPanel.getHeatmap();
+		LikelihoodMap heatmap = null;
+		if (vein != null) {
+			heatmap = new LikelihoodMap(vein);
+			for (AnalyseReading r : veinSolver.getReadings())
+				heatmap.addReading(r);
+		}
+
+		if (ingester != null) {
+			if (old != null)
+				ingester.removeHeatmap(old);
+			if (heatmap != null)
+				ingester.addHeatmap(heatmap);
+		}
+		graphicPanel.setHeatmap(heatmap);
+	}
+
+	/*
+	 * Lists the workspace afresh each time the menu opens; only the file
+	 * headers are read.
+	 */
+	private void fillMapsMenu(JMenu menu) {
+		menu.removeAll();
+
+		List<MapInfo> infos = workspace.listMaps();
+		for (final MapInfo info : infos) {
+			JMenuItem item = new JMenuItem(info.toString());
+			item.addActionListener(new ActionListener() {
+				@Override
+				public void actionPerformed(ActionEvent e) {
+					openMap(info.getFile(), null);
+				}
+			});
+			menu.add(item);
+		}
+		if (!infos.isEmpty())
+			menu.addSeparator();
+
+		JMenuItem newMap = new JMenuItem("New map...");
+		newMap.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				String name = JOptionPane.showInputDialog(MainWindow.this, "Map name:");
+				if (name == null || name.trim().isEmpty())
+					return;
+
+				openMap(null, name.trim());
+			}
+		});
+		menu.add(newMap);
+
+		JMenuItem export = new JMenuItem("Export image...");
+		export.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				JFileChooser chooser = new JFileChooser();
+				chooser.setSelectedFile(new File(map.getMapName() + ".png"));
+				if (chooser.showSaveDialog(MainWindow.this) == JFileChooser.APPROVE_OPTION)
+					exportImage(chooser.getSelectedFile());
+			}
+		});
+		menu.add(export);
+	}
+
+	/*
+	 * Exports the layer on view to a PNG in the background, with a progress
+	 * dialog that can cancel it.
+	 */
+	private void exportImage(File file) {
+		final ProgressMonitor monitor = new ProgressMonitor(this, "Exporting " + file.getName(), null, 0, 1);
+		monitor.setMillisToDecideToPopup(200);
+
+		graphicPanel.exportMapImage(file, new MapExporter.ExportListener() {
+			@Override
+			public void exportProgress(final MapExporter exporter, final int rowsDone, final int rowsTotal) {
+				SwingUtilities.invokeLater(new Runnable() {
+					@Override
+					public void run() {
+						if (monitor.isCanceled()) {
+							exporter.cancel();
+							return;
+						}
+						monitor.setMaximum(rowsTotal);
+						monitor.setProgress(rowsDone);
+					}
+				});
+			}
+
+			@Override
+			public void exportDone(MapExporter exporter, File file, boolean complete) {
+				SwingUtilities.invokeLater(new Runnable() {
+					@Override
+					public void run() {
+						monitor.close();
+					}
+				});
+			}
+
+			@Override
+			public void exportFailed(MapExporter exporter, final File file, final IOException e) {
+				e.printStackTrace();
+				SwingUtilities.invokeLater(new Runnable() {
+					@Override
+					public void run() {
+						monitor.close();
+						JOptionPane.showMessageDialog(MainWindow.this, "Could not export " + file.getName() + ": "
+								+ e.getMessage(), "Export", JOptionPane.ERROR_MESSAGE);
+					}
+				});
+			}
+		});
+	}
+
+	/*
+	 * Opens a map file, or creates a map if given a name instead. The current
+	 * map's autosaver is closed first, so nothing is still writing it if the
+	 * workspace drops it to make room.
+	 */
+	private void openMap(File file, String newName) {
+		autoSaver.close();
+		try {
+			setMap(file != null ? workspace.open(file) : workspace.create(newName, DEFAULT_WIDTH, DEFAULT_HEIGHT));
+		} catch (IOException e) {
+			e.printStackTrace();
+			JOptionPane.showMessageDialog(this, e.getMessage(), "Maps", JOptionPane.ERROR_MESSAGE);
+		} finally {
+			if (autoSaver.isClosed())
+				startAutoSaver();
+		}
+	}
+
+	public Workspace getWorkspace() {
+		return workspace;
+	}
+
+	public Map getMap() {
+		return map;
+	}
+
+	/**
+	 * Switches editing over to another map. Undo history and vein readings
+	 * belong to the old map and are dropped, the new map's readings are read
+	 * in, and the event logs, if followed, are followed into the new map from
+	 * where they are now.
+	 */
+	public void setMap(Map newMap) {
+		if (newMap == map)
+			return;
+
+		autoSaver.close();
+		map = newMap;
+		startAutoSaver();
+		setTitle(WINDOW_TITLE + VERSION + " - " + map.getMapName());
+
+		undoManager.clear();
+		loadReadings();
+		graphicPanel.setMap(map);
+
+		if (logTailer != null) {
+			try {
+				followEventLogs(logDir);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/*
+	 * The file the current map's readings are kept in, or null if the map
+	 * has no file.
+	 */
+	private ReadingFile getReadingFile() {
+		MapFile source = map.getSource();
+		return source == null ? null : ReadingFile.forMap(source.getFile());
+	}
+
+	private void loadReadings() {
+		veinSolver.clear();
+		ReadingFile readingFile = getReadingFile();
+		if (readingFile == null)
+			return;
+
+		try {
+			for (AnalyseReading r : readingFile.read())
+				veinSolver.addReading(r);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
 	public UndoManager getUndoManager() {
 		return undoManager;
 	}
@@ -48,4 +472,78 @@ public class MainWindow extends JFrame {
 	public void setUndoManager(UndoManager undoManager) {
 		this.undoManager = undoManager;
 	}
+	
+	/**
+	 * Starts reading analyse results from a Wurm client's log directory as
+	 * they are logged, replacing any directory followed before. Readings are
+	 * kept alongside the map file, and the player position carries over if
+	 * the map is the same.
+	 */
+	public void followEventLogs(File logDir) throws IOException {
+		if (logTailer != null)
+			logTailer.shutdown();
+		this.logDir = logDir;
+
+		AnalyseIngester old = ingester;
+		ingester = new AnalyseIngester(map, veinSolver);
+		if (old != null && old.getMap() == map)
+			ingester.setPosition(old.getX(), old.getY());
+		ingester.setReadingFile(getReadingFile());
+		if (graphicPanel.getHeatmap() != null)
+			ingester.addHeatmap(graphicPanel.getHeatmap());
+		ingester.setBatchDone(new Runnable() {
+			@Override
+			public void run() {
+				graphicPanel.updateHeatmap();
+				graphicPanel.repaint();
+			}
+		});
+
+		logTailer = new EventLogTailer(logDir, LOG_CHECKPOINTS, ingester, EDT);
+		logTailer.start();
+	}
+
+	public AnalyseIngester getIngester() {
+		return ingester;
+	}
+
+	public VeinSolver getVeinSolver() {
+		return veinSolver;
+	}
+
+	public AutoSaver getAutoSaver() {
+		return autoSaver;
+	}
+
+	public TerrainType getSelectedTerrain() {
+		return selectedTerrain;
+	}
+
+	public void setSelectedTerrain(TerrainType selectedTerrain) {
+		this.selectedTerrain = selectedTerrain;
+	}
+
+	public int getOverlayColor() {
+		return overlayColor;
+	}
+
+	public void setOverlayColor(int overlayColor) {
+		this.overlayColor = overlayColor;
+	}
+
+	public byte getSelectedFence() {
+		return selectedFence;
+	}
+
+	public void setSelectedFence(byte selectedFence) {
+		this.selectedFence = selectedFence;
+	}
+
+	public int getBrushSize() {
+		return brushSize;
+	}
+
+	public void setBrushSize(int brushSize) {
+		this.brushSize = brushSize;
+	}
 }
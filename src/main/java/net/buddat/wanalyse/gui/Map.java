@@ -1,176 +1,509 @@
 package net.buddat.wanalyse.gui;
 
 import java.awt.Point;
-import java.util.HashMap;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystemException;
 
+/**
+ * A map of two layers of tiles, surface and cave.
+ * 
+ * Tiles are addressed by logical coordinates, from 0,0 at the north west
+ * corner of the map. The layers store them at those coordinates plus the
+ * map's origin, so a resize that adds or removes rows and columns on the north
+ * or west edge moves the origin instead of moving any tiles.
+ */
 public class Map {
 
+	/* Objects sit on a three by three grid of spots within each tile. */
+	public static final int OBJECTS_PER_SIDE = 3;
+	
 	private String mapName;
 	private int mapWidth, mapHeight;
+	private int originX, originY;
 	private boolean changes = false;
+	/* Whether labels, objects or fences have changed since the last save. */
+	private boolean featureChanges = false;
+	private MapFile source;
 	
-	private HashMap<Point, Tile> tileMap = new HashMap<Point, Tile>();
+	private final MapLayer surface;
+	private final MapLayer cave;
 		
-	public Map () { }
+	public Map () {
+		surface = new MapLayer(false, 0, 0);
+		cave = new MapLayer(true, 0, 0);
+	}
 	
 	public Map(String name, int x, int y) {
+		this();
 		setMapName(name);
 		setMapWidth(x);
 		setMapHeight(y);
 	}
 	
-	/*
-	 * public void saveMap() { saveMap(null); }
+	/**
+	 * Opens a map file. Only the header and chunk index are read here, the
+	 * chunks themselves are paged in as they are first used.
 	 */
+	public static Map loadMap(File file) throws IOException {
+		MapFile mapFile = MapFile.open(file);
+		
+		Map map = new Map();
+		map.setMapName(mapFile.getName());
+		map.setBounds(mapFile.getOriginX(), mapFile.getOriginY(), mapFile.getWidth(), mapFile.getHeight());
+		map.source = mapFile;
+		map.surface.setSource(mapFile);
+		map.cave.setSource(mapFile);
+		mapFile.readFeatures(map);
+		
+		return map;
+	}
 	
-	/*
-	 * public void saveMap(String fileName) { if (fileName == null) fileName =
-	 * WPlanner.getConfig().getDefaultSaveDir() + mapName +
-	 * Constants.MAP_FILE_EXT; if (!fileName.endsWith(Constants.MAP_FILE_EXT))
-	 * fileName += Constants.MAP_FILE_EXT;
-	 * 
-	 * File file = new File(fileName + Constants.MAP_TEMP_FILE_EXT); if
-	 * (file.exists()) { file.delete(); Logger.log("Deleted old " +
-	 * Constants.MAP_TEMP_FILE_EXT + " map file: " + fileName +
-	 * Constants.MAP_TEMP_FILE_EXT); }
-	 * 
-	 * ByteBuffer buffer = ByteBuffer.allocate((tileMap.size() *
-	 * Tile.BYTES_USED) + Constants.MAP_EXTRA_BYTES);
-	 * 
-	 * buffer.putInt(mapWidth).putInt(mapHeight);
-	 * 
-	 * buffer.putInt(tileMap.size());
-	 * 
-	 * for (Point p : tileMap.keySet()) buffer.put(getTile(p, false).getData());
-	 * 
-	 * buffer.flip();
-	 * 
-	 * byte[] mapData = buffer.array();
-	 * 
-	 * try { FileOutputStream fos = new FileOutputStream(fileName +
-	 * Constants.MAP_TEMP_FILE_EXT);
-	 * 
-	 * fos.write(mapData);
-	 * 
-	 * fos.close(); Logger.log("Saved map to: " + fileName); } catch
-	 * (FileNotFoundException e) { e.printStackTrace(); } catch (IOException e)
-	 * { e.printStackTrace(); }
-	 * 
-	 * compressFile(fileName);
-	 * 
-	 * changes = false; }
+	/**
+	 * Saves the map. When saving back into the file the map was loaded from,
+	 * only the chunks changed since the last save are written.
 	 */
+	public void saveMap(File file) throws IOException {
+		Map snapshot = snapshot();
+		try {
+			adoptSource(snapshot.writeTo(file));
+		} catch (IOException e) {
+			restoreChanges(snapshot);
+			throw e;
+		}
+	}
 	
-	/*
-	 * public void loadMap(String fileName) { if (!fileName.contains("/"))
-	 * fileName = "/" + fileName;
-	 * 
-	 * 
-	 * 
-	 * decompressFile(fileName); try { FileInputStream fis = new
-	 * FileInputStream(fileName + Constants.MAP_TEMP_FILE_EXT); DataInputStream
-	 * dis = new DataInputStream(fis);
-	 * 
-	 * this.setMapWidth(dis.readInt()); this.setMapHeight(dis.readInt());
-	 * 
-	 * int tileCount = dis.readInt(); int count = 0;
-	 * 
-	 * while(count < tileCount) { Tile t;
-	 * 
-	 * short tileX = dis.readShort(); short tileY = dis.readShort();
-	 * 
-	 * t = new Tile(tileX, tileY);
-	 * 
-	 * for (int j = 0; j < 2; j++) { boolean caveLayer = j != 0;
-	 * 
-	 * t.setTerrainType(caveLayer, dis.readByte());
-	 * 
-	 * byte temp = dis.readByte(); if (temp != -1) { t.setObjectType(caveLayer,
-	 * 0, temp); t.setObjectRotation(caveLayer, 0, dis.readByte()); for (int i =
-	 * 1; i < Tile.OBJECT_COUNT; i++) { t.setObjectType(caveLayer, i,
-	 * dis.readByte()); t.setObjectRotation(caveLayer, i, dis.readByte()); } }
-	 * 
-	 * temp = dis.readByte(); if (temp != -1) { t.setFenceType(caveLayer, 0,
-	 * temp); t.setFenceType(caveLayer, 1, dis.readByte()); }
-	 * 
-	 * t.setHeight(caveLayer, dis.readShort());
-	 * 
-	 * int tempColour = dis.readInt(); if (tempColour != Tile.NULL_COLOUR)
-	 * t.setOverlayColor(caveLayer, tempColour); tempColour = dis.readInt(); if
-	 * (tempColour != Tile.NULL_COLOUR) t.setLabelColor(caveLayer, tempColour);
-	 * 
-	 * byte labelLength = dis.readByte(); if (labelLength > 0) { byte[] label =
-	 * new byte[labelLength]; dis.read(label); t.setLabel(caveLayer, new
-	 * String(label)); } }
-	 * 
-	 * this.addTile(tileX, tileY, t);
-	 * 
-	 * dis.skipBytes(dis.readShort());
-	 * 
-	 * count++; }
-	 * 
-	 * dis.close(); fis.close(); } catch (Exception e) { e.printStackTrace(); }
-	 * 
-	 * new File(fileName + Constants.MAP_TEMP_FILE_EXT).delete(); }
+	/**
+	 * Takes a copy-on-write snapshot of the map. This only copies the chunk
+	 * tables and the sparse features, so it is cheap enough to do on the EDT,
+	 * and the snapshot can then be written out on another thread while this
+	 * map keeps being edited.
+	 * 
+	 * The snapshot takes over the pending changes: this map is left clean
+	 * until it is edited again, and {@link #restoreChanges(Map)} puts them
+	 * back if the snapshot could not be saved.
 	 */
+	public Map snapshot() {
+		Map snapshot = new Map(this);
+		
+		surface.clearDirty();
+		cave.clearDirty();
+		changes = false;
+		featureChanges = false;
+		
+		return snapshot;
+	}
 	
-	/*
-	 * private void compressFile(String fileName) { try { GZIPOutputStream out =
-	 * new GZIPOutputStream(new FileOutputStream(fileName)); FileInputStream in
-	 * = new FileInputStream(fileName + Constants.MAP_TEMP_FILE_EXT);
-	 * 
-	 * byte[] buf = new byte[1024]; int len; while ((len = in.read(buf)) > 0) {
-	 * out.write(buf, 0, len); } in.close();
-	 * 
-	 * new File(fileName + Constants.MAP_TEMP_FILE_EXT).delete();
-	 * 
-	 * out.finish(); out.close(); } catch (IOException e) { e.printStackTrace();
-	 * } }
+	/**
+	 * Takes a copy-on-write snapshot for readers, such as image export, that
+	 * need a stable map off the EDT. Pending changes stay with this map.
 	 */
+	public Map readSnapshot() {
+		return new Map(this);
+	}
 	
-	/*
-	 * private void decompressFile(String fileName) { try { GZIPInputStream in =
-	 * new GZIPInputStream(new FileInputStream(fileName)); FileOutputStream out
-	 * = new FileOutputStream(fileName + Constants.MAP_TEMP_FILE_EXT);
-	 * 
-	 * byte[] buf = new byte[1024]; int len; while ((len = in.read(buf)) > 0) {
-	 * out.write(buf, 0, len); }
-	 * 
-	 * in.close(); out.close(); } catch (IOException e) { e.printStackTrace(); }
-	 * }
+	private Map(Map map) {
+		mapName = map.mapName;
+		mapWidth = map.mapWidth;
+		mapHeight = map.mapHeight;
+		originX = map.originX;
+		originY = map.originY;
+		changes = map.changes;
+		featureChanges = map.featureChanges;
+		source = map.source;
+		surface = new MapLayer(map.surface);
+		cave = new MapLayer(map.cave);
+	}
+	
+	/**
+	 * Puts the map back the way it was when the given snapshot of it was
+	 * taken, size and contents both. Only the chunk tables and the sparse
+	 * features are copied.
 	 */
+	public void restore(Map snapshot) {
+		mapWidth = snapshot.mapWidth;
+		mapHeight = snapshot.mapHeight;
+		originX = snapshot.originX;
+		originY = snapshot.originY;
+		surface.restore(snapshot.surface);
+		cave.restore(snapshot.cave);
+		changes = true;
+		featureChanges = true;
+	}
+	
+	public void restoreChanges(Map snapshot) {
+		surface.restoreDirty(snapshot.surface);
+		cave.restoreDirty(snapshot.cave);
+		changes = true;
+		featureChanges |= snapshot.featureChanges;
+	}
+	
+	/**
+	 * Writes this map, normally a snapshot, and returns the file now holding
+	 * it. Only dirty chunks are written when the file is the one the map
+	 * was loaded from. If that file can't be replaced by a full rewrite, as
+	 * on Windows, the whole map is appended to it instead.
+	 */
+	public MapFile writeTo(File file) throws IOException {
+		boolean toSource = source != null && isSource(file);
+		if (toSource && source.canWriteChanges(this))
+			return source.writeChanges(this);
+		
+		surface.loadAll();
+		cave.loadAll();
+		if (toSource && !source.isReplaceable())
+			return source.writeGeneration(this);
+		
+		try {
+			MapFile.write(this, file);
+		} catch (FileSystemException e) {
+			if (!toSource)
+				throw e;
+			return source.writeGeneration(this);
+		}
+		
+		return MapFile.open(file);
+	}
+	
+	/**
+	 * Switches the map over to a file that has just been written from it, or
+	 * from a snapshot of it.
+	 */
+	public void adoptSource(MapFile file) {
+		if (source != null && source != file) {
+			try {
+				source.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		
+		source = file;
+		surface.rebase(file);
+		cave.rebase(file);
+	}
+	
+	public void saveMap() throws IOException {
+		if (source == null)
+			throw new IOException("Map " + mapName + " has no file to save to");
+		
+		saveMap(source.getFile());
+	}
+	
+	private boolean isSource(File file) throws IOException {
+		return file.getCanonicalFile().equals(source.getFile().getCanonicalFile());
+	}
+	
+	/**
+	 * Releases the file the map is paged in from, reading in anything not yet
+	 * loaded first.
+	 */
+	public void close() throws IOException {
+		if (source == null)
+			return;
+		
+		surface.loadAll();
+		cave.loadAll();
+		source.close();
+		source = null;
+	}
 	
+	public MapFile getSource() {
+		return source;
+	}
+	
+	public MapLayer getLayer(boolean caveLayer) {
+		return caveLayer ? cave : surface;
+	}
+	
+	/**
+	 * Copies both layers of a tile, which may belong to another map, into
+	 * this map. An empty surface tile is added if the source has no data.
+	 */
 	public void addTile(int x, int y, Tile t) {
-		addTile(new Point(x, y), t);
+		if (!inBounds(x, y))
+			return;
+		
+		Map from = t.getMap();
+		int fromX = t.getX() + from.originX, fromY = t.getY() + from.originY;
+		surface.copyTile(from.surface, fromX, fromY, x + originX, y + originY);
+		cave.copyTile(from.cave, fromX, fromY, x + originX, y + originY);
+		
+		if (!hasTile(x, y))
+			surface.addTile(x + originX, y + originY);
 	}
 	
 	public void addTile(Point point, Tile t) {
-		if (tileMap.containsKey(point))
-			tileMap.remove(point);
-		
-		tileMap.put(point, t);
+		addTile(point.x, point.y, t);
+	}
+	
+	public void addTile(int x, int y) {
+		addTile(x, y, false);
+	}
+	
+	public void addTile(int x, int y, boolean caveLayer) {
+		if (inBounds(x, y))
+			getLayer(caveLayer).addTile(x + originX, y + originY);
 	}
 	
 	public void removeTile(int x, int y) {
-		removeTile(new Point(x, y));
+		if (!inBounds(x, y))
+			return;
+		
+		surface.removeTile(x + originX, y + originY);
+		cave.removeTile(x + originX, y + originY);
+	}
+	
+	public void removeTile(int x, int y, boolean caveLayer) {
+		if (!inBounds(x, y))
+			return;
+		
+		getLayer(caveLayer).removeTile(x + originX, y + originY);
+		changes = true;
 	}
 	
 	public void removeTile(Point p) {
-		tileMap.remove(p);
+		removeTile(p.x, p.y);
 	}
 
 	public Tile getTile(int x, int y, boolean toChange) {
-		return getTile(new Point(x, y), toChange);
-	}
-
-	public Tile getTile(Point point, boolean toChange) {
 		if (toChange)
 			changes = true;
 		
-		if (tileMap.containsKey(point))
-			return tileMap.get(point);
-		else
+		if (!hasTile(x, y))
 			return null;
+		
+		return new Tile(this, x, y);
+	}
+
+	public Tile getTile(Point point, boolean toChange) {
+		return getTile(point.x, point.y, toChange);
+	}
+	
+	/*
+	 * Primitive accessors. Unlike getTile these never allocate, so they are
+	 * the ones to use from paint loops and other per-tile code.
+	 */
+	
+	public boolean hasTile(int x, int y) {
+		return inBounds(x, y) && (surface.hasTile(x + originX, y + originY) || cave.hasTile(x + originX, y + originY));
+	}
+	
+	public boolean hasTile(int x, int y, boolean caveLayer) {
+		return inBounds(x, y) && getLayer(caveLayer).hasTile(x + originX, y + originY);
+	}
+	
+	public byte getTerrainType(int x, int y, boolean caveLayer) {
+		if (!inBounds(x, y))
+			return 0;
+		
+		return getLayer(caveLayer).getTerrainType(x + originX, y + originY);
+	}
+	
+	public void setTerrainType(int x, int y, boolean caveLayer, byte type) {
+		if (!inBounds(x, y))
+			return;
+		
+		getLayer(caveLayer).setTerrainType(x + originX, y + originY, type);
+		changes = true;
+	}
+	
+	public short getHeight(int x, int y, boolean caveLayer) {
+		if (!inBounds(x, y))
+			return 0;
+		
+		return getLayer(caveLayer).getHeight(x + originX, y + originY);
+	}
+	
+	public void setHeight(int x, int y, boolean caveLayer, short height) {
+		if (!inBounds(x, y))
+			return;
+		
+		getLayer(caveLayer).setHeight(x + originX, y + originY, height);
+		changes = true;
+	}
+	
+	public int getOverlayColor(int x, int y, boolean caveLayer) {
+		if (!inBounds(x, y))
+			return Tile.NULL_COLOUR;
+		
+		return getLayer(caveLayer).getOverlayColor(x + originX, y + originY);
+	}
+	
+	public void setOverlayColor(int x, int y, boolean caveLayer, int argb) {
+		if (!inBounds(x, y))
+			return;
+		
+		getLayer(caveLayer).setOverlayColor(x + originX, y + originY, argb);
+		changes = true;
+	}
+	
+	/*
+	 * Bulk operations. These walk the chunk planes a row at a time rather
+	 * than going through a tile at a time.
+	 */
+	
+	public void fillTerrainType(int x, int y, int width, int height, boolean caveLayer, byte type) {
+		getLayer(caveLayer).fillTerrainType(originX + Math.max(x, 0), originY + Math.max(y, 0),
+				originX + Math.min(x + width, mapWidth), originY + Math.min(y + height, mapHeight), type);
+		changes = true;
+	}
+	
+	public void fillOverlayColor(int x, int y, int width, int height, boolean caveLayer, int argb) {
+		getLayer(caveLayer).fillOverlayColor(originX + Math.max(x, 0), originY + Math.max(y, 0),
+				originX + Math.min(x + width, mapWidth), originY + Math.min(y + height, mapHeight), argb);
+		changes = true;
+	}
+	
+	public void removeTiles(int x, int y, int width, int height, boolean caveLayer) {
+		getLayer(caveLayer).removeTiles(originX + Math.max(x, 0), originY + Math.max(y, 0),
+				originX + Math.min(x + width, mapWidth), originY + Math.min(y + height, mapHeight));
+		changes = true;
+	}
+	
+	public int countTerrainType(int x, int y, int width, int height, boolean caveLayer, byte type) {
+		return getLayer(caveLayer).countTerrainType(originX + Math.max(x, 0), originY + Math.max(y, 0),
+				originX + Math.min(x + width, mapWidth), originY + Math.min(y + height, mapHeight), type);
+	}
+	
+	/*
+	 * Labels and objects are sparse, so they are kept in a FeatureIndex per
+	 * layer rather than in the chunk planes, and saved in a record of their
+	 * own in the map file.
+	 */
+	
+	public MapLabel getLabel(int x, int y, boolean caveLayer) {
+		return getLayer(caveLayer).getLabels().get(originX + x, originY + y);
+	}
+	
+	/**
+	 * Pins a label to a tile, or removes the tile's label if null.
+	 */
+	public void setLabel(int x, int y, boolean caveLayer, MapLabel label) {
+		if (inBounds(x, y) || label == null) {
+			getLayer(caveLayer).getLabels().put(originX + x, originY + y, label);
+			featureChanges = true;
+		}
+	}
+	
+	/**
+	 * Type of the object at one of a tile's nine object spots, numbered
+	 * across and then down, or 0 if there is none.
+	 */
+	public byte getObjectType(int x, int y, boolean caveLayer, int loc) {
+		Byte type = getLayer(caveLayer).getObjects().get(objectX(x, loc), objectY(y, loc));
+		return type == null ? 0 : type;
+	}
+	
+	public void setObjectType(int x, int y, boolean caveLayer, int loc, byte type) {
+		if (inBounds(x, y) || type == 0) {
+			getLayer(caveLayer).getObjects().put(objectX(x, loc), objectY(y, loc), type == 0 ? null : type);
+			featureChanges = true;
+		}
+	}
+	
+	private int objectX(int x, int loc) {
+		return (originX + x) * OBJECTS_PER_SIDE + loc % OBJECTS_PER_SIDE;
+	}
+	
+	private int objectY(int y, int loc) {
+		return (originY + y) * OBJECTS_PER_SIDE + loc / OBJECTS_PER_SIDE;
+	}
+	
+	/**
+	 * The tile with a label nearest the given tile, no further than
+	 * maxDistance tiles, or null if there is none.
+	 */
+	public Point findNearestLabel(int x, int y, boolean caveLayer, int maxDistance) {
+		Point p = getLayer(caveLayer).getLabels().nearest(originX + x, originY + y, maxDistance);
+		if (p != null)
+			p.translate(-originX, -originY);
+		
+		return p;
+	}
+	
+	/**
+	 * The tile with an object nearest the given point, no further than
+	 * maxDistance tiles. The point and the result are in object spots, three
+	 * to a tile each way, so they say which spot the object is in.
+	 */
+	public Point findNearestObject(int objectX, int objectY, boolean caveLayer, int maxDistance) {
+		int ox = originX * OBJECTS_PER_SIDE, oy = originY * OBJECTS_PER_SIDE;
+		Point p = getLayer(caveLayer).getObjects().nearest(ox + objectX, oy + objectY, maxDistance * OBJECTS_PER_SIDE);
+		if (p != null)
+			p.translate(-ox, -oy);
+		
+		return p;
+	}
+	
+	/*
+	 * Fences sit on tile edges and are kept in their own planes, so fencing
+	 * a tile's south or east side never adds the tile next to it. Edge x,y
+	 * is the north edge of tile x,y, or its west edge if vertical; the map's
+	 * south and east borders are edges too. Like labels, fences are saved
+	 * in the map file's features record.
+	 */
+	
+	public boolean edgeInBounds(int x, int y, boolean vertical) {
+		return x >= 0 && y >= 0 && (vertical ? x <= mapWidth && y < mapHeight : x < mapWidth && y <= mapHeight);
+	}
+	
+	public byte getFence(int x, int y, boolean caveLayer, boolean vertical) {
+		return getLayer(caveLayer).getFences(vertical).get(originX + x, originY + y);
+	}
+	
+	public void setFence(int x, int y, boolean caveLayer, boolean vertical, byte type) {
+		fillFence(x, y, 1, caveLayer, vertical, type);
+	}
+	
+	/**
+	 * Sets a line of length edges from edge x,y, running east if horizontal
+	 * or south if vertical. Edges off the map are left alone.
+	 */
+	public void fillFence(int x, int y, int length, boolean caveLayer, boolean vertical, byte type) {
+		if (vertical) {
+			if (x < 0 || x > mapWidth)
+				return;
+			int y0 = Math.max(y, 0), y1 = Math.min(y + length, mapHeight);
+			if (y1 > y0) {
+				getLayer(caveLayer).getFences(true).fill(originX + x, originY + y0, y1 - y0, type);
+				featureChanges = true;
+			}
+		} else {
+			if (y < 0 || y > mapHeight)
+				return;
+			int x0 = Math.max(x, 0), x1 = Math.min(x + length, mapWidth);
+			if (x1 > x0) {
+				getLayer(caveLayer).getFences(false).fill(originX + x0, originY + y, x1 - x0, type);
+				featureChanges = true;
+			}
+		}
+	}
+	
+	/**
+	 * Copies a line of edges laid out as fillFence() sets them.
+	 */
+	public void getFences(int x, int y, int length, boolean caveLayer, boolean vertical, byte[] out, int offset) {
+		getLayer(caveLayer).getFences(vertical).get(originX + x, originY + y, length, out, offset);
+	}
+	
+	public int getTileCount() {
+		return surface.getTileCount() + cave.getTileCount();
+	}
+	
+	public int getChunkCount() {
+		return surface.getChunkCount() + cave.getChunkCount();
+	}
+	
+	/**
+	 * Rough heap footprint of the tiles held in memory, in bytes.
+	 */
+	public long getMemoryUsage() {
+		return surface.getMemoryUsage() + cave.getMemoryUsage();
+	}
+	
+	public boolean inBounds(int x, int y) {
+		return x >= 0 && x < mapWidth && y >= 0 && y < mapHeight;
 	}
 
 	public String getMapName() {
@@ -186,7 +519,7 @@ public class Map {
 	}
 
 	public void setMapWidth(int mapWidth) {
-		this.mapWidth = mapWidth;
+		setBounds(originX, originY, mapWidth, mapHeight);
 	}
 
 	public int getMapHeight() {
@@ -194,33 +527,48 @@ public class Map {
 	}
 
 	public void setMapHeight(int mapHeight) {
-		this.mapHeight = mapHeight;
+		setBounds(originX, originY, mapWidth, mapHeight);
 	}
 
+	/**
+	 * Storage coordinates of the map's logical 0,0 tile.
+	 */
+	public int getOriginX() {
+		return originX;
+	}
+	
+	public int getOriginY() {
+		return originY;
+	}
+	
+	/**
+	 * Resizes the map, with widthOffset and heightOffset columns and rows
+	 * added to (or, if negative, removed from) the west and north edges.
+	 * Tiles stay where they are stored and only the origin moves, so this
+	 * only touches the chunks along the edges of the map.
+	 */
 	public void resizeMap(int newWidth, int newHeight, int widthOffset, int heightOffset) {
-		setMapWidth(newWidth);
-		setMapHeight(newHeight);
-		
-		HashMap<Point, Tile> newMap = new HashMap<Point, Tile>();
-		
-		for (Point p : tileMap.keySet()) {
-			Tile t = tileMap.get(p);
-			short newX = (short) (p.getX() + widthOffset);
-			short newY = (short) (p.getY() + heightOffset);
-			
-			if (newX >= 0 && newX < getMapWidth() && newY >= 0 && newY < getMapHeight()) {
-				t.setX(newX);
-				t.setY(newY);
-				newMap.put(new Point(newX, newY), t);
-			}
-		}
-		
-		tileMap = newMap;
-		
+		setBounds(originX - widthOffset, originY - heightOffset, newWidth, newHeight);
 		changes = true;
 	}
 	
+	private void setBounds(int originX, int originY, int width, int height) {
+		this.originX = originX;
+		this.originY = originY;
+		this.mapWidth = width;
+		this.mapHeight = height;
+		surface.resize(originX, originY, originX + width, originY + height);
+		cave.resize(originX, originY, originX + width, originY + height);
+	}
+	
 	public boolean hasChanges() {
-		return changes;
+		return changes || featureChanges || surface.hasDirtyChunks() || cave.hasDirtyChunks();
+	}
+	
+	/**
+	 * Whether labels, objects or fences have changed since the last save.
+	 */
+	public boolean hasFeatureChanges() {
+		return featureChanges;
 	}
 }
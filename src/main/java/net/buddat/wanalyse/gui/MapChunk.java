@@ -0,0 +1,404 @@
+package net.buddat.wanalyse.gui;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A square block of tiles stored as parallel primitive planes, one array per
+ * tile attribute. Chunks are only allocated by {@link Map} once a tile inside
+ * them is touched, and the height and overlay planes are only allocated once
+ * something other than the default is written to them.
+ */
+public class MapChunk {
+
+	public static final int SHIFT = 6;
+	public static final int SIZE = 1 << SHIFT;
+	public static final int MASK = SIZE - 1;
+	public static final int AREA = SIZE * SIZE;
+	
+	/*
+	 * Largest chunk record in a map file: flags and tile count, presence
+	 * bits, then the terrain, height and overlay planes. Records are appended
+	 * rather than rewritten in place, so the height and overlay planes are
+	 * only stored when the flags say the chunk has them. Files before version
+	 * 3 reserve both planes in every record, making each this size.
+	 */
+	public static final int MAX_RECORD_SIZE = 8 + SIZE * 8 + AREA + AREA * 2 + AREA * 4;
+	
+	private static final int HAS_HEIGHT = 1, HAS_OVERLAY = 2;
+	
+	private static final AtomicLong VERSIONS = new AtomicLong();
+
+	/* One bit per tile, one long per row of the chunk. */
+	private final long[] present = new long[SIZE];
+	private final byte[] terrain = new byte[AREA];
+	private short[] height;
+	private int[] overlay;
+	
+	private int tileCount;
+	
+	/*
+	 * Number of cells holding each terrain id, tile or no tile, kept up to
+	 * date on every write so whole chunks can be counted without a scan.
+	 */
+	private final int[] terrainCounts = new int[256];
+	
+	/*
+	 * Set once the chunk is referenced by a snapshot. Shared chunks are never
+	 * written to again; the layer copies them first.
+	 */
+	private boolean shared;
+	
+	/*
+	 * Stamp taken from a global counter whenever the chunk's contents change,
+	 * so no two different contents ever share a version. Copies keep it.
+	 */
+	private long version = VERSIONS.incrementAndGet();
+	
+	public MapChunk() {
+		terrainCounts[0] = AREA;
+	}
+	
+	public static int index(int localX, int localY) {
+		return (localY << SHIFT) | localX;
+	}
+	
+	/**
+	 * Packs chunk coordinates into one long, for maps of sparse chunks.
+	 */
+	public static long key(int chunkX, int chunkY) {
+		return ((long) chunkY << 32) | (chunkX & 0xFFFFFFFFL);
+	}
+	
+	public static int keyX(long key) {
+		return (int) key;
+	}
+	
+	public static int keyY(long key) {
+		return (int) (key >> 32);
+	}
+	
+	public boolean hasTile(int localX, int localY) {
+		return (present[localY] & (1L << localX)) != 0;
+	}
+	
+	public void addTile(int localX, int localY) {
+		long bit = 1L << localX;
+		if ((present[localY] & bit) == 0) {
+			present[localY] |= bit;
+			tileCount++;
+			touch();
+		}
+	}
+	
+	public void removeTile(int localX, int localY) {
+		long bit = 1L << localX;
+		if ((present[localY] & bit) != 0) {
+			present[localY] &= ~bit;
+			tileCount--;
+			touch();
+			
+			int i = index(localX, localY);
+			terrainCounts[terrain[i] & 0xFF]--;
+			terrainCounts[0]++;
+			terrain[i] = 0;
+			if (height != null)
+				height[i] = 0;
+			if (overlay != null)
+				overlay[i] = Tile.NULL_COLOUR;
+		}
+	}
+	
+	public byte getTerrainType(int localX, int localY) {
+		return terrain[index(localX, localY)];
+	}
+	
+	public void setTerrainType(int localX, int localY, byte type) {
+		int i = index(localX, localY);
+		terrainCounts[terrain[i] & 0xFF]--;
+		terrainCounts[type & 0xFF]++;
+		terrain[i] = type;
+		touch();
+	}
+	
+	public short getHeight(int localX, int localY) {
+		return height == null ? 0 : height[index(localX, localY)];
+	}
+	
+	public void setHeight(int localX, int localY, short h) {
+		if (height == null) {
+			if (h == 0)
+				return;
+			height = new short[AREA];
+		}
+		height[index(localX, localY)] = h;
+		touch();
+	}
+	
+	public int getOverlayColor(int localX, int localY) {
+		return overlay == null ? Tile.NULL_COLOUR : overlay[index(localX, localY)];
+	}
+	
+	public void setOverlayColor(int localX, int localY, int argb) {
+		if (overlay == null) {
+			if (argb == Tile.NULL_COLOUR)
+				return;
+			overlay = new int[AREA];
+		}
+		overlay[index(localX, localY)] = argb;
+		touch();
+	}
+	
+	/**
+	 * Adds every tile in the given chunk local rectangle and sets its terrain,
+	 * one row at a time.
+	 */
+	public void fillTerrainType(int localX, int localY, int width, int height, byte type) {
+		long rowBits = (width == SIZE ? -1L : ((1L << width) - 1)) << localX;
+		
+		for (int y = localY; y < localY + height; y++) {
+			tileCount += Long.bitCount(rowBits & ~present[y]);
+			present[y] |= rowBits;
+			
+			int start = index(localX, y);
+			replaceTerrain(start, width, type);
+		}
+		touch();
+	}
+	
+	/**
+	 * Adds every tile in the given chunk local rectangle and sets its overlay
+	 * colour, one row at a time.
+	 */
+	public void fillOverlayColor(int localX, int localY, int width, int height, int argb) {
+		long rowBits = (width == SIZE ? -1L : ((1L << width) - 1)) << localX;
+		if (overlay == null && argb != Tile.NULL_COLOUR)
+			overlay = new int[AREA];
+		
+		for (int y = localY; y < localY + height; y++) {
+			tileCount += Long.bitCount(rowBits & ~present[y]);
+			present[y] |= rowBits;
+			
+			if (overlay != null) {
+				int start = index(localX, y);
+				Arrays.fill(overlay, start, start + width, argb);
+			}
+		}
+		touch();
+	}
+	
+	/**
+	 * Whether any tile in the given chunk local rectangle exists.
+	 */
+	public boolean hasTiles(int localX, int localY, int width, int height) {
+		long rowBits = (width == SIZE ? -1L : ((1L << width) - 1)) << localX;
+		for (int y = localY; y < localY + height; y++)
+			if ((present[y] & rowBits) != 0)
+				return true;
+		
+		return false;
+	}
+	
+	/**
+	 * Removes every tile in the given chunk local rectangle.
+	 */
+	public void removeTiles(int localX, int localY, int width, int height) {
+		long rowBits = (width == SIZE ? -1L : ((1L << width) - 1)) << localX;
+		
+		for (int y = localY; y < localY + height; y++) {
+			tileCount -= Long.bitCount(rowBits & present[y]);
+			present[y] &= ~rowBits;
+			
+			int start = index(localX, y);
+			replaceTerrain(start, width, (byte) 0);
+			if (this.height != null)
+				Arrays.fill(this.height, start, start + width, (short) 0);
+			if (overlay != null)
+				Arrays.fill(overlay, start, start + width, Tile.NULL_COLOUR);
+		}
+		touch();
+	}
+	
+	private void replaceTerrain(int start, int length, byte type) {
+		for (int i = start; i < start + length; i++)
+			terrainCounts[terrain[i] & 0xFF]--;
+		terrainCounts[type & 0xFF] += length;
+		Arrays.fill(terrain, start, start + length, type);
+	}
+	
+	public int countTerrainType(int localX, int localY, int width, int height, byte type) {
+		if (width == SIZE && height == SIZE)
+			return terrainCounts[type & 0xFF];
+		
+		int count = 0;
+		for (int y = localY; y < localY + height; y++) {
+			int start = index(localX, y);
+			for (int i = start; i < start + width; i++)
+				if (terrain[i] == type)
+					count++;
+		}
+		
+		return count;
+	}
+	
+	public void copyTile(MapChunk from, int fromX, int fromY, int localX, int localY) {
+		addTile(localX, localY);
+		setTerrainType(localX, localY, from.getTerrainType(fromX, fromY));
+		setHeight(localX, localY, from.getHeight(fromX, fromY));
+		setOverlayColor(localX, localY, from.getOverlayColor(fromX, fromY));
+	}
+	
+	/*
+	 * Raw planes for bulk readers such as the renderer. The optional planes
+	 * may be null when nothing has been written to them yet.
+	 */
+	
+	byte[] getTerrainPlane() {
+		return terrain;
+	}
+	
+	short[] getHeightPlane() {
+		return height;
+	}
+	
+	int[] getOverlayPlane() {
+		return overlay;
+	}
+	
+	long[] getPresenceBits() {
+		return present;
+	}
+	
+	/**
+	 * Size of the record {@link #write(ByteBuffer)} writes for this chunk.
+	 */
+	int getRecordSize() {
+		return getRecordSize(getFlags());
+	}
+	
+	/**
+	 * Size of a record from the flags it starts with.
+	 */
+	static int getRecordSize(int flags) {
+		return 8 + SIZE * 8 + AREA + ((flags & HAS_HEIGHT) != 0 ? AREA * 2 : 0) + ((flags & HAS_OVERLAY) != 0 ? AREA * 4 : 0);
+	}
+	
+	private int getFlags() {
+		return (height != null ? HAS_HEIGHT : 0) | (overlay != null ? HAS_OVERLAY : 0);
+	}
+	
+	/**
+	 * Writes this chunk as one record at the buffer's position.
+	 */
+	void write(ByteBuffer buf) {
+		int start = buf.position();
+		
+		buf.putInt(getFlags()).putInt(tileCount);
+		buf.asLongBuffer().put(present);
+		buf.position(start + 8 + SIZE * 8);
+		buf.put(terrain);
+		if (height != null) {
+			buf.asShortBuffer().put(height);
+			buf.position(buf.position() + AREA * 2);
+		}
+		if (overlay != null) {
+			buf.asIntBuffer().put(overlay);
+			buf.position(buf.position() + AREA * 4);
+		}
+	}
+	
+	/**
+	 * Reads one record from the buffer's position. Records that aren't packed
+	 * have room for every plane, as files before version 3 wrote them.
+	 */
+	static MapChunk read(ByteBuffer buf, boolean packed) {
+		int start = buf.position();
+		MapChunk c = new MapChunk();
+		
+		int flags = buf.getInt();
+		c.tileCount = buf.getInt();
+		buf.asLongBuffer().get(c.present);
+		buf.position(start + 8 + SIZE * 8);
+		buf.get(c.terrain);
+		c.terrainCounts[0] = 0;
+		for (byte t : c.terrain)
+			c.terrainCounts[t & 0xFF]++;
+		if ((flags & HAS_HEIGHT) != 0) {
+			c.height = new short[AREA];
+			buf.asShortBuffer().get(c.height);
+		}
+		if ((flags & HAS_HEIGHT) != 0 || !packed)
+			buf.position(buf.position() + AREA * 2);
+		if ((flags & HAS_OVERLAY) != 0) {
+			c.overlay = new int[AREA];
+			buf.asIntBuffer().get(c.overlay);
+		}
+		buf.position(start + (packed ? getRecordSize(flags) : MAX_RECORD_SIZE));
+		
+		return c;
+	}
+	
+	private void touch() {
+		version = VERSIONS.incrementAndGet();
+	}
+	
+	public long getVersion() {
+		return version;
+	}
+	
+	public boolean isShared() {
+		return shared;
+	}
+	
+	public void setShared() {
+		shared = true;
+	}
+	
+	/**
+	 * Returns an unshared deep copy of this chunk.
+	 */
+	public MapChunk copy() {
+		MapChunk c = new MapChunk();
+		System.arraycopy(present, 0, c.present, 0, SIZE);
+		System.arraycopy(terrain, 0, c.terrain, 0, AREA);
+		System.arraycopy(terrainCounts, 0, c.terrainCounts, 0, terrainCounts.length);
+		c.height = height == null ? null : height.clone();
+		c.overlay = overlay == null ? null : overlay.clone();
+		c.tileCount = tileCount;
+		c.version = version;
+		
+		return c;
+	}
+	
+	public int getTileCount() {
+		return tileCount;
+	}
+	
+	public boolean isEmpty() {
+		return tileCount == 0;
+	}
+	
+	/**
+	 * Number of cells in the chunk holding a terrain id, tile or no tile.
+	 */
+	public int getTerrainCount(byte type) {
+		return terrainCounts[type & 0xFF];
+	}
+	
+	/**
+	 * Adds the number of cells holding each terrain id to the array, indexed
+	 * by unsigned id.
+	 */
+	public void addTerrainCounts(int[] counts) {
+		for (int i = 0; i < terrainCounts.length; i++)
+			counts[i] += terrainCounts[i];
+	}
+	
+	/**
+	 * Rough heap footprint of the chunk and its planes, in bytes.
+	 */
+	public long getMemoryUsage() {
+		return 96 + SIZE * 8 + AREA + 1024 + (height != null ? AREA * 2 : 0) + (overlay != null ? AREA * 4 : 0);
+	}
+}
@@ -0,0 +1,163 @@
+package net.buddat.wanalyse.gui;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import net.buddat.wanalyse.analyse.LikelihoodMap;
+
+/**
+ * Exports a map layer to a PNG of any size. The map is rendered one row of
+ * tiles at a time into a strip of pixels and streamed straight into the encoder,
+ * so memory use depends on the map's width and the tile size, never on the
+ * map's height.
+ * 
+ * Exports are meant to run off the EDT. Give the exporter a snapshot of the
+ * map if it may be edited while exporting. Nothing here needs a display, so
+ * exports also run headless.
+ */
+public class MapExporter {
+
+	public interface ExportListener {
+		
+		/**
+		 * Called after each strip of pixel rows has been written.
+		 */
+		public void exportProgress(MapExporter exporter, int rowsDone, int rowsTotal);
+		
+		/**
+		 * Called once a background export has finished, complete or
+		 * cancelled.
+		 */
+		public void exportDone(MapExporter exporter, File file, boolean complete);
+		
+		/**
+		 * Called if a background export could not be written. The partial
+		 * file has been deleted.
+		 */
+		public void exportFailed(MapExporter exporter, File file, IOException e);
+	}
+	
+	private final Map map;
+	private final boolean cave;
+	private final int tileSize;
+	private LikelihoodMap heatmap;
+	
+	private volatile boolean cancelled;
+	
+	public MapExporter(Map map, boolean cave, int tileSize) {
+		if (tileSize < 1)
+			throw new IllegalArgumentException("Tile size must be at least 1: " + tileSize);
+		
+		this.map = map;
+		this.cave = cave;
+		this.tileSize = tileSize;
+	}
+	
+	/**
+	 * Draws a vein likelihood heatmap over the tiles, or none if null. It
+	 * must be up to date.
+	 */
+	public void setHeatmap(LikelihoodMap heatmap) {
+		this.heatmap = heatmap;
+	}
+	
+	/**
+	 * Writes the PNG on a background thread, telling the listener when it has
+	 * finished or failed. Listener calls come from that thread.
+	 */
+	public void start(final File file, final ExportListener listener) {
+		Thread t = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					listener.exportDone(MapExporter.this, file, exportPng(file, listener));
+				} catch (IOException e) {
+					file.delete();
+					listener.exportFailed(MapExporter.this, file, e);
+				}
+			}
+		}, "WAnalyse export");
+		t.setDaemon(true);
+		t.start();
+	}
+	
+	/**
+	 * Writes the PNG. Returns false, having deleted the partial file, if the
+	 * export was cancelled.
+	 */
+	public boolean exportPng(File file, ExportListener listener) throws IOException {
+		MapLayer layer = map.getLayer(cave);
+		int width = map.getMapWidth() * tileSize;
+		int height = map.getMapHeight() * tileSize;
+		
+		int[] pixels = new int[width * tileSize];
+		
+		PngStreamWriter png = new PngStreamWriter(new BufferedOutputStream(new FileOutputStream(file)), width, height);
+		boolean complete = false;
+		try {
+			for (int tileY = 0; tileY < map.getMapHeight() && !cancelled; tileY++) {
+				TileRenderer.render(pixels, width, layer, map.getOriginX(), map.getOriginY() + tileY,
+						map.getMapWidth(), 1, tileSize);
+				if (heatmap != null)
+					renderHeatmap(pixels, width, map.getOriginY() + tileY);
+				
+				for (int y = 0; y < tileSize; y++)
+					png.writeRow(pixels, y * width);
+				
+				if (listener != null)
+					listener.exportProgress(this, (tileY + 1) * tileSize, height);
+			}
+			complete = !cancelled;
+		} finally {
+			try {
+				if (complete)
+					png.close();
+				else
+					closeQuietly(png);
+			} finally {
+				if (!complete)
+					file.delete();
+			}
+		}
+		
+		return complete;
+	}
+	
+	/*
+	 * Blends the heatmap over one rendered row of tiles, grid lines aside.
+	 */
+	private void renderHeatmap(int[] pixels, int width, int storageY) {
+		int originX = map.getOriginX();
+		int grid = tileSize < TileRenderer.MIN_GRID_SIZE ? 0 : 1;
+		
+		for (int x = 0; x < map.getMapWidth(); x++) {
+			int color = heatmap.getColor(heatmap.getScore(originX + x, storageY));
+			if (color == 0)
+				continue;
+			
+			for (int y = grid; y < tileSize; y++) {
+				int row = y * width + x * tileSize;
+				for (int p = row + grid; p < row + tileSize; p++)
+					pixels[p] = TileRenderer.blend(pixels[p], color);
+			}
+		}
+	}
+	
+	private static void closeQuietly(PngStreamWriter png) {
+		try {
+			png.close();
+		} catch (IOException e) {
+			/* Incomplete by design, the file is about to be deleted. */
+		}
+	}
+	
+	public void cancel() {
+		cancelled = true;
+	}
+	
+	public boolean isCancelled() {
+		return cancelled;
+	}
+}
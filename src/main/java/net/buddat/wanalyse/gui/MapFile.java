@@ -0,0 +1,682 @@
+package net.buddat.wanalyse.gui;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Binary map file, read through a memory mapping so that opening a map only
+ * touches the header and index, and each chunk is paged in when a layer first
+ * asks for it.
+ *
+ * Layout:
+ * <pre>
+ * header      HEADER_SIZE bytes, see the field offsets below
+ * index       one long per chunk slot per layer, the offset of the slot's
+ *             record or 0 if the chunk is empty. Slots are in storage
+ *             coordinates, starting from the chunk holding the map's origin.
+ *             From version 4 one more long follows, the offset of the
+ *             features record or 0 if the map has no features
+ * records     one per stored chunk, holding only the planes the chunk
+ *             has. Before version 3 every record was
+ *             MapChunk.MAX_RECORD_SIZE bytes, with room for all planes
+ * features    the labels, objects and fences of both layers, see
+ *             FeatureRecord
+ * </pre>
+ *
+ * Incremental saves append the changed records and a fresh index to the end
+ * of the file, then switch the header over to the new index with a single
+ * write. A crash part way through leaves the old index, and so the old map,
+ * intact. The features record is only written again when the features have
+ * changed. The bytes left behind are counted in the header and reclaimed by a
+ * full rewrite once they outweigh the live data.
+ *
+ * A full rewrite writes a new file next to the old one and renames it over
+ * the old one. Windows refuses to replace a file while any mapping of it is
+ * alive, and a mapping only goes away once it has been garbage collected, so
+ * there the rename fails for the file a map is paged in from. The map is then
+ * written whole to the end of its file instead, as a new generation committed
+ * by rewriting the header, and the old one is left as garbage. Garbage in such
+ * a file is reclaimed when it is next opened, before it is mapped.
+ */
+public class MapFile implements Closeable {
+
+	public static final String MAP_FILE_EXT = ".wam";
+
+	public static final int MAGIC = 0x57414D50;
+	public static final int VERSION = 4;
+	public static final int HEADER_SIZE = 256;
+	public static final int LAYER_COUNT = 2;
+
+	/*
+	 * Version 1 files have no origin fields and store tiles from 0,0.
+	 */
+	private static final int VERSION_ORIGIN = 2;
+	
+	/*
+	 * Version 3 packs records down to the planes their chunks have.
+	 */
+	private static final int VERSION_PACKED = 3;
+	
+	/*
+	 * Version 4 adds the features record.
+	 */
+	private static final int VERSION_FEATURES = 4;
+	
+	private static final int MAX_NAME_BYTES = 190;
+	private static final Charset NAME_CHARSET = Charset.forName("UTF-8");
+
+	/*
+	 * Header field offsets.
+	 */
+	private static final int H_MAGIC = 0, H_VERSION = 4, H_WIDTH = 8, H_HEIGHT = 12,
+			H_CHUNK_SHIFT = 16, H_LAYERS = 20, H_CHUNKS_WIDE = 24, H_CHUNKS_HIGH = 28,
+			H_RECORD_SIZE = 32, H_INDEX_OFFSET = 40, H_GARBAGE = 48, H_ORIGIN_X = 56, H_ORIGIN_Y = 60,
+			H_NAME = 64;
+
+	private final File file;
+	private final FileChannel channel;
+	private final MappedByteBuffer buffer;
+
+	private final String name;
+	private final int width, height, originX, originY;
+	private final int chunkX0, chunkY0, chunksWide, chunksHigh;
+	private final long indexOffset, garbage, featuresOffset;
+	private final int version;
+	private final boolean packed;
+	
+	/* Cleared once renaming over this file has failed, see the class comment. */
+	private boolean replaceable = true;
+
+	private MapFile(File file) throws IOException {
+		this.file = file;
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+
+		long size = channel.size();
+		if (size < HEADER_SIZE || size > Integer.MAX_VALUE) {
+			channel.close();
+			throw new IOException("Not a map file: " + file);
+		}
+
+		this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+		if (!isSupported(buffer)) {
+			channel.close();
+			throw new IOException("Unsupported map file: " + file);
+		}
+
+		width = buffer.getInt(H_WIDTH);
+		height = buffer.getInt(H_HEIGHT);
+		originX = buffer.getInt(H_VERSION) >= VERSION_ORIGIN ? buffer.getInt(H_ORIGIN_X) : 0;
+		originY = buffer.getInt(H_VERSION) >= VERSION_ORIGIN ? buffer.getInt(H_ORIGIN_Y) : 0;
+		chunkX0 = originX >> MapChunk.SHIFT;
+		chunkY0 = originY >> MapChunk.SHIFT;
+		chunksWide = buffer.getInt(H_CHUNKS_WIDE);
+		chunksHigh = buffer.getInt(H_CHUNKS_HIGH);
+		indexOffset = buffer.getLong(H_INDEX_OFFSET);
+		garbage = buffer.getLong(H_GARBAGE);
+		version = buffer.getInt(H_VERSION);
+		packed = version >= VERSION_PACKED;
+		featuresOffset = version >= VERSION_FEATURES
+				? buffer.getLong((int) (indexOffset + chunksWide * chunksHigh * LAYER_COUNT * 8L)) : 0;
+
+		name = readName(buffer);
+	}
+
+	/**
+	 * Opens a map file, first reclaiming its garbage if that outweighs the
+	 * live data.
+	 */
+	public static MapFile open(File file) throws IOException {
+		ByteBuffer header = readHeader(file);
+		if (isSupported(header) && header.getLong(H_GARBAGE) * 2 >= file.length()) {
+			try {
+				compact(file, header);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		
+		return new MapFile(file);
+	}
+	
+	private static boolean isSupported(ByteBuffer header) {
+		return header.getInt(H_MAGIC) == MAGIC && header.getInt(H_VERSION) <= VERSION
+				&& header.getInt(H_CHUNK_SHIFT) == MapChunk.SHIFT
+				&& header.getInt(H_RECORD_SIZE) == MapChunk.MAX_RECORD_SIZE;
+	}
+	
+	private static ByteBuffer readHeader(File file) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			if (!readFully(channel, header, 0))
+				throw new IOException("Not a map file: " + file);
+		} finally {
+			channel.close();
+		}
+		
+		return header;
+	}
+	
+	/**
+	 * Reads just the header of a map file, without mapping the file or
+	 * touching its chunks.
+	 */
+	public static MapInfo readInfo(File file) throws IOException {
+		ByteBuffer header = readHeader(file);
+		if (header.getInt(H_MAGIC) != MAGIC || header.getInt(H_VERSION) > VERSION)
+			throw new IOException("Unsupported map file: " + file);
+		
+		boolean hasOrigin = header.getInt(H_VERSION) >= VERSION_ORIGIN;
+		return new MapInfo(file, readName(header), header.getInt(H_WIDTH), header.getInt(H_HEIGHT),
+				hasOrigin ? header.getInt(H_ORIGIN_X) : 0, hasOrigin ? header.getInt(H_ORIGIN_Y) : 0);
+	}
+	
+	private static String readName(ByteBuffer header) {
+		byte[] nameBytes = new byte[Math.min(header.getShort(H_NAME), MAX_NAME_BYTES)];
+		ByteBuffer nameBuf = header.duplicate();
+		nameBuf.position(H_NAME + 2);
+		nameBuf.get(nameBytes);
+		
+		return new String(nameBytes, NAME_CHARSET);
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int getOriginX() {
+		return originX;
+	}
+	
+	public int getOriginY() {
+		return originY;
+	}
+	
+	public int getChunksWide() {
+		return chunksWide;
+	}
+
+	public int getChunksHigh() {
+		return chunksHigh;
+	}
+
+	/*
+	 * Chunk coordinates here are storage coordinates, as used by MapLayer.
+	 */
+	private long recordOffset(int layer, int chunkX, int chunkY) {
+		chunkX -= chunkX0;
+		chunkY -= chunkY0;
+		if (chunkX < 0 || chunkX >= chunksWide || chunkY < 0 || chunkY >= chunksHigh)
+			return 0;
+
+		int slot = (layer * chunksHigh + chunkY) * chunksWide + chunkX;
+		return buffer.getLong((int) (indexOffset + slot * 8L));
+	}
+
+	public boolean hasChunk(int layer, int chunkX, int chunkY) {
+		return recordOffset(layer, chunkX, chunkY) != 0;
+	}
+
+	/**
+	 * Number of tiles in a stored chunk, read from its record's header
+	 * without reading the chunk itself.
+	 */
+	public int readTileCount(int layer, int chunkX, int chunkY) {
+		long offset = recordOffset(layer, chunkX, chunkY);
+		return offset == 0 ? 0 : buffer.getInt((int) offset + 4);
+	}
+	
+	/**
+	 * Reads a chunk out of the mapping, or returns null if the file has
+	 * nothing stored for it.
+	 */
+	public MapChunk readChunk(int layer, int chunkX, int chunkY) {
+		long offset = recordOffset(layer, chunkX, chunkY);
+		if (offset == 0)
+			return null;
+
+		ByteBuffer record = buffer.duplicate();
+		record.position((int) offset);
+
+		return MapChunk.read(record, packed);
+	}
+
+	/**
+	 * Reads the labels, objects and fences stored in the file into a map's
+	 * layers.
+	 */
+	public void readFeatures(Map map) {
+		if (featuresOffset == 0)
+			return;
+		
+		ByteBuffer record = buffer.duplicate();
+		record.position((int) featuresOffset);
+		FeatureRecord.read(record, new MapLayer[] { map.getLayer(false), map.getLayer(true) });
+	}
+	
+	/*
+	 * Bytes taken by the features record, or 0 if there is none.
+	 */
+	private long getFeaturesSize() {
+		return featuresOffset == 0 ? 0 : 4 + buffer.getInt((int) featuresOffset);
+	}
+	
+	/**
+	 * Bytes in the file no longer reachable from the index.
+	 */
+	public long getGarbage() {
+		return garbage;
+	}
+	
+	public long getFileSize() {
+		return buffer.capacity();
+	}
+	
+	/**
+	 * Whether the map can be saved into this file by writing only its dirty
+	 * chunks. Files in an older format are always rewritten whole. Garbage
+	 * only forces a rewrite while the file can still be replaced.
+	 */
+	public boolean canWriteChanges(Map map) {
+		return version >= VERSION_FEATURES && map.getMapWidth() == width && map.getMapHeight() == height
+				&& map.getOriginX() == originX && map.getOriginY() == originY
+				&& map.getLayer(false).getChunksWide() == chunksWide
+				&& map.getLayer(false).getChunksHigh() == chunksHigh
+				&& name.equals(map.getMapName())
+				&& (garbage * 2 < getFileSize() || !replaceable);
+	}
+	
+	/**
+	 * Whether a full rewrite can rename a new file over this one. False once
+	 * that has failed, as it does on Windows while the file is mapped.
+	 */
+	public boolean isReplaceable() {
+		return replaceable;
+	}
+	
+	/**
+	 * Appends the map's dirty chunks, its features if they have changed, and
+	 * a new index to this file and then commits them by repointing the header. The mapping held by this object
+	 * is closed, and a new one covering the grown file is returned.
+	 */
+	public MapFile writeChanges(Map map) throws IOException {
+		MapLayer[] layers = { map.getLayer(false), map.getLayer(true) };
+		int slots = chunksWide * chunksHigh;
+		
+		long[] index = new long[slots * LAYER_COUNT];
+		ByteBuffer oldIndex = buffer.duplicate();
+		oldIndex.position((int) indexOffset);
+		oldIndex.asLongBuffer().get(index);
+		
+		FileChannel out = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			long end = out.size();
+			long newGarbage = garbage + index.length * 8L + 8;
+			
+			ByteBuffer record = ByteBuffer.allocateDirect(MapChunk.MAX_RECORD_SIZE);
+			for (int layer = 0; layer < LAYER_COUNT; layer++) {
+				for (int slot = 0; slot < slots; slot++) {
+					int chunkX = chunkX0 + slot % chunksWide, chunkY = chunkY0 + slot / chunksWide;
+					if (!layers[layer].isDirty(chunkX, chunkY))
+						continue;
+					
+					int i = layer * slots + slot;
+					if (index[i] != 0)
+						newGarbage += MapChunk.getRecordSize(buffer.getInt((int) index[i]));
+					
+					MapChunk c = layers[layer].getChunk(chunkX, chunkY);
+					if (c == null) {
+						index[i] = 0;
+						continue;
+					}
+					
+					record.clear();
+					c.write(record);
+					record.flip();
+					index[i] = end;
+					end += record.remaining();
+					writeFully(out, record, index[i]);
+				}
+			}
+			
+			long features = featuresOffset;
+			if (map.hasFeatureChanges()) {
+				newGarbage += getFeaturesSize();
+				int size = writeFeatures(out, layers, end);
+				features = size == 0 ? 0 : end;
+				end += size;
+			}
+			
+			writeFully(out, indexBuffer(index, features), end);
+			out.force(false);
+			
+			ByteBuffer commit = ByteBuffer.allocate(16);
+			commit.putLong(end).putLong(newGarbage).flip();
+			writeFully(out, commit, H_INDEX_OFFSET);
+			out.force(false);
+		} finally {
+			out.close();
+		}
+		
+		return reopen();
+	}
+	
+	/**
+	 * Appends the whole map and a new index to this file and then commits
+	 * them by rewriting the header, which fits in one disk sector and so is
+	 * written whole. Everything before them becomes garbage. This is the full
+	 * rewrite for a file that can't be replaced; every chunk of the map must
+	 * already be resident. The mapping held by this object is closed, and a
+	 * new one covering the grown file is returned.
+	 */
+	public MapFile writeGeneration(Map map) throws IOException {
+		MapLayer[] layers = { map.getLayer(false), map.getLayer(true) };
+		int chunkX0 = layers[0].getChunkX0(), chunkY0 = layers[0].getChunkY0();
+		int chunksWide = layers[0].getChunksWide();
+		int chunksHigh = layers[0].getChunksHigh();
+		int slots = chunksWide * chunksHigh;
+		long[] index = new long[slots * LAYER_COUNT];
+		
+		FileChannel out = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			long start = out.size(), end = start;
+			
+			ByteBuffer record = ByteBuffer.allocateDirect(MapChunk.MAX_RECORD_SIZE);
+			for (int layer = 0; layer < LAYER_COUNT; layer++) {
+				for (int slot = 0; slot < slots; slot++) {
+					MapChunk c = layers[layer].getChunk(chunkX0 + slot % chunksWide, chunkY0 + slot / chunksWide);
+					if (c == null)
+						continue;
+					
+					record.clear();
+					c.write(record);
+					record.flip();
+					index[layer * slots + slot] = end;
+					end += record.remaining();
+					writeFully(out, record, index[layer * slots + slot]);
+				}
+			}
+			
+			int size = writeFeatures(out, layers, end);
+			long features = size == 0 ? 0 : end;
+			end += size;
+			
+			writeFully(out, indexBuffer(index, features), end);
+			out.force(false);
+			
+			ByteBuffer header = createHeader(map, chunksWide, chunksHigh, end);
+			header.putLong(H_GARBAGE, start - HEADER_SIZE);
+			writeFully(out, header, 0);
+			out.force(false);
+		} finally {
+			out.close();
+		}
+		
+		MapFile next = reopen();
+		next.replaceable = false;
+		return next;
+	}
+	
+	/*
+	 * Maps the file again after writing to it, without compacting it.
+	 */
+	private MapFile reopen() throws IOException {
+		close();
+		MapFile next = new MapFile(file);
+		next.replaceable = replaceable;
+		return next;
+	}
+	
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	/**
+	 * Writes a whole map, one chunk record at a time. Every chunk of the map
+	 * must already be resident. An existing file is replaced by renaming the
+	 * new one over it, so anything still mapping the old file keeps seeing it
+	 * intact. If the file can't be replaced, as on Windows while it is mapped,
+	 * it is left untouched and the error passed on.
+	 */
+	public static void write(Map map, File file) throws IOException {
+		if (!file.exists()) {
+			writeFile(map, file);
+			return;
+		}
+		
+		File replacement = new File(file.getPath() + ".new");
+		writeFile(map, replacement);
+		replace(replacement, file);
+	}
+	
+	private static void replace(File replacement, File file) throws IOException {
+		try {
+			Files.move(replacement.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			replacement.delete();
+			throw e;
+		}
+	}
+	
+	/*
+	 * Copies the live records of a file as they are into a new file, which
+	 * replaces the old one. This runs before the file is mapped, so it works
+	 * on Windows unless a mapping from earlier in the session is still alive,
+	 * in which case the file is left as it was.
+	 */
+	private static void compact(File file, ByteBuffer header) throws IOException {
+		boolean packed = header.getInt(H_VERSION) >= VERSION_PACKED;
+		boolean hasFeatures = header.getInt(H_VERSION) >= VERSION_FEATURES;
+		long[] index = new long[header.getInt(H_CHUNKS_WIDE) * header.getInt(H_CHUNKS_HIGH) * LAYER_COUNT
+				+ (hasFeatures ? 1 : 0)];
+		File replacement = new File(file.getPath() + ".new");
+		
+		FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			ByteBuffer indexBuf = ByteBuffer.allocate(index.length * 8);
+			if (!readFully(in, indexBuf, header.getLong(H_INDEX_OFFSET)))
+				throw new IOException("Truncated map file: " + file);
+			indexBuf.flip();
+			indexBuf.asLongBuffer().get(index);
+			
+			FileChannel out = FileChannel.open(replacement.toPath(), StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			try {
+				long end = HEADER_SIZE + index.length * 8L;
+				ByteBuffer record = ByteBuffer.allocateDirect(MapChunk.MAX_RECORD_SIZE);
+				int chunkSlots = hasFeatures ? index.length - 1 : index.length;
+				for (int i = 0; i < chunkSlots; i++) {
+					if (index[i] == 0)
+						continue;
+					
+					record.clear().limit(4);
+					if (!readFully(in, record, index[i]))
+						throw new IOException("Truncated map file: " + file);
+					record.clear().limit(packed ? MapChunk.getRecordSize(record.getInt(0)) : MapChunk.MAX_RECORD_SIZE);
+					if (!readFully(in, record, index[i]))
+						throw new IOException("Truncated map file: " + file);
+					record.flip();
+					index[i] = end;
+					end += record.remaining();
+					writeFully(out, record, index[i]);
+				}
+				
+				if (hasFeatures && index[chunkSlots] != 0) {
+					ByteBuffer length = ByteBuffer.allocate(4);
+					if (!readFully(in, length, index[chunkSlots]))
+						throw new IOException("Truncated map file: " + file);
+					ByteBuffer features = ByteBuffer.allocate(4 + length.getInt(0));
+					if (!readFully(in, features, index[chunkSlots]))
+						throw new IOException("Truncated map file: " + file);
+					features.flip();
+					index[chunkSlots] = end;
+					writeFully(out, features, end);
+				}
+				
+				indexBuf.clear();
+				indexBuf.asLongBuffer().put(index);
+				writeFully(out, indexBuf, HEADER_SIZE);
+				
+				ByteBuffer newHeader = header.duplicate();
+				newHeader.putLong(H_INDEX_OFFSET, HEADER_SIZE).putLong(H_GARBAGE, 0).clear();
+				writeFully(out, newHeader, 0);
+				out.force(false);
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			replacement.delete();
+			throw e;
+		} finally {
+			in.close();
+		}
+		
+		try {
+			replace(replacement, file);
+		} catch (IOException e) {
+			/* Still mapped; try again next time. */
+		}
+	}
+	
+	private static void writeFile(Map map, File file) throws IOException {
+		MapLayer[] layers = { map.getLayer(false), map.getLayer(true) };
+		int chunkX0 = layers[0].getChunkX0(), chunkY0 = layers[0].getChunkY0();
+		int chunksWide = layers[0].getChunksWide();
+		int chunksHigh = layers[0].getChunksHigh();
+		int slots = chunksWide * chunksHigh;
+
+		long indexOffset = HEADER_SIZE;
+		long[] index = new long[slots * LAYER_COUNT];
+		long offset = indexOffset + index.length * 8L + 8;
+
+		for (int layer = 0; layer < LAYER_COUNT; layer++) {
+			for (int slot = 0; slot < slots; slot++) {
+				MapChunk c = layers[layer].getChunk(chunkX0 + slot % chunksWide, chunkY0 + slot / chunksWide);
+				if (c != null) {
+					index[layer * slots + slot] = offset;
+					offset += c.getRecordSize();
+				}
+			}
+		}
+		
+		ByteBuffer features = FeatureRecord.write(layers);
+
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			ByteBuffer header = createHeader(map, chunksWide, chunksHigh, indexOffset);
+			writeFully(channel, header, 0);
+
+			writeFully(channel, indexBuffer(index, features == null ? 0 : offset), indexOffset);
+
+			ByteBuffer record = ByteBuffer.allocateDirect(MapChunk.MAX_RECORD_SIZE);
+			for (int layer = 0; layer < LAYER_COUNT; layer++) {
+				for (int slot = 0; slot < slots; slot++) {
+					if (index[layer * slots + slot] == 0)
+						continue;
+
+					record.clear();
+					layers[layer].getChunk(chunkX0 + slot % chunksWide, chunkY0 + slot / chunksWide).write(record);
+					record.flip();
+					writeFully(channel, record, index[layer * slots + slot]);
+				}
+			}
+			
+			if (features != null)
+				writeFully(channel, features, offset);
+		} finally {
+			channel.close();
+		}
+	}
+
+	/*
+	 * The chunk index followed by the offset of the features record.
+	 */
+	private static ByteBuffer indexBuffer(long[] index, long featuresOffset) {
+		ByteBuffer buf = ByteBuffer.allocate(index.length * 8 + 8);
+		buf.asLongBuffer().put(index).put(featuresOffset);
+		return buf;
+	}
+	
+	/*
+	 * Writes the features record at the given position, returning its size,
+	 * or 0 if there are no features to write.
+	 */
+	private static int writeFeatures(FileChannel out, MapLayer[] layers, long position) throws IOException {
+		ByteBuffer record = FeatureRecord.write(layers);
+		if (record == null)
+			return 0;
+		
+		int size = record.remaining();
+		writeFully(out, record, position);
+		return size;
+	}
+	
+	private static ByteBuffer createHeader(Map map, int chunksWide, int chunksHigh, long indexOffset) {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(H_MAGIC, MAGIC);
+		header.putInt(H_VERSION, VERSION);
+		header.putInt(H_WIDTH, map.getMapWidth());
+		header.putInt(H_HEIGHT, map.getMapHeight());
+		header.putInt(H_ORIGIN_X, map.getOriginX());
+		header.putInt(H_ORIGIN_Y, map.getOriginY());
+		header.putInt(H_CHUNK_SHIFT, MapChunk.SHIFT);
+		header.putInt(H_LAYERS, LAYER_COUNT);
+		header.putInt(H_CHUNKS_WIDE, chunksWide);
+		header.putInt(H_CHUNKS_HIGH, chunksHigh);
+		header.putInt(H_RECORD_SIZE, MapChunk.MAX_RECORD_SIZE);
+		header.putLong(H_INDEX_OFFSET, indexOffset);
+
+		byte[] nameBytes = map.getMapName() == null ? new byte[0] : map.getMapName().getBytes(NAME_CHARSET);
+		int nameLength = Math.min(nameBytes.length, MAX_NAME_BYTES);
+		header.putShort(H_NAME, (short) nameLength);
+		header.position(H_NAME + 2);
+		header.put(nameBytes, 0, nameLength);
+		header.clear();
+
+		return header;
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+		while (buf.hasRemaining())
+			position += channel.write(buf, position);
+	}
+	
+	/*
+	 * Fills the buffer from the given position, returning false if the file
+	 * ends first.
+	 */
+	private static boolean readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+		while (buf.hasRemaining()) {
+			int read = channel.read(buf, position);
+			if (read < 0)
+				return false;
+			position += read;
+		}
+		
+		return true;
+	}
+}
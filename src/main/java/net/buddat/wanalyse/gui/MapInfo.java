@@ -0,0 +1,57 @@
+package net.buddat.wanalyse.gui;
+
+import java.io.File;
+
+/**
+ * What a map file's header says about the map, read without loading it.
+ */
+public class MapInfo {
+
+	private final File file;
+	private final String name;
+	private final int width, height, originX, originY;
+	private final long lastModified;
+	
+	public MapInfo(File file, String name, int width, int height, int originX, int originY) {
+		this.file = file;
+		this.name = name;
+		this.width = width;
+		this.height = height;
+		this.originX = originX;
+		this.originY = originY;
+		this.lastModified = file.lastModified();
+	}
+	
+	public File getFile() {
+		return file;
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	public int getWidth() {
+		return width;
+	}
+	
+	public int getHeight() {
+		return height;
+	}
+	
+	public int getOriginX() {
+		return originX;
+	}
+	
+	public int getOriginY() {
+		return originY;
+	}
+	
+	public long getLastModified() {
+		return lastModified;
+	}
+	
+	@Override
+	public String toString() {
+		return name + " (" + width + "x" + height + ")";
+	}
+}
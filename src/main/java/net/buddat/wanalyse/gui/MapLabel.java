@@ -0,0 +1,28 @@
+package net.buddat.wanalyse.gui;
+
+/**
+ * A short piece of text pinned to a tile.
+ */
+public class MapLabel {
+
+	private final String text;
+	private final int color;
+	
+	public MapLabel(String text, int argb) {
+		this.text = text;
+		this.color = argb;
+	}
+	
+	public String getText() {
+		return text;
+	}
+	
+	public int getColor() {
+		return color;
+	}
+	
+	@Override
+	public String toString() {
+		return text;
+	}
+}
@@ -0,0 +1,520 @@
+package net.buddat.wanalyse.gui;
+
+import java.util.Arrays;
+
+/**
+ * One layer (surface or cave) of a {@link Map}. Holds its own grid of
+ * {@link MapChunk}s, allocated only for the parts of the layer that have
+ * actually been surveyed.
+ * 
+ * Layers work in storage coordinates, which never change for a tile once it
+ * is stored. The map's logical coordinates are offset from them by the map's
+ * origin, so resizing the map only moves the origin and adds or drops chunks
+ * at the edges of the grid. The grid can start at a negative chunk.
+ * 
+ * Coordinates outside the chunk grid read as empty and are ignored on write;
+ * checking them against the map's size is left to {@link Map}.
+ */
+public class MapLayer {
+
+	private final boolean cave;
+	
+	private MapChunk[] chunks = new MapChunk[0];
+	private int chunkX0, chunkY0, chunksWide, chunksHigh;
+	
+	/*
+	 * File the layer's chunks are paged in from, and one bit per chunk slot
+	 * recording whether the file has been consulted for that slot yet.
+	 */
+	private MapFile source;
+	private long[] loaded;
+	
+	/* One bit per chunk slot changed since the layer was last saved. */
+	private long[] dirty = new long[0];
+	
+	/*
+	 * Sparse features and fences, in storage coordinates. Objects use a grid
+	 * three times as fine as the tiles. Snapshots get copies of them.
+	 */
+	private FeatureIndex<MapLabel> labels;
+	private FeatureIndex<Byte> objects;
+	private EdgePlane horizontalFences, verticalFences;
+	
+	public MapLayer(boolean cave, int width, int height) {
+		this.cave = cave;
+		this.labels = new FeatureIndex<MapLabel>();
+		this.objects = new FeatureIndex<Byte>();
+		this.horizontalFences = new EdgePlane(false);
+		this.verticalFences = new EdgePlane(true);
+		resize(0, 0, width, height);
+	}
+	
+	/**
+	 * Creates a copy-on-write snapshot of another layer. Only the chunk table
+	 * and the sparse features are copied; the chunks themselves are shared
+	 * and marked so that the original layer copies any of them before writing
+	 * to it again.
+	 */
+	public MapLayer(MapLayer layer) {
+		this.cave = layer.cave;
+		this.chunks = layer.chunks.clone();
+		this.chunkX0 = layer.chunkX0;
+		this.chunkY0 = layer.chunkY0;
+		this.chunksWide = layer.chunksWide;
+		this.chunksHigh = layer.chunksHigh;
+		this.source = layer.source;
+		this.loaded = layer.loaded == null ? null : layer.loaded.clone();
+		this.dirty = layer.dirty.clone();
+		this.labels = new FeatureIndex<MapLabel>(layer.labels);
+		this.objects = new FeatureIndex<Byte>(layer.objects);
+		this.horizontalFences = new EdgePlane(layer.horizontalFences);
+		this.verticalFences = new EdgePlane(layer.verticalFences);
+		
+		for (MapChunk c : chunks)
+			if (c != null)
+				c.setShared();
+	}
+	
+	public boolean isCave() {
+		return cave;
+	}
+	
+	/**
+	 * Storage coordinates of the first chunk in the grid.
+	 */
+	public int getChunkX0() {
+		return chunkX0;
+	}
+	
+	public int getChunkY0() {
+		return chunkY0;
+	}
+	
+	public int getChunksWide() {
+		return chunksWide;
+	}
+	
+	public int getChunksHigh() {
+		return chunksHigh;
+	}
+	
+	public FeatureIndex<MapLabel> getLabels() {
+		return labels;
+	}
+	
+	public FeatureIndex<Byte> getObjects() {
+		return objects;
+	}
+	
+	public EdgePlane getFences(boolean vertical) {
+		return vertical ? verticalFences : horizontalFences;
+	}
+	
+	/*
+	 * Grid slot of a chunk, or -1 if it lies outside the grid.
+	 */
+	private int slot(int chunkX, int chunkY) {
+		int sx = chunkX - chunkX0, sy = chunkY - chunkY0;
+		if (sx < 0 || sx >= chunksWide || sy < 0 || sy >= chunksHigh)
+			return -1;
+		
+		return sy * chunksWide + sx;
+	}
+	
+	public MapChunk getChunk(int chunkX, int chunkY) {
+		int index = slot(chunkX, chunkY);
+		if (index < 0)
+			return null;
+		
+		MapChunk c = chunks[index];
+		if (c == null && source != null)
+			c = loadChunk(index, chunkX, chunkY);
+		
+		return c;
+	}
+	
+	private MapChunk loadChunk(int index, int chunkX, int chunkY) {
+		long bit = 1L << index;
+		if ((loaded[index >> 6] & bit) != 0)
+			return null;
+		
+		loaded[index >> 6] |= bit;
+		chunks[index] = source.readChunk(cave ? 1 : 0, chunkX, chunkY);
+		
+		return chunks[index];
+	}
+	
+	/**
+	 * Backs this layer with a map file. Chunks are read from it the first
+	 * time they are asked for.
+	 */
+	public void setSource(MapFile source) {
+		this.source = source;
+		this.loaded = new long[(chunks.length + 63) >> 6];
+		clearDirty();
+	}
+	
+	/**
+	 * Points this layer at a file that now holds everything the layer has in
+	 * memory, keeping track of which chunks are still to be paged in.
+	 */
+	public void rebase(MapFile source) {
+		if (this.source == null) {
+			loaded = new long[(chunks.length + 63) >> 6];
+			Arrays.fill(loaded, -1L);
+		}
+		this.source = source;
+	}
+	
+	public MapFile getSource() {
+		return source;
+	}
+	
+	/**
+	 * Reads every chunk still left in the source file and detaches from it.
+	 */
+	public void loadAll() {
+		if (source == null)
+			return;
+		
+		for (int cy = chunkY0; cy < chunkY0 + chunksHigh; cy++)
+			for (int cx = chunkX0; cx < chunkX0 + chunksWide; cx++)
+				getChunk(cx, cy);
+		
+		source = null;
+		loaded = null;
+	}
+	
+	private MapChunk chunkAt(int x, int y) {
+		return getChunk(x >> MapChunk.SHIFT, y >> MapChunk.SHIFT);
+	}
+	
+	private MapChunk chunkForWrite(int x, int y) {
+		int chunkX = x >> MapChunk.SHIFT, chunkY = y >> MapChunk.SHIFT;
+		int index = slot(chunkX, chunkY);
+		if (index < 0)
+			return null;
+		
+		MapChunk c = getChunk(chunkX, chunkY);
+		if (c == null) {
+			c = new MapChunk();
+			chunks[index] = c;
+		} else if (c.isShared()) {
+			c = c.copy();
+			chunks[index] = c;
+		}
+		dirty[index >> 6] |= 1L << index;
+		
+		return c;
+	}
+	
+	public boolean isDirty(int chunkX, int chunkY) {
+		int index = slot(chunkX, chunkY);
+		return index >= 0 && (dirty[index >> 6] & (1L << index)) != 0;
+	}
+	
+	public boolean hasDirtyChunks() {
+		for (long bits : dirty)
+			if (bits != 0)
+				return true;
+		
+		return false;
+	}
+	
+	public void clearDirty() {
+		Arrays.fill(dirty, 0);
+	}
+	
+	/**
+	 * Marks dirty again every chunk that was dirty in the given snapshot of
+	 * this layer, for when saving that snapshot failed.
+	 */
+	public void restoreDirty(MapLayer snapshot) {
+		if (snapshot.dirty.length != dirty.length) {
+			Arrays.fill(dirty, -1L);
+			return;
+		}
+		
+		for (int i = 0; i < dirty.length; i++)
+			dirty[i] |= snapshot.dirty[i];
+	}
+	
+	public boolean hasTile(int x, int y) {
+		MapChunk c = chunkAt(x, y);
+		return c != null && c.hasTile(x & MapChunk.MASK, y & MapChunk.MASK);
+	}
+	
+	public void addTile(int x, int y) {
+		MapChunk c = chunkForWrite(x, y);
+		if (c != null)
+			c.addTile(x & MapChunk.MASK, y & MapChunk.MASK);
+	}
+	
+	public void removeTile(int x, int y) {
+		if (!hasTile(x, y))
+			return;
+		
+		int index = slot(x >> MapChunk.SHIFT, y >> MapChunk.SHIFT);
+		MapChunk c = chunkForWrite(x, y);
+		c.removeTile(x & MapChunk.MASK, y & MapChunk.MASK);
+		if (c.isEmpty())
+			chunks[index] = null;
+	}
+	
+	public byte getTerrainType(int x, int y) {
+		MapChunk c = chunkAt(x, y);
+		return c == null ? 0 : c.getTerrainType(x & MapChunk.MASK, y & MapChunk.MASK);
+	}
+	
+	public void setTerrainType(int x, int y, byte type) {
+		MapChunk c = chunkForWrite(x, y);
+		if (c == null)
+			return;
+		
+		c.addTile(x & MapChunk.MASK, y & MapChunk.MASK);
+		c.setTerrainType(x & MapChunk.MASK, y & MapChunk.MASK, type);
+	}
+	
+	public short getHeight(int x, int y) {
+		MapChunk c = chunkAt(x, y);
+		return c == null ? 0 : c.getHeight(x & MapChunk.MASK, y & MapChunk.MASK);
+	}
+	
+	public void setHeight(int x, int y, short height) {
+		MapChunk c = chunkForWrite(x, y);
+		if (c == null)
+			return;
+		
+		c.addTile(x & MapChunk.MASK, y & MapChunk.MASK);
+		c.setHeight(x & MapChunk.MASK, y & MapChunk.MASK, height);
+	}
+	
+	public int getOverlayColor(int x, int y) {
+		MapChunk c = chunkAt(x, y);
+		return c == null ? Tile.NULL_COLOUR : c.getOverlayColor(x & MapChunk.MASK, y & MapChunk.MASK);
+	}
+	
+	public void setOverlayColor(int x, int y, int argb) {
+		MapChunk c = chunkForWrite(x, y);
+		if (c == null)
+			return;
+		
+		c.addTile(x & MapChunk.MASK, y & MapChunk.MASK);
+		c.setOverlayColor(x & MapChunk.MASK, y & MapChunk.MASK, argb);
+	}
+	
+	/**
+	 * Copies one tile, all attributes included, from another layer. Nothing
+	 * is allocated here if the source tile does not exist.
+	 */
+	public void copyTile(MapLayer from, int fromX, int fromY, int x, int y) {
+		MapChunk src = from.chunkAt(fromX, fromY);
+		if (src == null || !src.hasTile(fromX & MapChunk.MASK, fromY & MapChunk.MASK))
+			return;
+		
+		MapChunk c = chunkForWrite(x, y);
+		if (c != null)
+			c.copyTile(src, fromX & MapChunk.MASK, fromY & MapChunk.MASK, x & MapChunk.MASK, y & MapChunk.MASK);
+	}
+	
+	public void fillTerrainType(int x0, int y0, int x1, int y1, byte type) {
+		for (int cy = y0 >> MapChunk.SHIFT; cy <= (y1 - 1) >> MapChunk.SHIFT && y0 < y1; cy++) {
+			int rowStart = Math.max(y0, cy << MapChunk.SHIFT);
+			int rowEnd = Math.min(y1, (cy + 1) << MapChunk.SHIFT);
+			
+			for (int cx = x0 >> MapChunk.SHIFT; cx <= (x1 - 1) >> MapChunk.SHIFT && x0 < x1; cx++) {
+				int colStart = Math.max(x0, cx << MapChunk.SHIFT);
+				int colEnd = Math.min(x1, (cx + 1) << MapChunk.SHIFT);
+				
+				MapChunk c = chunkForWrite(colStart, rowStart);
+				if (c != null)
+					c.fillTerrainType(colStart & MapChunk.MASK, rowStart & MapChunk.MASK,
+							colEnd - colStart, rowEnd - rowStart, type);
+			}
+		}
+	}
+	
+	public void fillOverlayColor(int x0, int y0, int x1, int y1, int argb) {
+		for (int cy = y0 >> MapChunk.SHIFT; cy <= (y1 - 1) >> MapChunk.SHIFT && y0 < y1; cy++) {
+			int rowStart = Math.max(y0, cy << MapChunk.SHIFT);
+			int rowEnd = Math.min(y1, (cy + 1) << MapChunk.SHIFT);
+			
+			for (int cx = x0 >> MapChunk.SHIFT; cx <= (x1 - 1) >> MapChunk.SHIFT && x0 < x1; cx++) {
+				int colStart = Math.max(x0, cx << MapChunk.SHIFT);
+				int colEnd = Math.min(x1, (cx + 1) << MapChunk.SHIFT);
+				
+				MapChunk c = chunkForWrite(colStart, rowStart);
+				if (c != null)
+					c.fillOverlayColor(colStart & MapChunk.MASK, rowStart & MapChunk.MASK,
+							colEnd - colStart, rowEnd - rowStart, argb);
+			}
+		}
+	}
+	
+	/**
+	 * Removes every tile in the given rectangle, dropping chunks left empty.
+	 */
+	public void removeTiles(int x0, int y0, int x1, int y1) {
+		for (int cy = y0 >> MapChunk.SHIFT; cy <= (y1 - 1) >> MapChunk.SHIFT && y0 < y1; cy++) {
+			int rowStart = Math.max(y0, cy << MapChunk.SHIFT);
+			int rowEnd = Math.min(y1, (cy + 1) << MapChunk.SHIFT);
+			
+			for (int cx = x0 >> MapChunk.SHIFT; cx <= (x1 - 1) >> MapChunk.SHIFT && x0 < x1; cx++) {
+				int colStart = Math.max(x0, cx << MapChunk.SHIFT);
+				int colEnd = Math.min(x1, (cx + 1) << MapChunk.SHIFT);
+				
+				MapChunk c = chunkAt(colStart, rowStart);
+				if (c == null || !c.hasTiles(colStart & MapChunk.MASK, rowStart & MapChunk.MASK,
+						colEnd - colStart, rowEnd - rowStart))
+					continue;
+				
+				c = chunkForWrite(colStart, rowStart);
+				c.removeTiles(colStart & MapChunk.MASK, rowStart & MapChunk.MASK,
+						colEnd - colStart, rowEnd - rowStart);
+				if (c.isEmpty())
+					chunks[slot(cx, cy)] = null;
+			}
+		}
+	}
+	
+	public int countTerrainType(int x0, int y0, int x1, int y1, byte type) {
+		int count = 0;
+		
+		for (int cy = y0 >> MapChunk.SHIFT; cy <= (y1 - 1) >> MapChunk.SHIFT && y0 < y1; cy++) {
+			int rowStart = Math.max(y0, cy << MapChunk.SHIFT);
+			int rowEnd = Math.min(y1, (cy + 1) << MapChunk.SHIFT);
+			
+			for (int cx = x0 >> MapChunk.SHIFT; cx <= (x1 - 1) >> MapChunk.SHIFT && x0 < x1; cx++) {
+				int colStart = Math.max(x0, cx << MapChunk.SHIFT);
+				int colEnd = Math.min(x1, (cx + 1) << MapChunk.SHIFT);
+				
+				MapChunk c = chunkAt(colStart, rowStart);
+				if (c != null)
+					count += c.countTerrainType(colStart & MapChunk.MASK, rowStart & MapChunk.MASK,
+							colEnd - colStart, rowEnd - rowStart, type);
+				else if (type == 0)
+					count += (colEnd - colStart) * (rowEnd - rowStart);
+			}
+		}
+		
+		return count;
+	}
+	
+	/**
+	 * Number of tiles in the layer. Chunks not yet paged in are counted from
+	 * their record headers in the source file rather than read in.
+	 */
+	public int getTileCount() {
+		int count = 0;
+		for (int i = 0; i < chunks.length; i++) {
+			if (chunks[i] != null)
+				count += chunks[i].getTileCount();
+			else if (source != null && (loaded[i >> 6] & (1L << i)) == 0)
+				count += source.readTileCount(cave ? 1 : 0, chunkX0 + i % chunksWide, chunkY0 + i / chunksWide);
+		}
+		
+		return count;
+	}
+	
+	/**
+	 * Number of chunks currently held in memory.
+	 */
+	public int getChunkCount() {
+		int count = 0;
+		for (MapChunk c : chunks)
+			if (c != null)
+				count++;
+		
+		return count;
+	}
+	
+	/**
+	 * Rough heap footprint of the chunk table and the chunks currently held
+	 * in memory, in bytes. Chunks shared with a snapshot are counted too.
+	 */
+	public long getMemoryUsage() {
+		long bytes = 64 + chunks.length * 8L + dirty.length * 8L + (loaded != null ? loaded.length * 8L : 0);
+		for (MapChunk c : chunks)
+			if (c != null)
+				bytes += c.getMemoryUsage();
+		
+		return bytes;
+	}
+	
+	/**
+	 * Fits the chunk grid to the given rectangle of storage coordinates.
+	 * Chunks inside it are kept where they are, chunks outside it are dropped
+	 * and tiles left outside it in the edge chunks are removed. Nothing is
+	 * read from the source file; slots new to the grid start out empty.
+	 */
+	public void resize(int x0, int y0, int x1, int y1) {
+		int newX0 = x0 >> MapChunk.SHIFT, newY0 = y0 >> MapChunk.SHIFT;
+		int newWide = x1 > x0 ? ((x1 - 1) >> MapChunk.SHIFT) - newX0 + 1 : 0;
+		int newHigh = y1 > y0 ? ((y1 - 1) >> MapChunk.SHIFT) - newY0 + 1 : 0;
+		
+		if (newX0 != chunkX0 || newY0 != chunkY0 || newWide != chunksWide || newHigh != chunksHigh) {
+			MapChunk[] newChunks = new MapChunk[newWide * newHigh];
+			long[] newDirty = new long[(newChunks.length + 63) >> 6];
+			long[] newLoaded = loaded == null ? null : new long[newDirty.length];
+			
+			for (int i = 0; i < newChunks.length; i++) {
+				int old = slot(newX0 + i % newWide, newY0 + i / newWide);
+				long bit = 1L << i;
+				if (old < 0) {
+					/* New to the grid: empty, whatever the source file had there. */
+					newDirty[i >> 6] |= bit;
+					if (newLoaded != null)
+						newLoaded[i >> 6] |= bit;
+					continue;
+				}
+				
+				newChunks[i] = chunks[old];
+				if ((dirty[old >> 6] & (1L << old)) != 0)
+					newDirty[i >> 6] |= bit;
+				if (newLoaded != null && (loaded[old >> 6] & (1L << old)) != 0)
+					newLoaded[i >> 6] |= bit;
+			}
+			
+			chunks = newChunks;
+			chunkX0 = newX0;
+			chunkY0 = newY0;
+			chunksWide = newWide;
+			chunksHigh = newHigh;
+			dirty = newDirty;
+			loaded = newLoaded;
+		}
+		
+		int gridX0 = chunkX0 << MapChunk.SHIFT, gridY0 = chunkY0 << MapChunk.SHIFT;
+		int gridX1 = (chunkX0 + chunksWide) << MapChunk.SHIFT, gridY1 = (chunkY0 + chunksHigh) << MapChunk.SHIFT;
+		removeTiles(gridX0, gridY0, gridX1, y0);
+		removeTiles(gridX0, y1, gridX1, gridY1);
+		removeTiles(gridX0, y0, x0, y1);
+		removeTiles(x1, y0, gridX1, y1);
+	}
+	
+	/**
+	 * Puts this layer back the way it was when the given snapshot of it was
+	 * taken. Every chunk is marked dirty, since the file may have been saved
+	 * over since.
+	 */
+	public void restore(MapLayer snapshot) {
+		chunks = snapshot.chunks.clone();
+		chunkX0 = snapshot.chunkX0;
+		chunkY0 = snapshot.chunkY0;
+		chunksWide = snapshot.chunksWide;
+		chunksHigh = snapshot.chunksHigh;
+		source = snapshot.source;
+		loaded = snapshot.loaded == null ? null : snapshot.loaded.clone();
+		labels = new FeatureIndex<MapLabel>(snapshot.labels);
+		objects = new FeatureIndex<Byte>(snapshot.objects);
+		horizontalFences = new EdgePlane(snapshot.horizontalFences);
+		verticalFences = new EdgePlane(snapshot.verticalFences);
+		
+		dirty = new long[(chunks.length + 63) >> 6];
+		Arrays.fill(dirty, -1L);
+		
+		for (MapChunk c : chunks)
+			if (c != null)
+				c.setShared();
+	}
+}
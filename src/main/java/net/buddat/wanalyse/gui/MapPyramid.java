@@ -0,0 +1,176 @@
+package net.buddat.wanalyse.gui;
+
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Mipmap pyramid of a map for zoomed out views. Every surveyed chunk gets an
+ * atlas image holding the chunk at one pixel per tile, then at half that size
+ * and so on down to a single pixel:
+ * <pre>
+ * +----------------+--------+
+ * |                | 1      |
+ * |       0        +----+---+
+ * |                | 2  |
+ * |                +--+-+
+ * |                |3 |...
+ * +----------------+--+
+ * </pre>
+ * A chunk's atlas is rebuilt the first time it is drawn after its version
+ * changes, so edits only cost the chunks they touch. Drawing picks the
+ * smallest level at least as large as the chunk appears on screen. Like
+ * {@link ChunkImageCache}, atlases are dropped least recently used first once
+ * they add up to more than the memory budget.
+ */
+public class MapPyramid {
+
+	public static final int LEVELS = MapChunk.SHIFT + 1;
+	
+	public static final long DEFAULT_BUDGET = 32L * 1024 * 1024;
+	
+	private static final int ATLAS_WIDTH = MapChunk.SIZE + MapChunk.SIZE / 2;
+	private static final int ATLAS_HEIGHT = MapChunk.SIZE;
+	private static final long ATLAS_BYTES = (long) ATLAS_WIDTH * ATLAS_HEIGHT * 4;
+	
+	private static class Entry {
+		private final BufferedImage image = new BufferedImage(ATLAS_WIDTH, ATLAS_HEIGHT, BufferedImage.TYPE_INT_ARGB);
+		private long version = -1;
+	}
+	
+	private final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<Long, Entry>(256, 0.75f, true);
+	private long budget;
+	
+	/* Atlases are built here and copied in, leaving the images managed. */
+	private final int[] scratch = new int[ATLAS_WIDTH * ATLAS_HEIGHT];
+	
+	public MapPyramid() {
+		this(DEFAULT_BUDGET);
+	}
+	
+	public MapPyramid(long budget) {
+		this.budget = budget;
+	}
+	
+	public static int getLevelX(int level) {
+		return level == 0 ? 0 : MapChunk.SIZE;
+	}
+	
+	public static int getLevelY(int level) {
+		return level == 0 ? 0 : MapChunk.SIZE - (MapChunk.SIZE >> (level - 1));
+	}
+	
+	/**
+	 * Level whose image is the closest to, without being smaller than, a
+	 * chunk drawn at the given size.
+	 */
+	public static int getLevel(int chunkPixels) {
+		int level = 0;
+		while (level < LEVELS - 1 && (MapChunk.SIZE >> (level + 1)) >= chunkPixels)
+			level++;
+		
+		return level;
+	}
+	
+	/**
+	 * Draws a chunk of a layer scaled to the given size. Empty chunks draw
+	 * nothing.
+	 */
+	public void draw(Graphics g, MapLayer layer, int chunkX, int chunkY, int x, int y, int size) {
+		MapChunk chunk = layer.getChunk(chunkX, chunkY);
+		if (chunk == null)
+			return;
+		
+		Entry e = getEntry(layer.isCave(), chunkX, chunkY);
+		if (e.version != chunk.getVersion()) {
+			build(scratch, layer, chunkX, chunkY);
+			e.image.getRaster().setDataElements(0, 0, ATLAS_WIDTH, ATLAS_HEIGHT, scratch);
+			e.version = chunk.getVersion();
+		}
+		
+		int level = getLevel(size);
+		int src = MapChunk.SIZE >> level;
+		int sx = getLevelX(level), sy = getLevelY(level);
+		
+		g.drawImage(e.image, x, y, x + size, y + size, sx, sy, sx + src, sy + src, null);
+	}
+	
+	private Entry getEntry(boolean cave, int chunkX, int chunkY) {
+		Long key = Long.valueOf((cave ? 1L << 62 : 0) | ((long) (chunkY & 0x7FFFFFFF) << 31) | (chunkX & 0x7FFFFFFF));
+		Entry e = entries.get(key);
+		if (e == null) {
+			e = new Entry();
+			entries.put(key, e);
+			evict();
+		}
+		
+		return e;
+	}
+	
+	/* Never drops the entry just added, so the chunk being drawn keeps its atlas. */
+	private void evict() {
+		Iterator<Entry> it = entries.values().iterator();
+		while (getUsedBytes() > budget && entries.size() > 1) {
+			it.next();
+			it.remove();
+		}
+	}
+	
+	private static void build(int[] pixels, MapLayer layer, int chunkX, int chunkY) {
+		TileRenderer.renderTiles(pixels, ATLAS_WIDTH, layer, chunkX << MapChunk.SHIFT, chunkY << MapChunk.SHIFT,
+				MapChunk.SIZE, MapChunk.SIZE, 1);
+		
+		for (int level = 1; level < LEVELS; level++) {
+			int size = MapChunk.SIZE >> level;
+			int srcX = getLevelX(level - 1), srcY = getLevelY(level - 1);
+			int dstX = getLevelX(level), dstY = getLevelY(level);
+			
+			for (int y = 0; y < size; y++) {
+				for (int x = 0; x < size; x++) {
+					int i = (srcY + y * 2) * ATLAS_WIDTH + srcX + x * 2;
+					pixels[(dstY + y) * ATLAS_WIDTH + dstX + x] = average(pixels[i], pixels[i + 1],
+							pixels[i + ATLAS_WIDTH], pixels[i + ATLAS_WIDTH + 1]);
+				}
+			}
+		}
+	}
+	
+	/*
+	 * Alpha weighted average of four pixels, so empty tiles thin out a colour
+	 * rather than darkening it.
+	 */
+	private static int average(int p0, int p1, int p2, int p3) {
+		int a0 = p0 >>> 24, a1 = p1 >>> 24, a2 = p2 >>> 24, a3 = p3 >>> 24;
+		int alpha = a0 + a1 + a2 + a3;
+		if (alpha == 0)
+			return 0;
+		
+		int r = (((p0 >> 16) & 0xFF) * a0 + ((p1 >> 16) & 0xFF) * a1 + ((p2 >> 16) & 0xFF) * a2 + ((p3 >> 16) & 0xFF) * a3) / alpha;
+		int g = (((p0 >> 8) & 0xFF) * a0 + ((p1 >> 8) & 0xFF) * a1 + ((p2 >> 8) & 0xFF) * a2 + ((p3 >> 8) & 0xFF) * a3) / alpha;
+		int b = ((p0 & 0xFF) * a0 + (p1 & 0xFF) * a1 + (p2 & 0xFF) * a2 + (p3 & 0xFF) * a3) / alpha;
+		
+		return ((alpha / 4) << 24) | (r << 16) | (g << 8) | b;
+	}
+	
+	public void clear() {
+		entries.clear();
+	}
+	
+	public long getBudget() {
+		return budget;
+	}
+	
+	public void setBudget(long budget) {
+		this.budget = budget;
+		evict();
+	}
+	
+	public long getUsedBytes() {
+		return entries.size() * ATLAS_BYTES;
+	}
+	
+	public int size() {
+		return entries.size();
+	}
+}
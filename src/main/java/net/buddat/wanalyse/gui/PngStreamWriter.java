@@ -0,0 +1,147 @@
+package net.buddat.wanalyse.gui;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes a PNG one row at a time, so images far larger than could ever be
+ * held in memory can be encoded. Rows are written as 8 bit RGBA with the
+ * Sub filter, which suits the flat runs of colour a map is made of.
+ */
+public class PngStreamWriter {
+
+	private static final byte[] SIGNATURE = { (byte) 137, 80, 78, 71, 13, 10, 26, 10 };
+	private static final int IDAT_SIZE = 64 * 1024;
+	
+	private final DataOutputStream out;
+	private final DeflaterOutputStream idat;
+	private final Deflater deflater;
+	
+	private final int width, height;
+	private final byte[] row;
+	private int rowsWritten;
+	
+	public PngStreamWriter(OutputStream out, int width, int height) throws IOException {
+		this.out = new DataOutputStream(out);
+		this.width = width;
+		this.height = height;
+		this.row = new byte[1 + width * 4];
+		
+		this.out.write(SIGNATURE);
+		
+		byte[] ihdr = new byte[13];
+		putInt(ihdr, 0, width);
+		putInt(ihdr, 4, height);
+		ihdr[8] = 8;	// bit depth
+		ihdr[9] = 6;	// colour type, RGBA
+		writeChunk("IHDR", ihdr, ihdr.length);
+		
+		this.deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+		this.idat = new DeflaterOutputStream(new IdatOutputStream(), deflater, IDAT_SIZE);
+	}
+	
+	/**
+	 * Writes the next row from ARGB pixels.
+	 */
+	public void writeRow(int[] argb, int offset) throws IOException {
+		if (rowsWritten >= height)
+			throw new IOException("All " + height + " rows already written");
+		
+		row[0] = 1;
+		int prev = 0;
+		for (int x = 0, i = 1; x < width; x++, i += 4) {
+			int p = argb[offset + x];
+			row[i] = (byte) ((p >> 16) - (prev >> 16));
+			row[i + 1] = (byte) ((p >> 8) - (prev >> 8));
+			row[i + 2] = (byte) (p - prev);
+			row[i + 3] = (byte) ((p >>> 24) - (prev >>> 24));
+			prev = p;
+		}
+		
+		idat.write(row);
+		rowsWritten++;
+	}
+	
+	public int getRowsWritten() {
+		return rowsWritten;
+	}
+	
+	/**
+	 * Finishes the image. Throws if fewer rows were written than the image
+	 * height, though the stream is still closed.
+	 */
+	public void close() throws IOException {
+		try {
+			idat.finish();
+			idat.flush();
+			writeChunk("IEND", new byte[0], 0);
+			out.flush();
+		} finally {
+			deflater.end();
+			out.close();
+		}
+		
+		if (rowsWritten != height)
+			throw new IOException("Only " + rowsWritten + " of " + height + " rows written");
+	}
+	
+	private void writeChunk(String type, byte[] data, int length) throws IOException {
+		CRC32 crc = new CRC32();
+		byte[] typeBytes = type.getBytes("US-ASCII");
+		crc.update(typeBytes);
+		crc.update(data, 0, length);
+		
+		out.writeInt(length);
+		out.write(typeBytes);
+		out.write(data, 0, length);
+		out.writeInt((int) crc.getValue());
+	}
+	
+	private static void putInt(byte[] b, int offset, int value) {
+		b[offset] = (byte) (value >>> 24);
+		b[offset + 1] = (byte) (value >>> 16);
+		b[offset + 2] = (byte) (value >>> 8);
+		b[offset + 3] = (byte) value;
+	}
+	
+	/*
+	 * Collects compressed data and writes it out as IDAT chunks.
+	 */
+	private class IdatOutputStream extends OutputStream {
+		
+		private final byte[] buf = new byte[IDAT_SIZE];
+		private int count;
+		
+		@Override
+		public void write(int b) throws IOException {
+			if (count == buf.length)
+				flush();
+			buf[count++] = (byte) b;
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				if (count == buf.length)
+					flush();
+				
+				int n = Math.min(len, buf.length - count);
+				System.arraycopy(b, off, buf, count, n);
+				count += n;
+				off += n;
+				len -= n;
+			}
+		}
+		
+		@Override
+		public void flush() throws IOException {
+			if (count > 0)
+				writeChunk("IDAT", buf, count);
+			count = 0;
+		}
+	}
+}
@@ -0,0 +1,161 @@
+package net.buddat.wanalyse.gui;
+
+import java.util.HashMap;
+
+/**
+ * Terrain counts over rectangles of one layer of a map, such as how many
+ * iron tiles are left in part of a mine.
+ *
+ * Chunks lying wholly inside a rectangle are counted from the histograms
+ * they keep up to date on every edit, so only the chunks along the edges of
+ * the rectangle are looked at cell by cell. For terrain types passed to
+ * {@link #track(byte)}, each edge chunk also gets a summed-area table, which
+ * counts any block of it in four lookups; a count then costs one step per
+ * chunk touched, whatever the size of the rectangle. Tables are only rebuilt
+ * for chunks whose version has changed since they were last built.
+ *
+ * Cells count whether or not they hold a tile, so empty cells count as
+ * terrain 0, as in {@link Map#countTerrainType}.
+ */
+public class RegionStats {
+
+	private static final int STRIDE = MapChunk.SIZE + 1;
+	
+	private static class Table {
+		long version;
+		final int[] sums = new int[STRIDE * STRIDE];
+	}
+	
+	private final Map map;
+	private final boolean caveLayer;
+	
+	/* Summed-area tables by unsigned terrain id, then by chunk. */
+	private final HashMap<Integer, HashMap<Long, Table>> tables = new HashMap<Integer, HashMap<Long, Table>>();
+	
+	public RegionStats(Map map, boolean caveLayer) {
+		this.map = map;
+		this.caveLayer = caveLayer;
+	}
+	
+	public Map getMap() {
+		return map;
+	}
+	
+	public boolean isCaveLayer() {
+		return caveLayer;
+	}
+	
+	/**
+	 * Keeps summed-area tables for a terrain type from now on, at about 17kB
+	 * for each chunk it is counted in.
+	 */
+	public void track(byte type) {
+		if (!tables.containsKey(type & 0xFF))
+			tables.put(type & 0xFF, new HashMap<Long, Table>());
+	}
+	
+	public void untrack(byte type) {
+		tables.remove(type & 0xFF);
+	}
+	
+	public boolean isTracked(byte type) {
+		return tables.containsKey(type & 0xFF);
+	}
+	
+	/**
+	 * Number of cells of a terrain type in a block of tiles, clipped to the
+	 * map.
+	 */
+	public int count(int x, int y, int width, int height, byte type) {
+		int x0 = map.getOriginX() + Math.max(x, 0), x1 = map.getOriginX() + Math.min(x + width, map.getMapWidth());
+		int y0 = map.getOriginY() + Math.max(y, 0), y1 = map.getOriginY() + Math.min(y + height, map.getMapHeight());
+		if (x1 <= x0 || y1 <= y0)
+			return 0;
+		
+		MapLayer layer = map.getLayer(caveLayer);
+		HashMap<Long, Table> typeTables = tables.get(type & 0xFF);
+		int count = 0;
+		
+		for (int cy = y0 >> MapChunk.SHIFT; cy <= (y1 - 1) >> MapChunk.SHIFT; cy++) {
+			int ly0 = Math.max(y0 - (cy << MapChunk.SHIFT), 0), ly1 = Math.min(y1 - (cy << MapChunk.SHIFT), MapChunk.SIZE);
+			for (int cx = x0 >> MapChunk.SHIFT; cx <= (x1 - 1) >> MapChunk.SHIFT; cx++) {
+				int lx0 = Math.max(x0 - (cx << MapChunk.SHIFT), 0), lx1 = Math.min(x1 - (cx << MapChunk.SHIFT), MapChunk.SIZE);
+				MapChunk c = layer.getChunk(cx, cy);
+				
+				if (c == null)
+					count += type == 0 ? (lx1 - lx0) * (ly1 - ly0) : 0;
+				else if (lx1 - lx0 == MapChunk.SIZE && ly1 - ly0 == MapChunk.SIZE)
+					count += c.getTerrainCount(type);
+				else if (typeTables != null)
+					count += sum(table(typeTables, cx, cy, c, type).sums, lx0, ly0, lx1, ly1);
+				else
+					count += c.countTerrainType(lx0, ly0, lx1 - lx0, ly1 - ly0, type);
+			}
+		}
+		
+		return count;
+	}
+	
+	/**
+	 * Number of cells of every terrain type in a block of tiles, clipped to
+	 * the map, indexed by unsigned terrain id.
+	 */
+	public int[] getCounts(int x, int y, int width, int height) {
+		int[] counts = new int[256];
+		int x0 = map.getOriginX() + Math.max(x, 0), x1 = map.getOriginX() + Math.min(x + width, map.getMapWidth());
+		int y0 = map.getOriginY() + Math.max(y, 0), y1 = map.getOriginY() + Math.min(y + height, map.getMapHeight());
+		if (x1 <= x0 || y1 <= y0)
+			return counts;
+		
+		MapLayer layer = map.getLayer(caveLayer);
+		for (int cy = y0 >> MapChunk.SHIFT; cy <= (y1 - 1) >> MapChunk.SHIFT; cy++) {
+			int ly0 = Math.max(y0 - (cy << MapChunk.SHIFT), 0), ly1 = Math.min(y1 - (cy << MapChunk.SHIFT), MapChunk.SIZE);
+			for (int cx = x0 >> MapChunk.SHIFT; cx <= (x1 - 1) >> MapChunk.SHIFT; cx++) {
+				int lx0 = Math.max(x0 - (cx << MapChunk.SHIFT), 0), lx1 = Math.min(x1 - (cx << MapChunk.SHIFT), MapChunk.SIZE);
+				MapChunk c = layer.getChunk(cx, cy);
+				
+				if (c == null) {
+					counts[0] += (lx1 - lx0) * (ly1 - ly0);
+				} else if (lx1 - lx0 == MapChunk.SIZE && ly1 - ly0 == MapChunk.SIZE) {
+					c.addTerrainCounts(counts);
+				} else {
+					byte[] terrain = c.getTerrainPlane();
+					for (int ly = ly0; ly < ly1; ly++)
+						for (int i = MapChunk.index(lx0, ly); i < MapChunk.index(lx1 - 1, ly) + 1; i++)
+							counts[terrain[i] & 0xFF]++;
+				}
+			}
+		}
+		
+		return counts;
+	}
+	
+	private static Table table(HashMap<Long, Table> typeTables, int cx, int cy, MapChunk c, byte type) {
+		long key = MapChunk.key(cx, cy);
+		Table t = typeTables.get(key);
+		if (t == null) {
+			t = new Table();
+			typeTables.put(key, t);
+		} else if (t.version == c.getVersion()) {
+			return t;
+		}
+		
+		byte[] terrain = c.getTerrainPlane();
+		int[] sums = t.sums;
+		for (int ly = 0; ly < MapChunk.SIZE; ly++) {
+			int row = 0;
+			for (int lx = 0; lx < MapChunk.SIZE; lx++) {
+				if (terrain[MapChunk.index(lx, ly)] == type)
+					row++;
+				sums[(ly + 1) * STRIDE + lx + 1] = sums[ly * STRIDE + lx + 1] + row;
+			}
+		}
+		t.version = c.getVersion();
+		
+		return t;
+	}
+	
+	private static int sum(int[] sums, int lx0, int ly0, int lx1, int ly1) {
+		return sums[ly1 * STRIDE + lx1] - sums[ly0 * STRIDE + lx1] - sums[ly1 * STRIDE + lx0] + sums[ly0 * STRIDE + lx0];
+	}
+}
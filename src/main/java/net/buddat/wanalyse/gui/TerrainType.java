@@ -0,0 +1,66 @@
+package net.buddat.wanalyse.gui;
+
+/**
+ * Terrain types a tile can hold, stored in the map as the ordinal byte.
+ * Colours are plain ARGB ints so they can be used without touching AWT.
+ */
+public enum TerrainType {
+	
+	NONE("None", 0x00000000),
+	CAVE("Cave", 0xFF8C7B67),
+	ROCK("Rock", 0xFF5A5A5A),
+	REINFORCED("Reinforced Wall", 0xFF3C3C46),
+	IRON("Iron", 0xFF8E4B32),
+	TIN("Tin", 0xFFA8B5B5),
+	COPPER("Copper", 0xFFC46A21),
+	LEAD("Lead", 0xFF4C5068),
+	ZINC("Zinc", 0xFF9CA68E),
+	SILVER("Silver", 0xFFD8D8E0),
+	GOLD("Gold", 0xFFE5C100),
+	ADAMANTINE("Adamantine", 0xFF2A6E8C),
+	GLIMMERSTEEL("Glimmersteel", 0xFFB04FC4),
+	MARBLE("Marble", 0xFFEFEBE0),
+	SLATE("Slate", 0xFF2F3B3F),
+	SANDSTONE("Sandstone", 0xFFD2B47A),
+	ROCKSALT("Rock Salt", 0xFFF2DCE0),
+	WATER("Water", 0xFF2E5FA8);
+	
+	private static final TerrainType[] VALUES = values();
+	
+	private final String displayName;
+	private final int color;
+	
+	private TerrainType(String displayName, int color) {
+		this.displayName = displayName;
+		this.color = color;
+	}
+	
+	public byte getId() {
+		return (byte) ordinal();
+	}
+	
+	public String getDisplayName() {
+		return displayName;
+	}
+	
+	public int getColor() {
+		return color;
+	}
+	
+	public static TerrainType fromId(byte id) {
+		int i = id & 0xFF;
+		return i < VALUES.length ? VALUES[i] : NONE;
+	}
+	
+	/**
+	 * Returns a table of ARGB colours indexed by unsigned terrain id. Unknown
+	 * ids are transparent.
+	 */
+	public static int[] createColorTable() {
+		int[] table = new int[256];
+		for (TerrainType t : VALUES)
+			table[t.ordinal()] = t.color;
+		
+		return table;
+	}
+}
@@ -1,34 +1,65 @@
 package net.buddat.wanalyse.gui;
 
-
+/**
+ * A lightweight view of one cell of a {@link Map}. The tile data itself lives
+ * in the map's chunk planes; a Tile only remembers where it points, and can be
+ * moved around with {@link #moveTo(int, int)} to walk the map without
+ * allocating.
+ */
 public class Tile {
 	
+	public static final int NULL_COLOUR = 0;
+	
+	private final Map map;
 	private short posX, posY;
 	
-	private byte terrainType;
+	public Tile(Map map, int x, int y) {
+		this.map = map;
+		moveTo(x, y);
+	}
 	
-	public Tile(int x, int y) {
-		setX((short) x);
-		setY((short) y);
+	public Map getMap() {
+		return map;
 	}
 	
 	public short getX() {
 		return posX;
 	}
 
-	public void setX(short x) {
-		this.posX = x;
-	}
-
 	public short getY() {
 		return posY;
 	}
-
-	public void setY(short y) {
-		this.posY = y;
+	
+	public void moveTo(int x, int y) {
+		this.posX = (short) x;
+		this.posY = (short) y;
+	}
+	
+	public boolean exists() {
+		return map.hasTile(posX, posY);
 	}
 
 	public byte getTerrainType(boolean cave) {
-		return terrainType;
+		return map.getTerrainType(posX, posY, cave);
+	}
+	
+	public void setTerrainType(boolean cave, byte type) {
+		map.setTerrainType(posX, posY, cave, type);
+	}
+	
+	public short getHeight(boolean cave) {
+		return map.getHeight(posX, posY, cave);
+	}
+	
+	public void setHeight(boolean cave, short height) {
+		map.setHeight(posX, posY, cave, height);
+	}
+	
+	public int getOverlayColor(boolean cave) {
+		return map.getOverlayColor(posX, posY, cave);
+	}
+	
+	public void setOverlayColor(boolean cave, int argb) {
+		map.setOverlayColor(posX, posY, cave, argb);
 	}
 }
@@ -0,0 +1,130 @@
+package net.buddat.wanalyse.gui;
+
+import java.util.Arrays;
+
+/**
+ * Draws rectangles of map tiles: terrain, overlay and grid. Used for the
+ * cached chunk images, the pyramid and image export.
+ *
+ * Rendering goes into a plain int array laid out like a TYPE_INT_ARGB raster.
+ * Each tile row is worked out once, a chunk at a time from the chunk planes,
+ * as one row of pixels; the rest of the tile row is copied down from it.
+ */
+public class TileRenderer {
+
+	public static final int GRID_COLOR = 0xFF000000;
+	
+	/* Below this the grid would cover most of every tile, so none is drawn. */
+	public static final int MIN_GRID_SIZE = 3;
+	
+	private static final int[] TERRAIN_COLORS = TerrainType.createColorTable();
+	
+	/**
+	 * Draws the given tiles of a layer and their grid into an ARGB pixel
+	 * array, with the top left tile at offset 0 and rows scanSize pixels
+	 * apart. Each tile gets its top and left grid lines; the far edges are
+	 * left to whoever draws the neighbouring tiles. Tiles smaller than
+	 * {@link #MIN_GRID_SIZE} get no grid.
+	 */
+	public static void render(int[] pixels, int scanSize, MapLayer layer, int tileX, int tileY, int tilesWide, int tilesHigh, int tileSize) {
+		renderTiles(pixels, scanSize, layer, tileX, tileY, tilesWide, tilesHigh, tileSize);
+		renderGrid(pixels, scanSize, tilesWide, tilesHigh, tileSize);
+	}
+	
+	/**
+	 * Draws terrain and overlay only. Every pixel of the area is written, so
+	 * the array needn't be cleared first.
+	 */
+	public static void renderTiles(int[] pixels, int scanSize, MapLayer layer, int tileX, int tileY, int tilesWide, int tilesHigh, int tileSize) {
+		int rowPixels = tilesWide * tileSize;
+		
+		for (int y = 0; y < tilesHigh; y++) {
+			int mapY = tileY + y;
+			int localY = mapY & MapChunk.MASK;
+			int rowStart = y * tileSize * scanSize;
+			
+			for (int x = 0; x < tilesWide; ) {
+				int mapX = tileX + x;
+				int localX = mapX & MapChunk.MASK;
+				int span = Math.min(MapChunk.SIZE - localX, tilesWide - x);
+				int start = rowStart + x * tileSize;
+				
+				MapChunk chunk = layer.getChunk(mapX >> MapChunk.SHIFT, mapY >> MapChunk.SHIFT);
+				if (chunk == null)
+					Arrays.fill(pixels, start, start + span * tileSize, 0);
+				else
+					renderSpan(pixels, start, chunk, localX, localY, span, tileSize);
+				
+				x += span;
+			}
+			
+			for (int r = 1; r < tileSize; r++)
+				System.arraycopy(pixels, rowStart, pixels, rowStart + r * scanSize, rowPixels);
+		}
+	}
+	
+	private static void renderSpan(int[] pixels, int start, MapChunk chunk, int localX, int localY, int span, int tileSize) {
+		long present = chunk.getPresenceBits()[localY];
+		byte[] terrain = chunk.getTerrainPlane();
+		int[] overlay = chunk.getOverlayPlane();
+		int index = MapChunk.index(localX, localY);
+		
+		for (int i = 0; i < span; i++, index++) {
+			int argb = 0;
+			if ((present & (1L << (localX + i))) != 0) {
+				argb = TERRAIN_COLORS[terrain[index] & 0xFF];
+				if (overlay != null && overlay[index] != Tile.NULL_COLOUR)
+					argb = blend(argb, overlay[index]);
+			}
+			
+			if (tileSize == 1) {
+				pixels[start + i] = argb;
+			} else {
+				int p = start + i * tileSize;
+				Arrays.fill(pixels, p, p + tileSize, argb);
+			}
+		}
+	}
+	
+	/**
+	 * Draws the top and left grid line of each tile, unless the tiles are
+	 * smaller than {@link #MIN_GRID_SIZE}.
+	 */
+	public static void renderGrid(int[] pixels, int scanSize, int tilesWide, int tilesHigh, int tileSize) {
+		if (tileSize < MIN_GRID_SIZE)
+			return;
+		
+		int width = tilesWide * tileSize, height = tilesHigh * tileSize;
+		
+		for (int y = 0; y < height; y++) {
+			int row = y * scanSize;
+			if (y % tileSize == 0) {
+				Arrays.fill(pixels, row, row + width, GRID_COLOR);
+				continue;
+			}
+			
+			for (int x = 0; x < width; x += tileSize)
+				pixels[row + x] = GRID_COLOR;
+		}
+	}
+	
+	/**
+	 * Draws an ARGB colour over another.
+	 */
+	public static int blend(int dst, int src) {
+		int sa = src >>> 24;
+		if (sa == 255)
+			return src;
+		
+		int da = dst >>> 24;
+		int outA = sa + da * (255 - sa) / 255;
+		if (outA == 0)
+			return 0;
+		
+		int r = ((src >> 16 & 0xFF) * sa + (dst >> 16 & 0xFF) * da * (255 - sa) / 255) / outA;
+		int g = ((src >> 8 & 0xFF) * sa + (dst >> 8 & 0xFF) * da * (255 - sa) / 255) / outA;
+		int b = ((src & 0xFF) * sa + (dst & 0xFF) * da * (255 - sa) / 255) / outA;
+		
+		return (outA << 24) | (r << 16) | (g << 8) | b;
+	}
+}
@@ -0,0 +1,318 @@
+package net.buddat.wanalyse.gui;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A directory of map files, any number of which can be open at once.
+ *
+ * Listing the workspace reads only the header of each file. Opening a map
+ * reads its chunk index, and its chunks are then paged in as they are used.
+ * Open maps are kept in least recently used order; once the chunks they hold
+ * add up to more than the heap budget, the coldest maps are dropped, so they
+ * are read back from disk when next opened. The most recently opened map is
+ * never dropped, whatever its size.
+ *
+ * A dropped map that has changed is saved the way AutoSaver saves: a
+ * copy-on-write snapshot is taken on the calling thread, normally the EDT,
+ * and written out on a background thread, which then lets go of the file.
+ * Opening the map again waits for that write. If it fails, the map is put
+ * back among the open maps with its changes and the error passed on.
+ */
+public class Workspace {
+
+	public static final long DEFAULT_BUDGET = 256L * 1024 * 1024;
+	
+	private final File directory;
+	private long budget;
+	
+	/* Keyed by canonical file, in access order. */
+	private final LinkedHashMap<File, Map> maps = new LinkedHashMap<File, Map>(16, 0.75f, true);
+	
+	/* Dropped maps still being written, by canonical file. */
+	private final HashMap<File, Release> releases = new HashMap<File, Release>();
+	private ExecutorService writer;
+	
+	private static class Release {
+		final Map map;
+		final Map snapshot;
+		final Future<?> write;
+		
+		Release(Map map, Map snapshot, Future<?> write) {
+			this.map = map;
+			this.snapshot = snapshot;
+			this.write = write;
+		}
+	}
+	
+	public Workspace(File directory) {
+		this(directory, DEFAULT_BUDGET);
+	}
+	
+	public Workspace(File directory, long budget) {
+		this.directory = directory;
+		this.budget = budget;
+	}
+	
+	public File getDirectory() {
+		return directory;
+	}
+	
+	public long getBudget() {
+		return budget;
+	}
+	
+	/**
+	 * Sets the heap budget in bytes and drops maps until it is met.
+	 */
+	public void setBudget(long budget) throws IOException {
+		this.budget = budget;
+		trim();
+	}
+	
+	/**
+	 * Lists the maps in the workspace by name, reading only their headers.
+	 * Files that are not readable map files are left out.
+	 */
+	public List<MapInfo> listMaps() {
+		List<MapInfo> infos = new ArrayList<MapInfo>();
+		File[] files = directory.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File f) {
+				return f.isFile() && f.getName().endsWith(MapFile.MAP_FILE_EXT);
+			}
+		});
+		if (files == null)
+			return infos;
+		
+		for (File f : files) {
+			try {
+				infos.add(MapFile.readInfo(f));
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		
+		Collections.sort(infos, new Comparator<MapInfo>() {
+			@Override
+			public int compare(MapInfo a, MapInfo b) {
+				return a.getName().compareToIgnoreCase(b.getName());
+			}
+		});
+		
+		return infos;
+	}
+	
+	/**
+	 * Returns the map in the given file, opening it if it is not open
+	 * already, and makes it the most recently used map.
+	 */
+	public Map open(File file) throws IOException {
+		File key = file.getCanonicalFile();
+		Map map = maps.get(key);
+		if (map == null) {
+			Release release = releases.remove(key);
+			if (release != null)
+				finish(key, release);
+			
+			map = Map.loadMap(key);
+			maps.put(key, map);
+		}
+		
+		trim();
+		return map;
+	}
+	
+	/**
+	 * Creates a new, empty map and saves it into the workspace straight
+	 * away, so it is listed from then on.
+	 */
+	public Map create(String name, int width, int height) throws IOException {
+		if (!directory.exists() && !directory.mkdirs())
+			throw new IOException("Could not create workspace " + directory);
+		
+		File file = new File(directory, fileName(name) + MapFile.MAP_FILE_EXT);
+		if (file.exists())
+			throw new IOException("A map file named " + file.getName() + " already exists");
+		
+		Map map = new Map(name, width, height);
+		map.saveMap(file);
+		maps.put(file.getCanonicalFile(), map);
+		
+		trim();
+		return map;
+	}
+	
+	private static String fileName(String name) {
+		StringBuilder sb = new StringBuilder(name.length());
+		for (int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			sb.append(Character.isLetterOrDigit(c) || c == '-' || c == '_' ? c : '_');
+		}
+		
+		return sb.length() == 0 ? "map" : sb.toString();
+	}
+	
+	public boolean isOpen(File file) throws IOException {
+		return maps.containsKey(file.getCanonicalFile());
+	}
+	
+	public int getOpenCount() {
+		return maps.size();
+	}
+	
+	/**
+	 * Rough heap footprint of every open map, in bytes.
+	 */
+	public long getMemoryUsage() {
+		long bytes = 0;
+		for (Map map : maps.values())
+			bytes += map.getMemoryUsage();
+		
+		return bytes;
+	}
+	
+	/**
+	 * Drops least recently used maps until the open maps fit the budget. A
+	 * map that can't be saved is kept open and the error passed on.
+	 */
+	public void trim() throws IOException {
+		long used = getMemoryUsage();
+		Iterator<Entry<File, Map>> it = maps.entrySet().iterator();
+		while (used > budget && maps.size() > 1 && it.hasNext()) {
+			Entry<File, Map> e = it.next();
+			long bytes = e.getValue().getMemoryUsage();
+			release(e.getKey(), e.getValue());
+			it.remove();
+			used -= bytes;
+		}
+		
+		finishReleases(false);
+	}
+	
+	/*
+	 * Snapshots a map if it has changed and hands the write to the writer
+	 * thread, which then lets go of the map's file. The chunks are not read
+	 * in first, as Map.close() would; the map is dropped instead.
+	 */
+	private void release(File key, Map map) {
+		final MapFile source = map.getSource();
+		final Map snapshot = map.hasChanges() ? map.snapshot() : null;
+		
+		Future<?> write = writer().submit(new Callable<Void>() {
+			@Override
+			public Void call() throws IOException {
+				if (snapshot != null) {
+					if (source == null)
+						throw new IOException("Map " + snapshot.getMapName() + " has no file to save to");
+					
+					MapFile saved = snapshot.writeTo(source.getFile());
+					if (saved != source)
+						source.close();
+					saved.close();
+				} else if (source != null) {
+					source.close();
+				}
+				
+				return null;
+			}
+		});
+		releases.put(key, new Release(map, snapshot, write));
+	}
+	
+	private synchronized ExecutorService writer() {
+		if (writer == null) {
+			writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "WAnalyse workspace save");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		
+		return writer;
+	}
+	
+	/*
+	 * Clears away finished releases, or all of them if wait is set, and
+	 * passes on the last error after putting back every map that failed.
+	 */
+	private void finishReleases(boolean wait) throws IOException {
+		IOException error = null;
+		Iterator<Entry<File, Release>> it = releases.entrySet().iterator();
+		while (it.hasNext()) {
+			Entry<File, Release> e = it.next();
+			if (!wait && !e.getValue().write.isDone())
+				continue;
+			
+			it.remove();
+			try {
+				finish(e.getKey(), e.getValue());
+			} catch (IOException ex) {
+				error = ex;
+			}
+		}
+		
+		if (error != null)
+			throw error;
+	}
+	
+	/*
+	 * Waits for a release's write. If it failed, the map gets its changes
+	 * back and is open again.
+	 */
+	private void finish(File key, Release release) throws IOException {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					release.write.get();
+					return;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		} catch (ExecutionException e) {
+			if (release.snapshot != null)
+				release.map.restoreChanges(release.snapshot);
+			maps.put(key, release.map);
+			
+			Throwable cause = e.getCause();
+			throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+		} finally {
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * Saves and drops every open map, waiting for the writes to finish.
+	 */
+	public void close() throws IOException {
+		Iterator<Entry<File, Map>> it = maps.entrySet().iterator();
+		while (it.hasNext()) {
+			Entry<File, Map> e = it.next();
+			release(e.getKey(), e.getValue());
+			it.remove();
+		}
+		
+		finishReleases(true);
+	}
+}
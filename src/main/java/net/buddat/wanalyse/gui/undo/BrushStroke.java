@@ -0,0 +1,173 @@
+package net.buddat.wanalyse.gui.undo;
+
+import java.awt.Rectangle;
+
+import net.buddat.wanalyse.gui.Map;
+
+/**
+ * One whole brush stroke, from mouse press to release, as a single change set.
+ *
+ * Each new drag point is joined to the previous one with a Bresenham line and
+ * the square brush is stamped at every step, so fast drags leave no gaps.
+ * Tiles already holding the brush value are skipped; that includes every tile
+ * the stroke has painted already, so each tile is recorded at most once no
+ * matter how often the brush passes over it. The changes are kept in a
+ * TileChangeSet, compacted into runs once the stroke is finished.
+ */
+public class BrushStroke implements UndoableAction {
+
+	private final Map map;
+	private final int size;
+	private final TileChangeSet.Plane plane;
+	private final int value;
+	private final boolean caveLayer;
+	
+	private boolean started;
+	private int lastX, lastY;
+	
+	private final TileChangeSet changes;
+	
+	/* Bounds of the whole stroke. */
+	private int strokeX0 = Integer.MAX_VALUE, strokeY0 = Integer.MAX_VALUE, strokeX1 = -1, strokeY1 = -1;
+	
+	/* Tiles changed since the last takeDirtyRegion(). */
+	private int minX, minY, maxX = -1, maxY = -1;
+	
+	/**
+	 * Nothing is painted until the first moveTo().
+	 */
+	public BrushStroke(Map map, int size, TileChangeSet.Plane plane, int value, boolean caveLayer) {
+		this.map = map;
+		this.size = Math.max(size, 1);
+		this.plane = plane;
+		this.value = value;
+		this.caveLayer = caveLayer;
+		this.changes = new TileChangeSet(map, plane, caveLayer);
+	}
+	
+	/**
+	 * Continues the stroke to the given tile, or starts it there.
+	 */
+	public void moveTo(int x, int y) {
+		if (!started) {
+			started = true;
+			stamp(x, y);
+		} else {
+			int dx = Math.abs(x - lastX), dy = -Math.abs(y - lastY);
+			int sx = lastX < x ? 1 : -1, sy = lastY < y ? 1 : -1;
+			int err = dx + dy;
+			int px = lastX, py = lastY;
+			
+			while (px != x || py != y) {
+				int e2 = err * 2;
+				if (e2 >= dy) {
+					err += dy;
+					px += sx;
+				}
+				if (e2 <= dx) {
+					err += dx;
+					py += sy;
+				}
+				stamp(px, py);
+			}
+		}
+		
+		lastX = x;
+		lastY = y;
+	}
+	
+	private void stamp(int x, int y) {
+		int x0 = x - (size - 1) / 2, y0 = y - (size - 1) / 2;
+		for (int ty = y0; ty < y0 + size; ty++)
+			for (int tx = x0; tx < x0 + size; tx++)
+				paint(tx, ty);
+	}
+	
+	private void paint(int x, int y) {
+		if (!map.inBounds(x, y))
+			return;
+		
+		boolean exists = map.hasTile(x, y, caveLayer);
+		int old = plane.get(map, x, y, caveLayer);
+		if (exists && old == value)
+			return;
+		
+		changes.add(x, y, exists, old, true, value);
+		plane.fill(map, x, y, 1, caveLayer, value);
+		
+		strokeX0 = Math.min(strokeX0, x);
+		strokeY0 = Math.min(strokeY0, y);
+		strokeX1 = Math.max(strokeX1, x);
+		strokeY1 = Math.max(strokeY1, y);
+		
+		if (maxX < minX) {
+			minX = maxX = x;
+			minY = maxY = y;
+		} else {
+			minX = Math.min(minX, x);
+			minY = Math.min(minY, y);
+			maxX = Math.max(maxX, x);
+			maxY = Math.max(maxY, y);
+		}
+	}
+	
+	/**
+	 * Returns the block of tiles changed since the last call, or null if
+	 * nothing has changed.
+	 */
+	public Rectangle takeDirtyRegion() {
+		if (maxX < minX)
+			return null;
+		
+		Rectangle r = new Rectangle(minX, minY, maxX - minX + 1, maxY - minY + 1);
+		minX = minY = 0;
+		maxX = maxY = -1;
+		
+		return r;
+	}
+	
+	/**
+	 * Block of tiles covering the whole stroke.
+	 */
+	public Rectangle getBounds() {
+		if (strokeX1 < 0)
+			return null;
+		
+		return new Rectangle(strokeX0, strokeY0, strokeX1 - strokeX0 + 1, strokeY1 - strokeY0 + 1);
+	}
+	
+	/**
+	 * Packs the recorded changes down once the stroke is over.
+	 */
+	public void finish() {
+		changes.compact();
+	}
+	
+	public boolean isEmpty() {
+		return changes.isEmpty();
+	}
+	
+	public int getChangeCount() {
+		return changes.getTileCount();
+	}
+	
+	@Override
+	public long getSize() {
+		return 96 + changes.getSize();
+	}
+	
+	@Override
+	public void execute() {
+		changes.redo();
+	}
+	
+	@Override
+	public void undo() {
+		changes.undo();
+	}
+	
+	@Override
+	public void redo() {
+		changes.redo();
+	}
+}
@@ -0,0 +1,105 @@
+package net.buddat.wanalyse.gui.undo;
+
+import java.awt.Rectangle;
+
+import net.buddat.wanalyse.gui.Map;
+
+/**
+ * A straight line of fence along one row or column of edges, which can be
+ * stretched while the mouse is dragged. A single fence is a line one edge
+ * long.
+ *
+ * The line is set with one fill over the row of edges, and the fences it
+ * replaced are kept in a byte array, one per edge, to put back on undo or
+ * when the line is stretched away from them.
+ */
+public class FenceLine implements UndoableAction {
+
+	private final Map map;
+	private final int startX, startY;
+	private final boolean vertical;
+	private final byte type;
+	private final boolean caveLayer;
+	
+	/* First edge and length of the line as it stands. */
+	private int x, y, length;
+	private byte[] old = new byte[0];
+	
+	/**
+	 * Sets the one edge at once.
+	 */
+	public FenceLine(Map map, int x, int y, boolean vertical, byte type, boolean caveLayer) {
+		this.map = map;
+		this.startX = x;
+		this.startY = y;
+		this.vertical = vertical;
+		this.type = type;
+		this.caveLayer = caveLayer;
+		
+		update(x, y);
+	}
+	
+	/**
+	 * Stretches the line from its first edge to the given tile's column if
+	 * horizontal, or its row if vertical. Edges it no longer covers get their
+	 * old fences back.
+	 */
+	public void update(int toX, int toY) {
+		undo();
+		
+		if (vertical) {
+			x = startX;
+			y = Math.min(startY, toY);
+			length = Math.abs(toY - startY) + 1;
+		} else {
+			x = Math.min(startX, toX);
+			y = startY;
+			length = Math.abs(toX - startX) + 1;
+		}
+		
+		if (old.length < length)
+			old = new byte[Math.max(length, old.length * 2)];
+		map.getFences(x, y, length, caveLayer, vertical, old, 0);
+		execute();
+	}
+	
+	@Override
+	public void execute() {
+		map.fillFence(x, y, length, caveLayer, vertical, type);
+	}
+	
+	@Override
+	public void undo() {
+		for (int i = 0; i < length; i++)
+			if (old[i] != type)
+				map.setFence(vertical ? x : x + i, vertical ? y + i : y, caveLayer, vertical, old[i]);
+	}
+	
+	@Override
+	public void redo() {
+		execute();
+	}
+	
+	/**
+	 * Whether every edge on the line already had this fence.
+	 */
+	public boolean isEmpty() {
+		for (int i = 0; i < length; i++)
+			if (old[i] != type)
+				return false;
+		
+		return true;
+	}
+	
+	/**
+	 * Block of tiles bordering the line.
+	 */
+	public Rectangle getBounds() {
+		return vertical ? new Rectangle(x - 1, y, 2, length) : new Rectangle(x, y - 1, length, 2);
+	}
+	
+	@Override
+	public long getSize() {
+		return 64 + old.length;
+	}
+}
@@ -0,0 +1,65 @@
+package net.buddat.wanalyse.gui.undo;
+
+import net.buddat.wanalyse.gui.Map;
+
+/**
+ * Resizing the map, by adding or removing rows and columns at each edge.
+ *
+ * Resizing only moves the map's origin and drops chunks that fall off the
+ * edges, so the undo record is just a copy-on-write snapshot of the map taken
+ * beforehand. It holds the old chunk tables and keeps the dropped chunks
+ * alive; everything else it shares with the map.
+ */
+public class MapResize implements UndoableAction {
+
+	/* Terrain, height and overlay. */
+	private static final int TILE_BYTES = 7;
+	
+	private final Map map;
+	private final int newWidth, newHeight, widthOffset, heightOffset;
+	
+	private final Map before;
+	private final long size;
+	
+	/**
+	 * Resizes at once. The offsets are the number of columns and rows added
+	 * to the west and north edges, negative to remove them.
+	 */
+	public MapResize(Map map, int newWidth, int newHeight, int widthOffset, int heightOffset) {
+		this.map = map;
+		this.newWidth = newWidth;
+		this.newHeight = newHeight;
+		this.widthOffset = widthOffset;
+		this.heightOffset = heightOffset;
+		
+		this.before = map.readSnapshot();
+		
+		long oldArea = (long) map.getMapWidth() * map.getMapHeight();
+		long keptWidth = Math.max(0, Math.min(map.getMapWidth() + widthOffset, newWidth) - Math.max(widthOffset, 0));
+		long keptHeight = Math.max(0, Math.min(map.getMapHeight() + heightOffset, newHeight) - Math.max(heightOffset, 0));
+		long tables = before.getLayer(false).getChunksWide() * (long) before.getLayer(false).getChunksHigh() * 2;
+		this.size = 128 + tables * 8 + (oldArea - keptWidth * keptHeight) * TILE_BYTES;
+		
+		execute();
+	}
+	
+	@Override
+	public void execute() {
+		map.resizeMap(newWidth, newHeight, widthOffset, heightOffset);
+	}
+	
+	@Override
+	public void undo() {
+		map.restore(before);
+	}
+	
+	@Override
+	public void redo() {
+		execute();
+	}
+	
+	@Override
+	public long getSize() {
+		return size;
+	}
+}
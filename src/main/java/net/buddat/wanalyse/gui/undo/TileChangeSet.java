@@ -0,0 +1,308 @@
+package net.buddat.wanalyse.gui.undo;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+import net.buddat.wanalyse.gui.Map;
+
+/**
+ * Packed record of changes to one plane of one layer, for bulk edits.
+ *
+ * Changes are held as runs of tiles along a row that went from the same old
+ * value to the same new value, in parallel primitive arrays. Changes can be
+ * added tile by tile or run by run in any order; compact() then sorts the runs
+ * by row and column and merges neighbours, so a filled area costs a few bytes
+ * per row segment rather than anything per tile. Undo and redo are a single
+ * loop over the arrays with one bulk call per run.
+ *
+ * A tile may be recorded more than once, by runs overlapping in any way.
+ * compact() first splits runs that partly overlap at each other's ends, so
+ * overlapping pieces cover exactly the same tiles. Sorting is stable, keeping
+ * such pieces in the order they were recorded, and undo walks the runs
+ * backwards, so the tile still ends up with the value it had first.
+ */
+public class TileChangeSet implements UndoableAction {
+
+	public enum Plane {
+		TERRAIN, HEIGHT, OVERLAY;
+		
+		public int get(Map map, int x, int y, boolean caveLayer) {
+			switch (this) {
+				case TERRAIN:
+					return map.getTerrainType(x, y, caveLayer);
+				case HEIGHT:
+					return map.getHeight(x, y, caveLayer);
+				default:
+					return map.getOverlayColor(x, y, caveLayer);
+			}
+		}
+		
+		/**
+		 * Sets a run of tiles along a row, adding any that don't exist.
+		 */
+		public void fill(Map map, int x, int y, int length, boolean caveLayer, int value) {
+			switch (this) {
+				case TERRAIN:
+					map.fillTerrainType(x, y, length, 1, caveLayer, (byte) value);
+					break;
+				case HEIGHT:
+					for (int i = x; i < x + length; i++)
+						map.setHeight(i, y, caveLayer, (short) value);
+					break;
+				default:
+					map.fillOverlayColor(x, y, length, 1, caveLayer, value);
+					break;
+			}
+		}
+	}
+	
+	private static final byte OLD_EXISTS = 1, NEW_EXISTS = 2;
+	
+	private final Map map;
+	private final Plane plane;
+	private final boolean caveLayer;
+	
+	private int[] runX = new int[16], runY = new int[16], runLength = new int[16];
+	private int[] oldValues = new int[16], newValues = new int[16];
+	private byte[] flags = new byte[16];
+	private int runCount;
+	
+	public TileChangeSet(Map map, Plane plane, boolean caveLayer) {
+		this.map = map;
+		this.plane = plane;
+		this.caveLayer = caveLayer;
+	}
+	
+	public Plane getPlane() {
+		return plane;
+	}
+	
+	public boolean isCaveLayer() {
+		return caveLayer;
+	}
+	
+	public void add(int x, int y, boolean oldExists, int oldValue, boolean newExists, int newValue) {
+		addRun(x, y, 1, oldExists, oldValue, newExists, newValue);
+	}
+	
+	/**
+	 * Records a change to length tiles along row y from x onwards. A tile
+	 * that doesn't exist has no value; removing or adding it is recorded with
+	 * the exists flags.
+	 */
+	public void addRun(int x, int y, int length, boolean oldExists, int oldValue, boolean newExists, int newValue) {
+		append(x, y, length, oldValue, newValue, (byte) ((oldExists ? OLD_EXISTS : 0) | (newExists ? NEW_EXISTS : 0)));
+	}
+	
+	private void append(int x, int y, int length, int oldValue, int newValue, byte flag) {
+		if (runCount == runX.length)
+			grow(Math.max(runCount * 2, 16));
+		
+		int i = runCount++;
+		runX[i] = x;
+		runY[i] = y;
+		runLength[i] = length;
+		oldValues[i] = oldValue;
+		newValues[i] = newValue;
+		flags[i] = flag;
+	}
+	
+	private void grow(int capacity) {
+		runX = Arrays.copyOf(runX, capacity);
+		runY = Arrays.copyOf(runY, capacity);
+		runLength = Arrays.copyOf(runLength, capacity);
+		oldValues = Arrays.copyOf(oldValues, capacity);
+		newValues = Arrays.copyOf(newValues, capacity);
+		flags = Arrays.copyOf(flags, capacity);
+	}
+	
+	/**
+	 * Sorts the runs by row and column, merges runs that continue each
+	 * other, and trims the arrays to size.
+	 */
+	public void compact() {
+		int[] order = sortedOrder();
+		if (splitOverlaps(order))
+			order = sortedOrder();
+		
+		int[] x = new int[runCount], y = new int[runCount], length = new int[runCount];
+		int[] oldV = new int[runCount], newV = new int[runCount];
+		byte[] f = new byte[runCount];
+		int n = 0;
+		
+		for (int k = 0; k < runCount; k++) {
+			int i = order[k];
+			if (n > 0 && y[n - 1] == runY[i] && x[n - 1] + length[n - 1] == runX[i]
+					&& f[n - 1] == flags[i] && oldV[n - 1] == oldValues[i] && newV[n - 1] == newValues[i]) {
+				length[n - 1] += runLength[i];
+				continue;
+			}
+			
+			x[n] = runX[i];
+			y[n] = runY[i];
+			length[n] = runLength[i];
+			oldV[n] = oldValues[i];
+			newV[n] = newValues[i];
+			f[n] = flags[i];
+			n++;
+		}
+		
+		runX = x;
+		runY = y;
+		runLength = length;
+		oldValues = oldV;
+		newValues = newV;
+		flags = f;
+		runCount = n;
+		grow(n);
+	}
+	
+	private int[] sortedOrder() {
+		int[] order = new int[runCount];
+		for (int i = 0; i < runCount; i++)
+			order[i] = i;
+		sort(order, new int[runCount], 0, runCount);
+		
+		return order;
+	}
+	
+	/*
+	 * Splits every run in a row where runs partly overlap at all the run ends
+	 * in that row, keeping the pieces in recording order. Returns false, having
+	 * changed nothing, if no runs overlap.
+	 */
+	private boolean splitOverlaps(int[] order) {
+		HashMap<Integer, int[]> rowEdges = null;
+		for (int k = 0; k < runCount; ) {
+			int row = runY[order[k]], end = k;
+			long reach = Long.MIN_VALUE;
+			boolean overlaps = false;
+			for (; end < runCount && runY[order[end]] == row; end++) {
+				int i = order[end];
+				overlaps |= runX[i] < reach;
+				reach = Math.max(reach, (long) runX[i] + runLength[i]);
+			}
+			
+			if (overlaps) {
+				int[] edges = new int[(end - k) * 2];
+				for (int j = k; j < end; j++) {
+					edges[(j - k) * 2] = runX[order[j]];
+					edges[(j - k) * 2 + 1] = runX[order[j]] + runLength[order[j]];
+				}
+				Arrays.sort(edges);
+				if (rowEdges == null)
+					rowEdges = new HashMap<Integer, int[]>();
+				rowEdges.put(row, edges);
+			}
+			k = end;
+		}
+		
+		if (rowEdges == null)
+			return false;
+		
+		int[] x = runX, y = runY, length = runLength, oldV = oldValues, newV = newValues;
+		byte[] f = flags;
+		int count = runCount;
+		runX = new int[count];
+		runY = new int[count];
+		runLength = new int[count];
+		oldValues = new int[count];
+		newValues = new int[count];
+		flags = new byte[count];
+		runCount = 0;
+		
+		for (int i = 0; i < count; i++) {
+			int[] edges = rowEdges.get(y[i]);
+			if (edges == null) {
+				append(x[i], y[i], length[i], oldV[i], newV[i], f[i]);
+				continue;
+			}
+			
+			int e = 0, to = x[i] + length[i];
+			for (int from = x[i]; from < to; ) {
+				while (edges[e] <= from)
+					e++;
+				int next = Math.min(edges[e], to);
+				append(from, y[i], next - from, oldV[i], newV[i], f[i]);
+				from = next;
+			}
+		}
+		
+		return true;
+	}
+	
+	private long key(int i) {
+		return ((long) runY[i] << 32) | (runX[i] & 0xFFFFFFFFL);
+	}
+	
+	/*
+	 * Stable merge sort of run indices by position.
+	 */
+	private void sort(int[] order, int[] tmp, int from, int to) {
+		if (to - from < 2)
+			return;
+		
+		int mid = (from + to) >>> 1;
+		sort(order, tmp, from, mid);
+		sort(order, tmp, mid, to);
+		if (key(order[mid - 1]) <= key(order[mid]))
+			return;
+		
+		System.arraycopy(order, from, tmp, from, to - from);
+		int a = from, b = mid;
+		for (int k = from; k < to; k++) {
+			if (b >= to || (a < mid && key(tmp[a]) <= key(tmp[b])))
+				order[k] = tmp[a++];
+			else
+				order[k] = tmp[b++];
+		}
+	}
+	
+	@Override
+	public void execute() {
+		redo();
+	}
+	
+	@Override
+	public void undo() {
+		for (int i = runCount - 1; i >= 0; i--)
+			apply(i, (flags[i] & OLD_EXISTS) != 0, oldValues[i]);
+	}
+	
+	@Override
+	public void redo() {
+		for (int i = 0; i < runCount; i++)
+			apply(i, (flags[i] & NEW_EXISTS) != 0, newValues[i]);
+	}
+	
+	private void apply(int i, boolean exists, int value) {
+		if (exists)
+			plane.fill(map, runX[i], runY[i], runLength[i], caveLayer, value);
+		else
+			map.removeTiles(runX[i], runY[i], runLength[i], 1, caveLayer);
+	}
+	
+	public boolean isEmpty() {
+		return runCount == 0;
+	}
+	
+	public int getRunCount() {
+		return runCount;
+	}
+	
+	/**
+	 * Number of tile changes recorded, counting a tile recorded twice twice.
+	 */
+	public int getTileCount() {
+		int count = 0;
+		for (int i = 0; i < runCount; i++)
+			count += runLength[i];
+		
+		return count;
+	}
+	
+	@Override
+	public long getSize() {
+		return 64 + runX.length * 21L;
+	}
+}
@@ -0,0 +1,163 @@
+package net.buddat.wanalyse.gui.undo;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+
+import net.buddat.wanalyse.gui.Map;
+
+/**
+ * Flood fills one plane of a layer outwards from one tile, across every four
+ * way connected tile that matches it.
+ *
+ * Scanline fill: each seed taken off the stack is widened to the whole
+ * matching run of its row, the run is filled with one bulk call, and the rows
+ * above and below are scanned for one new seed per matching run. Seeds are
+ * kept as pairs on a plain int stack, so there is no recursion and nothing is
+ * allocated per tile. Filled tiles stop matching, so no visited set is needed
+ * either.
+ *
+ * The undo record is a TileChangeSet holding one run per filled row segment.
+ */
+public class TileFill implements UndoableAction {
+
+	private final Map map;
+	private final int startX, startY;
+	private final TileChangeSet.Plane plane;
+	private final int value;
+	private final boolean caveLayer;
+	
+	private boolean oldExists;
+	private int oldValue;
+	
+	private TileChangeSet changes;
+	
+	/* Bounds of the filled tiles. */
+	private int minX, minY, maxX, maxY;
+	
+	/* Seed stack, only held while filling. */
+	private int[] stack;
+	private int stackSize;
+	
+	/**
+	 * Fills at once.
+	 */
+	public TileFill(Map map, int x, int y, TileChangeSet.Plane plane, int value, boolean caveLayer) {
+		this.map = map;
+		this.startX = x;
+		this.startY = y;
+		this.plane = plane;
+		this.value = value;
+		this.caveLayer = caveLayer;
+		
+		execute();
+	}
+	
+	@Override
+	public void execute() {
+		changes = new TileChangeSet(map, plane, caveLayer);
+		minX = minY = Integer.MAX_VALUE;
+		maxX = maxY = -1;
+		if (!map.inBounds(startX, startY))
+			return;
+		
+		oldExists = map.hasTile(startX, startY, caveLayer);
+		oldValue = plane.get(map, startX, startY, caveLayer);
+		if (oldExists && oldValue == value)
+			return;
+		
+		int width = map.getMapWidth(), height = map.getMapHeight();
+		
+		stack = new int[64];
+		stackSize = 0;
+		push(startX, startY);
+		while (stackSize > 0) {
+			int y = stack[--stackSize];
+			int x = stack[--stackSize];
+			if (!matches(x, y))
+				continue;
+			
+			int x0 = x, x1 = x + 1;
+			while (x0 > 0 && matches(x0 - 1, y))
+				x0--;
+			while (x1 < width && matches(x1, y))
+				x1++;
+			
+			plane.fill(map, x0, y, x1 - x0, caveLayer, value);
+			changes.addRun(x0, y, x1 - x0, oldExists, oldValue, true, value);
+			minX = Math.min(minX, x0);
+			maxX = Math.max(maxX, x1 - 1);
+			minY = Math.min(minY, y);
+			maxY = Math.max(maxY, y);
+			
+			if (y > 0)
+				pushSeeds(x0, x1, y - 1);
+			if (y < height - 1)
+				pushSeeds(x0, x1, y + 1);
+		}
+		
+		changes.compact();
+		stack = null;
+	}
+	
+	@Override
+	public void undo() {
+		changes.undo();
+	}
+	
+	@Override
+	public void redo() {
+		changes.redo();
+	}
+	
+	@Override
+	public long getSize() {
+		return 64 + changes.getSize();
+	}
+	
+	/**
+	 * Whether the fill changed nothing, in which case there's no need to
+	 * keep it for undo.
+	 */
+	public boolean isEmpty() {
+		return changes.isEmpty();
+	}
+	
+	/**
+	 * Block of tiles covering everything filled, or null if nothing was.
+	 */
+	public Rectangle getBounds() {
+		if (maxX < 0)
+			return null;
+		
+		return new Rectangle(minX, minY, maxX - minX + 1, maxY - minY + 1);
+	}
+	
+	public int getTilesFilled() {
+		return changes.getTileCount();
+	}
+	
+	private boolean matches(int x, int y) {
+		return map.hasTile(x, y, caveLayer) == oldExists && plane.get(map, x, y, caveLayer) == oldValue;
+	}
+	
+	/*
+	 * One seed per run of matching tiles in the row between x0 and x1.
+	 */
+	private void pushSeeds(int x0, int x1, int y) {
+		boolean inRun = false;
+		for (int x = x0; x < x1; x++) {
+			boolean m = matches(x, y);
+			if (m && !inRun)
+				push(x, y);
+			inRun = m;
+		}
+	}
+	
+	private void push(int x, int y) {
+		if (stackSize + 2 > stack.length)
+			stack = Arrays.copyOf(stack, stack.length * 2);
+		
+		stack[stackSize++] = x;
+		stack[stackSize++] = y;
+	}
+}
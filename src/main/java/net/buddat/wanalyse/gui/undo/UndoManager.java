@@ -1,29 +1,68 @@
 package net.buddat.wanalyse.gui.undo;
 
+/**
+ * Undo history kept in a ring buffer, so adding, undoing and redoing are all
+ * constant time. How much history is kept depends on the size each action
+ * reports rather than on a count: the oldest actions are dropped once the
+ * total goes over the budget. The newest action is always kept, however big.
+ */
 public class UndoManager {
 
-	public static final int QUEUE_SIZE = 50;
+	public static final long DEFAULT_BUDGET = 64L * 1024 * 1024;
 	
-	private UndoableAction[] undoQueue = new UndoableAction[QUEUE_SIZE];
-	private int pos = 0;
+	private UndoableAction[] ring = new UndoableAction[64];
+	
+	/* Index of the oldest action, actions that can be undone, and all actions including redos. */
+	private int head, pos, count;
+	
+	private long budget, used;
 	
 	public UndoManager() {
-		
+		this(DEFAULT_BUDGET);
+	}
+	
+	public UndoManager(long budget) {
+		this.budget = budget;
+	}
+	
+	private int index(int i) {
+		return (head + i) & (ring.length - 1);
 	}
 	
 	public void addAction(UndoableAction action) {
-		if (pos < QUEUE_SIZE) {
-			undoQueue[pos++] = action;
-			
-			for (int i = pos; i < QUEUE_SIZE; i++)
-				undoQueue[i] = null;
-		} else {
-			UndoableAction[] tempQueue = new UndoableAction[QUEUE_SIZE];
-			System.arraycopy(undoQueue, 1, tempQueue, 0, QUEUE_SIZE - 1);
-			
-			undoQueue = tempQueue;
-			
-			undoQueue[pos - 1] = action;
+		/* Anything that could have been redone is gone now. */
+		for (int i = pos; i < count; i++) {
+			used -= ring[index(i)].getSize();
+			ring[index(i)] = null;
+		}
+		count = pos;
+		
+		if (count == ring.length)
+			grow();
+		
+		ring[index(count)] = action;
+		used += action.getSize();
+		pos = ++count;
+		
+		evict();
+	}
+	
+	private void grow() {
+		UndoableAction[] larger = new UndoableAction[ring.length * 2];
+		for (int i = 0; i < count; i++)
+			larger[i] = ring[index(i)];
+		
+		ring = larger;
+		head = 0;
+	}
+	
+	private void evict() {
+		while (used > budget && pos > 1) {
+			used -= ring[head].getSize();
+			ring[head] = null;
+			head = index(1);
+			pos--;
+			count--;
 		}
 	}
 	
@@ -32,16 +71,44 @@ public class UndoManager {
 	}
 	
 	public boolean canRedo() {
-		return (pos < QUEUE_SIZE) && (undoQueue[pos] != null);
+		return pos < count;
 	}
 	
 	public void undo() {
 		if (canUndo())
-			undoQueue[--pos].undo();
+			ring[index(--pos)].undo();
 	}
 	
 	public void redo() {
 		if (canRedo())
-			undoQueue[pos++].redo();
+			ring[index(pos++)].redo();
+	}
+	
+	public void clear() {
+		for (int i = 0; i < count; i++)
+			ring[index(i)] = null;
+		
+		head = pos = count = 0;
+		used = 0;
+	}
+	
+	/**
+	 * Number of actions held, counting those that can be redone.
+	 */
+	public int size() {
+		return count;
+	}
+	
+	public long getUsedBytes() {
+		return used;
+	}
+	
+	public long getBudget() {
+		return budget;
+	}
+	
+	public void setBudget(long budget) {
+		this.budget = budget;
+		evict();
 	}
 }
@@ -6,4 +6,10 @@ public interface UndoableAction {
 	public void undo();
 	public void redo();
 	
+	/**
+	 * Rough number of bytes this action keeps alive, for the undo manager's
+	 * memory budget.
+	 */
+	public long getSize();
+	
 }
@@ -0,0 +1,127 @@
+package net.buddat.wanalyse.ingest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.buddat.wanalyse.analyse.AnalyseReading;
+import net.buddat.wanalyse.analyse.LikelihoodMap;
+import net.buddat.wanalyse.analyse.ReadingFile;
+import net.buddat.wanalyse.analyse.VeinSolver;
+import net.buddat.wanalyse.gui.Map;
+
+/**
+ * Feeds messages read from the event logs into a map and its vein solver.
+ *
+ * The logs don't say where the player was standing, so messages are taken to
+ * come from the tile last set with {@link #setPosition(int, int)}. Analyse
+ * messages become readings from there, and prospecting messages set the ore
+ * of that tile on the cave layer. Every batch is applied in one go, then the
+ * batch callback is run once, so views only refresh once per batch.
+ *
+ * With a reading file set, a batch's readings are written to it before any
+ * of them are applied, so they are still there once the logs they came from
+ * have been checkpointed past.
+ */
+public class AnalyseIngester implements EventLogTailer.Listener {
+
+	private final Map map;
+	private final VeinSolver solver;
+	private final List<LikelihoodMap> heatmaps = new ArrayList<LikelihoodMap>();
+	
+	private int x, y;
+	private ReadingFile readingFile;
+	private Runnable batchDone;
+	private int readingCount, prospectCount;
+	
+	public AnalyseIngester(Map map, VeinSolver solver) {
+		this.map = map;
+		this.solver = solver;
+	}
+	
+	public Map getMap() {
+		return map;
+	}
+	
+	/**
+	 * Sets the tile, in the map's logical coordinates, that messages are
+	 * taken to come from.
+	 */
+	public void setPosition(int x, int y) {
+		this.x = x;
+		this.y = y;
+	}
+	
+	public int getX() {
+		return x;
+	}
+	
+	public int getY() {
+		return y;
+	}
+	
+	/**
+	 * Also adds readings to a heatmap. Readings for other veins are ignored
+	 * by it.
+	 */
+	public void addHeatmap(LikelihoodMap heatmap) {
+		heatmaps.add(heatmap);
+	}
+	
+	public void removeHeatmap(LikelihoodMap heatmap) {
+		heatmaps.remove(heatmap);
+	}
+	
+	/**
+	 * Keeps every reading taken in a file from now on, or none if null.
+	 */
+	public void setReadingFile(ReadingFile readingFile) {
+		this.readingFile = readingFile;
+	}
+	
+	public ReadingFile getReadingFile() {
+		return readingFile;
+	}
+	
+	public void setBatchDone(Runnable batchDone) {
+		this.batchDone = batchDone;
+	}
+	
+	@Override
+	public void eventsRead(List<LogEvent> events) throws IOException {
+		int storageX = x + map.getOriginX(), storageY = y + map.getOriginY();
+		
+		List<AnalyseReading> readings = new ArrayList<AnalyseReading>();
+		for (LogEvent e : events)
+			if (e.getType() == LogEvent.Type.ANALYSE)
+				readings.add(new AnalyseReading(storageX, storageY, e.getDirection(), e.getDistance(), e.getOre(),
+						e.getQuality()));
+		if (readingFile != null)
+			readingFile.append(readings);
+		
+		for (AnalyseReading r : readings) {
+			solver.addReading(r);
+			for (LikelihoodMap heatmap : heatmaps)
+				heatmap.addReading(r);
+		}
+		readingCount += readings.size();
+		
+		for (LogEvent e : events) {
+			if (e.getType() == LogEvent.Type.PROSPECT) {
+				map.setTerrainType(x, y, true, e.getOre().getId());
+				prospectCount++;
+			}
+		}
+		
+		if (batchDone != null)
+			batchDone.run();
+	}
+	
+	public int getReadingCount() {
+		return readingCount;
+	}
+	
+	public int getProspectCount() {
+		return prospectCount;
+	}
+}
@@ -0,0 +1,333 @@
+package net.buddat.wanalyse.ingest;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Follows the event logs in a Wurm client log directory and hands the
+ * analyse and prospecting messages in them to a listener, in batches.
+ *
+ * Each file is read from where the last poll left off, by mapping the new
+ * part of the file and scanning it in place, so catching up on years of old
+ * logs runs about as fast as the disk. Read positions are kept per file in a
+ * checkpoint file, so a restart carries on where it stopped rather than
+ * reading everything again. A line still being written is left for the next
+ * poll.
+ *
+ * Polling runs on a background thread; batches are handed to the delivery
+ * executor, which for the GUI would be the EDT. A batch's read positions are
+ * only checkpointed once the listener has returned from it, so messages that
+ * were queued but never applied are read again after a restart. The delivery
+ * executor only notes how far has been applied; the checkpoint file is
+ * written by the next poll. If the listener fails, nothing is checkpointed
+ * from then on and polling reports the error.
+ */
+public class EventLogTailer {
+
+	public interface Listener {
+		public void eventsRead(List<LogEvent> events) throws IOException;
+	}
+	
+	public static final long DEFAULT_INTERVAL = 500;
+	
+	/* Messages a batch is handed over at, once the window they are in is read. */
+	public static final int BATCH_SIZE = 4096;
+	
+	/* Most of a file mapped at once. */
+	private static final long WINDOW = 64L * 1024 * 1024;
+	
+	private static final FilenameFilter EVENT_LOGS = new FilenameFilter() {
+		@Override
+		public boolean accept(File dir, String name) {
+			return name.startsWith("_Event.") && name.endsWith(".txt");
+		}
+	};
+	
+	private final File logDir;
+	private final File checkpointFile;
+	private final Listener listener;
+	private final Executor delivery;
+	
+	/* Positions the listener has applied everything before, as saved. */
+	private final Properties checkpoints = new Properties();
+	/* Positions read up to by the polling thread. */
+	private final HashMap<String, Long> positions = new HashMap<String, Long>();
+	/* Positions applied by the listener and not yet checkpointed. */
+	private final AtomicReference<HashMap<String, Long>> applied = new AtomicReference<HashMap<String, Long>>();
+	/* Batches handed to the delivery executor and not yet applied. */
+	private final AtomicInteger undelivered = new AtomicInteger();
+	private final LogScanner scanner = new LogScanner();
+	
+	private List<LogEvent> batch = new ArrayList<LogEvent>();
+	private final LogScanner.Sink sink = new LogScanner.Sink() {
+		@Override
+		public void event(LogEvent e) {
+			batch.add(e);
+		}
+	};
+	
+	private ScheduledExecutorService executor;
+	private ScheduledFuture<?> task;
+	private long interval = DEFAULT_INTERVAL;
+	private volatile IOException lastError;
+	private volatile IOException deliveryError;
+	
+	/**
+	 * @param logDir the client's log directory
+	 * @param checkpointFile where read positions are kept, created if missing
+	 * @param listener receives the messages read
+	 * @param delivery the executor the listener is called on
+	 */
+	public EventLogTailer(File logDir, File checkpointFile, Listener listener, Executor delivery) throws IOException {
+		this.logDir = logDir;
+		this.checkpointFile = checkpointFile;
+		this.listener = listener;
+		this.delivery = delivery;
+		
+		if (checkpointFile.exists()) {
+			InputStream in = new FileInputStream(checkpointFile);
+			try {
+				checkpoints.load(in);
+			} finally {
+				in.close();
+			}
+		}
+		for (String name : checkpoints.stringPropertyNames())
+			positions.put(name, Long.parseLong(checkpoints.getProperty(name)));
+	}
+	
+	public synchronized void start() {
+		if (executor == null) {
+			executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "WAnalyse event log");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		if (task != null)
+			task.cancel(false);
+		
+		task = executor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					poll();
+					lastError = null;
+				} catch (IOException e) {
+					lastError = e;
+				}
+			}
+		}, 0, interval, TimeUnit.MILLISECONDS);
+	}
+	
+	public synchronized void stop() {
+		if (task != null)
+			task.cancel(false);
+		task = null;
+	}
+	
+	/**
+	 * Stops polling and checkpoints whatever the listener has applied since
+	 * the last poll.
+	 */
+	public synchronized void shutdown() {
+		stop();
+		if (executor != null)
+			executor.shutdown();
+		
+		try {
+			commit();
+		} catch (IOException e) {
+			lastError = e;
+		}
+	}
+	
+	public synchronized void setInterval(long interval) {
+		this.interval = interval;
+		if (task != null)
+			start();
+	}
+	
+	public IOException getLastError() {
+		return lastError;
+	}
+	
+	/**
+	 * Reads everything new in every event log once, oldest file first, and
+	 * hands it to the listener. Called by the polling thread, or directly to
+	 * catch up without polling. Throws the listener's error once it has failed.
+	 */
+	public synchronized void poll() throws IOException {
+		if (deliveryError != null)
+			throw deliveryError;
+		
+		String[] names = logDir.list(EVENT_LOGS);
+		if (names == null)
+			throw new IOException("Not a directory: " + logDir);
+		
+		/* Log names carry their date, so name order is age order. */
+		Arrays.sort(names);
+		
+		boolean moved = false;
+		for (String name : names)
+			moved |= readFile(name);
+		
+		if (moved || !batch.isEmpty())
+			deliver();
+		commit();
+	}
+	
+	/*
+	 * Reads one file from where the last poll left it, returning whether it
+	 * moved on.
+	 */
+	private boolean readFile(String name) throws IOException {
+		Long last = positions.get(name);
+		long start = last == null ? 0 : last;
+		long pos = start;
+		
+		FileChannel channel = FileChannel.open(new File(logDir, name).toPath(), StandardOpenOption.READ);
+		try {
+			long size = channel.size();
+			if (size < pos) {
+				/* Shorter than before, so a new file by the same name. */
+				pos = 0;
+			}
+			
+			while (pos < size) {
+				long length = Math.min(WINDOW, size - pos);
+				MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, pos, length);
+				int scanned = scanner.scan(buf, sink);
+				
+				if (scanned > 0) {
+					pos += scanned;
+				} else if (length == WINDOW) {
+					/* A whole window without a line break isn't a log line. */
+					pos += length;
+				} else {
+					break;
+				}
+				
+				positions.put(name, pos);
+				if (batch.size() >= BATCH_SIZE)
+					deliver();
+			}
+		} finally {
+			channel.close();
+		}
+		
+		if (pos != start)
+			positions.put(name, pos);
+		return pos != start;
+	}
+	
+	/**
+	 * How far into the named log file the listener has applied, as
+	 * checkpointed.
+	 */
+	public long getPosition(String name) {
+		synchronized (checkpoints) {
+			String pos = checkpoints.getProperty(name);
+			return pos == null ? 0 : Long.parseLong(pos);
+		}
+	}
+	
+	/*
+	 * Hands the batch to the listener along with the positions read so far,
+	 * which are checkpointed once it has been applied. With no messages and
+	 * nothing still queued for the listener, the positions count as applied
+	 * straight away.
+	 */
+	private void deliver() {
+		final List<LogEvent> events = batch;
+		final HashMap<String, Long> reached = new HashMap<String, Long>(positions);
+		batch = new ArrayList<LogEvent>();
+		if (events.isEmpty() && undelivered.get() == 0) {
+			applied.set(reached);
+			return;
+		}
+		
+		undelivered.incrementAndGet();
+		delivery.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (deliveryError != null)
+					return;
+				
+				try {
+					if (!events.isEmpty())
+						listener.eventsRead(events);
+					applied.set(reached);
+					undelivered.decrementAndGet();
+				} catch (IOException e) {
+					deliveryError = e;
+					lastError = e;
+				}
+			}
+		});
+	}
+	
+	/*
+	 * Saves the positions applied since the last commit, if any. Runs on the
+	 * polling thread, never on the delivery executor.
+	 */
+	private void commit() throws IOException {
+		HashMap<String, Long> reached = applied.getAndSet(null);
+		if (reached == null || deliveryError != null)
+			return;
+		
+		synchronized (checkpoints) {
+			for (Map.Entry<String, Long> e : reached.entrySet())
+				checkpoints.setProperty(e.getKey(), Long.toString(e.getValue()));
+			saveCheckpoints();
+		}
+	}
+	
+	/*
+	 * Written aside and renamed over the old checkpoints, so a crash never
+	 * leaves them half written.
+	 */
+	private void saveCheckpoints() throws IOException {
+		File dir = checkpointFile.getAbsoluteFile().getParentFile();
+		if (dir != null)
+			dir.mkdirs();
+		
+		File replacement = new File(checkpointFile.getPath() + ".new");
+		OutputStream out = new FileOutputStream(replacement);
+		try {
+			checkpoints.store(out, "WAnalyse event log read positions");
+		} finally {
+			out.close();
+		}
+		
+		Files.move(replacement.toPath(), checkpointFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+}
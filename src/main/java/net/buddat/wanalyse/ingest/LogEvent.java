@@ -0,0 +1,65 @@
+package net.buddat.wanalyse.ingest;
+
+import net.buddat.wanalyse.analyse.Direction;
+import net.buddat.wanalyse.analyse.DistanceBand;
+import net.buddat.wanalyse.analyse.OreQuality;
+import net.buddat.wanalyse.gui.TerrainType;
+
+/**
+ * One message of interest read from an event log. Analyse messages point at
+ * a vein somewhere else; prospecting messages describe the tile the player is
+ * working on, and have no direction or distance.
+ */
+public class LogEvent {
+
+	public enum Type {
+		ANALYSE, PROSPECT
+	}
+	
+	private final Type type;
+	private final int time;
+	private final TerrainType ore;
+	private final OreQuality quality;
+	private final Direction direction;
+	private final DistanceBand distance;
+	
+	public LogEvent(Type type, int time, TerrainType ore, OreQuality quality, Direction direction, DistanceBand distance) {
+		this.type = type;
+		this.time = time;
+		this.ore = ore;
+		this.quality = quality;
+		this.direction = direction;
+		this.distance = distance;
+	}
+	
+	public Type getType() {
+		return type;
+	}
+	
+	/**
+	 * Time of day the message was logged, in seconds, or -1 if the line had
+	 * no timestamp.
+	 */
+	public int getTime() {
+		return time;
+	}
+	
+	public TerrainType getOre() {
+		return ore;
+	}
+	
+	/**
+	 * Quality hint, or null if the message gave none.
+	 */
+	public OreQuality getQuality() {
+		return quality;
+	}
+	
+	public Direction getDirection() {
+		return direction;
+	}
+	
+	public DistanceBand getDistance() {
+		return distance;
+	}
+}
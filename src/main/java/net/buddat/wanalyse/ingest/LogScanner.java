@@ -0,0 +1,289 @@
+package net.buddat.wanalyse.ingest;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.EnumSet;
+
+import net.buddat.wanalyse.analyse.Direction;
+import net.buddat.wanalyse.analyse.DistanceBand;
+import net.buddat.wanalyse.analyse.OreQuality;
+import net.buddat.wanalyse.gui.TerrainType;
+
+/**
+ * Picks analyse and prospecting messages out of raw event log bytes.
+ *
+ * Lines are matched in place in the buffer, usually a mapping of the log
+ * file, against keyword tables held as ASCII bytes. Nothing is allocated for
+ * lines that don't match, which is nearly all of them. The messages read are:
+ * <pre>
+ * [hh:mm:ss] You spot traces of &lt;ore&gt; [(&lt;quality&gt;)] &lt;distance&gt; to the &lt;direction&gt;.
+ * [hh:mm:ss] You would mine &lt;ore&gt; [(&lt;quality&gt;)] here.
+ * </pre>
+ * Keywords are the display names of the analyse enums, matched ignoring case,
+ * and an ore name may be followed by " ore". Not thread safe; use one scanner
+ * per thread.
+ */
+public class LogScanner {
+
+	public interface Sink {
+		public void event(LogEvent e);
+	}
+	
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+	
+	private static final byte[] ANALYSE = bytes("you spot traces of ");
+	private static final byte[] PROSPECT = bytes("you would mine ");
+	private static final byte[] ORE_SUFFIX = bytes(" ore");
+	private static final byte[] TO_THE = bytes(" to the ");
+	private static final byte[] HERE = bytes(" here");
+	
+	private static final Keywords<TerrainType> ORES;
+	private static final Keywords<OreQuality> QUALITIES;
+	private static final Keywords<DistanceBand> DISTANCES;
+	private static final Keywords<Direction> DIRECTIONS;
+	
+	static {
+		EnumSet<TerrainType> ores = EnumSet.range(TerrainType.IRON, TerrainType.ROCKSALT);
+		String[] names = new String[ores.size()];
+		int i = 0;
+		for (TerrainType t : ores)
+			names[i++] = t.getDisplayName();
+		ORES = new Keywords<TerrainType>(ores.toArray(new TerrainType[ores.size()]), names);
+		
+		
+		names = new String[OreQuality.values().length];
+		for (OreQuality q : OreQuality.values())
+			names[q.ordinal()] = q.getDisplayName();
+		QUALITIES = new Keywords<OreQuality>(OreQuality.values(), names);
+		
+		names = new String[DistanceBand.values().length];
+		for (DistanceBand b : DistanceBand.values())
+			names[b.ordinal()] = b.getDisplayName();
+		DISTANCES = new Keywords<DistanceBand>(DistanceBand.values(), names);
+		
+		names = new String[Direction.values().length];
+		for (Direction d : Direction.values())
+			names[d.ordinal()] = d.getDisplayName();
+		DIRECTIONS = new Keywords<Direction>(Direction.values(), names);
+	}
+	
+	/*
+	 * Lower case keywords and their values, longest first so that "north"
+	 * can't match the start of "northeast".
+	 */
+	private static class Keywords<T> {
+		private final byte[][] words;
+		private final T[] values;
+		
+		private Keywords(T[] values, String[] names) {
+			Integer[] order = new Integer[values.length];
+			for (int i = 0; i < order.length; i++)
+				order[i] = i;
+			
+			final String[] n = names;
+			Arrays.sort(order, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer a, Integer b) {
+					return n[b].length() - n[a].length();
+				}
+			});
+			
+			this.words = new byte[values.length][];
+			this.values = values.clone();
+			for (int i = 0; i < order.length; i++) {
+				words[i] = bytes(names[order[i]].toLowerCase());
+				this.values[i] = values[order[i]];
+			}
+		}
+	}
+	
+	private static byte[] bytes(String s) {
+		return s.getBytes(ASCII);
+	}
+	
+	/* Read position within the line being parsed, and its end. */
+	private int pos, end;
+	
+	/**
+	 * Scans every complete line between the buffer's position and limit,
+	 * passing each message found to the sink. Returns the number of bytes
+	 * scanned, which stops after the last line break; anything after it is
+	 * a line still being written. The buffer's position is not changed.
+	 */
+	public int scan(ByteBuffer buf, Sink sink) {
+		int start = buf.position(), limit = buf.limit();
+		int lineStart = start;
+		
+		for (int i = start; i < limit; i++) {
+			if (buf.get(i) != '\n')
+				continue;
+			
+			int lineEnd = i;
+			if (lineEnd > lineStart && buf.get(lineEnd - 1) == '\r')
+				lineEnd--;
+			
+			LogEvent e = parseLine(buf, lineStart, lineEnd);
+			if (e != null)
+				sink.event(e);
+			lineStart = i + 1;
+		}
+		
+		return lineStart - start;
+	}
+	
+	/**
+	 * Parses one line, without its line break, or returns null if it isn't a
+	 * message this scanner reads.
+	 */
+	public LogEvent parseLine(ByteBuffer buf, int lineStart, int lineEnd) {
+		pos = lineStart;
+		end = lineEnd;
+		
+		int time = -1;
+		if (pos < end && buf.get(pos) == '[') {
+			time = parseTime(buf);
+			if (time < 0)
+				return null;
+		}
+		
+		if (match(buf, ANALYSE))
+			return parseAnalyse(buf, time);
+		if (match(buf, PROSPECT))
+			return parseProspect(buf, time);
+		
+		return null;
+	}
+	
+	/*
+	 * "[hh:mm:ss] " to seconds of the day.
+	 */
+	private int parseTime(ByteBuffer buf) {
+		if (end - pos < 11 || buf.get(pos + 9) != ']' || buf.get(pos + 10) != ' ')
+			return -1;
+		
+		int h = digits(buf, pos + 1), m = digits(buf, pos + 4), s = digits(buf, pos + 7);
+		if (h < 0 || m < 0 || s < 0)
+			return -1;
+		
+		pos += 11;
+		return h * 3600 + m * 60 + s;
+	}
+	
+	private static int digits(ByteBuffer buf, int i) {
+		int a = buf.get(i) - '0', b = buf.get(i + 1) - '0';
+		if (a < 0 || a > 9 || b < 0 || b > 9)
+			return -1;
+		
+		return a * 10 + b;
+	}
+	
+	private LogEvent parseAnalyse(ByteBuffer buf, int time) {
+		TerrainType ore = matchOre(buf);
+		if (ore == null)
+			return null;
+		
+		OreQuality quality = matchQuality(buf);
+		if (!match(buf, (byte) ' '))
+			return null;
+		
+		DistanceBand distance = match(buf, DISTANCES);
+		if (distance == null || !match(buf, TO_THE))
+			return null;
+		
+		Direction direction = match(buf, DIRECTIONS);
+		if (direction == null || !atEnd(buf))
+			return null;
+		
+		return new LogEvent(LogEvent.Type.ANALYSE, time, ore, quality, direction, distance);
+	}
+	
+	private LogEvent parseProspect(ByteBuffer buf, int time) {
+		TerrainType ore = matchOre(buf);
+		if (ore == null)
+			return null;
+		
+		OreQuality quality = matchQuality(buf);
+		if (!match(buf, HERE) || !atEnd(buf))
+			return null;
+		
+		return new LogEvent(LogEvent.Type.PROSPECT, time, ore, quality, null, null);
+	}
+	
+	private TerrainType matchOre(ByteBuffer buf) {
+		TerrainType ore = match(buf, ORES);
+		if (ore != null)
+			match(buf, ORE_SUFFIX);
+		
+		return ore;
+	}
+	
+	/*
+	 * An optional " (quality)".
+	 */
+	private OreQuality matchQuality(ByteBuffer buf) {
+		int mark = pos;
+		if (!match(buf, (byte) ' ') || !match(buf, (byte) '('))
+			return reset(mark);
+		
+		OreQuality quality = match(buf, QUALITIES);
+		if (quality == null || !match(buf, (byte) ')'))
+			return reset(mark);
+		
+		return quality;
+	}
+	
+	private OreQuality reset(int mark) {
+		pos = mark;
+		return null;
+	}
+	
+	/*
+	 * Whether only a full stop and trailing spaces are left.
+	 */
+	private boolean atEnd(ByteBuffer buf) {
+		match(buf, (byte) '.');
+		while (pos < end && buf.get(pos) == ' ')
+			pos++;
+		
+		return pos == end;
+	}
+	
+	private boolean match(ByteBuffer buf, byte b) {
+		if (pos < end && buf.get(pos) == b) {
+			pos++;
+			return true;
+		}
+		
+		return false;
+	}
+	
+	/*
+	 * Case insensitive match of a lower case ASCII word, advancing past it if
+	 * found.
+	 */
+	private boolean match(ByteBuffer buf, byte[] word) {
+		if (end - pos < word.length)
+			return false;
+		
+		for (int i = 0; i < word.length; i++) {
+			int b = buf.get(pos + i);
+			if (b >= 'A' && b <= 'Z')
+				b += 'a' - 'A';
+			if (b != word[i])
+				return false;
+		}
+		
+		pos += word.length;
+		return true;
+	}
+	
+	private <T> T match(ByteBuffer buf, Keywords<T> keywords) {
+		for (int i = 0; i < keywords.words.length; i++)
+			if (match(buf, keywords.words[i]))
+				return keywords.values[i];
+		
+		return null;
+	}
+}
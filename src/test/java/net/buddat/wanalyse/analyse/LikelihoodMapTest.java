@@ -0,0 +1,91 @@
+package net.buddat.wanalyse.analyse;
+
+import java.util.Collection;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import junit.framework.TestCase;
+import net.buddat.wanalyse.gui.MapChunk;
+import net.buddat.wanalyse.gui.TerrainType;
+
+public class LikelihoodMapTest extends TestCase {
+
+	private static final Vein IRON = new Vein(TerrainType.IRON, OreQuality.GOOD);
+	
+	private static AnalyseReading reading(int x, int y, Direction d, DistanceBand band) {
+		return new AnalyseReading(x, y, d, band, TerrainType.IRON, OreQuality.GOOD);
+	}
+	
+	public void testNarrowReadingsWeighMore() {
+		AnalyseReading close = reading(0, 0, Direction.EAST, DistanceBand.CLOSE);
+		AnalyseReading far = reading(0, 0, Direction.EAST, DistanceBand.VERY_FAR);
+		assertTrue(LikelihoodMap.getWeight(close) > LikelihoodMap.getWeight(far));
+		assertTrue(LikelihoodMap.getWeight(far) > 0);
+	}
+	
+	public void testScoresSumCoveringReadings() {
+		LikelihoodMap heatmap = new LikelihoodMap(IRON);
+		AnalyseReading a = reading(0, 0, Direction.EAST, DistanceBand.CLOSE);
+		AnalyseReading b = reading(5, 10, Direction.NORTH, DistanceBand.CLOSE);
+		heatmap.addReading(a);
+		heatmap.addReading(b);
+		heatmap.addReading(new AnalyseReading(0, 0, Direction.EAST, DistanceBand.CLOSE, TerrainType.TIN, OreQuality.GOOD));
+		assertTrue(heatmap.needsUpdate());
+		heatmap.update();
+		assertFalse(heatmap.needsUpdate());
+		
+		float both = (float) LikelihoodMap.getWeight(a) + (float) LikelihoodMap.getWeight(b);
+		assertEquals(both, heatmap.getScore(5, 1), 1e-4f);
+		assertEquals((float) LikelihoodMap.getWeight(a), heatmap.getScore(8, 3), 1e-4f);
+		assertEquals(0f, heatmap.getScore(-5, 0));
+		assertEquals(1.0, heatmap.getLikelihood(5, 1), 1e-6);
+		assertTrue(heatmap.getLikelihood(8, 3) < 1.0);
+		assertEquals(2, heatmap.getReadings().size());
+	}
+	
+	public void testUpdateOnlyTouchesAffectedChunks() {
+		LikelihoodMap heatmap = new LikelihoodMap(IRON);
+		heatmap.addReading(reading(32, 32, Direction.EAST, DistanceBand.VERY_CLOSE));
+		heatmap.update();
+		
+		LikelihoodMap.Chunk before = heatmap.getChunk(0, 0);
+		Collection<Long> changed = heatmap.update();
+		assertTrue(changed.isEmpty());
+		
+		heatmap.addReading(reading(1000, 1000, Direction.WEST, DistanceBand.VERY_CLOSE));
+		changed = heatmap.update();
+		assertFalse(changed.contains(MapChunk.key(0, 0)));
+		assertSame(before, heatmap.getChunk(0, 0));
+		assertNotNull(heatmap.getChunk(998 >> MapChunk.SHIFT, 1000 >> MapChunk.SHIFT));
+	}
+	
+	public void testIncrementalMatchesFullRecompute() {
+		Random rnd = new Random(3);
+		ForkJoinPool pool = new ForkJoinPool(4);
+		LikelihoodMap incremental = new LikelihoodMap(IRON, pool);
+		LikelihoodMap full = new LikelihoodMap(IRON, pool);
+		
+		AnalyseReading removed = null;
+		for (int i = 0; i < 200; i++) {
+			AnalyseReading r = reading(rnd.nextInt(300) - 150, rnd.nextInt(300) - 150,
+					Direction.values()[rnd.nextInt(8)], DistanceBand.values()[rnd.nextInt(4)]);
+			incremental.addReading(r);
+			if (i % 20 == 0)
+				incremental.update();
+			
+			if (i == 50)
+				removed = r;
+			else
+				full.addReading(r);
+		}
+		incremental.removeReading(removed);
+		incremental.update();
+		full.update();
+		pool.shutdown();
+		
+		assertEquals(full.getMaxScore(), incremental.getMaxScore(), 1e-3f);
+		for (int y = -200; y < 200; y += 3)
+			for (int x = -200; x < 200; x += 3)
+				assertEquals(full.getScore(x, y), incremental.getScore(x, y), 1e-3f);
+	}
+}
@@ -0,0 +1,65 @@
+package net.buddat.wanalyse.analyse;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+import net.buddat.wanalyse.gui.TerrainType;
+
+public class ReadingFileTest extends TestCase {
+
+	private File file;
+	
+	@Override
+	protected void setUp() throws IOException {
+		file = File.createTempFile("wanalyse", ReadingFile.EXT);
+		file.delete();
+	}
+	
+	@Override
+	protected void tearDown() {
+		file.delete();
+	}
+	
+	public void testAppendsAndReadsBack() throws IOException {
+		ReadingFile readings = new ReadingFile(file);
+		assertTrue(readings.read().isEmpty());
+		
+		readings.append(Arrays.asList(
+				new AnalyseReading(3, 4, Direction.NORTHEAST, DistanceBand.FAR, TerrainType.IRON, OreQuality.GOOD),
+				new AnalyseReading(-2, 7, Direction.SOUTH, DistanceBand.VERY_CLOSE, TerrainType.GOLD, null)));
+		readings.append(Arrays.asList(
+				new AnalyseReading(5, 5, Direction.WEST, DistanceBand.CLOSE, TerrainType.TIN, OreQuality.POOR)));
+		
+		List<AnalyseReading> read = readings.read();
+		assertEquals(3, read.size());
+		assertEquals(-2, read.get(1).getX());
+		assertEquals(Direction.SOUTH, read.get(1).getDirection());
+		assertEquals(new Vein(TerrainType.GOLD, null), read.get(1).getVein());
+		assertEquals(new Vein(TerrainType.TIN, OreQuality.POOR), read.get(2).getVein());
+	}
+	
+	public void testCutShortLineIsDropped() throws IOException {
+		ReadingFile readings = new ReadingFile(file);
+		readings.append(Arrays.asList(
+				new AnalyseReading(3, 4, Direction.NORTH, DistanceBand.FAR, TerrainType.IRON, OreQuality.GOOD)));
+		
+		OutputStream out = new FileOutputStream(file, true);
+		try {
+			out.write("8 9 EAST CL".getBytes("US-ASCII"));
+		} finally {
+			out.close();
+		}
+		assertEquals(1, readings.read().size());
+		
+		readings.append(Arrays.asList(
+				new AnalyseReading(1, 1, Direction.EAST, DistanceBand.CLOSE, TerrainType.ZINC, null)));
+		List<AnalyseReading> read = readings.read();
+		assertEquals(2, read.size());
+		assertEquals(TerrainType.ZINC, read.get(1).getVein().getOre());
+	}
+}
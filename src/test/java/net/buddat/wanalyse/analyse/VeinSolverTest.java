@@ -0,0 +1,134 @@
+package net.buddat.wanalyse.analyse;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+import net.buddat.wanalyse.gui.TerrainType;
+
+public class VeinSolverTest extends TestCase {
+
+	private static final Vein IRON = new Vein(TerrainType.IRON, OreQuality.GOOD);
+	
+	public void testDirectionSectors() {
+		assertTrue(Direction.NORTH.contains(0, -5));
+		assertTrue(Direction.NORTH.contains(2, -5));
+		assertFalse(Direction.NORTH.contains(3, -5));
+		assertTrue(Direction.NORTHEAST.contains(5, -5));
+		assertTrue(Direction.NORTHEAST.contains(5, -3));
+		assertFalse(Direction.NORTHEAST.contains(5, -2));
+		assertTrue(Direction.EAST.contains(5, -2));
+		assertTrue(Direction.SOUTHWEST.contains(-4, 4));
+		assertFalse(Direction.SOUTH.contains(0, 0));
+		
+		/* Every tile but the centre is in at least one direction. */
+		for (int dy = -10; dy <= 10; dy++) {
+			for (int dx = -10; dx <= 10; dx++) {
+				int n = 0;
+				for (Direction d : Direction.values())
+					if (d.contains(dx, dy))
+						n++;
+				assertTrue(dx + "," + dy, (dx == 0 && dy == 0) == (n == 0));
+			}
+		}
+		
+		assertEquals(Direction.SOUTHEAST, Direction.fromName("south east"));
+	}
+	
+	public void testReadingsIntersect() {
+		VeinSolver solver = new VeinSolver();
+		solver.addReading(new AnalyseReading(100, 100, Direction.EAST, DistanceBand.CLOSE, TerrainType.IRON, OreQuality.GOOD));
+		assertTrue(solver.isCandidate(IRON, 105, 100));
+		assertTrue(solver.isCandidate(IRON, 109, 102));
+		assertFalse(solver.isCandidate(IRON, 102, 100));
+		
+		solver.addReading(new AnalyseReading(106, 110, Direction.NORTH, DistanceBand.CLOSE, TerrainType.IRON, OreQuality.GOOD));
+		assertTrue(solver.isCandidate(IRON, 106, 101));
+		assertFalse(solver.isCandidate(IRON, 109, 100));
+		
+		/* Other veins are kept apart. */
+		Vein tin = new Vein(TerrainType.TIN, OreQuality.GOOD);
+		assertFalse(solver.isCandidate(tin, 106, 101));
+		assertEquals(2, solver.getReadings().size());
+		assertEquals(1, solver.getVeins().size());
+	}
+	
+	public void testIncrementalMatchesBruteForce() {
+		Random rnd = new Random(7);
+		int veinX = 40, veinY = -30;
+		AnalyseReading[] readings = new AnalyseReading[40];
+		VeinSolver solver = new VeinSolver();
+		
+		for (int i = 0; i < readings.length; i++) {
+			int x = veinX + rnd.nextInt(81) - 40, y = veinY + rnd.nextInt(81) - 40;
+			AnalyseReading r = reading(x, y, veinX, veinY);
+			if (r == null)
+				continue;
+			
+			readings[i] = r;
+			solver.addReading(r);
+		}
+		
+		CandidateSet set = solver.getCandidates(IRON);
+		assertTrue(set.contains(veinX, veinY));
+		
+		int count = 0;
+		for (int y = veinY - 100; y <= veinY + 100; y++) {
+			for (int x = veinX - 100; x <= veinX + 100; x++) {
+				boolean expected = true;
+				for (AnalyseReading r : readings)
+					if (r != null && !r.covers(x, y))
+						expected = false;
+				assertEquals(expected, set.contains(x, y));
+				if (expected)
+					count++;
+			}
+		}
+		assertEquals(count, set.getCount());
+	}
+	
+	public void testRemoveReadingWidensCandidates() {
+		VeinSolver solver = new VeinSolver();
+		AnalyseReading a = new AnalyseReading(0, 0, Direction.EAST, DistanceBand.FAR, TerrainType.IRON, OreQuality.GOOD);
+		AnalyseReading b = new AnalyseReading(0, 0, Direction.EAST, DistanceBand.CLOSE, TerrainType.IRON, OreQuality.GOOD);
+		solver.addReading(a);
+		int wide = solver.getCandidates(IRON).getCount();
+		
+		solver.addReading(b);
+		assertEquals(0, solver.getCandidates(IRON).getCount());
+		
+		solver.removeReading(b);
+		assertEquals(wide, solver.getCandidates(IRON).getCount());
+		
+		solver.removeReading(a);
+		assertNull(solver.getCandidates(IRON));
+	}
+	
+	public void testThousandsOfReadingsStayFast() {
+		Random rnd = new Random(11);
+		VeinSolver solver = new VeinSolver();
+		
+		long start = System.nanoTime();
+		for (int i = 0; i < 5000; i++) {
+			AnalyseReading r = reading(rnd.nextInt(200) - 100, rnd.nextInt(200) - 100, 0, 0);
+			if (r != null)
+				solver.addReading(r);
+		}
+		long millis = (System.nanoTime() - start) / 1000000;
+		
+		assertTrue(solver.isCandidate(IRON, 0, 0));
+		assertTrue("took " + millis + "ms", millis < 1000);
+	}
+	
+	/*
+	 * A reading taken at x, y that is true of a vein at veinX, veinY.
+	 */
+	private static AnalyseReading reading(int x, int y, int veinX, int veinY) {
+		int dx = veinX - x, dy = veinY - y;
+		for (DistanceBand band : DistanceBand.values())
+			for (Direction d : Direction.values())
+				if (band.contains(dx, dy) && d.contains(dx, dy))
+					return new AnalyseReading(x, y, d, band, TerrainType.IRON, OreQuality.GOOD);
+		
+		return null;
+	}
+}
@@ -0,0 +1,111 @@
+package net.buddat.wanalyse.batch;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+import net.buddat.wanalyse.analyse.OreQuality;
+import net.buddat.wanalyse.analyse.Vein;
+import net.buddat.wanalyse.gui.Map;
+import net.buddat.wanalyse.gui.TerrainType;
+
+public class BatchJobTest extends TestCase {
+
+	private File dir;
+	
+	@Override
+	protected void setUp() throws IOException {
+		dir = File.createTempFile("wanalyse", "batch");
+		dir.delete();
+		new File(dir, "logs").mkdirs();
+	}
+	
+	@Override
+	protected void tearDown() {
+		delete(dir);
+	}
+	
+	private static void delete(File f) {
+		File[] children = f.listFiles();
+		if (children != null)
+			for (File c : children)
+				delete(c);
+		f.delete();
+	}
+	
+	private BatchJob job(String name, String... pairs) {
+		Properties props = new Properties();
+		for (int i = 0; i < pairs.length; i += 2)
+			props.setProperty(pairs[i], pairs[i + 1]);
+		
+		return new BatchJob(name, dir, props);
+	}
+	
+	public void testJobsRunInParallel() throws IOException {
+		OutputStream out = new FileOutputStream(new File(dir, "logs/_Event.2024-01.txt"));
+		out.write(("[10:00:00] You would mine iron here.\n"
+				+ "[10:00:01] You spot traces of silver (good) close to the east.\n").getBytes("US-ASCII"));
+		out.close();
+		
+		List<BatchJob> jobs = new ArrayList<BatchJob>();
+		jobs.add(job("north", "map", "north.wam", "size", "100x80", "logs", "logs", "position", "20,20",
+				"vein", "silver,good", "png", "north.png", "tileSize", "2", "cave", "true"));
+		jobs.add(job("south", "map", "south.wam", "png", "south.png"));
+		jobs.add(job("broken"));
+		
+		assertEquals(1, BatchMode.runJobs(jobs, 2));
+		assertTrue(new File(dir, "north.png").length() > 0);
+		assertTrue(new File(dir, "south.png").length() > 0);
+		
+		Map north = Map.loadMap(new File(dir, "north.wam"));
+		assertEquals(100, north.getMapWidth());
+		assertEquals(TerrainType.IRON.getId(), north.getTerrainType(20, 20, true));
+		north.close();
+		
+		/*
+		 * A second run has read the logs already and leaves the map alone, but
+		 * still solves with the reading kept from the first.
+		 */
+		long modified = new File(dir, "north.wam").lastModified();
+		String report = job("north", "map", "north.wam", "logs", "logs", "vein", "silver,good").run();
+		assertTrue(report, report.contains("1 readings (0 new)"));
+		assertTrue(report, report.contains("32 candidate tiles"));
+		assertEquals(modified, new File(dir, "north.wam").lastModified());
+	}
+	
+	public void testLoadChecksTileSize() throws IOException {
+		assertEquals(1, BatchJob.parseTileSize("1"));
+		assertEquals(8, BatchJob.parseTileSize(" 8 "));
+		
+		File jobFile = new File(dir, "bad.properties");
+		OutputStream out = new FileOutputStream(jobFile);
+		out.write("map=bad.wam\ntileSize=0\n".getBytes("US-ASCII"));
+		out.close();
+		try {
+			BatchJob.load(jobFile);
+			fail();
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("tileSize"));
+		}
+		
+		assertEquals(1, BatchMode.run(new String[] { "--threads", "x", jobFile.getPath() }));
+	}
+	
+	public void testParseVein() throws IOException {
+		assertEquals(new Vein(TerrainType.ROCKSALT, null), BatchJob.parseVein("rock salt"));
+		assertEquals(new Vein(TerrainType.GOLD, OreQuality.VERY_POOR), BatchJob.parseVein("Gold, very poor"));
+		assertNull(BatchJob.parseVein(" "));
+		
+		try {
+			BatchJob.parseVein("gold,shiny");
+			fail();
+		} catch (IOException e) {
+			/* Expected. */
+		}
+	}
+}
@@ -0,0 +1,47 @@
+package net.buddat.wanalyse.gui;
+
+import java.awt.image.BufferedImage;
+
+import junit.framework.TestCase;
+
+public class ChunkImageCacheTest extends TestCase {
+
+	public void testEditsOnlyInvalidateTouchedChunks() {
+		Map map = new Map("test", 256, 256);
+		map.setTerrainType(0, 0, false, TerrainType.IRON.getId());
+		map.setTerrainType(100, 0, false, TerrainType.GOLD.getId());
+		
+		MapLayer layer = map.getLayer(false);
+		ChunkImageCache cache = new ChunkImageCache();
+		int blocks = MapChunk.SIZE / ChunkImageCache.getBlockTiles(8);
+		
+		BufferedImage first = cache.getBlock(layer, 0, 0, 8);
+		BufferedImage second = cache.getBlock(layer, blocks, 0, 8);
+		assertEquals(TerrainType.IRON.getColor(), first.getRGB(4, 4));
+		assertEquals(TerrainType.GOLD.getColor(), second.getRGB((100 - 64) * 8 + 4, 4));
+		
+		map.setTerrainType(1, 0, false, TerrainType.TIN.getId());
+		long versionBefore = layer.getChunk(1, 0).getVersion();
+		
+		assertEquals(TerrainType.TIN.getColor(), cache.getBlock(layer, 0, 0, 8).getRGB(12, 4));
+		assertSame(second, cache.getBlock(layer, blocks, 0, 8));
+		assertEquals(versionBefore, layer.getChunk(1, 0).getVersion());
+	}
+	
+	public void testEvictsLeastRecentlyUsedOverBudget() {
+		Map map = new Map("test", 256, 256);
+		for (int i = 0; i < 4; i++)
+			map.setTerrainType(i * 64, 0, false, TerrainType.ROCK.getId());
+		
+		int tileSize = 8;
+		int blockPixels = ChunkImageCache.getBlockTiles(tileSize) * tileSize;
+		long blockBytes = (long) blockPixels * blockPixels * 4;
+		ChunkImageCache cache = new ChunkImageCache(blockBytes * 2);
+		
+		for (int i = 0; i < 4; i++)
+			cache.getBlock(map.getLayer(false), i, 0, tileSize);
+		
+		assertEquals(2, cache.size());
+		assertTrue(cache.getUsedBytes() <= cache.getBudget());
+	}
+}
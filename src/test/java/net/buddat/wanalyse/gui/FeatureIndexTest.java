@@ -0,0 +1,96 @@
+package net.buddat.wanalyse.gui;
+
+import java.awt.Point;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class FeatureIndexTest extends TestCase {
+
+	public void testPutGetRemove() {
+		FeatureIndex<String> index = new FeatureIndex<String>();
+		assertNull(index.put(5, 5, "b"));
+		assertNull(index.put(3, 5, "a"));
+		assertNull(index.put(-70, 200, "c"));
+		assertEquals("b", index.put(5, 5, "B"));
+		assertEquals(3, index.size());
+		
+		assertEquals("a", index.get(3, 5));
+		assertEquals("B", index.get(5, 5));
+		assertEquals("c", index.get(-70, 200));
+		assertNull(index.get(4, 5));
+		
+		assertEquals("a", index.remove(3, 5));
+		assertNull(index.get(3, 5));
+		assertEquals("B", index.get(5, 5));
+		assertEquals("c", index.put(-70, 200, null));
+		assertEquals(1, index.size());
+	}
+	
+	public void testQueryVisitsOnlyRectangle() {
+		FeatureIndex<Integer> index = new FeatureIndex<Integer>();
+		Random r = new Random(7);
+		int[][] points = new int[500][];
+		for (int i = 0; i < points.length; i++) {
+			points[i] = new int[] { r.nextInt(600) - 300, r.nextInt(600) - 300 };
+			index.put(points[i][0], points[i][1], i);
+		}
+		
+		final List<Integer> found = new ArrayList<Integer>();
+		index.query(-100, -20, 70, 130, new FeatureIndex.Visitor<Integer>() {
+			@Override
+			public void visit(int x, int y, Integer value) {
+				assertTrue(x >= -100 && x < 70 && y >= -20 && y < 130);
+				found.add(value);
+			}
+		});
+		
+		int expected = 0;
+		for (int i = 0; i < points.length; i++) {
+			int x = points[i][0], y = points[i][1];
+			if (x >= -100 && x < 70 && y >= -20 && y < 130 && index.get(x, y) == i)
+				expected++;
+		}
+		assertEquals(expected, found.size());
+	}
+	
+	public void testNearestMatchesBruteForce() {
+		FeatureIndex<Integer> index = new FeatureIndex<Integer>();
+		Random r = new Random(11);
+		List<Point> points = new ArrayList<Point>();
+		for (int i = 0; i < 200; i++) {
+			Point p = new Point(r.nextInt(2000) - 1000, r.nextInt(2000) - 1000);
+			points.add(p);
+			index.put(p.x, p.y, i);
+		}
+		
+		for (int i = 0; i < 100; i++) {
+			int x = r.nextInt(2400) - 1200, y = r.nextInt(2400) - 1200;
+			long best = Long.MAX_VALUE;
+			for (Point p : points)
+				best = Math.min(best, (long) (p.x - x) * (p.x - x) + (long) (p.y - y) * (p.y - y));
+			
+			Point found = index.nearest(x, y, 5000);
+			long d = (long) (found.x - x) * (found.x - x) + (long) (found.y - y) * (found.y - y);
+			assertEquals(best, d);
+		}
+		
+		assertNull(index.nearest(5000, 5000, 10));
+	}
+	
+	public void testMapKeepsFeaturesAcrossResize() {
+		Map map = new Map("labels", 100, 100);
+		map.setLabel(10, 10, false, new MapLabel("shaft", 0xFFFFFFFF));
+		map.setObjectType(10, 10, false, 4, (byte) 2);
+		map.resizeMap(150, 100, 50, 0);
+		
+		assertEquals("shaft", map.getLabel(60, 10, false).getText());
+		assertEquals(2, map.getObjectType(60, 10, false, 4));
+		assertEquals(0, map.getObjectType(60, 10, false, 3));
+		assertEquals(new Point(60, 10), map.findNearestLabel(0, 0, false, 100));
+		assertEquals(new Point(181, 31), map.findNearestObject(0, 0, false, 100));
+		assertNull(map.findNearestLabel(0, 0, true, 100));
+	}
+}
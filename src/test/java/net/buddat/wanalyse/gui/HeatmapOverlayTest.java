@@ -0,0 +1,37 @@
+package net.buddat.wanalyse.gui;
+
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+
+import junit.framework.TestCase;
+import net.buddat.wanalyse.analyse.AnalyseReading;
+import net.buddat.wanalyse.analyse.Direction;
+import net.buddat.wanalyse.analyse.DistanceBand;
+import net.buddat.wanalyse.analyse.LikelihoodMap;
+import net.buddat.wanalyse.analyse.OreQuality;
+import net.buddat.wanalyse.analyse.Vein;
+
+public class HeatmapOverlayTest extends TestCase {
+
+	public void testEvictsLeastRecentlyUsedOverBudget() {
+		LikelihoodMap heatmap = new LikelihoodMap(new Vein(TerrainType.IRON, OreQuality.GOOD));
+		for (int i = 0; i < 4; i++)
+			heatmap.addReading(new AnalyseReading(i * MapChunk.SIZE + 32, 32, Direction.EAST, DistanceBand.VERY_CLOSE,
+					TerrainType.IRON, OreQuality.GOOD));
+		heatmap.update();
+		
+		long entryBytes = MapChunk.AREA * 4L;
+		HeatmapOverlay overlay = new HeatmapOverlay(entryBytes * 2);
+		BufferedImage target = new BufferedImage(64, 64, BufferedImage.TYPE_INT_ARGB);
+		Graphics g = target.getGraphics();
+		for (int i = 0; i < 4; i++)
+			overlay.draw(g, heatmap, i, 0, 0, 0, 64);
+		g.dispose();
+		
+		assertEquals(2, overlay.size());
+		assertTrue(overlay.getUsedBytes() <= overlay.getBudget());
+		
+		overlay.setBudget(entryBytes);
+		assertEquals(1, overlay.size());
+	}
+}
@@ -0,0 +1,115 @@
+package net.buddat.wanalyse.gui;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import junit.framework.TestCase;
+
+public class MapExporterTest extends TestCase {
+
+	public void testExportedPngDecodes() throws IOException {
+		Map map = new Map("test", 70, 3);
+		map.setTerrainType(0, 0, false, TerrainType.IRON.getId());
+		map.setTerrainType(69, 2, false, TerrainType.GOLD.getId());
+		map.setOverlayColor(10, 1, false, 0xFF00FF00);
+		
+		File file = File.createTempFile("wanalyse", ".png");
+		try {
+			final int[] progress = new int[2];
+			MapExporter exporter = new MapExporter(map, false, 8);
+			assertTrue(exporter.exportPng(file, new MapExporter.ExportListener() {
+				@Override
+				public void exportProgress(MapExporter e, int rowsDone, int rowsTotal) {
+					progress[0] = rowsDone;
+					progress[1] = rowsTotal;
+				}
+				
+				@Override
+				public void exportDone(MapExporter e, File f, boolean complete) {
+				}
+				
+				@Override
+				public void exportFailed(MapExporter e, File f, IOException ex) {
+				}
+			}));
+			assertEquals(24, progress[0]);
+			assertEquals(24, progress[1]);
+			
+			BufferedImage img = ImageIO.read(file);
+			assertEquals(70 * 8, img.getWidth());
+			assertEquals(3 * 8, img.getHeight());
+			assertEquals(TerrainType.IRON.getColor(), img.getRGB(4, 4));
+			assertEquals(TerrainType.GOLD.getColor(), img.getRGB(69 * 8 + 4, 2 * 8 + 4));
+			assertEquals(0xFF00FF00, img.getRGB(10 * 8 + 4, 8 + 4));
+			assertEquals(0xFF000000, img.getRGB(8, 5));
+			assertEquals(0, img.getRGB(20 * 8 + 4, 4) >>> 24);
+		} finally {
+			file.delete();
+		}
+	}
+	
+	public void testCancelDeletesFile() throws IOException {
+		Map map = new Map("test", 10, 10);
+		File file = File.createTempFile("wanalyse", ".png");
+		
+		MapExporter exporter = new MapExporter(map, false, 4);
+		boolean complete = exporter.exportPng(file, new MapExporter.ExportListener() {
+			@Override
+			public void exportProgress(MapExporter e, int rowsDone, int rowsTotal) {
+				e.cancel();
+			}
+			
+			@Override
+			public void exportDone(MapExporter e, File f, boolean complete) {
+			}
+			
+			@Override
+			public void exportFailed(MapExporter e, File f, IOException ex) {
+			}
+		});
+		
+		assertFalse(complete);
+		assertFalse(file.exists());
+	}
+	
+	public void testBackgroundExportReportsFailure() throws InterruptedException {
+		Map map = new Map("test", 10, 10);
+		File file = new File(new File(System.getProperty("java.io.tmpdir"), "wanalyse-missing-dir"), "map.png");
+		
+		final CountDownLatch finished = new CountDownLatch(1);
+		final IOException[] error = new IOException[1];
+		new MapExporter(map, false, 4).start(file, new MapExporter.ExportListener() {
+			@Override
+			public void exportProgress(MapExporter e, int rowsDone, int rowsTotal) {
+			}
+			
+			@Override
+			public void exportDone(MapExporter e, File f, boolean complete) {
+				finished.countDown();
+			}
+			
+			@Override
+			public void exportFailed(MapExporter e, File f, IOException ex) {
+				error[0] = ex;
+				finished.countDown();
+			}
+		});
+		
+		assertTrue(finished.await(10, TimeUnit.SECONDS));
+		assertNotNull(error[0]);
+	}
+	
+	public void testRejectsTileSizeBelowOne() {
+		try {
+			new MapExporter(new Map("test", 1, 1), false, 0);
+			fail();
+		} catch (IllegalArgumentException e) {
+			/* Expected. */
+		}
+	}
+}
@@ -0,0 +1,277 @@
+package net.buddat.wanalyse.gui;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import junit.framework.TestCase;
+
+public class MapFileTest extends TestCase {
+
+	private File file;
+	
+	@Override
+	protected void setUp() throws IOException {
+		file = File.createTempFile("wanalyse", MapFile.MAP_FILE_EXT);
+	}
+	
+	@Override
+	protected void tearDown() {
+		file.delete();
+	}
+	
+	public void testRoundTripPagesChunksInLazily() throws IOException {
+		Map map = new Map("mine", 300, 200);
+		map.setTerrainType(1, 1, false, (byte) 4);
+		map.setHeight(1, 1, false, (short) 321);
+		map.setOverlayColor(299, 199, true, 0x80FF0000);
+		map.saveMap(file);
+		assertFalse(map.hasChanges());
+		
+		Map loaded = Map.loadMap(file);
+		assertEquals("mine", loaded.getMapName());
+		assertEquals(300, loaded.getMapWidth());
+		assertEquals(200, loaded.getMapHeight());
+		assertEquals(0, loaded.getChunkCount());
+		
+		/* Counted from the record headers, nothing paged in. */
+		assertEquals(2, loaded.getTileCount());
+		assertEquals(0, loaded.getChunkCount());
+		
+		assertEquals(4, loaded.getTerrainType(1, 1, false));
+		assertEquals(321, loaded.getHeight(1, 1, false));
+		assertEquals(1, loaded.getChunkCount());
+		assertEquals(2, loaded.getTileCount());
+		assertNotNull(loaded.getLayer(false).getSource());
+		
+		assertEquals(0x80FF0000, loaded.getOverlayColor(299, 199, true));
+		assertFalse(loaded.hasTile(299, 199, false));
+		assertEquals(2, loaded.getChunkCount());
+		loaded.getSource().close();
+	}
+	
+	public void testRoundTripKeepsOrigin() throws IOException {
+		Map map = new Map("mine", 100, 100);
+		map.setTerrainType(0, 0, false, (byte) 4);
+		map.resizeMap(170, 100, 70, 0);
+		map.saveMap(file);
+		
+		Map loaded = Map.loadMap(file);
+		assertEquals(-70, loaded.getOriginX());
+		assertEquals(170, loaded.getMapWidth());
+		assertEquals(4, loaded.getTerrainType(70, 0, false));
+		assertEquals(1, loaded.getTileCount());
+		
+		loaded.setTerrainType(0, 99, false, (byte) 5);
+		loaded.saveMap(file);
+		
+		Map reloaded = Map.loadMap(file);
+		assertEquals(4, reloaded.getTerrainType(70, 0, false));
+		assertEquals(5, reloaded.getTerrainType(0, 99, false));
+		reloaded.getSource().close();
+	}
+	
+	public void testSaveOverSourceFile() throws IOException {
+		Map map = new Map("mine", 100, 100);
+		map.setTerrainType(10, 10, false, (byte) 1);
+		map.setTerrainType(90, 90, false, (byte) 2);
+		map.saveMap(file);
+		
+		Map loaded = Map.loadMap(file);
+		loaded.setTerrainType(90, 90, false, (byte) 3);
+		loaded.saveMap(file);
+		
+		Map reloaded = Map.loadMap(file);
+		assertEquals(1, reloaded.getTerrainType(10, 10, false));
+		assertEquals(3, reloaded.getTerrainType(90, 90, false));
+		assertEquals(2, reloaded.getTileCount());
+		reloaded.getSource().close();
+	}
+	
+	public void testIncrementalSaveWritesOnlyDirtyChunks() throws IOException {
+		Map map = new Map("mine", 640, 640);
+		for (int i = 0; i < 640; i += 64)
+			map.setTerrainType(i, i, false, (byte) 1);
+		map.saveMap(file);
+		long fullSize = file.length();
+		
+		Map loaded = Map.loadMap(file);
+		loaded.setTerrainType(65, 65, false, (byte) 5);
+		loaded.saveMap(file);
+		
+		/* The index ends with the features offset. */
+		long indexSize = 2 * 10 * 10 * 8 + 8;
+		/* Terrain only, so no height or overlay plane in the record. */
+		int recordSize = 8 + MapChunk.SIZE * 8 + MapChunk.AREA;
+		assertEquals(fullSize + recordSize + indexSize, file.length());
+		assertEquals(1, loaded.getChunkCount());
+		
+		loaded.close();
+		
+		Map reloaded = Map.loadMap(file);
+		assertEquals(5, reloaded.getTerrainType(65, 65, false));
+		assertEquals(1, reloaded.getTerrainType(64, 64, false));
+		assertEquals(1, reloaded.getTerrainType(576, 576, false));
+		assertEquals(11, reloaded.getTileCount());
+		reloaded.close();
+	}
+	
+	public void testRecordsOnlyHoldPlanesInUse() throws IOException {
+		Map map = new Map("mine", 128, 64);
+		map.setTerrainType(0, 0, false, (byte) 1);
+		map.setOverlayColor(64, 0, false, 0x80FF0000);
+		map.saveMap(file);
+		
+		int terrainOnly = 8 + MapChunk.SIZE * 8 + MapChunk.AREA;
+		long expected = MapFile.HEADER_SIZE + 2 * 2 * 8 + 8 + terrainOnly + terrainOnly + MapChunk.AREA * 4;
+		assertEquals(expected, file.length());
+		
+		Map loaded = Map.loadMap(file);
+		assertEquals(1, loaded.getTerrainType(0, 0, false));
+		assertEquals(0x80FF0000, loaded.getOverlayColor(64, 0, false));
+		assertEquals(0, loaded.getHeight(64, 0, false));
+		loaded.close();
+	}
+	
+	public void testLabelsAndObjectsAreSaved() throws IOException {
+		Map map = new Map("mine", 100, 100);
+		map.setTerrainType(0, 0, false, (byte) 1);
+		map.saveMap(file);
+		assertFalse(map.hasChanges());
+		
+		map.setLabel(10, 20, true, new MapLabel("Iron seam", 0xFFFF8000));
+		map.setObjectType(30, 40, false, 4, (byte) 7);
+		assertTrue(map.hasChanges());
+		
+		long before = file.length();
+		map.saveMap(file);
+		assertFalse(map.hasChanges());
+		/* Only the features record and a new index were appended. */
+		assertTrue(file.length() - before > 2 * 4 * 8 + 8);
+		assertTrue(file.length() - before < 200);
+		map.close();
+		
+		Map loaded = Map.loadMap(file);
+		assertEquals("Iron seam", loaded.getLabel(10, 20, true).getText());
+		assertEquals(0xFFFF8000, loaded.getLabel(10, 20, true).getColor());
+		assertNull(loaded.getLabel(10, 20, false));
+		assertEquals(7, loaded.getObjectType(30, 40, false, 4));
+		assertEquals(0, loaded.getObjectType(30, 40, false, 3));
+		assertFalse(loaded.hasChanges());
+		
+		/* A save that leaves the features alone keeps them. */
+		loaded.setTerrainType(1, 1, false, (byte) 2);
+		loaded.saveMap(file);
+		loaded.close();
+		loaded = Map.loadMap(file);
+		assertEquals("Iron seam", loaded.getLabel(10, 20, true).getText());
+		
+		loaded.setLabel(10, 20, true, null);
+		loaded.saveMap(file);
+		loaded.close();
+		
+		Map reloaded = Map.loadMap(file);
+		assertNull(reloaded.getLabel(10, 20, true));
+		assertEquals(7, reloaded.getObjectType(30, 40, false, 4));
+		reloaded.close();
+	}
+	
+	public void testFencesAreSaved() throws IOException {
+		Map map = new Map("mine", 100, 100);
+		map.saveMap(file);
+		
+		map.fillFence(10, 70, 60, false, false, (byte) 2);
+		map.setFence(100, 5, true, true, (byte) 3);
+		assertTrue(map.hasChanges());
+		map.saveMap(file);
+		assertFalse(map.hasChanges());
+		map.close();
+		
+		Map loaded = Map.loadMap(file);
+		assertEquals(2, loaded.getFence(10, 70, false, false));
+		assertEquals(2, loaded.getFence(69, 70, false, false));
+		assertEquals(0, loaded.getFence(70, 70, false, false));
+		assertEquals(3, loaded.getFence(100, 5, true, true));
+		assertEquals(0, loaded.getFence(100, 5, false, true));
+		assertEquals(61, loaded.getLayer(false).getFences(false).getFenceCount()
+				+ loaded.getLayer(true).getFences(true).getFenceCount());
+		loaded.close();
+	}
+	
+	public void testReadsAndUpgradesVersion2Files() throws IOException {
+		/* One chunk with an overlay, in a record with room for every plane. */
+		ByteBuffer buf = ByteBuffer.allocate(MapFile.HEADER_SIZE + 2 * 8 + MapChunk.MAX_RECORD_SIZE);
+		buf.putInt(0, MapFile.MAGIC).putInt(4, 2).putInt(8, 64).putInt(12, 64);
+		buf.putInt(16, MapChunk.SHIFT).putInt(20, 2).putInt(24, 1).putInt(28, 1);
+		buf.putInt(32, MapChunk.MAX_RECORD_SIZE).putLong(40, MapFile.HEADER_SIZE);
+		buf.putLong(MapFile.HEADER_SIZE, MapFile.HEADER_SIZE + 16);
+		
+		int record = MapFile.HEADER_SIZE + 16;
+		buf.putInt(record, 2).putInt(record + 4, 1).putLong(record + 8, 1L);
+		buf.put(record + 8 + MapChunk.SIZE * 8, (byte) 4);
+		buf.putInt(record + 8 + MapChunk.SIZE * 8 + MapChunk.AREA * 3, 0x80FF0000);
+		
+		FileChannel out = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+		try {
+			while (buf.hasRemaining())
+				out.write(buf);
+		} finally {
+			out.close();
+		}
+		
+		Map loaded = Map.loadMap(file);
+		assertEquals(4, loaded.getTerrainType(0, 0, false));
+		assertEquals(0x80FF0000, loaded.getOverlayColor(0, 0, false));
+		assertEquals(1, loaded.getTileCount());
+		
+		loaded.setTerrainType(1, 0, false, (byte) 5);
+		loaded.saveMap(file);
+		loaded.close();
+		
+		Map reloaded = Map.loadMap(file);
+		assertEquals(4, reloaded.getTerrainType(0, 0, false));
+		assertEquals(5, reloaded.getTerrainType(1, 0, false));
+		assertEquals(0x80FF0000, reloaded.getOverlayColor(0, 0, false));
+		assertTrue(reloaded.getSource().canWriteChanges(reloaded));
+		reloaded.close();
+	}
+	
+	public void testNewGenerationWhenFileCantBeReplaced() throws IOException {
+		Map map = new Map("mine", 100, 100);
+		map.setTerrainType(10, 10, false, (byte) 1);
+		map.saveMap(file);
+		
+		/* What a full rewrite falls back to when the rename fails. */
+		Map loaded = Map.loadMap(file);
+		loaded.resizeMap(200, 100, 0, 0);
+		loaded.setTerrainType(150, 50, false, (byte) 7);
+		loaded.getLayer(false).loadAll();
+		loaded.getLayer(true).loadAll();
+		loaded.adoptSource(loaded.getSource().writeGeneration(loaded));
+		assertFalse(loaded.getSource().isReplaceable());
+		assertTrue(loaded.getSource().getGarbage() > 0);
+		
+		/* Garbage no longer forces a rewrite. */
+		for (byte type = 2; type < 8; type++) {
+			loaded.setTerrainType(0, 0, false, type);
+			loaded.saveMap(file);
+		}
+		assertFalse(loaded.getSource().isReplaceable());
+		assertTrue(loaded.getSource().getGarbage() * 2 >= file.length());
+		long grown = file.length();
+		loaded.close();
+		
+		/* And is reclaimed on the next open. */
+		Map reloaded = Map.loadMap(file);
+		assertTrue(file.length() < grown);
+		assertEquals(0, reloaded.getSource().getGarbage());
+		assertEquals(200, reloaded.getMapWidth());
+		assertEquals(1, reloaded.getTerrainType(10, 10, false));
+		assertEquals(7, reloaded.getTerrainType(150, 50, false));
+		assertEquals(7, reloaded.getTerrainType(0, 0, false));
+		assertEquals(3, reloaded.getTileCount());
+		reloaded.close();
+	}
+}
@@ -0,0 +1,52 @@
+package net.buddat.wanalyse.gui;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+
+import junit.framework.TestCase;
+
+public class MapPyramidTest extends TestCase {
+
+	public void testLevelSelection() {
+		assertEquals(0, MapPyramid.getLevel(256));
+		assertEquals(0, MapPyramid.getLevel(64));
+		assertEquals(1, MapPyramid.getLevel(32));
+		assertEquals(0, MapPyramid.getLevel(33));
+		assertEquals(MapPyramid.LEVELS - 1, MapPyramid.getLevel(1));
+	}
+	
+	public void testDrawAveragesAndTracksEdits() {
+		Map map = new Map("test", 64, 64);
+		map.fillTerrainType(0, 0, 64, 64, false, TerrainType.WATER.getId());
+		
+		MapPyramid pyramid = new MapPyramid();
+		BufferedImage img = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB);
+		Graphics2D g = img.createGraphics();
+		pyramid.draw(g, map.getLayer(false), 0, 0, 0, 0, 1);
+		assertEquals(TerrainType.WATER.getColor(), img.getRGB(0, 0));
+		
+		map.fillTerrainType(0, 0, 64, 64, false, TerrainType.ROCK.getId());
+		pyramid.draw(g, map.getLayer(false), 0, 0, 0, 0, 1);
+		g.dispose();
+		assertEquals(TerrainType.ROCK.getColor(), img.getRGB(0, 0));
+	}
+	
+	public void testEvictsOverBudget() {
+		Map map = new Map("test", 256, 64);
+		map.fillTerrainType(0, 0, 256, 64, false, TerrainType.WATER.getId());
+		
+		MapPyramid pyramid = new MapPyramid(1);
+		BufferedImage img = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB);
+		Graphics2D g = img.createGraphics();
+		for (int cx = 0; cx < 4; cx++)
+			pyramid.draw(g, map.getLayer(false), cx, 0, 0, 0, 1);
+		assertEquals(1, pyramid.size());
+		
+		pyramid.setBudget(MapPyramid.DEFAULT_BUDGET);
+		for (int cx = 0; cx < 4; cx++)
+			pyramid.draw(g, map.getLayer(false), cx, 0, 0, 0, 1);
+		g.dispose();
+		assertEquals(4, pyramid.size());
+		assertEquals(TerrainType.WATER.getColor(), img.getRGB(0, 0));
+	}
+}
@@ -0,0 +1,219 @@
+package net.buddat.wanalyse.gui;
+
+import java.lang.management.ManagementFactory;
+
+import junit.framework.TestCase;
+
+public class MapTest extends TestCase {
+
+	public void testChunksAllocatedOnlyWhenTouched() {
+		Map map = new Map("test", 4096, 4096);
+		assertEquals(0, map.getChunkCount());
+		
+		map.addTile(10, 10, new Tile(map, 10, 10));
+		map.addTile(4095, 4095, new Tile(map, 4095, 4095));
+		
+		assertEquals(2, map.getChunkCount());
+		assertEquals(2, map.getTileCount());
+	}
+	
+	public void testAddGetRemove() {
+		Map map = new Map("test", 100, 100);
+		map.setTerrainType(70, 3, false, (byte) 5);
+		
+		Tile read = map.getTile(70, 3, false);
+		assertNotNull(read);
+		assertEquals(70, read.getX());
+		assertEquals(3, read.getY());
+		assertEquals(5, read.getTerrainType(false));
+		assertNull(map.getTile(71, 3, false));
+		assertNull(map.getTile(-1, 3, false));
+		
+		map.removeTile(70, 3);
+		assertNull(map.getTile(70, 3, false));
+		assertEquals(0, map.getChunkCount());
+	}
+	
+	public void testResizeShiftsTiles() {
+		Map map = new Map("test", 10, 10);
+		map.addTile(0, 0);
+		map.setOverlayColor(9, 9, false, 0xFF00FF00);
+		
+		map.resizeMap(11, 10, 1, 0);
+		
+		assertNotNull(map.getTile(1, 0, false));
+		assertNull(map.getTile(0, 0, false));
+		assertEquals(0xFF00FF00, map.getOverlayColor(10, 9, false));
+		assertTrue(map.hasChanges());
+	}
+	
+	public void testResizeWestKeepsChunks() {
+		Map map = new Map("test", 100, 100);
+		map.setTerrainType(5, 5, false, (byte) 2);
+		MapChunk chunk = map.getLayer(false).getChunk(0, 0);
+		
+		map.resizeMap(101, 100, 1, 0);
+		
+		assertEquals(-1, map.getOriginX());
+		assertEquals(2, map.getTerrainType(6, 5, false));
+		assertSame(chunk, map.getLayer(false).getChunk(0, 0));
+		assertEquals(-1, map.getLayer(false).getChunkX0());
+	}
+	
+	public void testResizeShrinkDropsEdgeTiles() {
+		Map map = new Map("test", 100, 100);
+		map.setTerrainType(0, 0, false, (byte) 1);
+		map.setTerrainType(70, 1, false, (byte) 2);
+		map.setTerrainType(99, 99, true, (byte) 3);
+		
+		map.resizeMap(90, 90, -10, 0);
+		
+		assertEquals(2, map.getTerrainType(60, 1, false));
+		assertEquals(1, map.getTileCount());
+		
+		/* Growing back must not bring the removed tiles back. */
+		map.resizeMap(100, 100, 10, 0);
+		assertFalse(map.hasTile(0, 0));
+		assertEquals(2, map.getTerrainType(70, 1, false));
+		assertEquals(1, map.getTileCount());
+	}
+	
+	public void testTileViewWritesThrough() {
+		Map map = new Map("test", 10, 10);
+		map.addTile(4, 4);
+		
+		Tile t = map.getTile(4, 4, true);
+		t.setTerrainType(false, (byte) 3);
+		t.setHeight(false, (short) -120);
+		
+		assertEquals(3, map.getTerrainType(4, 4, false));
+		assertEquals(-120, map.getHeight(4, 4, false));
+		
+		t.moveTo(5, 4);
+		assertFalse(t.exists());
+	}
+	
+	public void testLayersAreIndependent() {
+		Map map = new Map("test", 300, 300);
+		map.setTerrainType(5, 5, false, (byte) 2);
+		
+		assertEquals(0, map.getLayer(true).getChunkCount());
+		assertEquals(0, map.getTerrainType(5, 5, true));
+		
+		map.setTerrainType(5, 5, true, (byte) 9);
+		map.setTerrainType(250, 250, true, (byte) 9);
+		
+		assertEquals(2, map.getTerrainType(5, 5, false));
+		assertEquals(9, map.getTerrainType(5, 5, true));
+		assertEquals(1, map.getLayer(false).getChunkCount());
+		assertEquals(2, map.getLayer(true).getChunkCount());
+		assertFalse(map.hasTile(250, 250, false));
+		assertTrue(map.hasTile(250, 250));
+	}
+	
+	public void testSnapshotIsCopyOnWrite() {
+		Map map = new Map("test", 200, 200);
+		map.setTerrainType(1, 1, false, (byte) 1);
+		map.setTerrainType(100, 100, false, (byte) 1);
+		map.setTerrainType(150, 10, false, (byte) 1);
+		
+		Map snapshot = map.snapshot();
+		assertFalse(map.hasChanges());
+		assertTrue(snapshot.hasChanges());
+		
+		map.setTerrainType(1, 1, false, (byte) 2);
+		map.removeTile(100, 100);
+		
+		assertEquals(1, snapshot.getTerrainType(1, 1, false));
+		assertEquals(1, snapshot.getTerrainType(100, 100, false));
+		assertEquals(2, map.getTerrainType(1, 1, false));
+		assertFalse(map.hasTile(100, 100));
+		assertTrue(map.hasChanges());
+		
+		MapLayer live = map.getLayer(false), copy = snapshot.getLayer(false);
+		assertNotSame(live.getChunk(0, 0), copy.getChunk(0, 0));
+		assertNull(live.getChunk(1, 1));
+		assertNotNull(copy.getChunk(2, 0));
+		assertSame(live.getChunk(2, 0), copy.getChunk(2, 0));
+	}
+	
+	public void testSnapshotCopiesFeatures() {
+		Map map = new Map("test", 200, 200);
+		map.setLabel(5, 5, false, new MapLabel("camp", 0xFFFFFFFF));
+		map.setObjectType(5, 5, false, 0, (byte) 3);
+		map.setFence(5, 5, false, true, (byte) 1);
+		
+		Map before = map.readSnapshot();
+		map.setLabel(5, 5, false, null);
+		map.setObjectType(5, 5, false, 0, (byte) 4);
+		map.setFence(5, 5, false, true, (byte) 0);
+		assertEquals("camp", before.getLabel(5, 5, false).getText());
+		assertEquals(3, before.getObjectType(5, 5, false, 0));
+		assertEquals(1, before.getFence(5, 5, false, true));
+		
+		map.restore(before);
+		assertEquals("camp", map.getLabel(5, 5, false).getText());
+		assertEquals(3, map.getObjectType(5, 5, false, 0));
+		assertEquals(1, map.getFence(5, 5, false, true));
+		
+		/* Restoring copies, so the snapshot can be restored again later. */
+		map.setLabel(5, 5, false, null);
+		assertEquals("camp", before.getLabel(5, 5, false).getText());
+	}
+	
+	public void testFillAndCountAcrossChunks() {
+		Map map = new Map("test", 200, 200);
+		map.fillTerrainType(50, 60, 100, 20, false, (byte) 7);
+		
+		assertEquals(2000, map.getTileCount());
+		assertEquals(2000, map.countTerrainType(0, 0, 200, 200, false, (byte) 7));
+		assertEquals(10 * 5, map.countTerrainType(60, 70, 10, 5, false, (byte) 7));
+		assertEquals(6, map.getChunkCount());
+	}
+	
+	public void testPrimitiveLookupsDoNotAllocate() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (!(bean instanceof com.sun.management.ThreadMXBean))
+			return;
+		
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+		if (!threads.isThreadAllocatedMemorySupported())
+			return;
+		threads.setThreadAllocatedMemoryEnabled(true);
+		
+		Map map = new Map("test", 512, 512);
+		for (int i = 0; i < 512; i += 3)
+			map.setTerrainType(i, 511 - i, false, (byte) 1);
+		
+		long threadId = Thread.currentThread().getId();
+		int lookups = 512 * 512;
+		long sum = 0;
+		
+		/* Warm up so the measured pass runs compiled code. */
+		for (int pass = 0; pass < 5; pass++)
+			sum += lookupAll(map);
+		
+		long overhead = threads.getThreadAllocatedBytes(threadId);
+		overhead = threads.getThreadAllocatedBytes(threadId) - overhead;
+		
+		long before = threads.getThreadAllocatedBytes(threadId);
+		sum += lookupAll(map);
+		long allocated = threads.getThreadAllocatedBytes(threadId) - before - overhead;
+		
+		assertTrue(sum > 0);
+		assertEquals("bytes allocated per lookup", 0, allocated / lookups);
+		assertTrue("allocated " + allocated + " bytes for " + lookups + " lookups", allocated < 1024);
+	}
+	
+	private long lookupAll(Map map) {
+		long sum = 0;
+		for (int y = 0; y < map.getMapHeight(); y++) {
+			for (int x = 0; x < map.getMapWidth(); x++) {
+				if (map.hasTile(x, y))
+					sum += map.getTerrainType(x, y, false);
+			}
+		}
+		
+		return sum;
+	}
+}
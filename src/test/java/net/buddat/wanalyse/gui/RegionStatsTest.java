@@ -0,0 +1,82 @@
+package net.buddat.wanalyse.gui;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class RegionStatsTest extends TestCase {
+
+	private static final byte IRON = TerrainType.IRON.getId(), TIN = TerrainType.TIN.getId();
+	
+	private Map createMap() {
+		Map map = new Map("stats", 300, 200);
+		map.resizeMap(300, 200, 0, 10);
+		map.fillTerrainType(0, 0, 300, 200, false, TerrainType.ROCK.getId());
+		
+		Random r = new Random(3);
+		for (int i = 0; i < 3000; i++)
+			map.setTerrainType(r.nextInt(300), r.nextInt(200), false, r.nextBoolean() ? IRON : TIN);
+		map.fillTerrainType(100, 100, 90, 70, false, IRON);
+		map.removeTiles(10, 10, 20, 20, false);
+		map.removeTile(150, 150);
+		
+		return map;
+	}
+	
+	private static int scan(Map map, int x, int y, int w, int h, byte type) {
+		int count = 0;
+		for (int ty = Math.max(y, 0); ty < Math.min(y + h, map.getMapHeight()); ty++)
+			for (int tx = Math.max(x, 0); tx < Math.min(x + w, map.getMapWidth()); tx++)
+				if (map.getTerrainType(tx, ty, false) == type)
+					count++;
+		
+		return count;
+	}
+	
+	private static void assertMatchesScan(Map map, RegionStats stats) {
+		Random r = new Random(5);
+		for (int i = 0; i < 200; i++) {
+			int x = r.nextInt(340) - 20, y = r.nextInt(240) - 20;
+			int w = r.nextInt(200), h = r.nextInt(200);
+			assertEquals(scan(map, x, y, w, h, IRON), stats.count(x, y, w, h, IRON));
+			assertEquals(scan(map, x, y, w, h, TIN), stats.count(x, y, w, h, TIN));
+			assertEquals(scan(map, x, y, w, h, (byte) 0), stats.getCounts(x, y, w, h)[0]);
+			assertEquals(scan(map, x, y, w, h, IRON), stats.getCounts(x, y, w, h)[IRON]);
+		}
+	}
+	
+	public void testCountsMatchScan() {
+		Map map = createMap();
+		RegionStats stats = new RegionStats(map, false);
+		assertMatchesScan(map, stats);
+		
+		stats.track(IRON);
+		assertMatchesScan(map, stats);
+		
+		/* Tables for edited chunks are rebuilt. */
+		map.fillTerrainType(0, 0, 70, 70, false, IRON);
+		map.setTerrainType(299, 199, false, TIN);
+		assertMatchesScan(map, stats);
+		assertEquals(300 * 200, stats.getCounts(-5, -5, 400, 400)[TerrainType.ROCK.getId()]
+				+ stats.count(0, 0, 300, 200, IRON) + stats.count(0, 0, 300, 200, TIN) + stats.count(0, 0, 300, 200, (byte) 0));
+	}
+	
+	public void testCountsSurviveSaveAndLoad() throws IOException {
+		File file = File.createTempFile("wanalyse", MapFile.MAP_FILE_EXT);
+		try {
+			Map map = createMap();
+			map.saveMap(file);
+			
+			Map loaded = Map.loadMap(file);
+			RegionStats stats = new RegionStats(loaded, false);
+			assertEquals(new RegionStats(map, false).count(0, 0, 300, 200, IRON), stats.count(0, 0, 300, 200, IRON));
+			assertMatchesScan(loaded, stats);
+			loaded.getSource().close();
+			map.getSource().close();
+		} finally {
+			file.delete();
+		}
+	}
+}
@@ -0,0 +1,77 @@
+package net.buddat.wanalyse.gui;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class TileRendererTest extends TestCase {
+
+	public void testRenderTilesAndGrid() {
+		MapLayer layer = new MapLayer(false, 130, 4);
+		layer.addTile(63, 1);
+		layer.setTerrainType(63, 1, TerrainType.WATER.getId());
+		layer.addTile(64, 1);
+		layer.setTerrainType(64, 1, TerrainType.GOLD.getId());
+		
+		int tileSize = 4, width = 3 * tileSize;
+		int[] pixels = new int[width * 2 * tileSize];
+		Arrays.fill(pixels, 0x12345678);
+		TileRenderer.render(pixels, width, layer, 62, 0, 3, 2, tileSize);
+		
+		/* Row 0 is empty, so everything but the grid is cleared. */
+		assertEquals(TileRenderer.GRID_COLOR, pixels[0]);
+		assertEquals(0, pixels[width + 1]);
+		
+		/* Row 1 crosses from chunk 0 into chunk 1. */
+		int row = (tileSize + 1) * width;
+		assertEquals(0, pixels[row + 1]);
+		assertEquals(TerrainType.WATER.getColor(), pixels[row + tileSize + 1]);
+		assertEquals(TerrainType.GOLD.getColor(), pixels[row + 2 * tileSize + 1]);
+		assertEquals(TileRenderer.GRID_COLOR, pixels[row + 2 * tileSize]);
+		assertEquals(TileRenderer.GRID_COLOR, pixels[tileSize * width + 5]);
+	}
+	
+	public void testNoGridOnSmallTiles() {
+		MapLayer layer = new MapLayer(false, 4, 4);
+		for (int y = 0; y < 4; y++) {
+			for (int x = 0; x < 4; x++) {
+				layer.addTile(x, y);
+				layer.setTerrainType(x, y, TerrainType.IRON.getId());
+			}
+		}
+		
+		for (int tileSize = 1; tileSize < TileRenderer.MIN_GRID_SIZE; tileSize++) {
+			int width = 4 * tileSize;
+			int[] pixels = new int[width * width];
+			TileRenderer.render(pixels, width, layer, 0, 0, 4, 4, tileSize);
+			for (int p : pixels)
+				assertEquals("tile size " + tileSize, TerrainType.IRON.getColor(), p);
+		}
+		
+		int[] pixels = new int[12 * 12];
+		TileRenderer.render(pixels, 12, layer, 0, 0, 4, 4, 3);
+		assertEquals(TileRenderer.GRID_COLOR, pixels[3]);
+		assertEquals(TerrainType.IRON.getColor(), pixels[12 + 1]);
+	}
+	
+	public void testOverlayBlend() {
+		MapLayer layer = new MapLayer(false, 1, 1);
+		layer.addTile(0, 0);
+		layer.setTerrainType(0, 0, TerrainType.ROCK.getId());
+		layer.setOverlayColor(0, 0, 0xFFFF0000);
+		
+		int[] pixels = new int[1];
+		TileRenderer.renderTiles(pixels, 1, layer, 0, 0, 1, 1, 1);
+		assertEquals(0xFFFF0000, pixels[0]);
+	}
+	
+	public void testBlend() {
+		int red = 0xFFFF0000;
+		assertEquals(red, TileRenderer.blend(0xFF0000FF, red));
+		assertEquals(0xFF0000FF, TileRenderer.blend(0xFF0000FF, 0));
+		
+		int half = TileRenderer.blend(0xFF000000, 0x80FFFFFF);
+		assertEquals(0xFF, half >>> 24);
+		assertTrue((half & 0xFF) > 0x70 && (half & 0xFF) < 0x90);
+	}
+}
@@ -0,0 +1,94 @@
+package net.buddat.wanalyse.gui;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class WorkspaceTest extends TestCase {
+
+	private File dir;
+	
+	@Override
+	protected void setUp() throws IOException {
+		dir = File.createTempFile("wanalyse", "workspace");
+		dir.delete();
+		dir.mkdirs();
+	}
+	
+	@Override
+	protected void tearDown() {
+		File[] files = dir.listFiles();
+		if (files != null)
+			for (File f : files)
+				f.delete();
+		dir.delete();
+	}
+	
+	public void testListsMapsFromHeaders() throws IOException {
+		Workspace workspace = new Workspace(dir);
+		workspace.create("North shore", 300, 200).setTerrainType(5, 5, false, (byte) 3);
+		workspace.create("cave/east", 64, 64);
+		workspace.close();
+		
+		List<MapInfo> infos = workspace.listMaps();
+		assertEquals(2, infos.size());
+		assertEquals("cave/east", infos.get(0).getName());
+		assertEquals("North shore", infos.get(1).getName());
+		assertEquals(300, infos.get(1).getWidth());
+		assertEquals(200, infos.get(1).getHeight());
+		assertEquals(0, workspace.getOpenCount());
+		
+		Map map = workspace.open(infos.get(1).getFile());
+		assertEquals(0, map.getChunkCount());
+		assertEquals(3, map.getTerrainType(5, 5, false));
+	}
+	
+	public void testEvictsColdMapsOverBudget() throws IOException {
+		Workspace workspace = new Workspace(dir, 0);
+		Map first = workspace.create("first", 100, 100);
+		first.setTerrainType(1, 1, false, (byte) 7);
+		File firstFile = first.getSource().getFile();
+		assertEquals(1, workspace.getOpenCount());
+		
+		workspace.create("second", 100, 100);
+		assertEquals(1, workspace.getOpenCount());
+		assertFalse(workspace.isOpen(firstFile));
+		
+		Map reopened = workspace.open(firstFile);
+		assertNotSame(first, reopened);
+		assertEquals(7, reopened.getTerrainType(1, 1, false));
+		assertEquals(1, workspace.getOpenCount());
+		workspace.close();
+	}
+	
+	public void testFailedSaveKeepsMapOpen() throws IOException {
+		Workspace workspace = new Workspace(dir, 0);
+		Map first = workspace.create("first", 100, 100);
+		first.setTerrainType(1, 1, false, (byte) 7);
+		File firstFile = first.getSource().getFile();
+		assertTrue(firstFile.delete());
+		
+		try {
+			/* The write fails in the background, so either call may report it. */
+			workspace.create("second", 100, 100);
+			workspace.close();
+			fail();
+		} catch (IOException e) {
+			/* Expected. */
+		}
+		assertTrue(workspace.isOpen(firstFile));
+		assertTrue(first.hasChanges());
+		assertEquals(7, first.getTerrainType(1, 1, false));
+	}
+	
+	public void testKeepsMapsWithinBudget() throws IOException {
+		Workspace workspace = new Workspace(dir);
+		Map first = workspace.create("first", 100, 100);
+		workspace.create("second", 100, 100);
+		assertEquals(2, workspace.getOpenCount());
+		assertSame(first, workspace.open(first.getSource().getFile()));
+		workspace.close();
+	}
+}
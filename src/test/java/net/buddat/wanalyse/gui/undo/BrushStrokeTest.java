@@ -0,0 +1,64 @@
+package net.buddat.wanalyse.gui.undo;
+
+import java.awt.Rectangle;
+
+import junit.framework.TestCase;
+import net.buddat.wanalyse.gui.Map;
+import net.buddat.wanalyse.gui.TerrainType;
+
+public class BrushStrokeTest extends TestCase {
+
+	private static final byte ROCK = TerrainType.ROCK.getId();
+	private static final byte GOLD = TerrainType.GOLD.getId();
+	
+	public void testFastDragLeavesNoGaps() {
+		Map map = new Map("test", 100, 100);
+		BrushStroke stroke = new BrushStroke(map, 1, TileChangeSet.Plane.TERRAIN, GOLD, false);
+		stroke.moveTo(0, 0);
+		stroke.moveTo(50, 20);
+		
+		assertEquals(51, stroke.getChangeCount());
+		assertEquals(GOLD, map.getTerrainType(50, 20, false));
+		for (int x = 0; x <= 50; x++)
+			assertEquals(1, map.countTerrainType(x, 0, 1, 100, false, GOLD));
+	}
+	
+	public void testOverlappingStampsRecordedOnce() {
+		Map map = new Map("test", 100, 100);
+		map.fillTerrainType(0, 0, 100, 100, false, ROCK);
+		map.setTerrainType(11, 10, false, GOLD);
+		
+		BrushStroke stroke = new BrushStroke(map, 3, TileChangeSet.Plane.TERRAIN, GOLD, false);
+		stroke.moveTo(10, 10);
+		stroke.moveTo(11, 10);
+		stroke.moveTo(10, 10);
+		
+		/* 4x3 tiles covered, one of them already gold. */
+		assertEquals(11, stroke.getChangeCount());
+		assertEquals(new Rectangle(9, 9, 4, 3), stroke.getBounds());
+		
+		stroke.undo();
+		assertEquals(1, map.countTerrainType(0, 0, 100, 100, false, GOLD));
+		assertEquals(GOLD, map.getTerrainType(11, 10, false));
+		
+		stroke.redo();
+		assertEquals(12, map.countTerrainType(0, 0, 100, 100, false, GOLD));
+	}
+	
+	public void testDirtyRegion() {
+		Map map = new Map("test", 100, 100);
+		BrushStroke stroke = new BrushStroke(map, 1, TileChangeSet.Plane.OVERLAY, 0x80FF0000, true);
+		stroke.moveTo(5, 5);
+		assertEquals(new Rectangle(5, 5, 1, 1), stroke.takeDirtyRegion());
+		assertNull(stroke.takeDirtyRegion());
+		
+		stroke.moveTo(5, 5);
+		assertNull(stroke.takeDirtyRegion());
+		
+		stroke.moveTo(8, 6);
+		assertEquals(new Rectangle(6, 5, 3, 2), stroke.takeDirtyRegion());
+		
+		stroke.undo();
+		assertEquals(0, map.getLayer(true).getTileCount());
+	}
+}
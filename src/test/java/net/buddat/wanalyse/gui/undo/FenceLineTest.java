@@ -0,0 +1,62 @@
+package net.buddat.wanalyse.gui.undo;
+
+import junit.framework.TestCase;
+import net.buddat.wanalyse.gui.Map;
+
+public class FenceLineTest extends TestCase {
+
+	public void testFencesAddNoTiles() {
+		Map map = new Map("test", 100, 100);
+		map.setFence(5, 5, false, false, (byte) 2);
+		map.setFence(100, 99, false, true, (byte) 3);
+		map.setFence(101, 5, false, true, (byte) 3);
+		
+		assertEquals(2, map.getFence(5, 5, false, false));
+		assertEquals(0, map.getFence(5, 5, false, true));
+		assertEquals(3, map.getFence(100, 99, false, true));
+		assertEquals(0, map.getFence(101, 5, false, true));
+		assertEquals(0, map.getTileCount());
+		assertEquals(0, map.getChunkCount());
+	}
+	
+	public void testLineStretchesAndUndoes() {
+		Map map = new Map("test", 200, 200);
+		map.setFence(70, 10, false, false, (byte) 1);
+		
+		FenceLine line = new FenceLine(map, 60, 10, false, (byte) 2, false);
+		line.update(130, 40);
+		for (int x = 60; x <= 130; x++)
+			assertEquals(2, map.getFence(x, 10, false, false));
+		assertEquals(0, map.getFence(131, 10, false, false));
+		assertEquals(0, map.getFence(60, 11, false, false));
+		
+		line.update(20, 10);
+		assertEquals(2, map.getFence(20, 10, false, false));
+		assertEquals(1, map.getFence(70, 10, false, false));
+		assertEquals(0, map.getFence(61, 10, false, false));
+		assertFalse(line.isEmpty());
+		
+		line.undo();
+		for (int x = 0; x < 200; x++)
+			assertEquals(x == 70 ? 1 : 0, map.getFence(x, 10, false, false));
+		
+		line.redo();
+		assertEquals(2, map.getFence(40, 10, false, false));
+		assertEquals(0, map.getTileCount());
+	}
+	
+	public void testVerticalLineClipsToMap() {
+		Map map = new Map("test", 50, 50);
+		FenceLine line = new FenceLine(map, 50, 40, true, (byte) 4, true);
+		line.update(0, 80);
+		
+		assertEquals(4, map.getFence(50, 40, true, true));
+		assertEquals(4, map.getFence(50, 49, true, true));
+		assertEquals(0, map.getFence(50, 50, true, true));
+		assertEquals(10, map.getLayer(true).getFences(true).getFenceCount());
+		
+		line.undo();
+		assertEquals(0, map.getLayer(true).getFences(true).getFenceCount());
+		assertEquals(0, map.getLayer(true).getFences(true).getChunkCount());
+	}
+}
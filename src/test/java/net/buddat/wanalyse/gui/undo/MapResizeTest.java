@@ -0,0 +1,40 @@
+package net.buddat.wanalyse.gui.undo;
+
+import junit.framework.TestCase;
+import net.buddat.wanalyse.gui.Map;
+
+public class MapResizeTest extends TestCase {
+
+	public void testUndoRestoresDroppedTiles() {
+		Map map = new Map("test", 200, 200);
+		map.fillTerrainType(0, 0, 200, 200, false, (byte) 2);
+		map.setOverlayColor(150, 150, true, 0x80FF0000);
+		
+		MapResize resize = new MapResize(map, 100, 100, -100, -100);
+		assertEquals(100, map.getMapWidth());
+		assertEquals(0x80FF0000, map.getOverlayColor(50, 50, true));
+		assertEquals(100 * 100 + 1, map.getTileCount());
+		
+		resize.undo();
+		assertEquals(200, map.getMapWidth());
+		assertEquals(200 * 200 + 1, map.getTileCount());
+		assertEquals(0x80FF0000, map.getOverlayColor(150, 150, true));
+		
+		resize.redo();
+		assertEquals(100 * 100 + 1, map.getTileCount());
+		assertTrue(resize.getSize() > 0);
+	}
+	
+	public void testResizeLeavesTilesInPlace() {
+		Map map = new Map("test", 4096, 4096);
+		map.fillTerrainType(0, 0, 4096, 4096, false, (byte) 1);
+		
+		long start = System.nanoTime();
+		new MapResize(map, 4097, 4096, 1, 0);
+		long millis = (System.nanoTime() - start) / 1000000;
+		
+		assertEquals(1, map.getTerrainType(4096, 0, false));
+		assertFalse(map.hasTile(0, 0));
+		assertTrue("resize took " + millis + "ms", millis < 200);
+	}
+}
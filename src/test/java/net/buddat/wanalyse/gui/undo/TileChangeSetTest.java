@@ -0,0 +1,105 @@
+package net.buddat.wanalyse.gui.undo;
+
+import junit.framework.TestCase;
+import net.buddat.wanalyse.gui.Map;
+import net.buddat.wanalyse.gui.TerrainType;
+
+public class TileChangeSetTest extends TestCase {
+
+	private static final byte ROCK = TerrainType.ROCK.getId();
+	private static final byte GOLD = TerrainType.GOLD.getId();
+	private static final byte IRON = TerrainType.IRON.getId();
+	
+	public void testCompactMergesRuns() {
+		Map map = new Map("test", 100, 100);
+		TileChangeSet changes = new TileChangeSet(map, TileChangeSet.Plane.TERRAIN, false);
+		
+		/* Two rows of ten, added backwards and interleaved. */
+		for (int x = 9; x >= 0; x--) {
+			changes.add(x, 5, true, ROCK, true, GOLD);
+			changes.add(x, 3, true, ROCK, true, GOLD);
+		}
+		/* Same row, different old value, so a run of its own. */
+		changes.add(10, 5, false, 0, true, GOLD);
+		
+		changes.compact();
+		assertEquals(3, changes.getRunCount());
+		assertEquals(21, changes.getTileCount());
+	}
+	
+	public void testUndoRedo() {
+		Map map = new Map("test", 100, 100);
+		map.fillTerrainType(0, 0, 10, 10, false, ROCK);
+		
+		TileChangeSet changes = new TileChangeSet(map, TileChangeSet.Plane.TERRAIN, false);
+		changes.addRun(0, 0, 20, true, ROCK, true, GOLD);
+		changes.compact();
+		changes.redo();
+		assertEquals(20, map.countTerrainType(0, 0, 100, 100, false, GOLD));
+		
+		changes.undo();
+		assertEquals(0, map.countTerrainType(0, 0, 100, 100, false, GOLD));
+		assertEquals(ROCK, map.getTerrainType(15, 0, false));
+	}
+	
+	public void testRemovedTilesComeBack() {
+		Map map = new Map("test", 10, 10);
+		map.setOverlayColor(4, 4, true, 0xFF00FF00);
+		
+		TileChangeSet changes = new TileChangeSet(map, TileChangeSet.Plane.OVERLAY, true);
+		changes.add(4, 4, true, 0xFF00FF00, false, 0);
+		changes.add(5, 4, false, 0, true, 0xFF0000FF);
+		changes.compact();
+		
+		changes.redo();
+		assertFalse(map.hasTile(4, 4, true));
+		assertEquals(0xFF0000FF, map.getOverlayColor(5, 4, true));
+		
+		changes.undo();
+		assertEquals(0xFF00FF00, map.getOverlayColor(4, 4, true));
+		assertFalse(map.hasTile(5, 4, true));
+	}
+	
+	public void testTileRecordedTwiceUndoesToFirstValue() {
+		Map map = new Map("test", 10, 10);
+		map.setHeight(1, 1, false, (short) 5);
+		
+		TileChangeSet changes = new TileChangeSet(map, TileChangeSet.Plane.HEIGHT, false);
+		changes.add(1, 1, true, 5, true, 6);
+		changes.add(2, 1, true, 0, true, 1);
+		changes.add(1, 1, true, 6, true, 7);
+		changes.compact();
+		
+		changes.redo();
+		assertEquals(7, map.getHeight(1, 1, false));
+		changes.undo();
+		assertEquals(5, map.getHeight(1, 1, false));
+	}
+	
+	public void testOverlappingRunsUndoToFirstValue() {
+		Map map = new Map("test", 20, 10);
+		map.fillTerrainType(0, 2, 10, 1, false, GOLD);
+		map.setTerrainType(5, 2, false, ROCK);
+		
+		/* One tile inside a longer run recorded after it, starting further left. */
+		TileChangeSet changes = new TileChangeSet(map, TileChangeSet.Plane.TERRAIN, false);
+		changes.add(5, 2, true, ROCK, true, GOLD);
+		changes.addRun(0, 2, 10, true, GOLD, true, IRON);
+		/* And two runs crossing part way. */
+		changes.addRun(12, 2, 4, false, 0, true, GOLD);
+		changes.addRun(10, 2, 4, false, 0, true, ROCK);
+		changes.compact();
+		assertEquals(19, changes.getTileCount());
+		
+		changes.redo();
+		assertEquals(10, map.countTerrainType(0, 2, 10, 1, false, IRON));
+		assertEquals(ROCK, map.getTerrainType(13, 2, false));
+		assertEquals(GOLD, map.getTerrainType(14, 2, false));
+		
+		changes.undo();
+		assertEquals(ROCK, map.getTerrainType(5, 2, false));
+		assertEquals(9, map.countTerrainType(0, 2, 10, 1, false, GOLD));
+		for (int x = 10; x < 16; x++)
+			assertFalse(map.hasTile(x, 2, false));
+	}
+}
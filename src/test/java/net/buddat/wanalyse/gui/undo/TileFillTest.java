@@ -0,0 +1,90 @@
+package net.buddat.wanalyse.gui.undo;
+
+import java.awt.Rectangle;
+
+import junit.framework.TestCase;
+import net.buddat.wanalyse.gui.Map;
+import net.buddat.wanalyse.gui.TerrainType;
+
+public class TileFillTest extends TestCase {
+
+	private static final byte ROCK = TerrainType.ROCK.getId();
+	private static final byte CAVE = TerrainType.CAVE.getId();
+	private static final byte GOLD = TerrainType.GOLD.getId();
+	
+	public void testFillStopsAtBorders() {
+		Map map = new Map("test", 100, 100);
+		map.fillTerrainType(0, 0, 100, 100, false, ROCK);
+		/* A ring of cave around (50, 50), open on no side. */
+		map.fillTerrainType(40, 40, 21, 1, false, CAVE);
+		map.fillTerrainType(40, 60, 21, 1, false, CAVE);
+		map.fillTerrainType(40, 40, 1, 21, false, CAVE);
+		map.fillTerrainType(60, 40, 1, 21, false, CAVE);
+		
+		TileFill fill = new TileFill(map, 50, 50, TileChangeSet.Plane.TERRAIN, GOLD, false);
+		assertEquals(19 * 19, fill.getTilesFilled());
+		assertEquals(19 * 19, map.countTerrainType(0, 0, 100, 100, false, GOLD));
+		assertEquals(ROCK, map.getTerrainType(0, 0, false));
+		assertEquals(new Rectangle(41, 41, 19, 19), fill.getBounds());
+		
+		fill.undo();
+		assertEquals(0, map.countTerrainType(0, 0, 100, 100, false, GOLD));
+		assertEquals(ROCK, map.getTerrainType(50, 50, false));
+		
+		fill.redo();
+		assertEquals(19 * 19, map.countTerrainType(0, 0, 100, 100, false, GOLD));
+	}
+	
+	public void testFillAroundObstacles() {
+		Map map = new Map("test", 20, 20);
+		map.fillTerrainType(0, 0, 20, 20, false, ROCK);
+		/* A comb, so the region folds back on itself. */
+		for (int x = 2; x < 20; x += 4)
+			map.fillTerrainType(x, 0, 1, 18, false, CAVE);
+		for (int x = 4; x < 20; x += 4)
+			map.fillTerrainType(x, 2, 1, 18, false, CAVE);
+		
+		int rock = map.countTerrainType(0, 0, 20, 20, false, ROCK);
+		TileFill fill = new TileFill(map, 0, 0, TileChangeSet.Plane.TERRAIN, GOLD, false);
+		assertEquals(rock, fill.getTilesFilled());
+		assertEquals(0, map.countTerrainType(0, 0, 20, 20, false, ROCK));
+	}
+	
+	public void testFillEmptyAreaAndUndo() {
+		Map map = new Map("test", 10, 10);
+		map.fillTerrainType(0, 5, 10, 1, true, ROCK);
+		
+		TileFill fill = new TileFill(map, 0, 0, TileChangeSet.Plane.OVERLAY, 0x80FF0000, true);
+		assertEquals(50, fill.getTilesFilled());
+		assertEquals(0x80FF0000, map.getOverlayColor(9, 4, true));
+		assertFalse(map.hasTile(0, 6, true));
+		assertFalse(map.hasTile(0, 0, false));
+		
+		fill.undo();
+		assertFalse(map.hasTile(0, 0, true));
+		assertEquals(10, map.getLayer(true).getTileCount());
+	}
+	
+	public void testNoChange() {
+		Map map = new Map("test", 10, 10);
+		map.fillTerrainType(0, 0, 10, 10, false, ROCK);
+		
+		assertTrue(new TileFill(map, 5, 5, TileChangeSet.Plane.TERRAIN, ROCK, false).isEmpty());
+		assertTrue(new TileFill(map, 50, 5, TileChangeSet.Plane.TERRAIN, GOLD, false).isEmpty());
+		assertNull(new TileFill(map, 5, 5, TileChangeSet.Plane.TERRAIN, ROCK, false).getBounds());
+	}
+	
+	public void testMillionTiles() {
+		Map map = new Map("test", 1000, 1000);
+		map.fillTerrainType(0, 0, 1000, 1000, false, ROCK);
+		map.fillTerrainType(0, 500, 999, 1, false, CAVE);
+		
+		/* Timed by TileFillBenchmark. */
+		TileFill fill = new TileFill(map, 0, 0, TileChangeSet.Plane.TERRAIN, GOLD, false);
+		
+		assertEquals(1000 * 1000 - 999, fill.getTilesFilled());
+		
+		/* Two runs a row, not bytes per tile. */
+		assertTrue(fill.getSize() < 1000 * 2 * 32);
+	}
+}
@@ -0,0 +1,84 @@
+package net.buddat.wanalyse.gui.undo;
+
+import junit.framework.TestCase;
+
+public class UndoManagerTest extends TestCase {
+
+	private static class Counter implements UndoableAction {
+		private final int[] value;
+		private final int delta;
+		private final long size;
+		
+		private Counter(int[] value, int delta, long size) {
+			this.value = value;
+			this.delta = delta;
+			this.size = size;
+			execute();
+		}
+		
+		@Override
+		public void execute() {
+			value[0] += delta;
+		}
+		
+		@Override
+		public void undo() {
+			value[0] -= delta;
+		}
+		
+		@Override
+		public void redo() {
+			value[0] += delta;
+		}
+		
+		@Override
+		public long getSize() {
+			return size;
+		}
+	}
+	
+	public void testUndoRedoAcrossWrap() {
+		UndoManager undo = new UndoManager(1000);
+		int[] value = new int[1];
+		
+		/* Far more actions than the initial ring, fewer than the budget. */
+		for (int i = 0; i < 200; i++)
+			undo.addAction(new Counter(value, 1, 1));
+		assertEquals(200, undo.size());
+		
+		for (int i = 0; i < 200; i++)
+			undo.undo();
+		assertEquals(0, value[0]);
+		assertFalse(undo.canUndo());
+		
+		undo.redo();
+		undo.redo();
+		assertEquals(2, value[0]);
+		
+		/* A new action drops what was left to redo. */
+		undo.addAction(new Counter(value, 10, 1));
+		assertFalse(undo.canRedo());
+		assertEquals(3, undo.size());
+		assertEquals(3, undo.getUsedBytes());
+	}
+	
+	public void testEvictsOldestByBytes() {
+		UndoManager undo = new UndoManager(100);
+		int[] value = new int[1];
+		
+		for (int i = 0; i < 90; i++)
+			undo.addAction(new Counter(value, 1, 1));
+		undo.addAction(new Counter(value, 1000, 50));
+		
+		assertEquals(51, undo.size());
+		assertEquals(100, undo.getUsedBytes());
+		
+		/* Bigger than the budget on its own, but the newest is always kept. */
+		undo.addAction(new Counter(value, 1, 500));
+		assertEquals(1, undo.size());
+		
+		undo.undo();
+		assertFalse(undo.canUndo());
+		assertEquals(1090, value[0]);
+	}
+}
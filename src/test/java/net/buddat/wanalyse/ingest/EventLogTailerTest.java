@@ -0,0 +1,163 @@
+package net.buddat.wanalyse.ingest;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import junit.framework.TestCase;
+import net.buddat.wanalyse.analyse.ReadingFile;
+import net.buddat.wanalyse.analyse.VeinSolver;
+import net.buddat.wanalyse.gui.Map;
+import net.buddat.wanalyse.gui.TerrainType;
+
+public class EventLogTailerTest extends TestCase {
+
+	private static final Executor DIRECT = new Executor() {
+		@Override
+		public void execute(Runnable r) {
+			r.run();
+		}
+	};
+	
+	private File dir, checkpoints;
+	private final List<LogEvent> events = new ArrayList<LogEvent>();
+	private final EventLogTailer.Listener listener = new EventLogTailer.Listener() {
+		@Override
+		public void eventsRead(List<LogEvent> batch) {
+			events.addAll(batch);
+		}
+	};
+	
+	@Override
+	protected void setUp() throws IOException {
+		dir = File.createTempFile("wanalyse", "logs");
+		dir.delete();
+		dir.mkdir();
+		checkpoints = new File(dir, "checkpoints.properties");
+	}
+	
+	@Override
+	protected void tearDown() {
+		for (File f : dir.listFiles())
+			f.delete();
+		dir.delete();
+	}
+	
+	private void append(String name, String text) throws IOException {
+		OutputStream out = new FileOutputStream(new File(dir, name), true);
+		try {
+			out.write(text.getBytes("US-ASCII"));
+		} finally {
+			out.close();
+		}
+	}
+	
+	public void testFollowsAppendsAcrossRestarts() throws IOException {
+		append("_Event.2024-01.txt", "[10:00:00] You would mine iron here.\n[10:00:01] You would mine t");
+		append("_Skills.2024-01.txt", "[10:00:00] You would mine gold here.\n");
+		
+		EventLogTailer tailer = new EventLogTailer(dir, checkpoints, listener, DIRECT);
+		tailer.poll();
+		assertEquals(1, events.size());
+		
+		append("_Event.2024-01.txt", "in here.\n");
+		tailer.poll();
+		assertEquals(2, events.size());
+		assertEquals(TerrainType.TIN, events.get(1).getOre());
+		
+		/* A new tailer starts from the checkpoints. */
+		append("_Event.2024-02.txt", "[09:00:00] You spot traces of lead far to the west.\n");
+		tailer = new EventLogTailer(dir, checkpoints, listener, DIRECT);
+		tailer.poll();
+		assertEquals(3, events.size());
+		assertEquals(TerrainType.LEAD, events.get(2).getOre());
+		
+		tailer.poll();
+		assertEquals(3, events.size());
+	}
+	
+	public void testCheckpointsOnlyAppliedBatches() throws IOException {
+		append("_Event.2024-01.txt", "[10:00:00] You would mine iron here.\n");
+		
+		final List<Runnable> queued = new ArrayList<Runnable>();
+		EventLogTailer tailer = new EventLogTailer(dir, checkpoints, listener, new Executor() {
+			@Override
+			public void execute(Runnable r) {
+				queued.add(r);
+			}
+		});
+		tailer.poll();
+		assertEquals(1, queued.size());
+		assertEquals(0, tailer.getPosition("_Event.2024-01.txt"));
+		
+		/* Never applied, so read again by the next tailer. */
+		new EventLogTailer(dir, checkpoints, listener, DIRECT).poll();
+		assertEquals(1, events.size());
+		
+		events.clear();
+		queued.get(0).run();
+		assertEquals(1, events.size());
+		assertEquals(0, tailer.getPosition("_Event.2024-01.txt"));
+		
+		/* Checkpointed by the next poll, which has nothing new to hand over. */
+		tailer.poll();
+		assertEquals(1, queued.size());
+		assertTrue(tailer.getPosition("_Event.2024-01.txt") > 0);
+		new EventLogTailer(dir, checkpoints, listener, DIRECT).poll();
+		assertEquals(1, events.size());
+	}
+	
+	public void testFailedListenerStopsCheckpoints() throws IOException {
+		append("_Event.2024-01.txt", "[10:00:00] You would mine iron here.\n");
+		
+		EventLogTailer tailer = new EventLogTailer(dir, checkpoints, new EventLogTailer.Listener() {
+			@Override
+			public void eventsRead(List<LogEvent> batch) throws IOException {
+				throw new IOException("disk full");
+			}
+		}, DIRECT);
+		tailer.poll();
+		assertEquals(0, tailer.getPosition("_Event.2024-01.txt"));
+		assertEquals("disk full", tailer.getLastError().getMessage());
+		
+		try {
+			tailer.poll();
+			fail();
+		} catch (IOException e) {
+			assertEquals("disk full", e.getMessage());
+		}
+		
+		new EventLogTailer(dir, checkpoints, listener, DIRECT).poll();
+		assertEquals(1, events.size());
+	}
+	
+	public void testIngesterFeedsMapAndSolver() throws IOException {
+		append("_Event.2024-01.txt", "[10:00:00] You would mine iron here.\n"
+				+ "[10:00:01] You spot traces of silver (good) close to the east.\n");
+		
+		Map map = new Map("mine", 50, 50);
+		map.resizeMap(60, 50, 10, 0);
+		VeinSolver solver = new VeinSolver();
+		AnalyseIngester ingester = new AnalyseIngester(map, solver);
+		ingester.setPosition(20, 20);
+		ReadingFile readings = new ReadingFile(new File(dir, "mine.readings"));
+		ingester.setReadingFile(readings);
+		
+		new EventLogTailer(dir, checkpoints, ingester, DIRECT).poll();
+		
+		assertEquals(TerrainType.IRON.getId(), map.getTerrainType(20, 20, true));
+		assertEquals(1, solver.getReadings().size());
+		assertEquals(10, solver.getReadings().get(0).getX());
+		assertEquals(1, ingester.getReadingCount());
+		assertEquals(1, ingester.getProspectCount());
+		
+		/* The reading outlives the session. */
+		assertEquals(1, readings.read().size());
+		assertEquals(10, readings.read().get(0).getX());
+		assertEquals(TerrainType.SILVER, readings.read().get(0).getVein().getOre());
+	}
+}
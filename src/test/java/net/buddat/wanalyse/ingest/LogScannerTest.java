@@ -0,0 +1,96 @@
+package net.buddat.wanalyse.ingest;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import net.buddat.wanalyse.analyse.Direction;
+import net.buddat.wanalyse.analyse.DistanceBand;
+import net.buddat.wanalyse.analyse.OreQuality;
+import net.buddat.wanalyse.gui.TerrainType;
+
+public class LogScannerTest extends TestCase {
+
+	private final List<LogEvent> events = new ArrayList<LogEvent>();
+	private final LogScanner.Sink sink = new LogScanner.Sink() {
+		@Override
+		public void event(LogEvent e) {
+			events.add(e);
+		}
+	};
+	
+	private int scan(String text) {
+		return new LogScanner().scan(ByteBuffer.wrap(text.getBytes(Charset.forName("UTF-8"))), sink);
+	}
+	
+	public void testAnalyseMessage() {
+		scan("[12:34:56] You spot traces of iron ore (very good) very far to the northeast.\n");
+		
+		assertEquals(1, events.size());
+		LogEvent e = events.get(0);
+		assertEquals(LogEvent.Type.ANALYSE, e.getType());
+		assertEquals(12 * 3600 + 34 * 60 + 56, e.getTime());
+		assertEquals(TerrainType.IRON, e.getOre());
+		assertEquals(OreQuality.VERY_GOOD, e.getQuality());
+		assertEquals(DistanceBand.VERY_FAR, e.getDistance());
+		assertEquals(Direction.NORTHEAST, e.getDirection());
+	}
+	
+	public void testProspectAndVariants() {
+		scan("[00:00:01] you would mine Rock Salt here.\r\n"
+				+ "[00:00:02] You spot traces of tin close to the north\n"
+				+ "[00:00:03] You would mine gold (poor) here.\n");
+		
+		assertEquals(3, events.size());
+		assertEquals(LogEvent.Type.PROSPECT, events.get(0).getType());
+		assertEquals(TerrainType.ROCKSALT, events.get(0).getOre());
+		assertNull(events.get(0).getQuality());
+		assertEquals(Direction.NORTH, events.get(1).getDirection());
+		assertEquals(DistanceBand.CLOSE, events.get(1).getDistance());
+		assertEquals(OreQuality.POOR, events.get(2).getQuality());
+	}
+	
+	public void testOtherLinesIgnored() {
+		scan("Logging started 2024-01-01\n"
+				+ "[10:00:00] You dig a hole.\n"
+				+ "[10:00:01] You spot traces of cheese far to the east.\n"
+				+ "[10:00:02] You spot traces of iron far to the east, probably.\n"
+				+ "[1x:00:03] You spot traces of iron far to the east.\n"
+				+ "\n");
+		
+		assertTrue(events.isEmpty());
+	}
+	
+	public void testStopsAtUnfinishedLine() {
+		String done = "[10:00:00] You would mine zinc here.\n";
+		int scanned = scan(done + "[10:00:01] You would mine ir");
+		
+		assertEquals(done.length(), scanned);
+		assertEquals(1, events.size());
+	}
+	
+	public void testScansQuickly() {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			sb.append("[10:00:00] You hit the rock with your pickaxe and some dust falls down.\n");
+			if (i % 10 == 0)
+				sb.append("[10:00:01] You spot traces of copper far to the southwest.\n");
+		}
+		byte[] block = sb.toString().getBytes(Charset.forName("US-ASCII"));
+		ByteBuffer buf = ByteBuffer.allocateDirect(block.length * 64);
+		for (int i = 0; i < 64; i++)
+			buf.put(block);
+		buf.flip();
+		
+		LogScanner scanner = new LogScanner();
+		long start = System.nanoTime();
+		int scanned = scanner.scan(buf, sink);
+		long millis = (System.nanoTime() - start) / 1000000;
+		
+		assertEquals(buf.limit(), scanned);
+		assertEquals(6400, events.size());
+		assertTrue("took " + millis + "ms", millis < 1000);
+	}
+}